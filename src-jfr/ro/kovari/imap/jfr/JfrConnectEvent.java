@@ -0,0 +1,61 @@
+/*
+ * Project: imap2local
+ *
+ * Copyright (c) Attila Kovari
+ * All rights reserved.
+ *
+ * MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+
+package ro.kovari.imap.jfr;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+
+/** A connection to an IMAP server: TCP connect, TLS handshake, greeting, capabilities and login */
+@Name("imap2local.Connect")
+@Label("IMAP Connect")
+@Description("Connection setup, from the TCP connect to the end of the login")
+class JfrConnectEvent extends JfrImapEvent {
+
+    @Label("Host")
+    public String host;
+
+    @Label("Protocol")
+    public String protocol;
+
+    @Label("Compressed")
+    public boolean compressed;
+
+
+
+    @Override
+    void set(ImapEvent event) {
+        ConnectEvent connectEvent = (ConnectEvent) event;
+        host = connectEvent.host;
+        protocol = connectEvent.protocol;
+        compressed = connectEvent.compressed;
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Project: imap2local
+ *
+ * Copyright (c) Attila Kovari
+ * All rights reserved.
+ *
+ * MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+
+package ro.kovari.imap.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.StackTrace;
+
+
+/**
+ * The base of the Java Flight Recorder events of imap2local, identifying the IMAP folder
+ * and the message the event relates to, recording an {@link ImapEvent}.<br>
+ * The events are recorded without stack traces unless enabled by the recording settings,
+ * see imap2local.jfc.
+ */
+@Category("imap2local")
+@StackTrace(false)
+abstract class JfrImapEvent extends Event implements EventRecorder {
+
+    @Label("Folder")
+    public String folder;
+
+    @Label("UID")
+    public long uid;
+
+
+
+    @Override
+    public void record(ImapEvent event) {
+        folder = event.folder;
+        uid = event.uid;
+        set(event);
+        commit();
+    }
+
+
+
+    /**
+     * Copy the fields of an event
+     * @param event the {@link ImapEvent}, of the type recorded by this event
+     */
+    abstract void set(ImapEvent event);
+}
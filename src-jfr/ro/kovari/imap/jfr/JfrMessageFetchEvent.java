@@ -0,0 +1,55 @@
+/*
+ * Project: imap2local
+ *
+ * Copyright (c) Attila Kovari
+ * All rights reserved.
+ *
+ * MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+
+package ro.kovari.imap.jfr;
+
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+
+/** The download of a message, from the FETCH of its body to the last byte written */
+@Name("imap2local.MessageFetch")
+@Label("IMAP Message Fetch")
+@Description("Download of a message body; when saved to the Maildir, the time includes the disk writes")
+class JfrMessageFetchEvent extends JfrImapEvent {
+
+    @Label("Bytes")
+    @DataAmount
+    public long bytes;
+
+
+
+    @Override
+    void set(ImapEvent event) {
+        MessageFetchEvent messageFetchEvent = (MessageFetchEvent) event;
+        bytes = messageFetchEvent.bytes;
+    }
+}
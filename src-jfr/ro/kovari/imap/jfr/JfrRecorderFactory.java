@@ -0,0 +1,72 @@
+/*
+ * Project: imap2local
+ *
+ * Copyright (c) Attila Kovari
+ * All rights reserved.
+ *
+ * MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+
+package ro.kovari.imap.jfr;
+
+import jdk.jfr.FlightRecorder;
+
+
+/**
+ * Creates the Java Flight Recorder events recording the {@link ImapEvent}s; loaded by name,
+ * only on a JVM with the Flight Recorder
+ */
+class JfrRecorderFactory implements EventRecorder.Factory {
+
+    /**
+     * Create a new {@link JfrRecorderFactory}
+     * @throws IllegalStateException if the Flight Recorder is not available in this JVM
+     */
+    JfrRecorderFactory() {
+        if (!FlightRecorder.isAvailable()) {
+            throw new IllegalStateException("The Flight Recorder is not available!");
+        }
+    }
+
+
+
+    @Override
+    public EventRecorder create(ImapEvent event) {
+        if (event instanceof FileEvent) {
+            return new JfrFileEvent();
+        }
+        if (event instanceof MessageFetchEvent) {
+            return new JfrMessageFetchEvent();
+        }
+        if (event instanceof FolderOpenEvent) {
+            return new JfrFolderOpenEvent();
+        }
+        if (event instanceof ConnectEvent) {
+            return new JfrConnectEvent();
+        }
+        if (event instanceof ReconnectEvent) {
+            return new JfrReconnectEvent();
+        }
+        throw new IllegalArgumentException("Unknown event: " + event.getClass().getName());
+    }
+}
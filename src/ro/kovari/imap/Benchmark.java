@@ -0,0 +1,461 @@
+/*
+ * Project: imap2local
+ *
+ * Copyright (c) Attila Kovari
+ * All rights reserved.
+ *
+ * MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+
+package ro.kovari.imap;
+
+import ro.kovari.imap.store.MaildirFolder;
+import ro.kovari.imap.store.MaildirLocalStore;
+import ro.kovari.imap.store.MaildirOutputStream;
+import ro.kovari.imap.store.MessageCodec;
+import ro.kovari.imap.utils.CountingOutputStream;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/** Micro-benchmarks of the local side of a download, run against a scratch Maildir next to the store */
+public class Benchmark {
+
+    /** The scratch Maildir, deleted afterwards */
+    private static final String BENCHMARK_DIRECTORY = "imap2local-benchmark";
+
+    /** Number of distinct synthetic messages, from 2 KB to 64 KB */
+    private static final int MESSAGE_COUNT = 64;
+
+    private static final int WARMUP_MESSAGES = 5000;
+    private static final int MEASURED_MESSAGES = 20000;
+
+    /** Number of messages queued between the stages of the {@link MessagePipeline}, as configured by default */
+    private static final int PIPELINE_DEPTH = 4;
+
+    /** Time allowed to the {@link MessagePipeline} to save the messages queued */
+    private static final long PIPELINE_TIMEOUT = TimeUnit.MINUTES.toNanos(1);
+
+    /** Number of messages written between two cleanups of the scratch Maildir */
+    private static final int CLEANUP_INTERVAL = 1000;
+
+    /** The words of the text messages, the most frequent first */
+    private static final String[] WORDS = ("the of and to a in is you that it he was for on are as with his they I"
+            + " at be this have from or one had by word but not what all were we when your can said there use an"
+            + " each which she do how their if will up other about out many then them these so some her would make"
+            + " like him into time has look two more write go see number no way could people my than first water"
+            + " been call who oil its now find long down day did get come made may part meeting invoice attached"
+            + " please regards thanks project report tomorrow schedule review update question customer order").split(" ");
+
+
+
+    /**
+     * Measure the garbage produced and the throughput when writing messages into the Maildir,
+     * in steady state, with the pooled direct buffers of {@link MaildirOutputStream}, through the
+     * {@link MessagePipeline} of the single connection downloads, counting the garbage of all its threads,
+     * and, for comparison, with a stack of java.io streams allocated per message.<br>
+     * The messages are written the way a downloaded message is: the whole literal in a single write.
+     * @param localStore the {@link MaildirLocalStore} next to which the scratch Maildir is created
+     */
+    public static void allocation(MaildirLocalStore localStore) {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        if (!threads.isThreadAllocatedMemorySupported()) {
+            System.out.println("Allocation measurement not supported by this JVM.");
+            return;
+        }
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        MaildirFolder folder = new MaildirFolder(localStore.getSiblingLocation(BENCHMARK_DIRECTORY));
+        localStore.createMaildirFolder(folder);
+        byte[][] messages = createMessages();
+        long messageBytes = 0;
+        for (byte[] message : messages) {
+            messageBytes += message.length;
+        }
+
+        System.out.println(String.format("Writing %d messages of %d bytes on average, after %d messages of warm-up",
+                MEASURED_MESSAGES, messageBytes / messages.length, WARMUP_MESSAGES));
+        try {
+            run("pooled direct buffers", folder, messages, threads, Benchmark::writePooled);
+            runPipeline("message pipeline     ", folder, messages, threads);
+            run("java.io streams      ", folder, messages, threads, Benchmark::writeStreams);
+
+        } catch (IOException e) {
+            System.out.println("Benchmark failed: " + e.getMessage());
+
+        } finally {
+            delete(folder);
+        }
+        System.out.println("Done!");
+    }
+
+
+
+    /**
+     * Measure the throughput and the ratio of the compression of the message files, for each codec
+     * and a few levels, against writing them uncompressed.<br>
+     * The messages are made of English words, which compress about as well as the text of real mail.
+     * The write path stays network-bound as long as its throughput is above the bandwidth of the download.
+     * @param localStore the {@link MaildirLocalStore} next to which the scratch Maildir is created
+     */
+    public static void compression(MaildirLocalStore localStore) {
+        File location = localStore.getSiblingLocation(BENCHMARK_DIRECTORY);
+        byte[][] messages = createTextMessages();
+        long messageBytes = 0;
+        for (byte[] message : messages) {
+            messageBytes += message.length;
+        }
+
+        System.out.println(String.format("Compressing %d text messages of %d bytes on average, after %d of warm-up",
+                MEASURED_MESSAGES, messageBytes / messages.length, WARMUP_MESSAGES));
+        Object[][] variants = {
+                {MessageCodec.NONE, 0}, {MessageCodec.GZIP, 1}, {MessageCodec.GZIP, 6}, {MessageCodec.GZIP, 9},
+                {MessageCodec.ZLIB, 1}, {MessageCodec.ZLIB, 6}};
+
+        for (Object[] variant : variants) {
+            MaildirFolder folder = new MaildirFolder(location, (MessageCodec) variant[0], (Integer) variant[1]);
+            localStore.createMaildirFolder(folder);
+            try {
+                for (int i = 0; i < WARMUP_MESSAGES; i++) {
+                    writePooled(folder, messages[i % messages.length]);
+                    if ((i + 1) % CLEANUP_INTERVAL == 0) {
+                        cleanup(folder);
+                    }
+                }
+                cleanup(folder);
+
+                long elapsed = 0;
+                long written = 0;
+                long stored = 0;
+                for (int i = 0; i < MEASURED_MESSAGES; i += CLEANUP_INTERVAL) {
+                    long start = System.nanoTime();
+                    for (int j = i; j < i + CLEANUP_INTERVAL; j++) {
+                        writePooled(folder, messages[j % messages.length]);
+                        written += messages[j % messages.length].length;
+                    }
+                    elapsed += System.nanoTime() - start;
+                    stored += cleanup(folder);
+                }
+
+                double seconds = elapsed / (double) TimeUnit.SECONDS.toNanos(1);
+                System.out.println(String.format("%-4s level %d: %,8.0f messages/s, %,7.1f MB/s (%,6.0f Mbit/s) of mail,"
+                                + " ratio %.2f", variant[0], variant[1], MEASURED_MESSAGES / seconds,
+                        written / seconds / (1 << 20), written * 8 / seconds / 1e6, (double) written / stored));
+
+            } catch (IOException e) {
+                System.out.println("Benchmark failed: " + e.getMessage());
+
+            } finally {
+                delete(folder);
+            }
+        }
+        System.out.println("Done!");
+    }
+
+
+
+    /**
+     * Run one variant: warm up, then measure the bytes allocated by the writing thread,
+     * leaving out the cleanups of the scratch Maildir
+     * @param name the name of the variant
+     * @param folder the scratch {@link MaildirFolder}
+     * @param messages the messages
+     * @param threads the {@link com.sun.management.ThreadMXBean}
+     * @param writer the variant
+     * @throws IOException in case of error
+     */
+    private static void run(String name, MaildirFolder folder, byte[][] messages,
+                            com.sun.management.ThreadMXBean threads, MessageWriter writer) throws IOException {
+
+        long threadId = Thread.currentThread().getId();
+        for (int i = 0; i < WARMUP_MESSAGES; i++) {
+            writer.write(folder, messages[i % messages.length]);
+            if ((i + 1) % CLEANUP_INTERVAL == 0) {
+                cleanup(folder);
+            }
+        }
+        cleanup(folder);
+
+        long allocated = 0;
+        long elapsed = 0;
+        for (int i = 0; i < MEASURED_MESSAGES; i += CLEANUP_INTERVAL) {
+            long allocatedBefore = threads.getThreadAllocatedBytes(threadId);
+            long start = System.nanoTime();
+            for (int j = i; j < i + CLEANUP_INTERVAL; j++) {
+                writer.write(folder, messages[j % messages.length]);
+            }
+            elapsed += System.nanoTime() - start;
+            allocated += threads.getThreadAllocatedBytes(threadId) - allocatedBefore;
+            cleanup(folder);
+        }
+
+        System.out.println(String.format("%s: %,d bytes allocated per message, %,.0f messages/s",
+                name, allocated / MEASURED_MESSAGES,
+                MEASURED_MESSAGES / (elapsed / (double) TimeUnit.SECONDS.toNanos(1))));
+    }
+
+
+
+    /**
+     * Run the {@link MessagePipeline}: warm up, then measure the bytes allocated by the queuing thread
+     * and by the threads of the stages, waiting for the messages queued to be saved before each cleanup
+     * @param name the name of the variant
+     * @param folder the scratch {@link MaildirFolder}
+     * @param messages the messages
+     * @param threads the {@link com.sun.management.ThreadMXBean}
+     * @throws IOException if the messages were not saved
+     */
+    private static void runPipeline(String name, MaildirFolder folder, byte[][] messages,
+                                    com.sun.management.ThreadMXBean threads) throws IOException {
+
+        // the messages are 'fetched' from memory, by the same content every time, allocated beforehand
+        MessagePipeline.Content[] contents = new MessagePipeline.Content[messages.length];
+        for (int i = 0; i < messages.length; i++) {
+            byte[] message = messages[i];
+            contents[i] = out -> {
+                out.write(message);
+                return null;
+            };
+        }
+
+        AtomicLong saved = new AtomicLong();
+        MessagePipeline pipeline = new MessagePipeline(folder, PIPELINE_DEPTH, saved);
+        long[] stageIds = pipeline.getThreadIds();
+        long[] threadIds = { Thread.currentThread().getId(), stageIds[0], stageIds[1] };
+        long queued = 0;
+        try {
+            for (int i = 0; i < WARMUP_MESSAGES; i++) {
+                pipeline.save("", 0, contents[i % messages.length]);
+                queued += messages[i % messages.length].length;
+                if ((i + 1) % CLEANUP_INTERVAL == 0) {
+                    await(saved, queued);
+                    cleanup(folder);
+                }
+            }
+            await(saved, queued);
+            cleanup(folder);
+
+            long allocated = 0;
+            long elapsed = 0;
+            for (int i = 0; i < MEASURED_MESSAGES; i += CLEANUP_INTERVAL) {
+                long before = getAllocatedBytes(threads, threadIds);
+                long start = System.nanoTime();
+                for (int j = i; j < i + CLEANUP_INTERVAL; j++) {
+                    pipeline.save("", 0, contents[j % messages.length]);
+                    queued += messages[j % messages.length].length;
+                }
+                await(saved, queued);
+                elapsed += System.nanoTime() - start;
+                allocated += getAllocatedBytes(threads, threadIds) - before;
+                cleanup(folder);
+            }
+
+            System.out.println(String.format("%s: %,d bytes allocated per message, %,.0f messages/s",
+                    name, allocated / MEASURED_MESSAGES,
+                    MEASURED_MESSAGES / (elapsed / (double) TimeUnit.SECONDS.toNanos(1))));
+
+        } finally {
+            pipeline.finish();
+            System.out.println();
+        }
+    }
+
+
+
+    /**
+     * Get the bytes allocated by threads so far
+     * @param threads the {@link com.sun.management.ThreadMXBean}
+     * @param threadIds the identifiers of the threads, alive
+     * @return the bytes allocated by the threads
+     */
+    private static long getAllocatedBytes(com.sun.management.ThreadMXBean threads, long[] threadIds) {
+        long allocated = 0;
+        for (long threadId : threadIds) {
+            allocated += threads.getThreadAllocatedBytes(threadId);
+        }
+        return allocated;
+    }
+
+
+
+    /**
+     * Wait for the {@link MessagePipeline} to save the messages queued
+     * @param saved the bytes of the messages saved
+     * @param queued the bytes of the messages queued
+     * @throws IOException if the messages were not saved in time
+     */
+    private static void await(AtomicLong saved, long queued) throws IOException {
+        long deadline = System.nanoTime() + PIPELINE_TIMEOUT;
+        while (saved.get() < queued) {
+            if (System.nanoTime() - deadline > 0) {
+                throw new IOException("the message pipeline failed to save the messages");
+            }
+            Thread.yield();
+        }
+    }
+
+
+
+    /**
+     * Write a message the way a download does
+     * @param folder the {@link MaildirFolder}
+     * @param message the message
+     * @throws IOException in case of error
+     */
+    private static void writePooled(MaildirFolder folder, byte[] message) throws IOException {
+        try (MaildirOutputStream out = folder.getOutputStream(MaildirFolder.SubFolder.NEW)) {
+            out.write(message);
+        }
+    }
+
+
+
+    /**
+     * Write a message through buffered and counting java.io streams created for the message
+     * @param folder the {@link MaildirFolder}
+     * @param message the message
+     * @throws IOException in case of error
+     */
+    private static void writeStreams(MaildirFolder folder, byte[] message) throws IOException {
+        String fileName = System.nanoTime() + "." + MaildirLocalStore.getNextMessageId() + ".benchmark";
+        File tmpFile = new File(folder.getTmpFolder(), fileName);
+        AtomicLong size = new AtomicLong();
+
+        try (OutputStream out = new CountingOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmpFile), 65536), size)) {
+            out.write(message);
+        }
+        Files.move(tmpFile.toPath(), new File(folder.getNewFolder(), fileName).toPath(),
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+
+
+    /**
+     * Delete the messages written to the scratch Maildir
+     * @param folder the scratch {@link MaildirFolder}
+     * @return the size of the message files deleted
+     */
+    private static long cleanup(MaildirFolder folder) {
+        long size = 0;
+        for (File subFolder : new File[] { folder.getNewFolder(), folder.getTmpFolder() }) {
+            File[] files = subFolder.listFiles();
+            for (File file : files == null ? new File[0] : files) {
+                size += file.length();
+                file.delete();
+            }
+        }
+        return size;
+    }
+
+
+
+    /**
+     * Delete the scratch Maildir
+     * @param folder the scratch {@link MaildirFolder}
+     */
+    private static void delete(MaildirFolder folder) {
+        cleanup(folder);
+        for (File subFolder : new File[] { folder.getCurFolder(), folder.getNewFolder(), folder.getTmpFolder() }) {
+            subFolder.delete();
+        }
+        File[] files = folder.getMaildirFolder().listFiles();
+        for (File file : files == null ? new File[0] : files) {
+            file.delete();
+        }
+        folder.getMaildirFolder().delete();
+    }
+
+
+
+    /**
+     * Create synthetic messages of growing sizes, with CRLF line endings
+     * @return the messages
+     */
+    private static byte[][] createMessages() {
+        Random random = new Random(42);
+        byte[][] messages = new byte[MESSAGE_COUNT][];
+        for (int i = 0; i < MESSAGE_COUNT; i++) {
+            int size = 2048 + (int) ((long) i * (62 << 10) / (MESSAGE_COUNT - 1));
+            StringBuilder message = new StringBuilder(size + 80)
+                    .append("From: sender@example.test\r\n")
+                    .append("To: recipient@example.test\r\n")
+                    .append("Subject: Message ").append(i).append("\r\n\r\n");
+            while (message.length() < size) {
+                for (int j = 0; j < 72; j++) {
+                    message.append((char) ('a' + random.nextInt(26)));
+                }
+                message.append("\r\n");
+            }
+            messages[i] = message.toString().getBytes(StandardCharsets.US_ASCII);
+        }
+        return messages;
+    }
+
+
+
+    /**
+     * Create synthetic text messages of growing sizes, with CRLF line endings, made of common
+     * English words, the frequent ones more often, like the text of real mail
+     * @return the messages
+     */
+    private static byte[][] createTextMessages() {
+        Random random = new Random(42);
+        byte[][] messages = new byte[MESSAGE_COUNT][];
+        for (int i = 0; i < MESSAGE_COUNT; i++) {
+            int size = 2048 + (int) ((long) i * (62 << 10) / (MESSAGE_COUNT - 1));
+            StringBuilder message = new StringBuilder(size + 160)
+                    .append("From: sender@example.test\r\n")
+                    .append("To: recipient@example.test\r\n")
+                    .append("Subject: Message ").append(i).append("\r\n\r\n");
+            while (message.length() < size) {
+                int lineStart = message.length();
+                while (message.length() - lineStart < 72) {
+                    double rank = Math.pow(random.nextDouble(), 3);
+                    message.append(WORDS[(int) (rank * WORDS.length)]).append(' ');
+                }
+                message.append("\r\n");
+            }
+            messages[i] = message.toString().getBytes(StandardCharsets.US_ASCII);
+        }
+        return messages;
+    }
+
+
+
+    /** A way of writing a message into a {@link MaildirFolder} */
+    private interface MessageWriter {
+        void write(MaildirFolder folder, byte[] message) throws IOException;
+    }
+}
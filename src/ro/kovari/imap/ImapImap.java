@@ -0,0 +1,490 @@
+/*
+ * Project: imap2local
+ *
+ * Copyright (c) Attila Kovari
+ * All rights reserved.
+ *
+ * MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+
+package ro.kovari.imap;
+
+import ro.kovari.imap.config.Configuration;
+import ro.kovari.imap.exception.ImapException;
+import ro.kovari.imap.exception.MaildirException;
+import ro.kovari.imap.jfr.MessageFetchEvent;
+import ro.kovari.imap.store.AppendMessage;
+import ro.kovari.imap.store.ImapStore;
+import ro.kovari.imap.store.UidRange;
+
+import javax.mail.Flags;
+import javax.mail.Folder;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.UIDFolder;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+
+/**
+ * A bridge between two remote IMAP stores, migrating the messages of one to the other
+ * without staging them on the disk
+ */
+public class ImapImap {
+
+    /** The UID mappings of the migration, in the state folder */
+    private static final String MAPPING_DIRECTORY = "imap2local-migrate";
+
+    /** The first line of a UID mapping file, followed by the UID validity of the source folder */
+    private static final String UID_VALIDITY = "uidvalidity ";
+
+    /** A UID in a UID mapping file */
+    private static final Pattern NUMBER = Pattern.compile("\\d+");
+
+    /** Replaces the destination UID in a UID mapping file for a message the destination refused */
+    private static final String REFUSED = "-";
+
+    /** Bytes of messages fetched from the source and not yet appended to the destination, per folder */
+    private static final int BUFFER_BYTES = 16 << 20;
+
+    /** Limits of the messages sent at once: in a single MULTIAPPEND, or pipelined */
+    private static final int BATCH_MESSAGES = 50;
+    private static final int BATCH_BYTES = 4 << 20;
+
+
+
+    /**
+     * Migrate the messages of a source {@link ImapStore} to a destination {@link ImapStore},
+     * recreating its folders.<br>
+     * The folders are migrated over several pairs of connections at once, one folder per pair.
+     * Within a folder the messages are fetched from the source while the previous ones are appended
+     * to the destination, through a bounded buffer, so that the slower of the two servers sets the pace.
+     * The UID of each message migrated is recorded with its UID on the destination, so that an
+     * interrupted migration resumes where it stopped; so are the messages the destination refused,
+     * so that the next run migrates them again.
+     * @param source the source {@link ImapStore}
+     * @param destination the destination {@link ImapStore}
+     * @param stateLocation the local folder where the UID mappings are kept
+     * @param config the application {@link Configuration}
+     */
+    public static void imap2Imap(ImapStore source, ImapStore destination, String stateLocation, Configuration config) {
+        System.out.println("Connecting to the source server...");
+        source.connect();
+        System.out.println(System.lineSeparator() + "Connecting to the destination server...");
+        destination.connect();
+        System.out.println(System.lineSeparator());
+
+        // the connections of the workers are opened while the folders are fetched and created
+        source.warmUp(config.getConnections());
+        destination.warmUp(config.getConnections());
+
+        File mappings = new File(stateLocation, MAPPING_DIRECTORY);
+        if (!mappings.isDirectory() && !mappings.mkdirs()) {
+            throw new MaildirException("Unable to create the UID mapping directory!");
+        }
+
+        // parents come first, as they are listed before their children
+        Queue<String> folders = new ConcurrentLinkedQueue<>();
+        for (Folder folder : source.fetchFolders()) {
+            destination.createFolder(getDestinationName(folder.getFullName(), source, destination));
+            folders.add(folder.getFullName());
+        }
+
+        int connections = Math.max(1, Math.min(config.getConnections(), folders.size()));
+        ExecutorService executor = Executors.newFixedThreadPool(connections);
+        ExecutorService appenders = Executors.newFixedThreadPool(connections);
+        List<Future<?>> workers = new ArrayList<>();
+        AtomicLong migrated = new AtomicLong();
+        AtomicInteger failures = new AtomicInteger();
+
+        for (int worker = 0; worker < connections; worker++) {
+            workers.add(executor.submit(() -> {
+                ImapStore sourceConnection = source.newConnection();
+                ImapStore destinationConnection = destination.newConnection();
+                try {
+                    String folderName;
+                    while ((folderName = folders.poll()) != null) {
+                        failures.addAndGet(migrateFolder(sourceConnection, folderName, destinationConnection,
+                                getDestinationName(folderName, source, destination),
+                                new File(mappings, URLEncoder.encode(folderName, "UTF-8")), appenders, migrated));
+                    }
+
+                } finally {
+                    sourceConnection.close();
+                    destinationConnection.close();
+                }
+                return null;
+            }));
+        }
+        executor.shutdown();
+
+        for (Future<?> worker : workers) {
+            try {
+                worker.get();
+
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failures.incrementAndGet();
+
+            } catch (ExecutionException e) {
+                e.getCause().printStackTrace();
+                failures.incrementAndGet();
+            }
+        }
+        appenders.shutdown();
+        source.close();
+        destination.close();
+
+        System.out.println(System.lineSeparator() + migrated.get() + " message(s) migrated.");
+        System.out.println("Source: " + source.getConnectionStatistics());
+        System.out.println("Destination: " + destination.getConnectionStatistics());
+        if (failures.get() > 0) {
+            System.out.println(failures.get() + " message(s) or folder(s) failed; run again to resume.");
+        }
+        System.out.println("Done!");
+    }
+
+
+
+    /**
+     * Migrate the messages of a source folder not migrated yet, in ascending UID order.<br>
+     * The messages are fetched by the calling thread and appended by an appender thread,
+     * which takes from the buffer whatever was fetched in the meantime, up to a batch.
+     * @param source the connection to the source {@link ImapStore}
+     * @param folderName the full name of the source folder
+     * @param destination the connection to the destination {@link ImapStore}
+     * @param destinationName the full name of the destination folder
+     * @param mappingFile the file recording the UIDs of the messages already migrated
+     * @param appenders the pool running the appender threads
+     * @param migrated the counter of messages migrated
+     * @return the number of messages which could not be migrated
+     * @throws IOException in case of error
+     */
+    private static int migrateFolder(ImapStore source, String folderName,
+                                     ImapStore destination, String destinationName, File mappingFile,
+                                     ExecutorService appenders, AtomicLong migrated) throws IOException {
+
+        Folder folder = source.getFolder(folderName);
+        try {
+            long uidValidity = source.getUidValidity(folder);
+            Migrated mapped = readMapping(mappingFile, uidValidity);
+            if (mapped == null) {
+                System.out.println("UID validity of " + folderName + " changed; migrating the whole folder again");
+            }
+            if (mapped == null || !mappingFile.exists()) {
+                mapped = new Migrated();
+                Files.write(mappingFile.toPath(),
+                        (UID_VALIDITY + uidValidity + System.lineSeparator()).getBytes(StandardCharsets.UTF_8));
+            }
+
+            // 'UID FETCH n:*' returns the last message even when its UID is below n; the messages migrated
+            // are skipped, as those refused by the destination are retried among them
+            long resumeUid = mapped.resumeUid;
+            List<Message> pending = new ArrayList<>();
+            for (Message message : source.getMessages(folder, new UidRange(resumeUid, UIDFolder.MAXUID, 0))) {
+                long uid = source.getUid(folder, message);
+                if (uid >= resumeUid && !mapped.uids.contains(uid)) {
+                    pending.add(message);
+                }
+            }
+            Message[] messages = pending.toArray(new Message[0]);
+            source.fetchAttributes(folder, messages);
+            System.out.println("Migrating " + messages.length + " message(s) from " + folderName
+                    + " to " + destinationName + (resumeUid > 1 ? " (resuming from UID " + resumeUid + ")" : ""));
+
+            int appended = 0;
+            BlockingQueue<Transfer> buffer = new LinkedBlockingQueue<>();
+            Semaphore bufferBytes = new Semaphore(BUFFER_BYTES);
+            try (Writer writer = new FileWriter(mappingFile, true)) {
+                Future<Integer> appender = appenders.submit(() ->
+                        appendMessages(buffer, bufferBytes, destination, destinationName, writer, migrated));
+                try {
+                    for (Message message : messages) {
+                        // wait for room in the buffer, unless the appender stopped
+                        int size = Math.min(Math.max(message.getSize(), 1), BUFFER_BYTES);
+                        while (!appender.isDone() && !bufferBytes.tryAcquire(size, 1, TimeUnit.SECONDS)) {
+                            // the destination is slower
+                        }
+                        if (appender.isDone()) {
+                            break;
+                        }
+
+                        MessageFetchEvent event = new MessageFetchEvent();
+                        event.begin();
+                        ByteArrayOutputStream out = new ByteArrayOutputStream(size);
+                        message.writeTo(out);
+
+                        long uid = source.getUid(folder, message);
+                        event.end();
+                        if (event.shouldCommit()) {
+                            event.folder = folderName;
+                            event.uid = uid;
+                            event.bytes = out.size();
+                            event.commit();
+                        }
+                        buffer.put(new Transfer(uid, size,
+                                new AppendMessage(out.toByteArray(), getFlags(message), message.getReceivedDate())));
+                    }
+
+                } finally {
+                    // the mapping file is closed once the appender is done with it
+                    buffer.put(Transfer.END);
+                    appended = waitFor(appender, folderName);
+                }
+            }
+            if (messages.length > 0) {
+                System.out.println();
+            }
+            return messages.length - appended;
+
+        } catch (MessagingException | ImapException e) {
+            // the rest of the folder is migrated by the next run
+            System.out.println("Migration of " + folderName + " interrupted: " + e.getMessage());
+            return 1;
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted!", e);
+
+        } finally {
+            source.closeFolder(folder);
+        }
+    }
+
+
+
+    /**
+     * Append the messages taken from the buffer to the destination folder, in batches, until the end
+     * of the folder, and record the UID mapping of each message appended, or that it was refused on its own
+     * @param buffer the messages fetched from the source
+     * @param bufferBytes the bytes available in the buffer, released as the messages are appended
+     * @param destination the connection to the destination {@link ImapStore}
+     * @param destinationName the full name of the destination folder
+     * @param writer the writer of the UID mapping file
+     * @param migrated the counter of messages migrated
+     * @return the number of messages appended
+     * @throws IOException in case of error
+     * @throws InterruptedException if interrupted while waiting for messages
+     */
+    private static int appendMessages(BlockingQueue<Transfer> buffer, Semaphore bufferBytes,
+                                      ImapStore destination, String destinationName,
+                                      Writer writer, AtomicLong migrated) throws IOException, InterruptedException {
+        int appended = 0;
+        boolean end = false;
+        while (!end) {
+            // wait for a message, then take whatever else was fetched in the meantime
+            List<Transfer> batch = new ArrayList<>();
+            int batchBytes = 0;
+            Transfer transfer = buffer.take();
+            while (transfer != null) {
+                if (transfer == Transfer.END) {
+                    end = true;
+                    break;
+                }
+                batch.add(transfer);
+                batchBytes += transfer.message.getContent().length;
+                if (batch.size() >= BATCH_MESSAGES || batchBytes >= BATCH_BYTES) {
+                    break;
+                }
+                transfer = buffer.poll();
+            }
+            if (batch.isEmpty()) {
+                continue;
+            }
+
+            List<AppendMessage> messages = new ArrayList<>();
+            for (Transfer item : batch) {
+                messages.add(item.message);
+            }
+            long[] uids = destination.appendMessages(destinationName, messages);
+            for (int i = 0; i < uids.length; i++) {
+                if (uids[i] >= 0) {
+                    writer.write(batch.get(i).uid + " " + uids[i] + System.lineSeparator());
+                    migrated.incrementAndGet();
+                    appended++;
+
+                } else {
+                    writer.write(batch.get(i).uid + " " + REFUSED + System.lineSeparator());
+                }
+                bufferBytes.release(batch.get(i).reserved);
+            }
+            writer.flush();
+            System.out.print("Migrated " + migrated.get() + " message(s)\r");
+        }
+        return appended;
+    }
+
+
+
+    /**
+     * Wait for the appender of a folder to append the messages left in the buffer
+     * @param appender the appender
+     * @param folderName the full name of the source folder
+     * @return the number of messages appended
+     * @throws InterruptedException if interrupted while waiting
+     */
+    private static int waitFor(Future<Integer> appender, String folderName) throws InterruptedException {
+        try {
+            return appender.get();
+
+        } catch (ExecutionException e) {
+            // the rest of the folder is migrated by the next run
+            System.out.println("Migration of " + folderName + " interrupted: " + e.getCause().getMessage());
+            return 0;
+        }
+    }
+
+
+
+    /**
+     * Read the source UIDs recorded in a UID mapping file
+     * @param mappingFile the UID mapping file
+     * @param uidValidity the current UID validity of the source folder
+     * @return the messages migrated, and the UID to resume from, or null if the UID validity changed since
+     * @throws IOException in case of error
+     */
+    private static Migrated readMapping(File mappingFile, long uidValidity) throws IOException {
+        Migrated migrated = new Migrated();
+        if (!mappingFile.exists()) {
+            return migrated;
+        }
+
+        List<String> lines = Files.readAllLines(mappingFile.toPath(), StandardCharsets.UTF_8);
+        if (lines.isEmpty() || !lines.get(0).equals(UID_VALIDITY + uidValidity)) {
+            return null;
+        }
+
+        long lastUid = 0;
+        List<Long> refused = new ArrayList<>();
+        for (String line : lines.subList(1, lines.size())) {
+            String[] uids = line.split(" ");
+            // a line cut short by an interruption is ignored
+            if (uids.length != 2 || !NUMBER.matcher(uids[0]).matches()) {
+                continue;
+            }
+
+            long uid = Long.parseLong(uids[0]);
+            if (NUMBER.matcher(uids[1]).matches()) {
+                migrated.uids.add(uid);
+                lastUid = Math.max(lastUid, uid);
+
+            } else if (uids[1].equals(REFUSED)) {
+                refused.add(uid);
+            }
+        }
+
+        // the messages are appended in ascending UID order: those after the last one recorded were not,
+        // nor were those refused since, unless a later run migrated them
+        migrated.resumeUid = lastUid + 1;
+        for (long uid : refused) {
+            if (!migrated.uids.contains(uid)) {
+                migrated.resumeUid = Math.min(migrated.resumeUid, uid);
+            }
+        }
+        return migrated;
+    }
+
+
+
+    /**
+     * Get the flags of a message which can be set by an APPEND
+     * @param message the message
+     * @return the flags
+     * @throws MessagingException in case of error
+     */
+    private static Flags getFlags(Message message) throws MessagingException {
+        Flags flags = new Flags(message.getFlags());
+        flags.remove(Flags.Flag.RECENT);
+        return flags;
+    }
+
+
+
+    /**
+     * Get the full name of the destination folder of a source folder, replacing the folder separators
+     * @param folderName the full name of the source folder
+     * @param source the source {@link ImapStore}
+     * @param destination the destination {@link ImapStore}
+     * @return the full name of the destination folder
+     */
+    private static String getDestinationName(String folderName, ImapStore source, ImapStore destination) {
+        String[] names = folderName.split(Pattern.quote(source.getSeparator()));
+        return String.join(destination.getSeparator(), names);
+    }
+
+
+
+    /** The messages of a source folder migrated by the previous runs, read from its UID mapping file */
+    private static class Migrated {
+
+        /** The source UIDs of the messages migrated */
+        private final Set<Long> uids = new HashSet<>();
+
+        /** The lowest source UID which may not have been migrated */
+        private long resumeUid = 1;
+    }
+
+
+
+    /** A message fetched from the source, waiting in the buffer to be appended */
+    private static class Transfer {
+
+        /** The end of the folder */
+        private static final Transfer END = new Transfer(0, 0, null);
+
+        private final long uid;
+        private final int reserved;
+        private final AppendMessage message;
+
+
+
+        private Transfer(long uid, int reserved, AppendMessage message) {
+            this.uid = uid;
+            this.reserved = reserved;
+            this.message = message;
+        }
+    }
+}
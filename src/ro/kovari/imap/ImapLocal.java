@@ -29,80 +29,589 @@
 
 package ro.kovari.imap;
 
+import ro.kovari.imap.config.Configuration;
+import ro.kovari.imap.exception.ImapException;
+import ro.kovari.imap.jfr.MessageFetchEvent;
+import ro.kovari.imap.jfr.ReconnectEvent;
+import ro.kovari.imap.store.FolderStatus;
 import ro.kovari.imap.store.ImapStore;
 import ro.kovari.imap.store.MaildirFolder;
 import ro.kovari.imap.store.MaildirLocalStore;
-import ro.kovari.imap.utils.StreamUtils;
+import ro.kovari.imap.store.MaildirOutputStream;
+import ro.kovari.imap.store.TransportMode;
+import ro.kovari.imap.store.UidRange;
+import ro.kovari.imap.sync.AdaptiveConcurrencyLimiter;
+import ro.kovari.imap.sync.Deadline;
+import ro.kovari.imap.sync.UidRangeScheduler;
 
 import javax.mail.Folder;
 import javax.mail.Message;
 import javax.mail.MessagingException;
+import javax.mail.UIDFolder;
 import java.io.IOException;
-import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 /** A bridge between the remote IMAP store and the local Maildir store */
 public class ImapLocal {
 
+    /** Number of UID ranges per connection when a folder is downloaded over several connections */
+    private static final int RANGES_PER_CONNECTION = 8;
+
+    /** Number of consecutive failures of a connection before giving up */
+    private static final int MAX_RETRIES = 5;
+
+    /** Upper limit of the delay before retrying after a failure */
+    private static final long MAX_BACKOFF_SECONDS = 60;
+
+
+
+    /**
+     * Save messages from an {@link ImapStore} to a {@link MaildirLocalStore}<br>
+     * With the NIO transport, the download is made by {@link NioImapLocal} instead.
+     * @param imapStore the remote {@link ImapStore}
+     * @param localStore the {@link MaildirLocalStore}
+     * @param config the application {@link Configuration}
+     */
+    public static void imap2Local(ImapStore imapStore, MaildirLocalStore localStore, Configuration config) {
+        imap2Local(imapStore, localStore, config, Deadline.NONE);
+    }
+
+
+
     /**
-     * Save messages from an {@link ImapStore} to a {@link MaildirLocalStore}
+     * Save messages from an {@link ImapStore} to a {@link MaildirLocalStore}, stopping at a {@link Deadline}<br>
+     * The messages added since the last run are downloaded first, folder after folder, then the older messages
+     * left by the earlier runs stopped at their deadline. With a deadline, the newest messages of a folder
+     * are downloaded first. Once the deadline is near, no new message is taken: the messages in flight are saved,
+     * and the folders record the UID ranges left, so that the next run continues exactly where this one stopped;
+     * the folders not started yet are left as they were.<br>
+     * With the NIO transport, the download is made by {@link NioImapLocal} instead, unless there is a deadline,
+     * or a protocol trace is recorded.
      * @param imapStore the remote {@link ImapStore}
      * @param localStore the {@link MaildirLocalStore}
+     * @param config the application {@link Configuration}
+     * @param deadline the {@link Deadline}, or {@link Deadline#NONE}
      */
-    public static void imap2Local(ImapStore imapStore, MaildirLocalStore localStore) {
+    public static void imap2Local(ImapStore imapStore, MaildirLocalStore localStore, Configuration config,
+                                  Deadline deadline) {
+        if (config.getTransportMode() == TransportMode.NIO) {
+            if (!deadline.isSet() && config.getTraceFile() == null) {
+                NioImapLocal.imap2Local(imapStore, localStore, config);
+                return;
+            }
+            System.out.println(deadline.isSet() ?
+                    "The NIO transport does not stop at a deadline; using JavaMail instead." :
+                    "The NIO transport is not recorded into a protocol trace; using JavaMail instead.");
+        }
+        if (deadline.isSet()) {
+            System.out.println("Deadline: " + deadline + (config.isIncrementalSync() ? ""
+                    : "; without incremental sync, the next run starts over instead of resuming"));
+        }
+
         imapStore.connect();
+        if (config.getConnections() > 1) {
+            // the connections of the parallel downloads are opened while the folders are fetched
+            imapStore.warmUp(config.getConnections());
+        }
         List<Folder> imapFolders = imapStore.fetchFolders();
         System.out.println(System.lineSeparator());
 
+        if (!imapFolders.isEmpty() && imapStore.selectCompression(imapFolders.get(0))) {
+            // the store was reconnected; the previously fetched folders are no longer usable
+            imapFolders = imapStore.fetchFolders();
+            System.out.println(System.lineSeparator());
+        }
+
+        AtomicLong messageBytes = new AtomicLong();
+        long wireBytes = imapStore.getBytesReceived();
+
+        // one limiter for the whole run; it learns what the server sustains
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(config.getConnections());
+        imapStore.setThrottlingListener(limiter::onCongestion);
+
+        // a single LIST-STATUS, or one STATUS per folder, instead of selecting every folder
+        Map<String, FolderStatus> statuses = config.isIncrementalSync() ?
+                imapStore.getFolderStatuses(imapFolders) : Collections.emptyMap();
+
+        // the folders with older messages left by a run stopped at its deadline, taken once all the new ones are
+        Map<Folder, MaildirFolder> backlog = new LinkedHashMap<>();
+        int foldersLeft = 0;
+
         for (Folder imapFolder : imapFolders) {
+            if (deadline.isNear()) {
+                foldersLeft++;
+                continue;
+            }
+
             String imapFolderName = imapFolder.getFullName();
             System.out.println("Processing folder: " + imapFolderName);
 
             MaildirFolder maildirFolder = localStore.flatten(imapFolderName, imapStore.getSeparator());
+            FolderStatus status = statuses.get(imapFolderName);
+            FolderStatus previous = status == null ? null : maildirFolder.readStatus();
+            List<UidRange> pending = previous != null && previous.getUidValidity() == status.getUidValidity() ?
+                    maildirFolder.readPendingRanges() : Collections.emptyList();
+
+            if (status != null && status.isUnchanged(previous) && pending.isEmpty()) {
+                System.out.print("Folder unchanged. Moving on!");
+                System.out.println(System.lineSeparator());
+                continue;
+            }
             localStore.createMaildirFolder(maildirFolder);
 
-            Message[] messages = imapStore.getMessages(imapFolder);
-            if (messages.length != 0) {
-                saveMessages(maildirFolder, messages);
+            // the messages to download: all of them, or, with an unchanged UID validity,
+            // only the ones added since the last run; never the ones added after the STATUS
+            UidRange range = null;
+            if (status != null) {
+                long firstUid = previous != null && previous.getUidValidity() == status.getUidValidity() ?
+                        previous.getUidNext() : 1;
+                int count = firstUid == 1 ?
+                        status.getMessages() : (int) Math.min(status.getMessages(), status.getUidNext() - firstUid);
+                range = new UidRange(firstUid, status.getUidNext() - 1, count);
+            }
+            int messageCount = range != null ? range.getMessageCount() : imapStore.getMessageCount(imapFolder);
+            localStore.partition(maildirFolder, status != null ? status.getMessages() : messageCount);
+
+            int failures = 0;
+            List<UidRange> left = new ArrayList<>();
+            if (range != null && range.getLastUid() < range.getFirstUid()) {
+                System.out.print(status.getMessages() == 0 ? "Folder empty. Moving on!" : "No new messages. Moving on!");
 
             } else {
-                System.out.print("Folder empty. Moving on!");
+                // the messages saved by a run which could not record the status are not saved twice
+                Set<Long> downloaded = status != null && (previous == null
+                        || previous.getUidValidity() == status.getUidValidity()) ?
+                        maildirFolder.getUids() : Collections.emptySet();
+                failures = saveRange(imapStore, imapFolder, maildirFolder, range, messageCount, downloaded, config,
+                        limiter, deadline, left, messageBytes);
             }
+            imapStore.closeFolder(imapFolder);
+
+            // a folder with failed messages is downloaded again by the next run, but for the messages saved;
+            // the messages are indexed before the folder is recorded as downloaded
+            localStore.flush();
+            left.addAll(pending);
+            if (status != null && failures == 0) {
+                maildirFolder.writeStatus(status, left);
+                if (!pending.isEmpty()) {
+                    backlog.put(imapFolder, maildirFolder);
+                }
+            }
+            System.out.println(System.lineSeparator());
+        }
+
+        for (Map.Entry<Folder, MaildirFolder> folder : backlog.entrySet()) {
+            if (deadline.isNear()) {
+                break;
+            }
+            saveBacklog(imapStore, folder.getKey(), folder.getValue(), statuses.get(folder.getKey().getFullName()),
+                    config, limiter, deadline, messageBytes);
+            localStore.flush();
             System.out.println(System.lineSeparator());
         }
+
+        if (deadline.isNear()) {
+            System.out.println("Deadline near: no new message taken"
+                    + (foldersLeft > 0 ? ", " + foldersLeft + " folder(s) not started" : "")
+                    + "; the next run continues from here.");
+        }
+
+        wireBytes = imapStore.getBytesReceived() - wireBytes;
+        if (wireBytes > 0) {
+            System.out.println(String.format("Received %d bytes of mail in %d bytes over the wire (ratio: %.2f)",
+                    messageBytes.get(), wireBytes, (double) messageBytes.get() / wireBytes));
+        }
+        imapStore.close();
+        System.out.println(imapStore.getConnectionStatistics());
+        localStore.close();
         System.out.println("Done!"); // all done, download completed!
     }
 
 
 
     /**
-     * Save the messages into the specified {@link MaildirFolder}
+     * Save the older messages of a folder left by the earlier runs stopped at their deadline,
+     * the newest first, until the deadline is near, then record the UID ranges still left
+     * @param imapStore the remote {@link ImapStore}
+     * @param imapFolder the IMAP folder
+     * @param maildirFolder the {@link MaildirFolder}, with the UID ranges left recorded with its status
+     * @param status the {@link FolderStatus} of the IMAP folder taken by this run
+     * @param config the application {@link Configuration}
+     * @param limiter the {@link AdaptiveConcurrencyLimiter}
+     * @param deadline the {@link Deadline}
+     * @param messageBytes the counter of message bytes written
+     */
+    private static void saveBacklog(ImapStore imapStore, Folder imapFolder, MaildirFolder maildirFolder,
+                                    FolderStatus status, Configuration config, AdaptiveConcurrencyLimiter limiter,
+                                    Deadline deadline, AtomicLong messageBytes) {
+
+        System.out.println("Processing older messages of folder: " + imapFolder.getFullName());
+        int failures = 0;
+        List<UidRange> left = new ArrayList<>();
+        Set<Long> downloaded = maildirFolder.getUids();
+        for (UidRange range : maildirFolder.readPendingRanges()) {
+            if (deadline.isNear()) {
+                left.add(range);
+            } else {
+                failures += saveRange(imapStore, imapFolder, maildirFolder, range, range.getMessageCount(), downloaded,
+                        config, limiter, deadline, left, messageBytes);
+            }
+        }
+        imapStore.closeFolder(imapFolder);
+
+        if (failures == 0) {
+            maildirFolder.writeStatus(status, left);
+        }
+    }
+
+
+
+    /**
+     * Save the messages of a UID range of a folder, over several connections if there are enough of them
+     * @param imapStore the remote {@link ImapStore}
+     * @param imapFolder the IMAP folder
      * @param maildirFolder the {@link MaildirFolder}
-     * @param messages the messages to be saved
+     * @param range the UID range, or null for all the messages of the folder
+     * @param messageCount the number of messages to save
+     * @param downloaded the UIDs of the messages already in the {@link MaildirFolder}, skipped
+     * @param config the application {@link Configuration}
+     * @param limiter the {@link AdaptiveConcurrencyLimiter}
+     * @param deadline the {@link Deadline}
+     * @param left the list the UID ranges left once the deadline is near are added to, in descending UID order
+     * @param messageBytes the counter of message bytes written
+     * @return the number of messages which could not be saved, or of connections which gave up
      */
-    private static void saveMessages(MaildirFolder maildirFolder, Message[] messages) {
+    private static int saveRange(ImapStore imapStore, Folder imapFolder, MaildirFolder maildirFolder, UidRange range,
+                                 int messageCount, Set<Long> downloaded, Configuration config,
+                                 AdaptiveConcurrencyLimiter limiter, Deadline deadline, List<UidRange> left,
+                                 AtomicLong messageBytes) {
+
+        int connections = config.getConnections();
+        if (connections > 1 && messageCount >= config.getParallelFolderThreshold()) {
+            List<UidRange> ranges = range == null ?
+                    imapStore.getUidRanges(imapFolder, connections * RANGES_PER_CONNECTION) :
+                    imapStore.getUidRanges(imapFolder, connections * RANGES_PER_CONNECTION, range);
+            return saveMessages(imapStore, imapFolder, maildirFolder, ranges, downloaded, connections, limiter,
+                    config.getFetchSize(), deadline, left, messageBytes);
+        }
+
+        Message[] messages = range == null ?
+                imapStore.getMessages(imapFolder) : imapStore.getMessages(imapFolder, range);
+        if (messages.length == 0) {
+            System.out.print("Folder empty. Moving on!");
+            return 0;
+        }
+        if (!downloaded.isEmpty()) {
+            messages = Arrays.stream(messages).filter(message -> !downloaded.contains(getUid(message)))
+                    .toArray(Message[]::new);
+            if (messages.length == 0) {
+                System.out.print("No new messages. Moving on!");
+                return 0;
+            }
+        }
+        if (maildirFolder.isPartitioned()) {
+            imapStore.fetchInternalDates(imapFolder, messages);
+        }
+        return saveMessages(maildirFolder, messages, range, config.getPipelineDepth(), deadline, left, messageBytes);
+    }
+
+
+
+    /**
+     * Save the messages into the specified {@link MaildirFolder}, through a {@link MessagePipeline}
+     * fetching the next messages while the previous ones are written, unless its depth is 0.<br>
+     * With a deadline, the newest messages are saved first, so that the ones left once it is near
+     * are a single UID range, at the start of the range saved.
+     * @param maildirFolder the {@link MaildirFolder}
+     * @param messages the messages to be saved, in ascending UID order
+     * @param range the UID range of the messages, or null if the messages are all the ones of the folder
+     * @param pipelineDepth the number of messages queued between the stages of the {@link MessagePipeline}
+     * @param deadline the {@link Deadline}
+     * @param left the list the UID range left once the deadline is near is added to
+     * @param messageBytes the counter of message bytes written
+     * @return the number of messages which could not be saved
+     */
+    private static int saveMessages(MaildirFolder maildirFolder, Message[] messages, UidRange range,
+                                    int pipelineDepth, Deadline deadline, List<UidRange> left,
+                                    AtomicLong messageBytes) {
         long totalCount = messages.length;
         long idx = 1;
+        int failures = 0;
+        MessagePipeline pipeline = pipelineDepth > 0 ?
+                new MessagePipeline(maildirFolder, pipelineDepth, messageBytes) : null;
+
+        try {
+            for (int i = 0; i < messages.length; i++) {
+                Message message = messages[deadline.isSet() ? messages.length - 1 - i : i];
+                if (deadline.isNear()) {
+                    // the messages in the pipeline are still saved; the older ones are left for the next run
+                    if (range != null) {
+                        long lastUid = getUid(message);
+                        left.add(new UidRange(range.getFirstUid(), lastUid > 0 ? lastUid : range.getLastUid(),
+                                messages.length - i));
+                    }
+                    break;
+                }
+                System.out.print("Downloading message " + idx + " of " + totalCount);
+                System.out.print("\r");
+
+                if (pipeline != null) {
+                    pipeline.save(message);
+                } else if (saveMessage(maildirFolder, message, messageBytes) < 0) {
+                    failures++;
+                }
+                idx++;
+            }
+
+        } finally {
+            // the messages fetched before a lost connection are saved anyway
+            if (pipeline != null) {
+                failures += pipeline.finish();
+            }
+        }
+        return failures;
+    }
+
+
+
+    /**
+     * Save the messages of a large IMAP folder into the specified {@link MaildirFolder},
+     * downloading disjoint UID ranges over several connections at once.<br>
+     * Each connection has the folder open in read-only mode. The number of connections
+     * downloading at the same time is adapted by the {@link AdaptiveConcurrencyLimiter}.
+     * A range interrupted by an error is retried over a new connection, starting from
+     * its first message not saved yet. With a deadline, the newest ranges are taken first,
+     * and once it is near, the workers stop taking messages; the ranges left are returned.
+     * @param imapStore the remote {@link ImapStore}
+     * @param imapFolder the IMAP folder
+     * @param maildirFolder the {@link MaildirFolder}
+     * @param ranges the UID ranges of the folder
+     * @param downloaded the UIDs of the messages already in the {@link MaildirFolder}, skipped
+     * @param connections the number of connections
+     * @param limiter the {@link AdaptiveConcurrencyLimiter}
+     * @param roundTripSize the number of bytes fetched per round trip, used to estimate the latency
+     * @param deadline the {@link Deadline}
+     * @param left the list the UID ranges left once the deadline is near are added to, in descending UID order
+     * @param messageBytes the counter of message bytes written
+     * @return the number of messages which could not be saved, or of connections which gave up
+     */
+    private static int saveMessages(ImapStore imapStore, Folder imapFolder, MaildirFolder maildirFolder,
+                                     List<UidRange> ranges, Set<Long> downloaded, int connections,
+                                     AdaptiveConcurrencyLimiter limiter, int roundTripSize, Deadline deadline,
+                                     List<UidRange> left, AtomicLong messageBytes) {
+
+        UidRangeScheduler scheduler = deadline.isSet() ?
+                UidRangeScheduler.newestFirst(ranges, connections) : new UidRangeScheduler(ranges, connections);
+        long totalCount = ranges.stream().mapToLong(UidRange::getMessageCount).sum();
+        AtomicLong idx = new AtomicLong();
+        AtomicInteger failures = new AtomicInteger();
+
+        // the folder was opened to get the UIDs; the workers use connections of their own
+        imapStore.closeFolder(imapFolder);
+
+        ExecutorService executor = Executors.newFixedThreadPool(connections);
+        List<Future<?>> workers = new ArrayList<>();
+
+        for (int worker = 0; worker < connections; worker++) {
+            final int workerIdx = worker;
+
+            workers.add(executor.submit(() -> {
+                ImapStore connection = imapStore.newConnection();
+                Folder folder = connection.getFolder(imapFolder.getFullName());
+                int consecutiveFailures = 0;
+
+                try {
+                    UidRange range;
+                    while (!deadline.isNear() && (range = scheduler.next(workerIdx)) != null) {
+                        long lastUid = range.getFirstUid() - 1;
+                        int saved = 0;
+
+                        try {
+                            Message[] messages = connection.getMessages(folder, range);
+                            if (maildirFolder.isPartitioned()) {
+                                connection.fetchInternalDates(folder, messages);
+                            }
+                            for (Message message : messages) {
+                                if (deadline.isNear()) {
+                                    scheduler.retry(workerIdx, new UidRange(
+                                            lastUid + 1, range.getLastUid(), range.getMessageCount() - saved));
+                                    break;
+                                }
+                                System.out.print("Downloading message " + idx.incrementAndGet() + " of " + totalCount
+                                        + " over " + limiter.getLimit() + " connections\r");
+                                if (downloaded.contains(connection.getUid(folder, message))) {
+                                    lastUid = connection.getUid(folder, message);
+                                    saved++;
+                                    continue;
+                                }
+
+                                limiter.acquire();
+                                long start = System.nanoTime();
+                                boolean released = false;
+                                try {
+                                    long size = saveMessage(maildirFolder, message, messageBytes);
+                                    if (size < 0) {
+                                        failures.incrementAndGet();
+                                    }
+                                    limiter.release((System.nanoTime() - start) / (1 + size / roundTripSize));
+                                    released = true;
+
+                                } finally {
+                                    // whatever went wrong, the permit is returned
+                                    if (!released) {
+                                        limiter.releaseFailed();
+                                    }
+                                }
+
+                                lastUid = connection.getUid(folder, message);
+                                saved++;
+                            }
+                            consecutiveFailures = 0;
+
+                        } catch (ImapException e) {
+                            if (++consecutiveFailures > MAX_RETRIES) {
+                                throw e;
+                            }
+                            limiter.onCongestion();
 
-        for (Message message : messages) {
-            System.out.print("Downloading message " + idx + " of " + totalCount);
-            System.out.print("\r");
+                            if (saved < range.getMessageCount()) {
+                                scheduler.retry(workerIdx, new UidRange(
+                                        lastUid + 1, range.getLastUid(), range.getMessageCount() - saved));
+                            }
 
-            OutputStream maildirOutputStream = null;
+                            // back off, then start over with a new connection
+                            ReconnectEvent event = new ReconnectEvent();
+                            event.begin();
+                            connection.close();
+                            TimeUnit.SECONDS.sleep(Math.min(MAX_BACKOFF_SECONDS, 1L << consecutiveFailures));
+                            connection = imapStore.newConnection();
+                            folder = connection.getFolder(imapFolder.getFullName());
+
+                            event.end();
+                            if (event.shouldCommit()) {
+                                event.host = imapStore.getHost();
+                                event.folder = imapFolder.getFullName();
+                                event.uid = lastUid;
+                                event.reason = e.getMessage();
+                                event.commit();
+                            }
+                        }
+                    }
+
+                } finally {
+                    connection.close();
+                }
+                return null;
+            }));
+        }
+        executor.shutdown();
+
+        for (Future<?> worker : workers) {
             try {
-                // currently, no IMAP flags are taken into account;
-                // all messages are saved into the 'new' subfolder of the current maildir folder
-                maildirOutputStream = maildirFolder.getOutputStream(MaildirFolder.SubFolder.NEW);
-                message.writeTo(maildirOutputStream);
+                worker.get();
 
-            } catch (MessagingException | IOException e) {
-                e.printStackTrace();
+            } catch (ExecutionException e) {
+                e.getCause().printStackTrace();
+                failures.incrementAndGet();
 
-            } finally {
-                StreamUtils.closeStream(maildirOutputStream);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failures.incrementAndGet();
+                break;
             }
-            idx++;
+        }
+        left.addAll(scheduler.drain());
+        return failures.get();
+    }
+
+
+
+    /**
+     * Save a message into the 'new' subfolder of the specified {@link MaildirFolder}, or of its date partition
+     * @param maildirFolder the {@link MaildirFolder}
+     * @param message the message to be saved
+     * @param messageBytes the counter of message bytes written
+     * @return the size of the message, or -1 if the message could not be saved
+     * @throws ImapException if the connection was lost; the partially written message is discarded
+     */
+    static long saveMessage(MaildirFolder maildirFolder, Message message, AtomicLong messageBytes) {
+        MaildirOutputStream maildirOutputStream = null;
+        long size = 0;
+
+        // the UIDs were fetched along with the messages; the UID names the message file
+        MessageFetchEvent event = new MessageFetchEvent();
+        String folderName = message.getFolder().getFullName();
+        long uid = getUid(message);
+        event.begin();
+
+        try {
+            // currently, no IMAP flags are taken into account;
+            // all messages are saved into the 'new' subfolder of the current maildir folder
+            maildirOutputStream = maildirFolder.getOutputStream(MaildirFolder.SubFolder.NEW, folderName, uid,
+                    maildirFolder.isPartitioned() ? message.getReceivedDate() : null);
+            message.writeTo(maildirOutputStream);
+
+            // the message is delivered only once it was written completely
+            maildirOutputStream.close();
+            size = maildirOutputStream.getBytesWritten();
+
+        } catch (MessagingException | IOException e) {
+            if (maildirOutputStream != null) {
+                maildirOutputStream.abort();
+            }
+            if (ImapStore.isThrottled(e)) {
+                throw new ImapException("Connection lost!", e);
+            }
+            e.printStackTrace();
+            return -1;
+
+        } catch (RuntimeException e) {
+            if (maildirOutputStream != null) {
+                maildirOutputStream.abort();
+            }
+            throw e;
+
+        } finally {
+            event.end();
+            if (event.shouldCommit()) {
+                event.folder = folderName;
+                event.uid = uid;
+                event.bytes = size;
+                event.commit();
+            }
+        }
+
+        messageBytes.addAndGet(size);
+        return size;
+    }
+
+
+
+    /**
+     * Get the UID of a message
+     * @param message the message
+     * @return the UID of the message, or 0 if it could not be fetched
+     */
+    static long getUid(Message message) {
+        try {
+            return ((UIDFolder) message.getFolder()).getUID(message);
+
+        } catch (MessagingException e) {
+            return 0;
         }
     }
 }
@@ -0,0 +1,323 @@
+/*
+ * Project: imap2local
+ *
+ * Copyright (c) Attila Kovari
+ * All rights reserved.
+ *
+ * MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+
+package ro.kovari.imap;
+
+import ro.kovari.imap.config.Configuration;
+import ro.kovari.imap.exception.ImapException;
+import ro.kovari.imap.exception.MaildirException;
+import ro.kovari.imap.store.AppendMessage;
+import ro.kovari.imap.store.ImapStore;
+import ro.kovari.imap.store.MaildirFolder;
+import ro.kovari.imap.store.MaildirLocalStore;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.InternetHeaders;
+import javax.mail.internet.MailDateFormat;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.text.ParseException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/** A bridge between the local Maildir store and a remote IMAP store, restoring the local messages */
+public class LocalImap {
+
+    /** The checkpoints of the upload, next to the Maildir */
+    private static final String CHECKPOINT_DIRECTORY = "imap2local-upload";
+
+    /** Limits of the messages sent at once: in a single MULTIAPPEND, or pipelined */
+    private static final int BATCH_MESSAGES = 50;
+    private static final int BATCH_BYTES = 4 << 20;
+
+    /** Number of messages read from the disk ahead of the upload, per connection */
+    private static final int READ_AHEAD = 2 * BATCH_MESSAGES;
+
+
+
+    /**
+     * Upload the messages of a {@link MaildirLocalStore} to an {@link ImapStore}, recreating its folders.<br>
+     * The folders are uploaded over several connections at once, one folder per connection, while
+     * the messages are read from the disk ahead by a pool of readers. The messages uploaded are
+     * recorded, so that an interrupted upload resumes where it stopped.
+     * @param localStore the {@link MaildirLocalStore}
+     * @param imapStore the remote {@link ImapStore}
+     * @param config the application {@link Configuration}
+     */
+    public static void local2Imap(MaildirLocalStore localStore, ImapStore imapStore, Configuration config) {
+        List<MaildirFolder> maildirFolders = localStore.getMaildirFolders();
+        if (maildirFolders.isEmpty()) {
+            System.out.println("No Maildir found in " + localStore.getMaildirStoreLocation());
+            return;
+        }
+
+        imapStore.connect();
+        System.out.println(System.lineSeparator());
+
+        // the connections of the workers are opened while the folders are created
+        int connections = Math.min(config.getConnections(), maildirFolders.size());
+        imapStore.warmUp(connections);
+
+        // parents come first, as the Maildir folders are sorted by name
+        Queue<MaildirFolder> folders = new ConcurrentLinkedQueue<>();
+        for (MaildirFolder maildirFolder : maildirFolders) {
+            imapStore.createFolder(localStore.unflatten(maildirFolder, imapStore.getSeparator()));
+            folders.add(maildirFolder);
+        }
+
+        File checkpoints = localStore.getSiblingLocation(CHECKPOINT_DIRECTORY);
+        if (!checkpoints.isDirectory() && !checkpoints.mkdirs()) {
+            throw new MaildirException("Unable to create the upload checkpoint directory!");
+        }
+
+        ExecutorService readers = Executors.newFixedThreadPool(connections * 2);
+        ExecutorService executor = Executors.newFixedThreadPool(connections);
+        List<Future<?>> workers = new ArrayList<>();
+        AtomicLong uploaded = new AtomicLong();
+        AtomicInteger failures = new AtomicInteger();
+
+        for (int worker = 0; worker < connections; worker++) {
+            workers.add(executor.submit(() -> {
+                ImapStore connection = imapStore.newConnection();
+                try {
+                    MaildirFolder maildirFolder;
+                    while ((maildirFolder = folders.poll()) != null) {
+                        String folderName = localStore.unflatten(maildirFolder, connection.getSeparator());
+                        failures.addAndGet(uploadFolder(localStore, maildirFolder, connection, folderName,
+                                new File(checkpoints, maildirFolder.getMaildirFolderName()), readers, uploaded));
+                    }
+
+                } finally {
+                    connection.close();
+                }
+                return null;
+            }));
+        }
+        executor.shutdown();
+
+        for (Future<?> worker : workers) {
+            try {
+                worker.get();
+
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failures.incrementAndGet();
+
+            } catch (ExecutionException e) {
+                e.getCause().printStackTrace();
+                failures.incrementAndGet();
+            }
+        }
+        readers.shutdown();
+        imapStore.close();
+
+        System.out.println(System.lineSeparator() + uploaded.get() + " message(s) uploaded.");
+        System.out.println(imapStore.getConnectionStatistics());
+        if (failures.get() > 0) {
+            System.out.println(failures.get() + " message(s) or folder(s) failed; run again to resume.");
+        }
+        System.out.println("Done!");
+    }
+
+
+
+    /**
+     * Upload the messages of a {@link MaildirFolder} not uploaded yet, oldest first
+     * @param localStore the {@link MaildirLocalStore}
+     * @param maildirFolder the {@link MaildirFolder}
+     * @param connection the connection to the {@link ImapStore}
+     * @param folderName the full name of the IMAP folder
+     * @param checkpoint the file recording the messages of the folder already uploaded
+     * @param readers the pool reading the messages from the disk
+     * @param uploaded the counter of messages uploaded
+     * @return the number of messages which could not be uploaded
+     * @throws IOException in case of error
+     */
+    private static int uploadFolder(MaildirLocalStore localStore, MaildirFolder maildirFolder,
+                                    ImapStore connection, String folderName, File checkpoint,
+                                    ExecutorService readers, AtomicLong uploaded) throws IOException {
+
+        Set<String> done = checkpoint.exists() ?
+                new HashSet<>(Files.readAllLines(checkpoint.toPath(), StandardCharsets.UTF_8)) : new HashSet<>();
+
+        List<File> files = new ArrayList<>();
+        for (File file : maildirFolder.getMessageFiles()) {
+            if (!done.contains(MaildirFolder.getUniqueName(file))) {
+                files.add(file);
+            }
+        }
+        files.sort(Comparator.comparing(MaildirFolder::getUniqueName));
+        System.out.println("Uploading " + files.size() + " message(s) to " + folderName
+                + (done.isEmpty() ? "" : " (" + done.size() + " already uploaded)"));
+
+        int failures = 0;
+        Deque<Future<AppendMessage>> reads = new ArrayDeque<>();
+        Deque<File> readFiles = new ArrayDeque<>();
+        int next = 0;
+
+        try (Writer writer = new FileWriter(checkpoint, true)) {
+            while (next < files.size() || !reads.isEmpty()) {
+                while (next < files.size() && reads.size() < READ_AHEAD) {
+                    File file = files.get(next++);
+                    reads.add(readers.submit(() -> readMessage(localStore, file)));
+                    readFiles.add(file);
+                }
+
+                // the next batch, in order
+                List<AppendMessage> batch = new ArrayList<>();
+                List<File> batchFiles = new ArrayList<>();
+                int batchBytes = 0;
+                while (!reads.isEmpty() && batch.size() < BATCH_MESSAGES && batchBytes < BATCH_BYTES) {
+                    File file = readFiles.poll();
+                    try {
+                        AppendMessage message = reads.poll().get();
+                        batch.add(message);
+                        batchFiles.add(file);
+                        batchBytes += message.getContent().length;
+
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted!", e);
+
+                    } catch (ExecutionException e) {
+                        System.out.println("Unable to read " + file + ": " + e.getCause().getMessage());
+                        failures++;
+                    }
+                }
+                if (batch.isEmpty()) {
+                    continue;
+                }
+
+                // a batch refused as a whole is appended again message by message, so that only the messages
+                // refused on their own are left for the next run
+                long[] uids = connection.appendMessages(folderName, batch);
+                for (int i = 0; i < uids.length; i++) {
+                    if (uids[i] >= 0) {
+                        writer.write(MaildirFolder.getUniqueName(batchFiles.get(i)) + System.lineSeparator());
+                        uploaded.incrementAndGet();
+                    } else {
+                        System.out.println("Message " + batchFiles.get(i) + " refused by the server");
+                        failures++;
+                    }
+                }
+                writer.flush();
+                System.out.print("Uploaded " + uploaded.get() + " message(s)\r");
+            }
+            System.out.println();
+
+        } catch (ImapException e) {
+            // the rest of the folder is uploaded by the next run
+            System.out.println("Upload of " + folderName + " interrupted: " + e.getMessage());
+            failures++;
+
+        } finally {
+            for (Future<AppendMessage> read : reads) {
+                read.cancel(false);
+            }
+        }
+        return failures;
+    }
+
+
+
+    /**
+     * Read a message file of the Maildir to be appended, with its flags and internal date
+     * @param localStore the {@link MaildirLocalStore}
+     * @param file the message file
+     * @return the {@link AppendMessage}
+     * @throws IOException in case of error
+     */
+    private static AppendMessage readMessage(MaildirLocalStore localStore, File file) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream((int) file.length());
+        try (InputStream in = localStore.openMessage(file)) {
+            byte[] buffer = new byte[8192];
+            int previous = -1;
+            for (int n; (n = in.read(buffer)) != -1; ) {
+                // IMAP requires CRLF line endings; Maildirs written by other tools may use LF
+                for (int i = 0; i < n; i++) {
+                    if (buffer[i] == '\n' && previous != '\r') {
+                        out.write('\r');
+                    }
+                    out.write(buffer[i]);
+                    previous = buffer[i];
+                }
+            }
+        }
+
+        byte[] content = out.toByteArray();
+        return new AppendMessage(content, MaildirFolder.getFlags(file), getInternalDate(content, file));
+    }
+
+
+
+    /**
+     * Get the internal date of a message: the date it was delivered on, from its topmost Received header,
+     * or else its Date header, or else the modification time of its file
+     * @param content the message
+     * @param file the message file
+     * @return the internal date
+     */
+    private static Date getInternalDate(byte[] content, File file) {
+        try {
+            InternetHeaders headers = new InternetHeaders(new ByteArrayInputStream(content));
+            String received = headers.getHeader("Received", null);
+            String date = received != null && received.lastIndexOf(';') >= 0 ?
+                    received.substring(received.lastIndexOf(';') + 1) : headers.getHeader("Date", null);
+            if (date != null) {
+                return new MailDateFormat().parse(date.replaceAll("\\s+", " ").trim());
+            }
+
+        } catch (MessagingException | ParseException e) {
+            // fall back to the file
+        }
+        return new Date(file.lastModified());
+    }
+}
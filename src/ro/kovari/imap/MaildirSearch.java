@@ -0,0 +1,135 @@
+/*
+ * Project: imap2local
+ *
+ * Copyright (c) Attila Kovari
+ * All rights reserved.
+ *
+ * MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+
+package ro.kovari.imap;
+
+import ro.kovari.imap.index.SearchIndex;
+import ro.kovari.imap.store.MaildirFolder;
+import ro.kovari.imap.store.MaildirLocalStore;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Searches the messages of a {@link MaildirLocalStore} through its {@link SearchIndex},
+ * and rebuilds the index from the messages already in the store.
+ */
+public class MaildirSearch {
+
+    /**
+     * Print the files of the messages containing all the words of a query.<br>
+     * A message file moved from 'new' to 'cur', or renamed for its flags, since it was indexed is found again
+     * by its unique name; the messages whose file was deleted since, e.g. expunged, are left out.
+     * @param localStore the {@link MaildirLocalStore}
+     * @param query the query; a word may be restricted to a header, e.g. 'from:alice'
+     */
+    public static void search(MaildirLocalStore localStore, String query) {
+        SearchIndex index = localStore.openSearchIndex();
+
+        long start = System.nanoTime();
+        int[] documents = index.search(query);
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        // the message files of the folders whose files moved since indexed, by unique name
+        Map<File, Map<String, File>> moved = new HashMap<>();
+        int found = 0;
+        for (int document : documents) {
+            File file = index.getFile(document);
+            if (!file.isFile()) {
+                File folder = file.getAbsoluteFile().getParentFile().getParentFile();
+                file = moved.computeIfAbsent(folder, MaildirSearch::getMessageFiles)
+                        .get(MaildirFolder.getUniqueName(file));
+            }
+            if (file != null) {
+                System.out.println(file.getPath());
+                found++;
+            }
+        }
+        System.out.println(String.format("%d of %d message(s) found in %d ms.",
+                found, index.getDocumentCount(), elapsed)
+                + (found < documents.length ? " " + (documents.length - found)
+                + " message(s) found were deleted since indexed; run 'index' to rebuild the index." : ""));
+        localStore.close();
+    }
+
+
+
+    /**
+     * Get the message files of a Maildir folder, from its 'cur' and 'new' subfolders
+     * @param folder the Maildir folder
+     * @return the message files, by unique name
+     */
+    private static Map<String, File> getMessageFiles(File folder) {
+        Map<String, File> files = new HashMap<>();
+        for (File file : new MaildirFolder(folder).getMessageFiles()) {
+            files.put(MaildirFolder.getUniqueName(file), file);
+        }
+        return files;
+    }
+
+
+
+    /**
+     * Rebuild the {@link SearchIndex} from all the messages of the store, compacted into a single segment
+     * @param localStore the {@link MaildirLocalStore}
+     */
+    public static void index(MaildirLocalStore localStore) {
+        localStore.close();
+        File[] files = localStore.getSiblingLocation(SearchIndex.INDEX_DIRECTORY).listFiles();
+        for (File file : files == null ? new File[0] : files) {
+            file.delete();
+        }
+
+        SearchIndex index = localStore.openSearchIndex();
+        for (MaildirFolder folder : localStore.getMaildirFolders()) {
+            System.out.println("Indexing folder " + folder.getMaildirFolderName());
+
+            for (File message : folder.getMessageFiles()) {
+                try (InputStream in = new BufferedInputStream(localStore.openMessage(message))) {
+                    index.add(message, in);
+
+                } catch (IOException e) {
+                    System.out.println("Unable to index " + message + ": " + e.getMessage());
+                }
+                System.out.print(index.getDocumentCount() + " message(s) indexed\r");
+            }
+        }
+
+        System.out.println(System.lineSeparator() + "Compacting the index...");
+        index.compact();
+        localStore.close();
+        System.out.println("Done!");
+    }
+}
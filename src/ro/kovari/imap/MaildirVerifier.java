@@ -0,0 +1,79 @@
+/*
+ * Project: imap2local
+ *
+ * Copyright (c) Attila Kovari
+ * All rights reserved.
+ *
+ * MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+
+package ro.kovari.imap;
+
+import ro.kovari.imap.store.MaildirFolder;
+import ro.kovari.imap.store.MaildirLocalStore;
+
+import java.io.File;
+import java.io.IOException;
+
+
+/** Checks that the messages of a {@link MaildirLocalStore} can be read back whole */
+public class MaildirVerifier {
+
+    /**
+     * Read back every message of the store, as a reader of the store would, and report the damaged ones:
+     * a corrupt compressed file, a missing blob, or a size other than the one recorded in the file name
+     * @param localStore the {@link MaildirLocalStore}
+     */
+    public static void verify(MaildirLocalStore localStore) {
+        long messages = 0;
+        long bytes = 0;
+        long fileBytes = 0;
+        int failures = 0;
+
+        for (MaildirFolder folder : localStore.getMaildirFolders()) {
+            System.out.println("Verifying folder " + folder.getMaildirFolderName());
+
+            for (File message : folder.getMessageFiles()) {
+                try {
+                    bytes += localStore.verifyMessage(message);
+                    fileBytes += message.length();
+                    messages++;
+
+                } catch (IOException e) {
+                    System.out.println("Damaged message " + message + ": " + e.getMessage());
+                    failures++;
+                }
+                System.out.print(messages + " message(s) verified\r");
+            }
+        }
+
+        System.out.println(System.lineSeparator() + String.format(
+                "%d message(s) verified: %d bytes of mail in %d bytes on disk (ratio: %.2f)",
+                messages, bytes, fileBytes, fileBytes == 0 ? 1 : (double) bytes / fileBytes));
+        if (failures > 0) {
+            System.out.println(failures + " damaged message(s)!");
+        }
+        localStore.close();
+        System.out.println("Done!");
+    }
+}
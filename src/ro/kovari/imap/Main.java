@@ -29,12 +29,25 @@
 
 package ro.kovari.imap;
 
+import ro.kovari.imap.config.Configuration;
 import ro.kovari.imap.config.ConfigurationService;
+import ro.kovari.imap.exception.ConfigurationException;
+import ro.kovari.imap.exception.MaildirException;
+import ro.kovari.imap.net.ReplayServer;
 import ro.kovari.imap.store.ImapStore;
 import ro.kovari.imap.store.MaildirLocalStore;
 import ro.kovari.imap.store.Protocol;
+import ro.kovari.imap.sync.Deadline;
+import ro.kovari.imap.utils.ConsoleUtils;
 
-import java.io.Console;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 //TODO 1. handle case when IMAP folder separator is different from File.separator
 //TODO 2. maybe implement UID based ImapStore -> MaildirLocalStore synchronization
@@ -42,7 +55,76 @@ import java.io.Console;
 
 public class Main {
 
+    private static final String USAGE = "Usage: imap2local [download|archive [<output>]|plan|coordinate|work|upload|migrate|snapshot|diff [<from> <to>]|search <query>|index|verify|benchmark|replay <trace> [<scale>]]"
+            + " [--deadline <time>]"
+            + System.lineSeparator()
+            + "  download    download all folders (default)" + System.lineSeparator()
+            + "  archive     download all folders into a tar archive written to the output, a file or a named pipe,"
+            + System.lineSeparator()
+            + "              or to the standard output if omitted or '-'; the local folder keeps the folder status"
+            + System.lineSeparator()
+            + "  plan        estimate the volume and the duration of the download, without downloading"
+            + System.lineSeparator()
+            + "  coordinate  split the folders into work units to be shared by several workers" + System.lineSeparator()
+            + "  work        claim and download work units published by the coordinator" + System.lineSeparator()
+            + "  upload      upload the local Maildir to the IMAP server, resuming an interrupted upload"
+            + System.lineSeparator()
+            + "  migrate     copy all folders to another IMAP server, resuming an interrupted migration"
+            + System.lineSeparator()
+            + "  snapshot    download the new messages into a new dated snapshot, linked to the previous one"
+            + System.lineSeparator()
+            + "  diff        list the messages added and removed between two snapshots, by default the last two"
+            + System.lineSeparator()
+            + "  search      search the downloaded messages containing all the words of the query;"
+            + System.lineSeparator()
+            + "              a word may be restricted to a header, e.g. from:alice subject:invoice"
+            + System.lineSeparator()
+            + "  index       rebuild the search index of the downloaded messages" + System.lineSeparator()
+            + "  verify      read back every downloaded message, checking its compression, blobs and size"
+            + System.lineSeparator()
+            + "  benchmark   measure the garbage produced per message written to the local Maildir, directly"
+            + System.lineSeparator()
+            + "              and through the download pipeline, and the throughput and ratio of the compression"
+            + System.lineSeparator()
+            + "              of the message files"
+            + System.lineSeparator()
+            + "  replay      serve a protocol trace recorded with 'traceFile' on the local 'replayPort', with the"
+            + System.lineSeparator()
+            + "              recorded latencies multiplied by the scale, 1 by default, 0 for none"
+            + System.lineSeparator()
+            + "  --deadline  with download or archive, stop taking new messages shortly before a time budget"
+            + System.lineSeparator()
+            + "              (e.g. 2h, 90m, 1h30m) or a time of day (e.g. 06:30); the next run resumes from there";
+
+
+
     public static void main(String[] args) {
+        // the deadline may be given anywhere; the mode and its arguments are the rest
+        List<String> arguments = new ArrayList<>(Arrays.asList(args));
+        Deadline deadline = takeDeadline(arguments);
+        args = arguments.toArray(new String[0]);
+
+        String mode = args.length > 0 ? args[0] : "download";
+        if (!mode.equals("download") && !mode.equals("archive") && !mode.equals("plan")
+                && !mode.equals("coordinate") && !mode.equals("work")
+                && !mode.equals("upload") && !mode.equals("migrate")
+                && !mode.equals("snapshot") && !mode.equals("diff") && !mode.equals("search") && !mode.equals("index")
+                && !mode.equals("verify") && !mode.equals("benchmark") && !mode.equals("replay")
+                || mode.equals("search") && args.length < 2
+                || mode.equals("archive") && args.length > 2
+                || mode.equals("diff") && args.length != 1 && args.length != 3
+                || mode.equals("replay") && args.length != 2 && args.length != 3
+                || deadline.isSet() && !mode.equals("download") && !mode.equals("archive")) {
+            System.out.println(USAGE);
+            System.exit(1);
+        }
+
+        // the archive takes the standard output over; the messages of the run go to the standard error
+        boolean archiveToStdout = mode.equals("archive") && (args.length < 2 || args[1].equals("-"));
+        if (archiveToStdout) {
+            System.setOut(System.err);
+        }
+
         System.out.println("  ___                        _                    _ ");
         System.out.println(" |_ _| _ __   __ _  _ __    | |    ___  __  __ _ | |");
         System.out.println("  | | | '  \\ / _` || '_ \\ _ | |__ / _ \\/ _|/ _` || |");
@@ -50,23 +132,178 @@ public class Main {
         System.out.println("                   |_|                              ");
         System.out.println("                                                    ");
 
-        Console console = System.console();
+        // replaying serves a recorded protocol trace, until stopped
+        if (mode.equals("replay")) {
+            ReplayServer server = new ReplayServer(new File(args[1]), args.length == 3 ? toScale(args[2]) : 1.0);
+            server.serve(ConfigurationService.getImapConfiguration(null).getReplayPort());
+            return;
+        }
 
         // get configuration parameters from the user
-        String maildirStoreLocation = console.readLine("Enter local output folder: ");
-        String imapServer = console.readLine("Enter IMAP server: ");
-        String useImapSSL = console.readLine("Use IMAP over SSL (default YES): ");
+        // nothing is written when only planning
+        String maildirStoreLocation = mode.equals("plan") ? ""
+                : ConsoleUtils.readLine(mode.equals("upload") ? "Enter local input folder: "
+                        : mode.equals("migrate") || mode.equals("archive") ?
+                        "Enter local state folder: " : "Enter local output folder: ");
+
+        // comparing snapshots only reads them
+        if (mode.equals("diff")) {
+            Snapshots.diff(maildirStoreLocation, args.length == 3 ? args[1] : null, args.length == 3 ? args[2] : null);
+            return;
+        }
+
+        // searching, indexing, verifying and benchmarking only use the local Maildir store
+        if (mode.equals("search") || mode.equals("index") || mode.equals("verify") || mode.equals("benchmark")) {
+            MaildirLocalStore localStore = new MaildirLocalStore(maildirStoreLocation,
+                    ConfigurationService.getImapConfiguration(null));
+            if (mode.equals("search")) {
+                MaildirSearch.search(localStore, String.join(" ", Arrays.copyOfRange(args, 1, args.length)));
+            } else if (mode.equals("index")) {
+                MaildirSearch.index(localStore);
+            } else if (mode.equals("verify")) {
+                MaildirVerifier.verify(localStore);
+            } else {
+                Benchmark.allocation(localStore);
+                Benchmark.compression(localStore);
+            }
+            return;
+        }
+
+        String imapServer = ConsoleUtils.readLine("Enter IMAP server: ");
+        String useImapSSL = ConsoleUtils.readLine("Use IMAP over SSL (default YES): ");
 
-        Protocol imapProtocol =
-                useImapSSL.equals("") // accept the default value
-                        || useImapSSL.equalsIgnoreCase("y")
-                        || useImapSSL.equalsIgnoreCase("yes") ? Protocol.IMAPS : Protocol.IMAP;
+        Protocol imapProtocol = toProtocol(useImapSSL);
 
         // create the IMAP and the local Maildir stores
-        ImapStore imapStore = new ImapStore(imapServer, imapProtocol, ConfigurationService.getImapConfiguration());
-        MaildirLocalStore localStore = new MaildirLocalStore(maildirStoreLocation);
+        Configuration config = ConfigurationService.getImapConfiguration(imapServer);
+        deadline = deadline.withMargin(config.getDeadlineMargin());
+        ImapStore imapStore = new ImapStore(imapServer, imapProtocol, config);
+
+        // planning only reads the IMAP store, so that nothing is written, not even a local store
+        if (mode.equals("plan")) {
+            TransferPlanner.plan(imapStore, config);
+            return;
+        }
+
+        // migrating streams the messages to a second IMAP store, keeping only the UID mappings locally
+        if (mode.equals("migrate")) {
+            String destinationServer = ConsoleUtils.readLine("Enter destination IMAP server: ");
+            String useDestinationSSL =
+                    ConsoleUtils.readLine("Use IMAP over SSL for the destination (default YES): ");
+            ImapStore destinationStore = new ImapStore(destinationServer, toProtocol(useDestinationSSL),
+                    ConfigurationService.getImapConfiguration(destinationServer));
+            ImapImap.imap2Imap(imapStore, destinationStore, maildirStoreLocation, config);
+            return;
+        }
+
+        // every snapshot is a store of its own
+        if (mode.equals("snapshot")) {
+            Snapshots.snapshot(imapStore, maildirStoreLocation, config);
+            return;
+        }
+
+        // archiving delivers the messages to the tar stream, keeping only the folders and their status locally
+        if (mode.equals("archive")) {
+            OutputStream archive = archiveToStdout ? new FileOutputStream(FileDescriptor.out) : openArchive(args[1]);
+            ImapLocal.imap2Local(imapStore, new MaildirLocalStore(maildirStoreLocation, config, archive), config,
+                    deadline);
+            return;
+        }
+
+        MaildirLocalStore localStore = new MaildirLocalStore(maildirStoreLocation, config);
 
         // save the messages
-        ImapLocal.imap2Local(imapStore, localStore);
+        switch (mode) {
+            case "coordinate":
+                PartitionedImapLocal.coordinate(imapStore, localStore, config);
+                break;
+
+            case "work":
+                PartitionedImapLocal.work(imapStore, localStore, config);
+                break;
+
+            case "upload":
+                LocalImap.local2Imap(localStore, imapStore, config);
+                break;
+
+            default:
+                ImapLocal.imap2Local(imapStore, localStore, config, deadline);
+        }
+    }
+
+
+
+    /**
+     * Take the deadline option, '--deadline &lt;time&gt;' or '--deadline=&lt;time&gt;', out of the arguments
+     * @param arguments the command line arguments; the option is removed
+     * @return the {@link Deadline}, without its margin, or {@link Deadline#NONE} if there is no such option
+     * @throws ConfigurationException if the deadline is missing or not valid
+     */
+    private static Deadline takeDeadline(List<String> arguments) {
+        for (int i = 0; i < arguments.size(); i++) {
+            String argument = arguments.get(i);
+            if (argument.startsWith("--deadline=")) {
+                arguments.remove(i);
+                return Deadline.parse(argument.substring("--deadline=".length()));
+            }
+            if (argument.equals("--deadline")) {
+                if (i + 1 == arguments.size()) {
+                    throw new ConfigurationException("Missing deadline!");
+                }
+                arguments.remove(i);
+                return Deadline.parse(arguments.remove(i));
+            }
+        }
+        return Deadline.NONE;
+    }
+
+
+
+    /**
+     * Open the output of the archive; a named pipe is opened once its reader has opened it
+     * @param output the path of the file or of the named pipe
+     * @return the stream of the output
+     */
+    private static OutputStream openArchive(String output) {
+        try {
+            return new FileOutputStream(output);
+
+        } catch (FileNotFoundException e) {
+            throw new MaildirException("Unable to open the archive output!", e);
+        }
+    }
+
+
+
+    /**
+     * Get the factor the latencies of a replayed protocol trace are scaled by
+     * @param scale the scale given on the command line
+     * @return the scale
+     * @throws ConfigurationException if the scale is not a number, or is negative
+     */
+    private static double toScale(String scale) {
+        try {
+            double value = Double.parseDouble(scale);
+            if (value >= 0) {
+                return value;
+            }
+
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        throw new ConfigurationException("Invalid latency scale: " + scale);
+    }
+
+
+
+    /**
+     * Get the protocol chosen by the user
+     * @param useImapSSL the answer of the user; empty for the default
+     * @return {@link Protocol#IMAPS}, unless the user declined SSL
+     */
+    private static Protocol toProtocol(String useImapSSL) {
+        return useImapSSL.equals("") // accept the default value
+                || useImapSSL.equalsIgnoreCase("y")
+                || useImapSSL.equalsIgnoreCase("yes") ? Protocol.IMAPS : Protocol.IMAP;
     }
 }
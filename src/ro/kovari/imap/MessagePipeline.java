@@ -0,0 +1,377 @@
+/*
+ * Project: imap2local
+ *
+ * Copyright (c) Attila Kovari
+ * All rights reserved.
+ *
+ * MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+
+package ro.kovari.imap;
+
+import ro.kovari.imap.exception.ImapException;
+import ro.kovari.imap.jfr.MessageFetchEvent;
+import ro.kovari.imap.store.ImapStore;
+import ro.kovari.imap.store.MaildirFolder;
+import ro.kovari.imap.store.MaildirOutputStream;
+import ro.kovari.imap.sync.PipelineStage;
+import ro.kovari.imap.utils.BufferPool;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Saves the messages of a folder through a pipeline of three stages, so that the network and the disk
+ * are busy at the same time, even over a single connection:<br>
+ * - fetch, on the calling thread: the message is downloaded into memory;<br>
+ * - write: the message is written into the 'tmp' subfolder, compressed or split on its way, as configured;<br>
+ * - commit: the message is delivered into the 'new' subfolder, recorded in 'maildirsize' and indexed.<br>
+ * The stages are connected by bounded queues, so that at most about twice their depth of messages
+ * are held in memory, and a slow stage slows the fetch down.<br>
+ * The messages are held in chunks of the shared {@link BufferPool}, and their holders are reused, so that
+ * the pipeline adds next to no garbage per message to that of saving it directly.
+ */
+class MessagePipeline {
+
+    private final MaildirFolder maildirFolder;
+    private final BlockingQueue<FetchedMessage> idle;
+    private final AtomicLong messageBytes;
+    private final AtomicInteger failures = new AtomicInteger();
+    private final PipelineStage<FetchedMessage> writeStage;
+    private final PipelineStage<MaildirOutputStream> commitStage;
+    private final long start = System.nanoTime();
+    private long fetchBusy = 0;
+
+
+
+    /**
+     * Create a new {@link MessagePipeline} and start its write and commit stages
+     * @param maildirFolder the {@link MaildirFolder} the messages are saved into
+     * @param depth the number of messages queued between two stages
+     * @param messageBytes the counter of message bytes written
+     */
+    MessagePipeline(MaildirFolder maildirFolder, int depth, AtomicLong messageBytes) {
+        this.maildirFolder = maildirFolder;
+        this.messageBytes = messageBytes;
+        // the messages queued in both stages, being written, and being fetched
+        this.idle = new ArrayBlockingQueue<>(2 * depth + 2);
+        this.commitStage = new PipelineStage<>("commit", depth, this::commit, this::skipCommit);
+        this.writeStage = new PipelineStage<>("write", depth, this::write, this::skipWrite);
+    }
+
+
+
+    /**
+     * Fetch a message into memory and queue it to be written, waiting while the write stage is full
+     * @param message the message
+     * @throws ImapException if the connection was lost; the messages fetched before are saved by {@link #finish()}
+     */
+    void save(Message message) {
+        // the UIDs were fetched along with the messages; the UID names the message file
+        save(message.getFolder().getFullName(), ImapLocal.getUid(message), out -> {
+            message.writeTo(out);
+            return maildirFolder.isPartitioned() ? message.getReceivedDate() : null;
+        });
+    }
+
+
+
+    /**
+     * Fetch a message into memory and queue it to be written, waiting while the write stage is full
+     * @param folderName the full name of the IMAP folder of the message
+     * @param uid the UID of the message, or 0 if unknown
+     * @param content the content of the message
+     * @throws ImapException if the connection was lost; the messages fetched before are saved by {@link #finish()}
+     */
+    void save(String folderName, long uid, Content content) {
+        MessageFetchEvent event = new MessageFetchEvent();
+        event.begin();
+
+        long started = System.nanoTime();
+        FetchedMessage fetched = acquire(folderName, uid);
+        try {
+            fetched.internalDate = content.writeTo(fetched);
+
+        } catch (MessagingException | IOException e) {
+            fetched.release();
+            if (ImapStore.isThrottled(e)) {
+                throw new ImapException("Connection lost!", e);
+            }
+            e.printStackTrace();
+            failures.incrementAndGet();
+            return;
+
+        } finally {
+            fetchBusy += System.nanoTime() - started;
+            event.end();
+            if (event.shouldCommit()) {
+                event.folder = folderName;
+                event.uid = uid;
+                event.bytes = fetched.size;
+                event.commit();
+            }
+        }
+        queue(fetched);
+    }
+
+
+
+    /**
+     * Get the threads of the write and commit stages
+     * @return the identifiers of the threads
+     */
+    long[] getThreadIds() {
+        return new long[] { writeStage.getThreadId(), commitStage.getThreadId() };
+    }
+
+
+
+    /**
+     * Take an idle {@link FetchedMessage}, or create a new one
+     * @param folderName the full name of the IMAP folder of the message
+     * @param uid the UID of the message, or 0 if unknown
+     * @return the empty {@link FetchedMessage}
+     */
+    private FetchedMessage acquire(String folderName, long uid) {
+        FetchedMessage fetched = idle.poll();
+        if (fetched == null) {
+            fetched = new FetchedMessage();
+        }
+        fetched.folderName = folderName;
+        fetched.uid = uid;
+        fetched.internalDate = null;
+        return fetched;
+    }
+
+
+
+    /**
+     * Queue a fetched message to be written, waiting while the write stage is full
+     * @param fetched the {@link FetchedMessage}
+     */
+    private void queue(FetchedMessage fetched) {
+        try {
+            writeStage.put(fetched);
+
+        } catch (InterruptedException e) {
+            fetched.release();
+            Thread.currentThread().interrupt();
+            failures.incrementAndGet();
+        }
+    }
+
+
+
+    /**
+     * Write and commit the messages queued so far, then stop the stages and print their utilization
+     * @return the number of messages which could not be saved
+     */
+    int finish() {
+        try {
+            writeStage.finish();
+            commitStage.finish();
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failures.incrementAndGet();
+        }
+
+        double elapsed = System.nanoTime() - start;
+        System.out.print(System.lineSeparator()
+                + String.format("Stage utilization: fetch %.0f%%, %s %.0f%%, %s %.0f%%",
+                        100 * Math.min(1.0, fetchBusy / elapsed),
+                        writeStage.getName(), 100 * writeStage.getUtilization(),
+                        commitStage.getName(), 100 * commitStage.getUtilization()));
+        return failures.get();
+    }
+
+
+
+    /**
+     * The write stage: write a fetched message into the 'tmp' subfolder, of its date partition if any
+     * @param message the {@link FetchedMessage}
+     */
+    private void write(FetchedMessage message) {
+        MaildirOutputStream out = null;
+        try {
+            out = maildirFolder.getOutputStream(MaildirFolder.SubFolder.NEW, message.folderName, message.uid,
+                    message.internalDate);
+            message.writeTo(out);
+            // the buffers go back to the pool of the write stage, rather than of the commit stage
+            out.complete();
+            commitStage.put(out);
+
+        } catch (IOException | RuntimeException e) {
+            if (out != null) {
+                out.abort();
+            }
+            e.printStackTrace();
+            failures.incrementAndGet();
+
+        } catch (InterruptedException e) {
+            out.abort();
+            Thread.currentThread().interrupt();
+            failures.incrementAndGet();
+
+        } finally {
+            message.release();
+        }
+    }
+
+
+
+    /**
+     * Discard a fetched message skipped by the write stage after a failure
+     * @param message the {@link FetchedMessage}
+     */
+    private void skipWrite(FetchedMessage message) {
+        message.release();
+        failures.incrementAndGet();
+    }
+
+
+
+    /**
+     * Discard a written message skipped by the commit stage after a failure
+     * @param out the {@link MaildirOutputStream} of the message
+     */
+    private void skipCommit(MaildirOutputStream out) {
+        out.abort();
+        failures.incrementAndGet();
+    }
+
+
+
+    /**
+     * The commit stage: deliver a written message
+     * @param out the {@link MaildirOutputStream} of the message
+     */
+    private void commit(MaildirOutputStream out) {
+        try {
+            out.close();
+            messageBytes.addAndGet(out.getBytesWritten());
+
+        } catch (IOException | RuntimeException e) {
+            out.abort();
+            e.printStackTrace();
+            failures.incrementAndGet();
+        }
+    }
+
+
+
+    /** The content of a message to be saved, fetched by the pipeline */
+    interface Content {
+
+        /**
+         * Write the message, fetching it if needed
+         * @param out the {@link OutputStream} the message is written to
+         * @return the internal date of the message, if the folder is partitioned, or null
+         * @throws IOException in case of error
+         * @throws MessagingException in case of error
+         */
+        Date writeTo(OutputStream out) throws IOException, MessagingException;
+    }
+
+
+
+    /** A message fetched into memory, in pooled chunks, with what is needed to save it; reused once written */
+    private class FetchedMessage extends OutputStream {
+
+        private final List<byte[]> chunks = new ArrayList<>();
+        private int size = 0;
+        private String folderName;
+        private long uid;
+        private Date internalDate;
+
+
+
+        @Override
+        public void write(int b) {
+            position()[size++ % BufferPool.CHUNK_SIZE] = (byte) b;
+        }
+
+
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            while (len > 0) {
+                byte[] chunk = position();
+                int offset = size % BufferPool.CHUNK_SIZE;
+                int count = Math.min(len, BufferPool.CHUNK_SIZE - offset);
+                System.arraycopy(b, off, chunk, offset, count);
+                size += count;
+                off += count;
+                len -= count;
+            }
+        }
+
+
+
+        /**
+         * Get the chunk the next byte is written into, taking a new one from the pool once the last one is full
+         * @return the chunk
+         */
+        private byte[] position() {
+            if (size == chunks.size() * BufferPool.CHUNK_SIZE) {
+                chunks.add(BufferPool.acquireChunk());
+            }
+            return chunks.get(size / BufferPool.CHUNK_SIZE);
+        }
+
+
+
+        /**
+         * Write the message to an {@link OutputStream}
+         * @param out the {@link OutputStream}
+         * @throws IOException in case of error
+         */
+        void writeTo(OutputStream out) throws IOException {
+            for (int i = 0, left = size; left > 0; i++, left -= BufferPool.CHUNK_SIZE) {
+                out.write(chunks.get(i), 0, Math.min(BufferPool.CHUNK_SIZE, left));
+            }
+        }
+
+
+
+        /** Return the chunks to the pool and this {@link FetchedMessage} to the idle ones */
+        void release() {
+            for (int i = 0; i < chunks.size(); i++) {
+                BufferPool.releaseChunk(chunks.get(i));
+            }
+            chunks.clear();
+            size = 0;
+            idle.offer(this);
+        }
+    }
+}
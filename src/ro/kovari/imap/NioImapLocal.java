@@ -0,0 +1,344 @@
+/*
+ * Project: imap2local
+ *
+ * Copyright (c) Attila Kovari
+ * All rights reserved.
+ *
+ * MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+
+package ro.kovari.imap;
+
+import ro.kovari.imap.config.Configuration;
+import ro.kovari.imap.exception.ImapException;
+import ro.kovari.imap.nio.FetchSink;
+import ro.kovari.imap.nio.NioImapEngine;
+import ro.kovari.imap.nio.NioImapSession;
+import ro.kovari.imap.store.FolderStatus;
+import ro.kovari.imap.store.ImapStore;
+import ro.kovari.imap.store.MaildirFolder;
+import ro.kovari.imap.store.MaildirLocalStore;
+import ro.kovari.imap.store.MaildirOutputStream;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * A bridge between a remote IMAP store and the local Maildir store, downloading over the {@link NioImapEngine}.<br>
+ * The folders are downloaded by several sessions at once, one folder per session at a time, as many sessions
+ * as the configured number of connections. The message bodies are streamed from the network into the Maildir
+ * files by the selector threads of the engine, without a thread or a message buffer per session.
+ */
+public class NioImapLocal {
+
+    /** Interval of the progress messages, in milliseconds */
+    private static final long PROGRESS_INTERVAL = 1000;
+
+
+
+    /**
+     * Save messages from an {@link ImapStore} to a {@link MaildirLocalStore}
+     * @param imapStore the remote {@link ImapStore}
+     * @param localStore the {@link MaildirLocalStore}
+     * @param config the application {@link Configuration}
+     */
+    public static void imap2Local(ImapStore imapStore, MaildirLocalStore localStore, Configuration config) {
+        AtomicLong messages = new AtomicLong();
+        AtomicLong messageBytes = new AtomicLong();
+        AtomicInteger failures = new AtomicInteger();
+        long wireBytes;
+
+        try (NioImapEngine engine = new NioImapEngine(config.getEventLoops())) {
+            NioImapSession session = join(imapStore.openSession(engine));
+
+            // the other sessions are opened while the folders are listed; the ones left without a folder log out
+            List<CompletableFuture<NioImapSession>> sessions = new ArrayList<>();
+            for (int i = 1; i < config.getConnections(); i++) {
+                sessions.add(imapStore.openSession(engine));
+            }
+            List<String> folderNames = join(session.list());
+            System.out.println("Found " + folderNames.size() + " folder(s)" + System.lineSeparator());
+
+            // the folders are taken in turn by the sessions, as they become available
+            Queue<String> folders = new ConcurrentLinkedQueue<>(folderNames);
+            List<CompletableFuture<Void>> workers = new ArrayList<>();
+            Downloader downloader = new Downloader(localStore, session.getSeparator(), config.isIncrementalSync(),
+                    messages, messageBytes, failures);
+            workers.add(downloader.work(session, folders));
+            for (CompletableFuture<NioImapSession> newSession : sessions) {
+                workers.add(newSession.thenCompose(opened -> downloader.work(opened, folders)));
+            }
+
+            for (CompletableFuture<Void> worker : workers) {
+                boolean done = false;
+                while (!done) {
+                    try {
+                        worker.get(PROGRESS_INTERVAL, TimeUnit.MILLISECONDS);
+                        done = true;
+
+                    } catch (TimeoutException e) {
+                        System.out.print("Downloaded " + messages.get() + " message(s)\r");
+
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new ImapException("Interrupted!", e);
+
+                    } catch (ExecutionException e) {
+                        System.out.println("Session failed: " + e.getCause().getMessage());
+                        failures.incrementAndGet();
+                        done = true;
+                    }
+                }
+            }
+
+            // left over when all the sessions were lost
+            if (!folders.isEmpty()) {
+                System.out.println(folders.size() + " folder(s) not downloaded");
+                failures.addAndGet(folders.size());
+            }
+            wireBytes = engine.getBytesReceived();
+        }
+
+        if (failures.get() > 0) {
+            System.out.println(failures.get() + " message(s) or folder(s) failed; run again to resume.");
+        }
+        System.out.println(String.format("Received %d message(s), %d bytes of mail in %d bytes over the wire",
+                messages.get(), messageBytes.get(), wireBytes));
+        System.out.println(imapStore.getConnectionStatistics());
+        localStore.close();
+        System.out.println("Done!"); // all done, download completed!
+    }
+
+
+
+    /**
+     * Wait for a future
+     * @param future the future
+     * @param <T> the type of its result
+     * @return the result
+     */
+    private static <T> T join(CompletableFuture<T> future) {
+        try {
+            return future.join();
+
+        } catch (CompletionException e) {
+            Throwable cause = getCause(e);
+            throw cause instanceof ImapException ? (ImapException) cause : new ImapException(cause.getMessage(), cause);
+        }
+    }
+
+
+
+    /**
+     * Get the cause of the failure of a future
+     * @param e the exception the future completed with
+     * @return the cause
+     */
+    private static Throwable getCause(Throwable e) {
+        return e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+    }
+
+
+
+    /** The download of the folders, shared by the sessions */
+    private static class Downloader {
+
+        private final MaildirLocalStore localStore;
+        private final String separator;
+        private final boolean incrementalSync;
+        private final AtomicLong messages;
+        private final AtomicLong messageBytes;
+        private final AtomicInteger failures;
+
+
+
+        /**
+         * Create a new {@link Downloader}
+         * @param localStore the {@link MaildirLocalStore}
+         * @param separator the hierarchy separator of the IMAP folders
+         * @param incrementalSync true to skip the unchanged folders and download only the new messages
+         * @param messages the counter of messages saved
+         * @param messageBytes the counter of message bytes saved
+         * @param failures the counter of failures
+         */
+        Downloader(MaildirLocalStore localStore, String separator, boolean incrementalSync,
+                   AtomicLong messages, AtomicLong messageBytes, AtomicInteger failures) {
+            this.localStore = localStore;
+            this.separator = separator;
+            this.incrementalSync = incrementalSync;
+            this.messages = messages;
+            this.messageBytes = messageBytes;
+            this.failures = failures;
+        }
+
+
+
+        /**
+         * Download the folders of the queue over a session, one after the other, then log out
+         * @param session the {@link NioImapSession}
+         * @param folders the queue of the full names of the folders not downloaded yet
+         * @return the future completed once the queue is empty, or the session lost
+         */
+        CompletableFuture<Void> work(NioImapSession session, Queue<String> folders) {
+            String folderName = folders.poll();
+            if (folderName == null) {
+                return session.logout();
+            }
+
+            return downloadFolder(session, folderName)
+                    .handle((v, e) -> {
+                        if (e != null) {
+                            // the folder is downloaded again by the next run
+                            System.out.println("Download of " + folderName + " interrupted: "
+                                    + getCause(e).getMessage());
+                            failures.incrementAndGet();
+                        }
+                        return null;
+                    })
+                    .thenCompose(v -> session.isOpen() ?
+                            work(session, folders) : CompletableFuture.<Void>completedFuture(null));
+        }
+
+
+
+        /**
+         * Download a folder: all its messages, or, with an unchanged UID validity, only the ones added
+         * since the last run; never the ones added after its STATUS
+         * @param session the {@link NioImapSession}
+         * @param folderName the full name of the folder
+         * @return the future completed once the folder is downloaded
+         */
+        private CompletableFuture<Void> downloadFolder(NioImapSession session, String folderName) {
+            CompletableFuture<FolderStatus> statusFuture = incrementalSync ?
+                    session.status(folderName) : CompletableFuture.completedFuture(null);
+
+            return statusFuture.thenCompose(status -> {
+                MaildirFolder maildirFolder = localStore.flatten(folderName, separator);
+                FolderStatus previous = status == null ? null : maildirFolder.readStatus();
+                if (status != null && status.isUnchanged(previous)) {
+                    System.out.println(folderName + ": unchanged");
+                    return CompletableFuture.completedFuture(null);
+                }
+                localStore.createMaildirFolder(maildirFolder);
+
+                long firstUid = previous != null && previous.getUidValidity() == status.getUidValidity() ?
+                        previous.getUidNext() : 1;
+                if (status != null && (status.getMessages() == 0 || status.getUidNext() <= firstUid)) {
+                    maildirFolder.writeStatus(status);
+                    System.out.println(folderName + ": " + (status.getMessages() == 0 ? "empty" : "no new messages"));
+                    return CompletableFuture.completedFuture(null);
+                }
+
+                FolderSink sink = new FolderSink(maildirFolder, folderName, messages, messageBytes);
+                String uids = firstUid + ":" + (status != null ? String.valueOf(status.getUidNext() - 1) : "*");
+                return session.examine(folderName)
+                        .thenCompose(selected -> {
+                            if (selected.getMessages() == 0) {
+                                return CompletableFuture.<Void>completedFuture(null);
+                            }
+                            localStore.partition(maildirFolder, selected.getMessages());
+                            return session.uidFetch(uids, sink);
+                        })
+                        .thenRun(() -> {
+                            // the messages are indexed before the folder is recorded as downloaded
+                            localStore.flush();
+                            if (status != null && sink.failures == 0) {
+                                maildirFolder.writeStatus(status);
+                            }
+                            failures.addAndGet(sink.failures);
+                            System.out.println(folderName + ": " + sink.saved + " message(s) downloaded"
+                                    + (sink.failures > 0 ? ", " + sink.failures + " failed" : ""));
+                        });
+            });
+        }
+    }
+
+
+
+    /** The {@link FetchSink} saving the messages of a folder into its {@link MaildirFolder} */
+    private static class FolderSink implements FetchSink {
+
+        private final MaildirFolder maildirFolder;
+        private final String folderName;
+        private final AtomicLong messages;
+        private final AtomicLong messageBytes;
+        private MaildirOutputStream out = null;
+        private int saved = 0;
+        private int failures = 0;
+
+
+
+        FolderSink(MaildirFolder maildirFolder, String folderName, AtomicLong messages, AtomicLong messageBytes) {
+            this.maildirFolder = maildirFolder;
+            this.folderName = folderName;
+            this.messages = messages;
+            this.messageBytes = messageBytes;
+        }
+
+
+
+        @Override
+        public OutputStream open(long uid, Date internalDate) {
+            out = maildirFolder.getOutputStream(MaildirFolder.SubFolder.NEW, folderName, uid, internalDate);
+            return out;
+        }
+
+
+
+        @Override
+        public void completed(long uid) throws IOException {
+            // the server may send the UID after the body
+            out.setUid(uid);
+            out.close();
+            messageBytes.addAndGet(out.getBytesWritten());
+            out = null;
+            messages.incrementAndGet();
+            saved++;
+        }
+
+
+
+        @Override
+        public void failed(long uid, Exception e) {
+            if (out != null) {
+                out.abort();
+                out = null;
+            }
+            failures++;
+            System.out.println("Unable to save message " + uid + " of " + folderName + ": " + e.getMessage());
+        }
+    }
+}
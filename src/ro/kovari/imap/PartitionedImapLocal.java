@@ -0,0 +1,248 @@
+/*
+ * Project: imap2local
+ *
+ * Copyright (c) Attila Kovari
+ * All rights reserved.
+ *
+ * MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+
+package ro.kovari.imap;
+
+import ro.kovari.imap.config.Configuration;
+import ro.kovari.imap.exception.MaildirException;
+import ro.kovari.imap.store.FolderStatus;
+import ro.kovari.imap.store.ImapStore;
+import ro.kovari.imap.store.MaildirFolder;
+import ro.kovari.imap.store.MaildirLocalStore;
+import ro.kovari.imap.store.UidRange;
+import ro.kovari.imap.sync.LeaseDirectory;
+import ro.kovari.imap.sync.WorkUnit;
+
+import javax.mail.Folder;
+import javax.mail.Message;
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Splits the work of one account between several processes, on one or more hosts.<br>
+ * The coordinator publishes the work units into a lease directory next to the
+ * {@link MaildirLocalStore}; the workers, sharing the same file system, claim the units
+ * one by one through the {@link LeaseDirectory}.
+ */
+public class PartitionedImapLocal {
+
+    private static final String LEASE_DIRECTORY = "imap2local-work";
+
+
+
+    /**
+     * Split the folders of an {@link ImapStore} into work units.<br>
+     * Folders holding at least 'parallelFolderThreshold' messages are split into UID ranges
+     * of about that many messages; smaller folders make a single unit. The last range of a folder
+     * extends up to its UIDNEXT, so that the next run publishes the messages received since,
+     * from there; a folder whose UIDVALIDITY changed is published again as a whole.
+     * @param imapStore the remote {@link ImapStore}
+     * @param localStore the {@link MaildirLocalStore}
+     * @param config the application {@link Configuration}
+     */
+    public static void coordinate(ImapStore imapStore, MaildirLocalStore localStore, Configuration config) {
+        imapStore.connect();
+        List<Folder> imapFolders = imapStore.fetchFolders();
+        Map<String, FolderStatus> statuses = imapStore.getFolderStatuses(imapFolders);
+        System.out.println(System.lineSeparator());
+
+        LeaseDirectory leases = getLeaseDirectory(localStore, config);
+        int published = 0;
+
+        for (Folder imapFolder : imapFolders) {
+            FolderStatus status = statuses.get(imapFolder.getFullName());
+            long publishedUid = leases.getLastPublishedUid(imapFolder.getFullName(), status.getUidValidity());
+            long lastUid = status.getUidNext() - 1;
+            if (lastUid <= publishedUid) {
+                System.out.println("Folder " + imapFolder.getFullName() + ": up to date");
+                continue;
+            }
+
+            // at most as many messages as UIDs since the units published before
+            UidRange within = new UidRange(publishedUid + 1, lastUid, 0);
+            long messageCount = Math.min(status.getMessages(), lastUid - publishedUid);
+            int threshold = config.getParallelFolderThreshold();
+
+            List<UidRange> ranges = messageCount >= threshold ?
+                    imapStore.getUidRanges(imapFolder, (int) ((messageCount + threshold - 1) / threshold), within) :
+                    Collections.singletonList(new UidRange(within.getFirstUid(), lastUid, (int) messageCount));
+            imapStore.closeFolder(imapFolder);
+
+            if (!ranges.isEmpty()) {
+                UidRange last = ranges.get(ranges.size() - 1);
+                ranges = new ArrayList<>(ranges);
+                ranges.set(ranges.size() - 1, new UidRange(last.getFirstUid(), lastUid, last.getMessageCount()));
+            }
+            for (UidRange range : ranges) {
+                if (leases.publish(imapFolder.getFullName(), status, range)) {
+                    published++;
+                }
+            }
+            System.out.println("Folder " + imapFolder.getFullName() + ": " + ranges.size() + " unit(s)");
+        }
+
+        imapStore.close();
+        System.out.println("Published " + published + " new work unit(s), " + leases.getProgress()[0] + " in total.");
+        System.out.println("Done!");
+    }
+
+
+
+    /**
+     * Claim and download work units until none is left.<br>
+     * The lease of the current unit is renewed in the background, recording the last
+     * UID saved, so that the unit can be resumed if this process dies. A unit with a message
+     * which could not be saved is not completed: it is resumed from that message once its lease is stale.
+     * A unit published before the UIDVALIDITY of its folder changed is obsolete, as its UIDs now name other
+     * messages: it is marked as done without downloading anything, the coordinator publishing the folder again.
+     * @param imapStore the remote {@link ImapStore}
+     * @param localStore the {@link MaildirLocalStore}
+     * @param config the application {@link Configuration}
+     */
+    public static void work(ImapStore imapStore, MaildirLocalStore localStore, Configuration config) {
+        imapStore.connect();
+        System.out.println(System.lineSeparator());
+
+        LeaseDirectory leases = getLeaseDirectory(localStore, config);
+        ScheduledExecutorService heartbeat = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "lease-heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long renewInterval = TimeUnit.SECONDS.toMillis(config.getLeaseTimeout()) / 3;
+        AtomicLong messageBytes = new AtomicLong();
+
+        WorkUnit unit;
+        while ((unit = leases.claim()) != null) {
+            System.out.println("Processing folder: " + unit.getFolderName() + " (" + unit.getRemainingRange() + ")");
+
+            MaildirFolder maildirFolder = localStore.flatten(unit.getFolderName(), imapStore.getSeparator());
+            localStore.createMaildirFolder(maildirFolder);
+
+            Folder imapFolder = imapStore.getFolder(unit.getFolderName());
+            long uidValidity = imapStore.getUidValidity(imapFolder);
+            if (unit.getUidValidity() != 0 && unit.getUidValidity() != uidValidity) {
+                imapStore.closeFolder(imapFolder);
+                leases.complete(unit);
+                System.out.println("UID validity changed from " + unit.getUidValidity() + " to " + uidValidity
+                        + "; the unit is obsolete, the folder has to be published again.");
+                System.out.println(System.lineSeparator());
+                continue;
+            }
+            localStore.partition(maildirFolder, imapStore.getMessageCount(imapFolder));
+            AtomicLong lastUid = new AtomicLong(unit.getResumeUid());
+            AtomicBoolean leaseLost = new AtomicBoolean(false);
+            int failures = 0;
+
+            final WorkUnit leasedUnit = unit;
+            ScheduledFuture<?> renewal = heartbeat.scheduleAtFixedRate(() -> {
+                try {
+                    leases.renew(leasedUnit, lastUid.get());
+
+                } catch (MaildirException e) {
+                    leaseLost.set(true);
+                }
+            }, renewInterval, renewInterval, TimeUnit.MILLISECONDS);
+
+            try {
+                Message[] messages = imapStore.getMessages(imapFolder, unit.getRemainingRange());
+                if (maildirFolder.isPartitioned()) {
+                    imapStore.fetchInternalDates(imapFolder, messages);
+                }
+                long idx = 1;
+
+                for (Message message : messages) {
+                    if (leaseLost.get()) {
+                        System.out.println("Lease lost; leaving the unit to its new owner.");
+                        break;
+                    }
+                    System.out.print("Downloading message " + idx++ + " of " + messages.length + "\r");
+
+                    // the progress recorded stops before the first message not saved
+                    if (ImapLocal.saveMessage(maildirFolder, message, messageBytes) < 0) {
+                        failures++;
+
+                    } else if (failures == 0) {
+                        lastUid.set(imapStore.getUid(imapFolder, message));
+                    }
+                }
+
+            } finally {
+                renewal.cancel(false);
+                imapStore.closeFolder(imapFolder);
+            }
+
+            localStore.flush();
+            if (!leaseLost.get() && failures > 0) {
+                System.out.print(System.lineSeparator() + failures + " message(s) failed; the unit is resumed"
+                        + " after UID " + lastUid.get() + " once its lease is stale.");
+                leases.renew(unit, lastUid.get());
+
+            } else if (!leaseLost.get()) {
+                leases.complete(unit);
+            }
+            System.out.println(System.lineSeparator());
+        }
+
+        heartbeat.shutdown();
+        imapStore.close();
+        localStore.close();
+
+        int[] progress = leases.getProgress();
+        System.out.println(progress[1] + " of " + progress[0] + " work unit(s) done.");
+        System.out.println("Done!");
+    }
+
+
+
+    /**
+     * Get the {@link LeaseDirectory} next to the {@link MaildirLocalStore}
+     * @param localStore the {@link MaildirLocalStore}
+     * @param config the application {@link Configuration}
+     * @return the {@link LeaseDirectory}
+     */
+    private static LeaseDirectory getLeaseDirectory(MaildirLocalStore localStore, Configuration config) {
+        File directory = localStore.getSiblingLocation(LEASE_DIRECTORY);
+        // e.g. 12345@backup-host-1
+        String workerId = ManagementFactory.getRuntimeMXBean().getName();
+
+        return new LeaseDirectory(directory, workerId, TimeUnit.SECONDS.toMillis(config.getLeaseTimeout()));
+    }
+}
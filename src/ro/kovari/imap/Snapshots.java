@@ -0,0 +1,126 @@
+/*
+ * Project: imap2local
+ *
+ * Copyright (c) Attila Kovari
+ * All rights reserved.
+ *
+ * MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+
+package ro.kovari.imap;
+
+import ro.kovari.imap.config.Configuration;
+import ro.kovari.imap.store.ImapStore;
+import ro.kovari.imap.store.MaildirFolder;
+import ro.kovari.imap.store.MaildirLocalStore;
+import ro.kovari.imap.store.MaildirSnapshots;
+
+import javax.mail.Folder;
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+
+/** Takes and compares the dated point-in-time copies of the local store, see {@link MaildirSnapshots} */
+public class Snapshots {
+
+    /**
+     * Download the messages added since the latest snapshot into a new snapshot, delete from it the messages
+     * expunged from the server since, then delete the snapshots past the retention
+     * @param imapStore the {@link ImapStore}
+     * @param location the local folder, holding the snapshots folder
+     * @param config the application {@link Configuration}
+     */
+    public static void snapshot(ImapStore imapStore, String location, Configuration config) {
+        // without it, all messages would be downloaded again on top of the linked ones
+        if (!config.isIncrementalSync()) {
+            System.out.println("Snapshots require 'incrementalSync = true'.");
+            return;
+        }
+
+        MaildirSnapshots snapshots = new MaildirSnapshots(location);
+        File snapshot = snapshots.begin();
+        ImapLocal.imap2Local(imapStore, new MaildirLocalStore(snapshot.getPath(), config), config);
+        deleteExpunged(imapStore, new MaildirLocalStore(snapshot.getPath(), config));
+
+        System.out.println("Snapshot " + snapshots.commit(snapshot) + " taken.");
+        for (String pruned : snapshots.prune(config.getSnapshotRetention())) {
+            System.out.println("Snapshot " + pruned + " deleted.");
+        }
+    }
+
+
+
+    /**
+     * Delete from a new snapshot the messages expunged from the server since they were downloaded:
+     * the incremental sync only downloads the new messages, on top of the ones linked from the previous snapshot.
+     * The files are unlinked from the new snapshot only; the older snapshots keep them.
+     * @param imapStore the {@link ImapStore}, closed by the download, connected again with the same credentials
+     * @param localStore the {@link MaildirLocalStore} of the new snapshot
+     */
+    private static void deleteExpunged(ImapStore imapStore, MaildirLocalStore localStore) {
+        imapStore.connect();
+        long deleted = 0;
+        for (Folder imapFolder : imapStore.fetchFolders()) {
+            MaildirFolder maildirFolder = localStore.flatten(imapFolder.getFullName(), imapStore.getSeparator());
+            if (maildirFolder.getMaildirFolder().isDirectory()) {
+                deleted += maildirFolder.deleteExpunged(imapStore.getUids(imapFolder));
+                imapStore.closeFolder(imapFolder);
+            }
+        }
+        imapStore.close();
+        localStore.close();
+        System.out.println(deleted + " message(s) expunged from the server deleted from the snapshot.");
+    }
+
+
+
+    /**
+     * Print the messages added and removed between two snapshots
+     * @param location the local folder, holding the snapshots folder
+     * @param from the name of the older snapshot, or null for the one before the latest
+     * @param to the name of the newer snapshot, or null for the latest
+     */
+    public static void diff(String location, String from, String to) {
+        MaildirSnapshots snapshots = new MaildirSnapshots(location);
+        List<String> names = snapshots.list();
+        if (from == null && names.size() < 2) {
+            System.out.println("At least two snapshots are needed, " + names.size() + " found.");
+            return;
+        }
+        from = from != null ? from : names.get(names.size() - 2);
+        to = to != null ? to : names.get(names.size() - 1);
+
+        long start = System.nanoTime();
+        List<String> changes = snapshots.diff(from, to);
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        long added = 0;
+        for (String change : changes) {
+            System.out.println(change);
+            added += change.startsWith("+") ? 1 : 0;
+        }
+        System.out.println(String.format("%s -> %s: %d message(s) added, %d removed, in %d ms.",
+                from, to, added, changes.size() - added, elapsed));
+    }
+}
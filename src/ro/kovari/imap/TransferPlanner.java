@@ -0,0 +1,212 @@
+/*
+ * Project: imap2local
+ *
+ * Copyright (c) Attila Kovari
+ * All rights reserved.
+ *
+ * MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+
+package ro.kovari.imap;
+
+import ro.kovari.imap.config.Configuration;
+import ro.kovari.imap.store.ImapStore;
+import ro.kovari.imap.store.TransferSample;
+
+import javax.mail.Folder;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Estimates the volume and the duration of a download without downloading the messages.<br>
+ * Only the message counts and sizes are fetched, along with a small timed sample of messages.
+ */
+public class TransferPlanner {
+
+    /** Upper limits of the message size histogram buckets, in bytes */
+    private static final long[] HISTOGRAM_LIMITS = {
+            4L << 10, 16L << 10, 64L << 10, 256L << 10, 1L << 20, 4L << 20, 16L << 20, Long.MAX_VALUE
+    };
+
+
+
+    /**
+     * Print the plan of downloading all folders of an {@link ImapStore}
+     * @param imapStore the remote {@link ImapStore}
+     * @param config the application {@link Configuration}
+     */
+    public static void plan(ImapStore imapStore, Configuration config) {
+        imapStore.connect();
+        List<Folder> imapFolders = imapStore.fetchFolders();
+        System.out.println(System.lineSeparator());
+
+        List<FolderPlan> plans = new ArrayList<>();
+        long[] histogramCounts = new long[HISTOGRAM_LIMITS.length];
+        long[] histogramBytes = new long[HISTOGRAM_LIMITS.length];
+        Folder sampleFolder = null;
+        int sampleFolderSize = 0;
+
+        int idx = 1;
+        for (Folder imapFolder : imapFolders) {
+            System.out.print("Scanning folder " + idx++ + " of " + imapFolders.size() + "\r");
+
+            // STATUS first; empty folders are not opened at all
+            FolderPlan plan = new FolderPlan(imapFolder.getFullName(), imapStore.getMessageCount(imapFolder));
+            if (plan.messages > 0) {
+                for (long size : imapStore.getMessageSizes(imapFolder)) {
+                    plan.bytes += size;
+                    plan.roundTrips += config.isPartialFetchEnabled() ?
+                            Math.max(1, (size + config.getFetchSize() - 1) / config.getFetchSize()) : 1;
+
+                    int bucket = 0;
+                    while (size >= HISTOGRAM_LIMITS[bucket]) {
+                        bucket++;
+                    }
+                    histogramCounts[bucket]++;
+                    histogramBytes[bucket] += size;
+                }
+                imapStore.closeFolder(imapFolder);
+            }
+            plans.add(plan);
+
+            if (plan.messages > sampleFolderSize) {
+                sampleFolder = imapFolder;
+                sampleFolderSize = plan.messages;
+            }
+        }
+        System.out.println();
+
+        if (sampleFolder == null) {
+            System.out.println("No messages to download.");
+            imapStore.close();
+            return;
+        }
+
+        System.out.println("Sampling the transfer rate on folder: " + sampleFolder.getFullName());
+        TransferSample sample = imapStore.sampleTransfer(sampleFolder);
+        imapStore.close();
+
+        double roundTrip = sample.getRoundTripNanos() / (double) TimeUnit.SECONDS.toNanos(1);
+        double bandwidth = sample.getBandwidth();
+        System.out.println(String.format("Sample: %d messages, %s in %.1f s; round trip %.0f ms, bandwidth %s/s",
+                sample.getMessageCount(), formatBytes(sample.getMessageBytes()),
+                sample.getElapsedNanos() / (double) TimeUnit.SECONDS.toNanos(1), roundTrip * 1000,
+                formatBytes((long) bandwidth)));
+        System.out.println();
+
+        // folders are downloaded one after the other; only the large ones over several connections
+        int connections = config.getConnections();
+        double totalSeconds = 0;
+        long totalMessages = 0;
+        long totalBytes = 0;
+
+        for (FolderPlan plan : plans) {
+            int folderConnections = plan.messages >= config.getParallelFolderThreshold() ? connections : 1;
+            plan.seconds = (plan.roundTrips * roundTrip + plan.bytes / bandwidth) / folderConnections;
+            if (config.getMaxBandwidth() > 0) {
+                plan.seconds = Math.max(plan.seconds, (double) plan.bytes / config.getMaxBandwidth());
+            }
+
+            totalSeconds += plan.seconds;
+            totalMessages += plan.messages;
+            totalBytes += plan.bytes;
+        }
+
+        plans.sort(Comparator.comparingDouble((FolderPlan plan) -> plan.seconds).reversed());
+        System.out.println(String.format("%-40s %10s %12s %10s", "Folder", "Messages", "Size", "Time"));
+        for (FolderPlan plan : plans) {
+            System.out.println(String.format("%-40s %10d %12s %10s",
+                    plan.name, plan.messages, formatBytes(plan.bytes), formatDuration(plan.seconds)));
+        }
+        System.out.println();
+
+        System.out.println("Message sizes:");
+        for (int bucket = 0; bucket < HISTOGRAM_LIMITS.length; bucket++) {
+            String label = bucket == HISTOGRAM_LIMITS.length - 1 ?
+                    ">= " + formatBytes(HISTOGRAM_LIMITS[bucket - 1]) : "< " + formatBytes(HISTOGRAM_LIMITS[bucket]);
+            int bar = totalMessages == 0 ? 0 : (int) (50 * histogramCounts[bucket] / totalMessages);
+
+            System.out.println(String.format("%10s %10d %12s %s", label, histogramCounts[bucket],
+                    formatBytes(histogramBytes[bucket]), new String(new char[bar]).replace('\0', '#')));
+        }
+        System.out.println();
+
+        System.out.println(String.format("Total: %d messages, %s", totalMessages, formatBytes(totalBytes)));
+        System.out.println(String.format("Estimated duration with up to %d connection(s): %s",
+                connections, formatDuration(totalSeconds)));
+        System.out.println("Done!");
+    }
+
+
+
+    /**
+     * Format a number of bytes for humans
+     * @param bytes the number of bytes
+     * @return the formatted number of bytes
+     */
+    private static String formatBytes(long bytes) {
+        String[] units = { "B", "KB", "MB", "GB", "TB" };
+        double value = bytes;
+        int unit = 0;
+
+        while (value >= 1024 && unit < units.length - 1) {
+            value /= 1024;
+            unit++;
+        }
+        return unit == 0 ? bytes + " B" : String.format("%.1f %s", value, units[unit]);
+    }
+
+
+
+    /**
+     * Format a duration as hours, minutes and seconds
+     * @param seconds the duration, in seconds
+     * @return the formatted duration
+     */
+    private static String formatDuration(double seconds) {
+        long total = (long) Math.ceil(seconds);
+        return String.format("%d:%02d:%02d", total / 3600, (total / 60) % 60, total % 60);
+    }
+
+
+
+    /** The volume and the estimated cost of a folder */
+    private static class FolderPlan {
+
+        private final String name;
+        private final int messages;
+        private long bytes = 0;
+        private long roundTrips = 0;
+        private double seconds = 0;
+
+
+
+        FolderPlan(String name, int messages) {
+            this.name = name;
+            this.messages = messages;
+        }
+    }
+}
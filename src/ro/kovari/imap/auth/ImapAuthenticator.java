@@ -30,9 +30,10 @@
 package ro.kovari.imap.auth;
 
 
+import ro.kovari.imap.utils.ConsoleUtils;
+
 import javax.mail.Authenticator;
 import javax.mail.PasswordAuthentication;
-import java.io.Console;
 import java.util.Arrays;
 
 
@@ -46,10 +47,9 @@ public class ImapAuthenticator extends Authenticator {
 
     @Override
     public PasswordAuthentication getPasswordAuthentication() {
-        Console console = System.console();
         // read username and password from the console
-        String username = console.readLine("Enter username: ");
-        char[] password = console.readPassword("Enter password: ");
+        String username = ConsoleUtils.readLine("Enter username: ");
+        char[] password = ConsoleUtils.readPassword("Enter password: ");
 
         PasswordAuthentication auth = new PasswordAuthentication(username, String.valueOf(password));
         // doesn't really help, since JavaMail's PasswordAuthentication stores the password in a String
@@ -29,6 +29,11 @@
 
 package ro.kovari.imap.config;
 
+import ro.kovari.imap.store.CompressionMode;
+import ro.kovari.imap.store.DatePartition;
+import ro.kovari.imap.store.MessageCodec;
+import ro.kovari.imap.store.TransportMode;
+
 
 /** Configuration model */
 public class Configuration {
@@ -36,6 +41,29 @@ public class Configuration {
     private final boolean partialFetchEnabled;
     private final int fetchSize;
     private final String sslTrustedHosts;
+    private final CompressionMode compressionMode;
+    private final int compressionLevel;
+    private final int compressionSampleSize;
+    private final int connections;
+    private final int parallelFolderThreshold;
+    private final int maxBandwidth;
+    private final int leaseTimeout;
+    private final boolean incrementalSync;
+    private final int blobThreshold;
+    private final boolean searchIndex;
+    private final String maildirQuota;
+    private final int snapshotRetention;
+    private final TransportMode transportMode;
+    private final int eventLoops;
+    private final MessageCodec storeCompression;
+    private final int storeCompressionLevel;
+    private final DatePartition datePartition;
+    private final int datePartitionThreshold;
+    private final int pipelineDepth;
+    private final int deadlineMargin;
+    private final String traceFile;
+    private final boolean traceMessages;
+    private final int replayPort;
 
 
 
@@ -57,12 +85,196 @@ public class Configuration {
 
 
 
+    public CompressionMode getCompressionMode() {
+        return compressionMode;
+    }
+
+
+
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+
+
+    public int getCompressionSampleSize() {
+        return compressionSampleSize;
+    }
+
+
+
+    public int getConnections() {
+        return connections;
+    }
+
+
+
+    public int getParallelFolderThreshold() {
+        return parallelFolderThreshold;
+    }
+
+
+
+    public int getMaxBandwidth() {
+        return maxBandwidth;
+    }
+
+
+
+    public int getLeaseTimeout() {
+        return leaseTimeout;
+    }
+
+
+
+    public boolean isIncrementalSync() {
+        return incrementalSync;
+    }
+
+
+
+    public int getBlobThreshold() {
+        return blobThreshold;
+    }
+
+
+
+    public boolean isSearchIndex() {
+        return searchIndex;
+    }
+
+
+
+    public String getMaildirQuota() {
+        return maildirQuota;
+    }
+
+
+
+    public int getSnapshotRetention() {
+        return snapshotRetention;
+    }
+
+
+
+    public TransportMode getTransportMode() {
+        return transportMode;
+    }
+
+
+
+    public int getEventLoops() {
+        return eventLoops;
+    }
+
+
+
+    public MessageCodec getStoreCompression() {
+        return storeCompression;
+    }
+
+
+
+    public int getStoreCompressionLevel() {
+        return storeCompressionLevel;
+    }
+
+
+
+    public DatePartition getDatePartition() {
+        return datePartition;
+    }
+
+
+
+    public int getDatePartitionThreshold() {
+        return datePartitionThreshold;
+    }
+
+
+
+    public int getPipelineDepth() {
+        return pipelineDepth;
+    }
+
+
+
+    public int getDeadlineMargin() {
+        return deadlineMargin;
+    }
+
+
+
+    public String getTraceFile() {
+        return traceFile;
+    }
+
+
+
+    public boolean isTraceMessages() {
+        return traceMessages;
+    }
+
+
+
+    public int getReplayPort() {
+        return replayPort;
+    }
+
+
+
     public Configuration(boolean partialFetchEnabled,
                          int fetchSize,
-                         String sslTrustedHosts) {
+                         String sslTrustedHosts,
+                         CompressionMode compressionMode,
+                         int compressionLevel,
+                         int compressionSampleSize,
+                         int connections,
+                         int parallelFolderThreshold,
+                         int maxBandwidth,
+                         int leaseTimeout,
+                         boolean incrementalSync,
+                         int blobThreshold,
+                         boolean searchIndex,
+                         String maildirQuota,
+                         int snapshotRetention,
+                         TransportMode transportMode,
+                         int eventLoops,
+                         MessageCodec storeCompression,
+                         int storeCompressionLevel,
+                         DatePartition datePartition,
+                         int datePartitionThreshold,
+                         int pipelineDepth,
+                         int deadlineMargin,
+                         String traceFile,
+                         boolean traceMessages,
+                         int replayPort) {
 
         this.partialFetchEnabled = partialFetchEnabled;
         this.fetchSize = fetchSize;
         this.sslTrustedHosts = sslTrustedHosts;
+        this.compressionMode = compressionMode;
+        this.compressionLevel = compressionLevel;
+        this.compressionSampleSize = compressionSampleSize;
+        this.connections = connections;
+        this.parallelFolderThreshold = parallelFolderThreshold;
+        this.maxBandwidth = maxBandwidth;
+        this.leaseTimeout = leaseTimeout;
+        this.incrementalSync = incrementalSync;
+        this.blobThreshold = blobThreshold;
+        this.searchIndex = searchIndex;
+        this.maildirQuota = maildirQuota;
+        this.snapshotRetention = snapshotRetention;
+        this.transportMode = transportMode;
+        this.eventLoops = eventLoops;
+        this.storeCompression = storeCompression;
+        this.storeCompressionLevel = storeCompressionLevel;
+        this.datePartition = datePartition;
+        this.datePartitionThreshold = datePartitionThreshold;
+        this.pipelineDepth = pipelineDepth;
+        this.deadlineMargin = deadlineMargin;
+        this.traceFile = traceFile;
+        this.traceMessages = traceMessages;
+        this.replayPort = replayPort;
     }
 }
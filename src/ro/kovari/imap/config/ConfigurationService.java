@@ -29,6 +29,10 @@ package ro.kovari.imap.config;
 
 import ro.kovari.imap.Main;
 import ro.kovari.imap.exception.ConfigurationException;
+import ro.kovari.imap.store.CompressionMode;
+import ro.kovari.imap.store.DatePartition;
+import ro.kovari.imap.store.MessageCodec;
+import ro.kovari.imap.store.TransportMode;
 
 import java.io.File;
 import java.io.FileReader;
@@ -85,11 +89,14 @@ public class ConfigurationService {
 
 
     /**
-     * Get the application configuration
+     * Get the application configuration.<br>
+     * Limits may be overridden for a specific server by suffixing the property key
+     * with the server name, e.g. 'connections.imap.example.test'
+     * @param server the IMAP server
      * @return the application configuration
      * @throws ConfigurationException in case of invalid configuration
      */
-    public static Configuration getImapConfiguration() throws ConfigurationException {
+    public static Configuration getImapConfiguration(String server) throws ConfigurationException {
         Properties properties = getConfigurationProperties();
 
         boolean partialFetchEnabled = Boolean.valueOf(
@@ -103,10 +110,202 @@ public class ConfigurationService {
         } catch (NumberFormatException e) {
             throw new ConfigurationException("Invalid fetch size!", e);
         }
+        // the latency per round trip and the transfer plan are taken per fetch size
+        if (fetchSize <= 0) {
+            throw new ConfigurationException("Invalid fetch size!");
+        }
 
         // if property is not present, set 'sslTrustedHosts' to null; this will exclude it
         // from the imap session properties
         String sslTrustedHosts = properties.getProperty("sslTrustedHosts", null);
-        return new Configuration(partialFetchEnabled, fetchSize, sslTrustedHosts);
+
+        CompressionMode compressionMode;
+        try {
+            compressionMode = CompressionMode.valueOf(
+                    properties.getProperty("compression", "off").trim().toUpperCase()
+            );
+
+        } catch (IllegalArgumentException e) {
+            throw new ConfigurationException("Invalid compression mode!", e);
+        }
+
+        int compressionLevel = getIntProperty(properties, "compressionLevel", -1);
+        if (compressionLevel < -1 || compressionLevel > 9) {
+            throw new ConfigurationException("Invalid compression level!");
+        }
+
+        int compressionSampleSize = getIntProperty(properties, "compressionSampleSize", 50);
+        if (compressionSampleSize <= 0) {
+            throw new ConfigurationException("Invalid compression sample size!");
+        }
+
+        int connections = getIntProperty(properties, "connections", server, 1);
+        if (connections <= 0) {
+            throw new ConfigurationException("Invalid number of connections!");
+        }
+
+        int parallelFolderThreshold = getIntProperty(properties, "parallelFolderThreshold", 10000);
+        if (parallelFolderThreshold <= 0) {
+            throw new ConfigurationException("Invalid parallel folder threshold!");
+        }
+
+        int maxBandwidth = getIntProperty(properties, "maxBandwidth", server, 0);
+        if (maxBandwidth < 0) {
+            throw new ConfigurationException("Invalid bandwidth limit!");
+        }
+
+        int leaseTimeout = getIntProperty(properties, "leaseTimeout", 300);
+        if (leaseTimeout <= 0) {
+            throw new ConfigurationException("Invalid lease timeout!");
+        }
+
+        boolean incrementalSync = Boolean.valueOf(
+                properties.getProperty("incrementalSync", "true")
+        );
+
+        int blobThreshold = getIntProperty(properties, "blobThreshold", 0);
+        if (blobThreshold < 0) {
+            throw new ConfigurationException("Invalid blob threshold!");
+        }
+
+        boolean searchIndex = Boolean.valueOf(
+                properties.getProperty("searchIndex", "false")
+        );
+
+        // the Maildir++ quota definition, e.g. '1000000000S,100000C'; empty for no maildirsize file
+        String maildirQuota = properties.getProperty("maildirQuota", "0S,0C").trim();
+        if (!maildirQuota.isEmpty() && !maildirQuota.matches("\\d+[SC](,\\d+[SC])*")) {
+            throw new ConfigurationException("Invalid Maildir quota!");
+        }
+
+        int snapshotRetention = getIntProperty(properties, "snapshotRetention", 30);
+        if (snapshotRetention <= 0) {
+            throw new ConfigurationException("Invalid snapshot retention!");
+        }
+
+        TransportMode transportMode;
+        try {
+            transportMode = TransportMode.valueOf(
+                    properties.getProperty("transport", "javamail").trim().toUpperCase()
+            );
+
+        } catch (IllegalArgumentException e) {
+            throw new ConfigurationException("Invalid transport!", e);
+        }
+
+        int eventLoops = getIntProperty(properties, "eventLoops", 2);
+        if (eventLoops <= 0) {
+            throw new ConfigurationException("Invalid number of event loops!");
+        }
+
+        MessageCodec storeCompression;
+        try {
+            storeCompression = MessageCodec.valueOf(
+                    properties.getProperty("storeCompression", "none").trim().toUpperCase()
+            );
+
+        } catch (IllegalArgumentException e) {
+            throw new ConfigurationException("Invalid store compression!", e);
+        }
+
+        // a compressed file can't be reassembled from its blobs without being read twice
+        if (storeCompression != MessageCodec.NONE && blobThreshold > 0) {
+            throw new ConfigurationException("Store compression and blob threshold can't be used together!");
+        }
+
+        int storeCompressionLevel = getIntProperty(properties, "storeCompressionLevel", 1);
+        if (storeCompressionLevel < 1 || storeCompressionLevel > 9) {
+            throw new ConfigurationException("Invalid store compression level!");
+        }
+
+        DatePartition datePartition;
+        try {
+            datePartition = DatePartition.valueOf(
+                    properties.getProperty("datePartition", "none").trim().toUpperCase()
+            );
+
+        } catch (IllegalArgumentException e) {
+            throw new ConfigurationException("Invalid date partition!", e);
+        }
+
+        int datePartitionThreshold = getIntProperty(properties, "datePartitionThreshold", 50000);
+        if (datePartitionThreshold <= 0) {
+            throw new ConfigurationException("Invalid date partition threshold!");
+        }
+
+        int pipelineDepth = getIntProperty(properties, "pipelineDepth", 4);
+        if (pipelineDepth < 0) {
+            throw new ConfigurationException("Invalid pipeline depth!");
+        }
+
+        int deadlineMargin = getIntProperty(properties, "deadlineMargin", 60);
+        if (deadlineMargin < 0) {
+            throw new ConfigurationException("Invalid deadline margin!");
+        }
+
+        // if property is not present, set 'traceFile' to null; nothing is recorded then
+        String traceFile = properties.getProperty("traceFile", null);
+
+        // the messages are masked in the trace, unless asked for
+        boolean traceMessages = Boolean.valueOf(
+                properties.getProperty("traceMessages", "false")
+        );
+
+        int replayPort = getIntProperty(properties, "replayPort", 1143);
+        if (replayPort <= 0 || replayPort > 65535) {
+            throw new ConfigurationException("Invalid replay port!");
+        }
+
+        return new Configuration(partialFetchEnabled, fetchSize, sslTrustedHosts,
+                compressionMode, compressionLevel, compressionSampleSize,
+                connections, parallelFolderThreshold, maxBandwidth, leaseTimeout,
+                incrementalSync, blobThreshold, searchIndex, maildirQuota, snapshotRetention,
+                transportMode, eventLoops, storeCompression, storeCompressionLevel,
+                datePartition, datePartitionThreshold, pipelineDepth, deadlineMargin, traceFile, traceMessages,
+                replayPort);
+    }
+
+
+
+    /**
+     * Get an integer property
+     * @param properties the configuration {@link Properties}
+     * @param key the property key
+     * @param defaultValue the value to use when the property is not present
+     * @return the value of the property
+     * @throws ConfigurationException in case the value is not a valid integer
+     */
+    private static int getIntProperty(Properties properties, String key, int defaultValue)
+            throws ConfigurationException {
+
+        return getIntProperty(properties, key, null, defaultValue);
+    }
+
+
+
+    /**
+     * Get an integer property, preferring the value specific to a server, if any
+     * @param properties the configuration {@link Properties}
+     * @param key the property key
+     * @param server the server, or null
+     * @param defaultValue the value to use when the property is not present
+     * @return the value of the property
+     * @throws ConfigurationException in case the value is not a valid integer
+     */
+    private static int getIntProperty(Properties properties, String key, String server, int defaultValue)
+            throws ConfigurationException {
+
+        String value = server == null ?
+                properties.getProperty(key) : properties.getProperty(key + "." + server, properties.getProperty(key));
+        if (value == null) {
+            return defaultValue;
+        }
+
+        try {
+            return Integer.parseInt(value.trim());
+
+        } catch (NumberFormatException e) {
+            throw new ConfigurationException("Invalid " + key + "!", e);
+        }
     }
 }
@@ -0,0 +1,504 @@
+/*
+ * Project: imap2local
+ *
+ * Copyright (c) Attila Kovari
+ * All rights reserved.
+ *
+ * MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+
+package ro.kovari.imap.index;
+
+import ro.kovari.imap.exception.IndexException;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+
+/**
+ * An embedded full-text index of the messages of a {@link ro.kovari.imap.store.MaildirLocalStore},
+ * over their main headers and decoded text parts, updated as the messages are written.<br>
+ * The terms of the new messages are kept in memory and written as an immutable {@link Segment}
+ * every {@value #FLUSH_THRESHOLD} messages; every {@value #MERGE_FACTOR} segments of the same
+ * level are merged into one of the next level, so that a search reads a few segments only.
+ * The manifest, replaced atomically, lists the segments and the messages of the index;
+ * anything written after it was last replaced is discarded when the index is opened.
+ */
+public class SearchIndex implements Closeable {
+
+    /** The name of the index, next to the Maildir */
+    public static final String INDEX_DIRECTORY = "imap2local-index";
+
+    private static final String MANIFEST_FILE = "manifest";
+    private static final String LOCK_FILE = "lock";
+    private static final String DOCUMENTS_FILE = "documents";
+    private static final String DOCUMENT_OFFSETS_FILE = "documents.idx";
+    private static final String SEGMENT_SUFFIX = ".seg";
+
+    private static final int FLUSH_THRESHOLD = 10000;
+    private static final int MERGE_FACTOR = 4;
+
+    private final File location;
+    private final File root;
+    private final FileChannel lockChannel;
+    private final RandomAccessFile documentsFile;
+    private final RandomAccessFile documentOffsetsFile;
+
+    private final List<Segment> segments = new ArrayList<>();
+    private int nextSegment;
+    private int documents;
+
+    /** The messages added since the last flush, and their terms */
+    private final List<String> pendingDocuments = new ArrayList<>();
+    private final Map<String, Postings> pendingPostings = new HashMap<>();
+
+
+
+    /**
+     * Open the index, creating it if needed. An index is updated by a single process at a time.
+     * @param location the location of the index
+     */
+    public SearchIndex(File location) {
+        this.location = location;
+        this.root = location.getAbsoluteFile().getParentFile();
+
+        if (!location.isDirectory() && !location.mkdirs() && !location.isDirectory()) {
+            throw new IndexException("Unable to create the search index!");
+        }
+
+        try {
+            lockChannel = FileChannel.open(new File(location, LOCK_FILE).toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            FileLock lock = lockChannel.tryLock();
+            if (lock == null) {
+                lockChannel.close();
+                throw new IndexException("The search index is in use by another process!");
+            }
+
+            Properties manifest = new Properties();
+            File manifestFile = new File(location, MANIFEST_FILE);
+            if (manifestFile.exists()) {
+                try (Reader reader = new FileReader(manifestFile)) {
+                    manifest.load(reader);
+                }
+            }
+
+            documents = Integer.parseInt(manifest.getProperty("documents", "0"));
+            long documentsLength = Long.parseLong(manifest.getProperty("documentsLength", "0"));
+            nextSegment = Integer.parseInt(manifest.getProperty("nextSegment", "1"));
+
+            // discard what was written after the manifest was last replaced
+            documentsFile = new RandomAccessFile(new File(location, DOCUMENTS_FILE), "rw");
+            documentsFile.setLength(documentsLength);
+            documentOffsetsFile = new RandomAccessFile(new File(location, DOCUMENT_OFFSETS_FILE), "rw");
+            documentOffsetsFile.setLength((long) documents * Long.BYTES);
+
+            Set<String> names = new HashSet<>();
+            for (String entry : manifest.getProperty("segments", "").split(",")) {
+                if (!entry.isEmpty()) {
+                    String[] parts = entry.split(":");
+                    segments.add(new Segment(new File(location, parts[0]), Integer.parseInt(parts[1])));
+                    names.add(parts[0]);
+                }
+            }
+
+            // the segments written after the manifest was last replaced
+            File[] files = location.listFiles((dir, name) ->
+                    name.endsWith(SEGMENT_SUFFIX) && !names.contains(name));
+            for (File file : files == null ? new File[0] : files) {
+                Files.delete(file.toPath());
+            }
+
+        } catch (IOException | RuntimeException e) {
+            if (e instanceof IndexException) {
+                throw (IndexException) e;
+            }
+            throw new IndexException("Unable to open the search index!", e);
+        }
+    }
+
+
+
+    /**
+     * Add a message to the index
+     * @param file the message file
+     * @param message the content of the message
+     * @throws IOException in case of error
+     */
+    public void add(File file, InputStream message) throws IOException {
+        Set<String> terms = TextExtractor.extract(message);
+        String path = root.toPath().relativize(file.getAbsoluteFile().toPath()).toString();
+
+        synchronized (this) {
+            int document = documents + pendingDocuments.size();
+            pendingDocuments.add(path);
+            for (String term : terms) {
+                pendingPostings.computeIfAbsent(term, t -> new Postings()).add(document);
+            }
+
+            if (pendingDocuments.size() >= FLUSH_THRESHOLD) {
+                flush();
+            }
+        }
+    }
+
+
+
+    /** Write the messages added since the last flush to a new segment, merging the segments as needed */
+    public synchronized void flush() {
+        if (pendingDocuments.isEmpty()) {
+            return;
+        }
+
+        try {
+            documentsFile.seek(documentsFile.length());
+            documentOffsetsFile.seek(documentOffsetsFile.length());
+            for (String path : pendingDocuments) {
+                documentOffsetsFile.writeLong(documentsFile.getFilePointer());
+                documentsFile.write((path + "\n").getBytes(StandardCharsets.UTF_8));
+            }
+
+            File file = newSegmentFile();
+            try (Segment.Writer writer = new Segment.Writer(file)) {
+                List<String> terms = new ArrayList<>(pendingPostings.keySet());
+                terms.sort(Comparator.naturalOrder());
+                for (String term : terms) {
+                    Postings postings = pendingPostings.get(term);
+                    writer.add(term, postings.documents, postings.count);
+                }
+            }
+            segments.add(new Segment(file, 0));
+            documents += pendingDocuments.size();
+            pendingDocuments.clear();
+            pendingPostings.clear();
+            writeManifest();
+
+            // merge the last segments while they are of the same level
+            while (segments.size() >= MERGE_FACTOR) {
+                List<Segment> last = segments.subList(segments.size() - MERGE_FACTOR, segments.size());
+                int level = last.get(0).getLevel();
+                if (last.stream().anyMatch(segment -> segment.getLevel() != level)) {
+                    break;
+                }
+                merge(last, level + 1);
+            }
+
+        } catch (IOException e) {
+            throw new IndexException("Unable to write the search index!", e);
+        }
+    }
+
+
+
+    /** Merge all the segments into one, for the fastest searches */
+    public synchronized void compact() {
+        flush();
+        if (segments.size() <= 1) {
+            return;
+        }
+
+        try {
+            int level = segments.stream().mapToInt(Segment::getLevel).max().orElse(0);
+            merge(segments, level + 1);
+
+        } catch (IOException e) {
+            throw new IndexException("Unable to compact the search index!", e);
+        }
+    }
+
+
+
+    /**
+     * Merge consecutive segments into a new one, replacing them
+     * @param merged the segments, a view of the list of segments
+     * @param level the level of the new segment
+     * @throws IOException in case of error
+     */
+    private void merge(List<Segment> merged, int level) throws IOException {
+        File file = newSegmentFile();
+        Segment.merge(merged, file);
+
+        List<Segment> replaced = new ArrayList<>(merged);
+        merged.clear();
+        merged.add(new Segment(file, level));
+        writeManifest();
+
+        for (Segment segment : replaced) {
+            segment.close();
+            Files.delete(segment.getFile().toPath());
+        }
+    }
+
+
+
+    private File newSegmentFile() {
+        return new File(location, String.format("segment-%08d%s", nextSegment++, SEGMENT_SUFFIX));
+    }
+
+
+
+    /**
+     * Replace the manifest with the current state of the index
+     * @throws IOException in case of error
+     */
+    private void writeManifest() throws IOException {
+        StringBuilder entries = new StringBuilder();
+        for (Segment segment : segments) {
+            if (entries.length() > 0) {
+                entries.append(',');
+            }
+            entries.append(segment.getFile().getName()).append(':').append(segment.getLevel());
+        }
+
+        Properties manifest = new Properties();
+        manifest.setProperty("documents", String.valueOf(documents));
+        manifest.setProperty("documentsLength", String.valueOf(documentsFile.length()));
+        manifest.setProperty("nextSegment", String.valueOf(nextSegment));
+        manifest.setProperty("segments", entries.toString());
+
+        File manifestFile = new File(location, MANIFEST_FILE);
+        File tmpFile = new File(location, MANIFEST_FILE + ".tmp");
+        try (Writer writer = new FileWriter(tmpFile)) {
+            manifest.store(writer, "Search index of the Maildir");
+        }
+        Files.move(tmpFile.toPath(), manifestFile.toPath(),
+                StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+
+
+    /**
+     * Search the messages containing all the words of a query.<br>
+     * A word may be restricted to a header by prefixing it with the header name, e.g. 'from:alice'.
+     * @param query the query
+     * @return the sorted documents of the matching messages, to be resolved by {@link #getFile(int)}
+     */
+    public synchronized int[] search(String query) {
+        List<int[]> lists = new ArrayList<>();
+        try {
+            for (String term : parseQuery(query)) {
+                lists.add(getPostings(term));
+            }
+
+        } catch (IOException e) {
+            throw new IndexException("Unable to read the search index!", e);
+        }
+        if (lists.isEmpty()) {
+            return new int[0];
+        }
+
+        // intersect, starting from the shortest list
+        lists.sort(Comparator.comparingInt(list -> list.length));
+        int[] result = lists.get(0);
+        for (int i = 1; i < lists.size() && result.length > 0; i++) {
+            result = intersect(result, lists.get(i));
+        }
+        return result;
+    }
+
+
+
+    /**
+     * Get the documents containing a term, from all the segments and the messages not flushed yet
+     * @param term the term
+     * @return the sorted documents
+     * @throws IOException in case of error
+     */
+    private int[] getPostings(String term) throws IOException {
+        int[] postings = new int[0];
+        for (Segment segment : segments) {
+            postings = concat(postings, segment.getPostings(term));
+        }
+
+        Postings pending = pendingPostings.get(term);
+        if (pending != null) {
+            postings = concat(postings, Arrays.copyOf(pending.documents, pending.count));
+        }
+        return postings;
+    }
+
+
+
+    /**
+     * Split a query into terms, the same way the messages are
+     * @param query the query
+     * @return the terms of the query
+     */
+    private static Set<String> parseQuery(String query) {
+        Set<String> terms = new HashSet<>();
+        for (String word : query.trim().split("\\s+")) {
+            int colon = word.indexOf(':');
+            String field = colon > 0 ? word.substring(0, colon).toLowerCase(Locale.ROOT) : null;
+
+            if (field != null && TextExtractor.isField(field)) {
+                for (String term : TextExtractor.tokenize(word.substring(colon + 1))) {
+                    terms.add(field + ":" + term);
+                }
+            } else {
+                terms.addAll(TextExtractor.tokenize(word));
+            }
+        }
+        return terms;
+    }
+
+
+
+    /**
+     * Get the file of a message found by {@link #search(String)}
+     * @param document the document of the message
+     * @return the message file; the file may have been moved or deleted since the message was indexed
+     */
+    public synchronized File getFile(int document) {
+        if (document >= documents) {
+            return new File(root, pendingDocuments.get(document - documents));
+        }
+
+        try {
+            documentOffsetsFile.seek((long) document * Long.BYTES);
+            long start = documentOffsetsFile.readLong();
+            long end = document + 1 < documents ? documentOffsetsFile.readLong() : documentsFile.length();
+
+            byte[] path = new byte[(int) (end - start - 1)];
+            documentsFile.seek(start);
+            documentsFile.readFully(path);
+            return new File(root, new String(path, StandardCharsets.UTF_8));
+
+        } catch (IOException e) {
+            throw new IndexException("Unable to read the search index!", e);
+        }
+    }
+
+
+
+    /**
+     * Get the number of messages in the index
+     * @return the number of messages in the index
+     */
+    public synchronized int getDocumentCount() {
+        return documents + pendingDocuments.size();
+    }
+
+
+
+    /**
+     * Get the number of segments of the index
+     * @return the number of segments of the index
+     */
+    public synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+
+
+    /** Flush the index and release it */
+    @Override
+    public synchronized void close() {
+        try {
+            flush();
+
+        } finally {
+            try {
+                for (Segment segment : segments) {
+                    segment.close();
+                }
+                documentsFile.close();
+                documentOffsetsFile.close();
+                lockChannel.close();
+
+            } catch (IOException e) {
+                // nothing left to write
+            }
+        }
+    }
+
+
+
+    private static int[] concat(int[] a, int[] b) {
+        if (a.length == 0) {
+            return b;
+        }
+        int[] result = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+
+
+
+    private static int[] intersect(int[] a, int[] b) {
+        int[] result = new int[Math.min(a.length, b.length)];
+        int count = 0;
+        for (int i = 0, j = 0; i < a.length && j < b.length; ) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                result[count++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+
+
+    /** The growing list of the documents containing a term, for the messages not flushed yet */
+    private static class Postings {
+
+        private int[] documents = new int[4];
+        private int count = 0;
+
+
+
+        void add(int document) {
+            if (count == documents.length) {
+                documents = Arrays.copyOf(documents, count * 2);
+            }
+            documents[count++] = document;
+        }
+    }
+}
@@ -0,0 +1,430 @@
+/*
+ * Project: imap2local
+ *
+ * Copyright (c) Attila Kovari
+ * All rights reserved.
+ *
+ * MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+
+package ro.kovari.imap.index;
+
+import ro.kovari.imap.utils.CountingInputStream;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * An immutable segment of the {@link SearchIndex}: the sorted terms of a range of documents,
+ * each with the sorted list of the documents containing it.<br>
+ * The document lists are delta encoded as variable length integers. Every {@value #INDEX_INTERVAL}th
+ * term is kept in memory with its offset, so a lookup reads at most {@value #INDEX_INTERVAL} terms
+ * from the file. The file ends with the sparse index and the offset where it starts.
+ */
+class Segment implements Closeable {
+
+    private static final int INDEX_INTERVAL = 64;
+
+    private final File file;
+    private final int level;
+    private final RandomAccessFile data;
+    private final long termsLength;
+    private final String[] indexTerms;
+    private final long[] indexOffsets;
+
+
+
+    /**
+     * Open a segment
+     * @param file the segment file
+     * @param level the merge level of the segment, 0 for a segment written from memory
+     * @throws IOException in case of error
+     */
+    Segment(File file, int level) throws IOException {
+        this.file = file;
+        this.level = level;
+        this.data = new RandomAccessFile(file, "r");
+
+        try {
+            data.seek(data.length() - Long.BYTES);
+            termsLength = data.readLong();
+
+            data.seek(termsLength);
+            DataInputStream in = openStream(new AtomicLong());
+            int count = readVarInt(in);
+            indexTerms = new String[count];
+            indexOffsets = new long[count];
+            for (int i = 0; i < count; i++) {
+                indexTerms[i] = readString(in);
+                indexOffsets[i] = readVarLong(in);
+            }
+
+        } catch (IOException e) {
+            data.close();
+            throw e;
+        }
+    }
+
+
+
+    File getFile() {
+        return file;
+    }
+
+
+
+    int getLevel() {
+        return level;
+    }
+
+
+
+    /**
+     * Get the documents containing a term
+     * @param term the term
+     * @return the sorted documents, empty if the term is unknown
+     * @throws IOException in case of error
+     */
+    synchronized int[] getPostings(String term) throws IOException {
+        int index = Arrays.binarySearch(indexTerms, term);
+        if (index < 0) {
+            index = -index - 2; // the last indexed term lower than the term
+        }
+        if (index < 0) {
+            return new int[0];
+        }
+
+        AtomicLong position = new AtomicLong(indexOffsets[index]);
+        data.seek(position.get());
+        DataInputStream in = openStream(position);
+        for (int i = 0; i < INDEX_INTERVAL && position.get() < termsLength; i++) {
+            int comparison = readString(in).compareTo(term);
+            if (comparison == 0) {
+                return readPostings(in);
+            }
+            if (comparison > 0) {
+                break;
+            }
+            skipPostings(in);
+        }
+        return new int[0];
+    }
+
+
+
+    /**
+     * Open a stream reading the file from its current position
+     * @param position the counter of the position in the file, updated as the stream is read
+     * @return the new stream
+     */
+    private DataInputStream openStream(AtomicLong position) {
+        return new DataInputStream(new CountingInputStream(
+                new BufferedInputStream(Channels.newInputStream(data.getChannel()), 16384), position));
+    }
+
+
+
+    /**
+     * Get a cursor over all the terms of the segment, in order, to merge segments
+     * @return the new {@link Cursor}
+     * @throws IOException in case of error
+     */
+    Cursor openCursor() throws IOException {
+        return new Cursor(file, termsLength);
+    }
+
+
+
+    @Override
+    public void close() throws IOException {
+        data.close();
+    }
+
+
+
+    /**
+     * Merge segments into a new one; the segments must cover consecutive ranges of documents, in order
+     * @param segments the segments to merge
+     * @param file the file of the merged segment
+     * @throws IOException in case of error
+     */
+    static void merge(List<Segment> segments, File file) throws IOException {
+        List<Cursor> cursors = new ArrayList<>();
+        try (Writer writer = new Writer(file)) {
+            for (Segment segment : segments) {
+                Cursor cursor = segment.openCursor();
+                cursors.add(cursor);
+                cursor.next();
+            }
+
+            while (true) {
+                String term = null;
+                for (Cursor cursor : cursors) {
+                    if (cursor.term != null && (term == null || cursor.term.compareTo(term) < 0)) {
+                        term = cursor.term;
+                    }
+                }
+                if (term == null) {
+                    break;
+                }
+
+                int[] postings = new int[0];
+                for (Cursor cursor : cursors) {
+                    if (term.equals(cursor.term)) {
+                        int[] merged = Arrays.copyOf(postings, postings.length + cursor.postings.length);
+                        System.arraycopy(cursor.postings, 0, merged, postings.length, cursor.postings.length);
+                        postings = merged;
+                        cursor.next();
+                    }
+                }
+                writer.add(term, postings, postings.length);
+            }
+
+        } finally {
+            for (Cursor cursor : cursors) {
+                cursor.close();
+            }
+        }
+    }
+
+
+
+    /** A sequential reader of the terms of a segment */
+    static class Cursor implements Closeable {
+
+        private final AtomicLong position = new AtomicLong();
+        private final DataInputStream in;
+        private final long termsLength;
+        private String term;
+        private int[] postings;
+
+
+
+        private Cursor(File file, long termsLength) throws IOException {
+            this.in = new DataInputStream(new CountingInputStream(
+                    new BufferedInputStream(new FileInputStream(file), 65536), position));
+            this.termsLength = termsLength;
+        }
+
+
+
+        /**
+         * Move to the next term
+         * @return false if there are no more terms
+         * @throws IOException in case of error
+         */
+        boolean next() throws IOException {
+            if (position.get() >= termsLength) {
+                term = null;
+                postings = null;
+                return false;
+            }
+
+            term = readString(in);
+            postings = readPostings(in);
+            return true;
+        }
+
+
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+
+
+    /** Writer of a new segment; the terms must be added in order */
+    static class Writer implements Closeable {
+
+        private final OutputStream out;
+        private long offset = 0;
+        private int terms = 0;
+        private final List<String> indexTerms = new ArrayList<>();
+        private final List<Long> indexOffsets = new ArrayList<>();
+        private byte[] buffer = new byte[1024];
+
+
+
+        Writer(File file) throws IOException {
+            this.out = new BufferedOutputStream(new FileOutputStream(file), 65536);
+        }
+
+
+
+        /**
+         * Add a term
+         * @param term the term, greater than the terms added before
+         * @param postings the sorted documents containing the term
+         * @param count the number of documents
+         * @throws IOException in case of error
+         */
+        void add(String term, int[] postings, int count) throws IOException {
+            if (terms++ % INDEX_INTERVAL == 0) {
+                indexTerms.add(term);
+                indexOffsets.add(offset);
+            }
+            writeString(term);
+
+            // the gaps between documents, as variable length integers
+            int length = 0;
+            int previous = 0;
+            for (int i = 0; i < count; i++) {
+                if (buffer.length - length < 5) {
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                }
+                length = putVarInt(buffer, length, postings[i] - previous);
+                previous = postings[i];
+            }
+            writeVarLong(count);
+            writeVarLong(length);
+            write(buffer, length);
+        }
+
+
+
+        @Override
+        public void close() throws IOException {
+            try {
+                long termsLength = offset;
+                writeVarLong(indexTerms.size());
+                for (int i = 0; i < indexTerms.size(); i++) {
+                    writeString(indexTerms.get(i));
+                    writeVarLong(indexOffsets.get(i));
+                }
+                for (int i = 7; i >= 0; i--) {
+                    out.write((int) (termsLength >>> (i * 8)));
+                }
+
+            } finally {
+                out.close();
+            }
+        }
+
+
+
+        private void writeString(String s) throws IOException {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            writeVarLong(bytes.length);
+            write(bytes, bytes.length);
+        }
+
+
+
+        private void writeVarLong(long value) throws IOException {
+            while ((value & ~0x7FL) != 0) {
+                out.write((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+                offset++;
+            }
+            out.write((int) value);
+            offset++;
+        }
+
+
+
+        private void write(byte[] bytes, int length) throws IOException {
+            out.write(bytes, 0, length);
+            offset += length;
+        }
+    }
+
+
+
+    private static int putVarInt(byte[] buffer, int position, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[position++] = (byte) value;
+        return position;
+    }
+
+
+
+    private static int readVarInt(DataInputStream in) throws IOException {
+        return (int) readVarLong(in);
+    }
+
+
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = in.read();
+            if (b == -1) {
+                throw new EOFException();
+            }
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+
+
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[readVarInt(in)];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+
+
+    private static int[] readPostings(DataInputStream in) throws IOException {
+        int[] postings = new int[readVarInt(in)];
+        readVarInt(in); // the length of the encoded postings
+
+        int previous = 0;
+        for (int i = 0; i < postings.length; i++) {
+            previous += readVarInt(in);
+            postings[i] = previous;
+        }
+        return postings;
+    }
+
+
+
+    private static void skipPostings(DataInputStream in) throws IOException {
+        readVarInt(in);
+        in.skipBytes(readVarInt(in));
+    }
+}
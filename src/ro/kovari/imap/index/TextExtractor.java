@@ -0,0 +1,191 @@
+/*
+ * Project: imap2local
+ *
+ * Copyright (c) Attila Kovari
+ * All rights reserved.
+ *
+ * MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+
+package ro.kovari.imap.index;
+
+import javax.mail.BodyPart;
+import javax.mail.MessagingException;
+import javax.mail.Multipart;
+import javax.mail.Part;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeUtility;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.Set;
+
+
+/**
+ * Extracts the terms of a message: the words of its main headers and of its decoded text parts.<br>
+ * The words of the headers are also indexed prefixed by the header name (e.g. 'from:alice'),
+ * so that a search can be restricted to a header.
+ */
+class TextExtractor {
+
+    private static final String[] HEADERS = {"From", "To", "Cc", "Subject"};
+
+    private static final int MIN_TERM_LENGTH = 2;
+    private static final int MAX_TERM_LENGTH = 64;
+
+    /** Larger text parts are most likely not written by people, and are not indexed */
+    private static final int MAX_TEXT_SIZE = 1024 * 1024;
+
+    private static final Session session = Session.getInstance(new Properties());
+
+
+
+    private TextExtractor() {
+    }
+
+
+
+    /**
+     * Extract the terms of a message
+     * @param message the message
+     * @return the distinct terms of the message
+     * @throws IOException in case of error
+     */
+    static Set<String> extract(InputStream message) throws IOException {
+        Set<String> terms = new HashSet<>();
+
+        try {
+            MimeMessage mimeMessage = new MimeMessage(session, message);
+            for (String header : HEADERS) {
+                String value = mimeMessage.getHeader(header, ",");
+                if (value != null) {
+                    String prefix = header.toLowerCase(Locale.ROOT) + ":";
+                    for (String term : tokenize(decode(value))) {
+                        terms.add(term);
+                        terms.add(prefix + term);
+                    }
+                }
+            }
+            extractText(mimeMessage, terms);
+
+        } catch (MessagingException e) {
+            throw new IOException("Unable to parse message!", e);
+        }
+        return terms;
+    }
+
+
+
+    /**
+     * Add the terms of the text parts of a part, recursively
+     * @param part the part
+     * @param terms the terms of the message
+     */
+    private static void extractText(Part part, Set<String> terms) {
+        try {
+            if (part.isMimeType("multipart/*")) {
+                Multipart multipart = (Multipart) part.getContent();
+                for (int i = 0; i < multipart.getCount(); i++) {
+                    BodyPart bodyPart = multipart.getBodyPart(i);
+                    extractText(bodyPart, terms);
+                }
+
+            } else if (part.isMimeType("message/rfc822")) {
+                extractText((Part) part.getContent(), terms);
+
+            } else if (part.isMimeType("text/*") && part.getSize() <= MAX_TEXT_SIZE) {
+                String text = String.valueOf(part.getContent());
+                if (part.isMimeType("text/html")) {
+                    text = text.replaceAll("(?s)<(script|style).*?</\\1>|<[^>]*>|&[a-zA-Z#0-9]+;", " ");
+                }
+                terms.addAll(tokenize(text));
+            }
+
+        } catch (MessagingException | IOException | ClassCastException e) {
+            // a malformed part, or one in an unknown charset, is not indexed
+        }
+    }
+
+
+
+    /**
+     * Decode the RFC 2047 encoded words of a header
+     * @param value the header value
+     * @return the decoded value
+     */
+    private static String decode(String value) {
+        try {
+            return MimeUtility.decodeText(MimeUtility.unfold(value));
+
+        } catch (UnsupportedEncodingException e) {
+            return value;
+        }
+    }
+
+
+
+    /**
+     * Check if the terms of a header are also indexed prefixed by its name
+     * @param field the lower case header name
+     * @return true if the header is indexed on its own
+     */
+    static boolean isField(String field) {
+        for (String header : HEADERS) {
+            if (header.toLowerCase(Locale.ROOT).equals(field)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+
+    /**
+     * Split a text into terms: lower case sequences of letters and digits
+     * @param text the text
+     * @return the terms of the text
+     */
+    static Set<String> tokenize(String text) {
+        Set<String> terms = new HashSet<>();
+        StringBuilder term = new StringBuilder();
+
+        for (int i = 0; i <= text.length(); ) {
+            int c = i < text.length() ? text.codePointAt(i) : ' ';
+            if (Character.isLetterOrDigit(c)) {
+                term.appendCodePoint(Character.toLowerCase(c));
+
+            } else if (term.length() > 0) {
+                if (term.length() >= MIN_TERM_LENGTH && term.length() <= MAX_TERM_LENGTH) {
+                    terms.add(term.toString());
+                }
+                term.setLength(0);
+            }
+            i += Character.charCount(c);
+        }
+        return terms;
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Project: imap2local
+ *
+ * Copyright (c) Attila Kovari
+ * All rights reserved.
+ *
+ * MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+
+package ro.kovari.imap.jfr;
+
+
+/**
+ * Records an {@link ImapEvent} into the Java Flight Recorder, which is not part of the Java 8 API:
+ * the recorders are compiled apart and loaded by name, when the JVM has the Flight Recorder.
+ * Without it, the events are recorded by {@link #NONE}, which does nothing.
+ */
+interface EventRecorder {
+
+    /** The recorder of the events when the Flight Recorder is not available */
+    EventRecorder NONE = new EventRecorder() {
+        @Override
+        public void begin() {
+        }
+
+        @Override
+        public void end() {
+        }
+
+        @Override
+        public boolean isEnabled() {
+            return false;
+        }
+
+        @Override
+        public boolean shouldCommit() {
+            return false;
+        }
+
+        @Override
+        public void record(ImapEvent event) {
+        }
+    };
+
+
+
+    /** Start timing the event */
+    void begin();
+
+
+
+    /** Stop timing the event */
+    void end();
+
+
+
+    /**
+     * Check whether the event is enabled by the recording settings
+     * @return true if the event is enabled
+     */
+    boolean isEnabled();
+
+
+
+    /**
+     * Check whether the event is enabled and its duration is above the threshold of the recording settings
+     * @return true if the event is to be committed
+     */
+    boolean shouldCommit();
+
+
+
+    /**
+     * Record the event, with the fields of the specified one
+     * @param event the {@link ImapEvent}
+     */
+    void record(ImapEvent event);
+
+
+
+    /** Creates the recorders of the events */
+    interface Factory {
+
+        /**
+         * Create the recorder of an event
+         * @param event the {@link ImapEvent}
+         * @return the {@link EventRecorder}
+         */
+        EventRecorder create(ImapEvent event);
+    }
+}
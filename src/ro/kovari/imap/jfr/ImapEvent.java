@@ -0,0 +1,115 @@
+/*
+ * Project: imap2local
+ *
+ * Copyright (c) Attila Kovari
+ * All rights reserved.
+ *
+ * MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+
+package ro.kovari.imap.jfr;
+
+
+/**
+ * The base of the Java Flight Recorder events of imap2local, identifying the IMAP folder
+ * and the message the event relates to.<br>
+ * An event is timed and committed like a jdk.jfr.Event, but runs on any Java 8 JVM: it is recorded
+ * by an {@link EventRecorder} loaded by name when the JVM has the Flight Recorder, and does nothing
+ * otherwise. The recorded events are named 'imap2local.*', see imap2local.jfc.
+ */
+public abstract class ImapEvent {
+
+    /** The factory of the Flight Recorder events, compiled apart from the rest of the application */
+    private static final String FACTORY = "ro.kovari.imap.jfr.JfrRecorderFactory";
+
+    private static final EventRecorder.Factory RECORDERS = loadRecorders();
+
+    public String folder;
+    public long uid;
+    private final EventRecorder recorder;
+
+
+
+    /** Create a new {@link ImapEvent}, with its recorder */
+    protected ImapEvent() {
+        recorder = RECORDERS == null ? EventRecorder.NONE : RECORDERS.create(this);
+    }
+
+
+
+    /** Start timing the event */
+    public void begin() {
+        recorder.begin();
+    }
+
+
+
+    /** Stop timing the event */
+    public void end() {
+        recorder.end();
+    }
+
+
+
+    /**
+     * Check whether the event is enabled by the recording settings
+     * @return true if the event is enabled
+     */
+    public boolean isEnabled() {
+        return recorder.isEnabled();
+    }
+
+
+
+    /**
+     * Check whether the event is enabled and its duration is above the threshold of the recording settings;
+     * the fields are only worth setting if it is
+     * @return true if the event is to be committed
+     */
+    public boolean shouldCommit() {
+        return recorder.shouldCommit();
+    }
+
+
+
+    /** Record the event, with its fields */
+    public void commit() {
+        recorder.record(this);
+    }
+
+
+
+    /**
+     * Load the factory of the Flight Recorder events
+     * @return the factory, or null if the Flight Recorder or its events are not available
+     */
+    private static EventRecorder.Factory loadRecorders() {
+        try {
+            return (EventRecorder.Factory) Class.forName(FACTORY).getDeclaredConstructor().newInstance();
+
+        } catch (ReflectiveOperationException | LinkageError | RuntimeException e) {
+            // a Java 8 JVM without the Flight Recorder, or a build without its events
+            return null;
+        }
+    }
+}
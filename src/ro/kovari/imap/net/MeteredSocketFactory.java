@@ -0,0 +1,158 @@
+/*
+ * Project: imap2local
+ *
+ * Copyright (c) Attila Kovari
+ * All rights reserved.
+ *
+ * MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+
+package ro.kovari.imap.net;
+
+import javax.net.SocketFactory;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * A {@link SocketFactory} creating {@link MeteredSocket}s which share the same counters.<br>
+ * Note: JavaMail layers SSL on top of the plain sockets returned by this factory,
+ * so the counters reflect the actual (encrypted and possibly compressed) traffic
+ */
+public class MeteredSocketFactory extends SocketFactory {
+
+    private final AtomicLong bytesRead = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private final TokenBucket tokenBucket;
+
+
+
+    /** Create a new {@link MeteredSocketFactory} without a bandwidth limit */
+    public MeteredSocketFactory() {
+        this(null);
+    }
+
+
+
+    /**
+     * Create a new {@link MeteredSocketFactory}
+     * @param tokenBucket the {@link TokenBucket} limiting the incoming bandwidth
+     *                    of all sockets created by this factory, or null for no limit
+     */
+    public MeteredSocketFactory(TokenBucket tokenBucket) {
+        this.tokenBucket = tokenBucket;
+    }
+
+
+
+    /**
+     * Get the {@link TokenBucket} limiting the incoming bandwidth
+     * @return the {@link TokenBucket}, or null if there is no limit
+     */
+    public TokenBucket getTokenBucket() {
+        return tokenBucket;
+    }
+
+
+
+    /**
+     * Get the number of bytes read from all sockets created by this factory
+     * @return the number of bytes read
+     */
+    public long getBytesRead() {
+        return bytesRead.get();
+    }
+
+
+
+    /**
+     * Get the number of bytes written to all sockets created by this factory
+     * @return the number of bytes written
+     */
+    public long getBytesWritten() {
+        return bytesWritten.get();
+    }
+
+
+
+    /**
+     * Meter an already connected socket with the counters of this factory
+     * @param socket the connected socket
+     * @return the socket counting the bytes going over the specified one
+     */
+    public Socket wrap(Socket socket) {
+        return new MeteredSocketWrapper(socket, bytesRead, bytesWritten, tokenBucket);
+    }
+
+
+
+    @Override
+    public Socket createSocket() {
+        return new MeteredSocket(bytesRead, bytesWritten, tokenBucket);
+    }
+
+
+
+    @Override
+    public Socket createSocket(String host, int port) throws IOException {
+        Socket socket = createSocket();
+        socket.connect(new InetSocketAddress(host, port));
+        return socket;
+    }
+
+
+
+    @Override
+    public Socket createSocket(String host, int port, InetAddress localHost, int localPort)
+            throws IOException {
+
+        Socket socket = createSocket();
+        socket.bind(new InetSocketAddress(localHost, localPort));
+        socket.connect(new InetSocketAddress(host, port));
+        return socket;
+    }
+
+
+
+    @Override
+    public Socket createSocket(InetAddress host, int port) throws IOException {
+        Socket socket = createSocket();
+        socket.connect(new InetSocketAddress(host, port));
+        return socket;
+    }
+
+
+
+    @Override
+    public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort)
+            throws IOException {
+
+        Socket socket = createSocket();
+        socket.bind(new InetSocketAddress(localAddress, localPort));
+        socket.connect(new InetSocketAddress(address, port));
+        return socket;
+    }
+}
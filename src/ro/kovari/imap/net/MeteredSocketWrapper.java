@@ -0,0 +1,93 @@
+/*
+ * Project: imap2local
+ *
+ * Copyright (c) Attila Kovari
+ * All rights reserved.
+ *
+ * MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+
+package ro.kovari.imap.net;
+
+import ro.kovari.imap.utils.CountingInputStream;
+import ro.kovari.imap.utils.CountingOutputStream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * A {@link Socket} forwarding to another, already connected, socket and counting, and optionally limiting,
+ * the bytes going over it, like a {@link MeteredSocket} does.<br>
+ * Used to meter the plain sockets JavaMail connects on its own before layering TLS on top of them.
+ */
+class MeteredSocketWrapper extends ForwardingSocket {
+
+    private final AtomicLong bytesRead;
+    private final AtomicLong bytesWritten;
+    private final TokenBucket tokenBucket;
+    private InputStream inputStream = null;
+    private OutputStream outputStream = null;
+
+
+
+    /**
+     * Create a new {@link MeteredSocketWrapper}
+     * @param socket the connected socket
+     * @param bytesRead the counter for the bytes read from the socket
+     * @param bytesWritten the counter for the bytes written to the socket
+     * @param tokenBucket the {@link TokenBucket} limiting the incoming bandwidth, or null for no limit
+     */
+    MeteredSocketWrapper(Socket socket, AtomicLong bytesRead, AtomicLong bytesWritten, TokenBucket tokenBucket) {
+        super(socket);
+        this.bytesRead = bytesRead;
+        this.bytesWritten = bytesWritten;
+        this.tokenBucket = tokenBucket;
+    }
+
+
+
+    @Override
+    public synchronized InputStream getInputStream() throws IOException {
+        if (inputStream == null) {
+            inputStream = new CountingInputStream(socket.getInputStream(), bytesRead);
+            if (tokenBucket != null) {
+                inputStream = new ThrottledInputStream(inputStream, tokenBucket);
+            }
+        }
+        return inputStream;
+    }
+
+
+
+    @Override
+    public synchronized OutputStream getOutputStream() throws IOException {
+        if (outputStream == null) {
+            outputStream = new CountingOutputStream(socket.getOutputStream(), bytesWritten);
+        }
+        return outputStream;
+    }
+}
@@ -0,0 +1,309 @@
+/*
+ * Project: imap2local
+ *
+ * Copyright (c) Attila Kovari
+ * All rights reserved.
+ *
+ * MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+
+package ro.kovari.imap.net;
+
+import ro.kovari.imap.exception.ImapException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+
+/**
+ * A trace of the IMAP protocol of all the connections of a run, recorded with its timing,
+ * to be served back by a {@link ReplayServer}.<br>
+ * The plain protocol is recorded, above TLS: the data sent by the client, each time it is flushed,
+ * and the data received from the server, as it is read, with the time elapsed since the trace was started.
+ * The credentials given to LOGIN and AUTHENTICATE are replaced by {@link #REDACTED}; unless asked for,
+ * the literals of the FETCH responses and of the APPEND commands, i.e. the messages, are masked by
+ * {@link #FILLER}, keeping their length and their line ends, so that the trace is still served back as recorded.<br>
+ * The trace is a header line, then a record per event: a line '&lt;connection&gt; &lt;microseconds&gt;
+ * &lt;type&gt; &lt;length&gt;', the data of the event and a line feed; the types are {@link #OPENED},
+ * {@link #CLIENT}, {@link #SERVER} and {@link #CLOSED}.<br>
+ * The stores recording into the same file share a single trace, which is closed when the application exits.
+ */
+public class ProtocolTrace implements Closeable {
+
+    /** The first line of a trace, with the version of its format */
+    static final String HEADER = "imap2local-trace 1";
+
+    /** Replaces the credentials, and anything else sent by the client until it is logged in */
+    static final String REDACTED = "<redacted>";
+
+    /** Replaces every byte of the masked literals but the line ends */
+    static final byte FILLER = 'x';
+
+    /** The types of the events */
+    static final char OPENED = 'O';
+    static final char CLIENT = 'C';
+    static final char SERVER = 'S';
+    static final char CLOSED = 'X';
+
+    /** A command sending credentials: the tag, the command and, for AUTHENTICATE, the mechanism */
+    private static final Pattern AUTH_COMMAND =
+            Pattern.compile("(\\S+) (LOGIN|AUTHENTICATE)(?: (\\S+))?.*", Pattern.CASE_INSENSITIVE);
+
+    /** The traces being recorded, by the canonical path of their file */
+    private static final Map<String, ProtocolTrace> TRACES = new HashMap<>();
+
+    private final OutputStream out;
+    private final boolean messages;
+    private final long start = System.nanoTime();
+    private final AtomicInteger connections = new AtomicInteger();
+    private boolean failed = false;
+
+
+
+    /**
+     * Get the {@link ProtocolTrace} recording into the specified file, creating it the first time
+     * @param path the path of the trace file; an existing file is replaced
+     * @param messages true to record the messages as they are, false to mask them
+     * @return the {@link ProtocolTrace}
+     * @throws ImapException if the trace file could not be created
+     */
+    public static synchronized ProtocolTrace forFile(String path, boolean messages) {
+        File file = new File(path);
+        String key;
+        try {
+            key = file.getCanonicalPath();
+
+        } catch (IOException e) {
+            key = file.getAbsolutePath();
+        }
+
+        ProtocolTrace trace = TRACES.get(key);
+        if (trace == null) {
+            trace = new ProtocolTrace(file, messages);
+            TRACES.put(key, trace);
+            Runtime.getRuntime().addShutdownHook(new Thread(trace::close));
+            System.out.println("Recording the IMAP protocol into: " + key + (messages ? "" : ", messages masked"));
+        }
+        return trace;
+    }
+
+
+
+    /**
+     * Create a new {@link ProtocolTrace}, recording into the specified file
+     * @param file the trace file; an existing one is replaced
+     * @param messages true to record the messages as they are, false to mask them
+     */
+    private ProtocolTrace(File file, boolean messages) {
+        this.messages = messages;
+        try {
+            out = new BufferedOutputStream(new FileOutputStream(file));
+            out.write((HEADER + "\n").getBytes(StandardCharsets.US_ASCII));
+
+        } catch (IOException e) {
+            throw new ImapException("Unable to create the protocol trace!", e);
+        }
+    }
+
+
+
+    /**
+     * Record the protocol going over a socket, connected or not
+     * @param socket the socket, above TLS if any
+     * @return the socket recording the data going over the specified one
+     */
+    public Socket wrap(Socket socket) {
+        return new TracingSocket(socket, this, messages);
+    }
+
+
+
+    /**
+     * Record a new connection
+     * @return the number of the connection, from 1
+     */
+    int open() {
+        int connection = connections.incrementAndGet();
+        record(connection, OPENED, new byte[0], 0, 0);
+        return connection;
+    }
+
+
+
+    /**
+     * Record an event
+     * @param connection the number of the connection
+     * @param type the type of the event
+     * @param data the buffer holding the data of the event
+     * @param offset the offset of the data in the buffer
+     * @param length the length of the data
+     */
+    synchronized void record(int connection, char type, byte[] data, int offset, int length) {
+        if (failed) {
+            return;
+        }
+
+        long micros = (System.nanoTime() - start) / 1000;
+        try {
+            out.write((connection + " " + micros + " " + type + " " + length + "\n")
+                    .getBytes(StandardCharsets.US_ASCII));
+            out.write(data, offset, length);
+            out.write('\n');
+            if (type == CLOSED) {
+                out.flush();
+            }
+
+        } catch (IOException e) {
+            // the run goes on without the rest of the trace
+            failed = true;
+            System.out.println("Unable to record the protocol trace: " + e.getMessage());
+        }
+    }
+
+
+
+    @Override
+    public synchronized void close() {
+        try {
+            out.close();
+
+        } catch (IOException e) {
+            System.out.println("Unable to record the protocol trace: " + e.getMessage());
+        }
+        failed = true;
+    }
+
+
+
+    /**
+     * Redact a command sending credentials
+     * @param command the first line of the command, without its line end
+     * @return the command with its credentials replaced by {@link #REDACTED},
+     * or null if it does not send credentials
+     */
+    static String redact(String command) {
+        Matcher matcher = AUTH_COMMAND.matcher(command);
+        if (!matcher.matches()) {
+            return null;
+        }
+
+        String name = matcher.group(2).toUpperCase();
+        String mechanism = name.equals("AUTHENTICATE") && matcher.group(3) != null ?
+                " " + matcher.group(3).toUpperCase() : "";
+        return matcher.group(1) + " " + name + mechanism + " " + REDACTED;
+    }
+
+
+
+    /**
+     * Read the events of a trace file
+     * @param file the trace file
+     * @return the events, in the order they were recorded
+     * @throws ImapException if the trace could not be read
+     */
+    static List<Event> read(File file) {
+        List<Event> events = new ArrayList<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (!HEADER.equals(readLine(in))) {
+                throw new ImapException("Not a protocol trace: " + file);
+            }
+
+            String line;
+            while ((line = readLine(in)) != null) {
+                String[] fields = line.split(" ");
+                byte[] data = new byte[Integer.parseInt(fields[3])];
+                in.readFully(data);
+                in.readByte();
+                events.add(new Event(Integer.parseInt(fields[0]), Long.parseLong(fields[1]), fields[2].charAt(0),
+                        data));
+            }
+            return events;
+
+        } catch (EOFException e) {
+            // the run recording the trace was interrupted; its last event is incomplete
+            return events;
+
+        } catch (IOException | NumberFormatException | IndexOutOfBoundsException e) {
+            throw new ImapException("Unable to read the protocol trace!", e);
+        }
+    }
+
+
+
+    /**
+     * Read a line terminated by a line feed
+     * @param in the {@link InputStream}
+     * @return the line, without its line feed, or null at the end of the stream
+     * @throws IOException if the line could not be read
+     */
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b == -1) {
+                return line.size() == 0 ? null : line.toString("US-ASCII");
+            }
+            line.write(b);
+        }
+        return line.toString("US-ASCII");
+    }
+
+
+
+    /** An event of a trace */
+    static class Event {
+
+        final int connection;
+        final long micros;
+        final char type;
+        final byte[] data;
+
+
+
+        Event(int connection, long micros, char type, byte[] data) {
+            this.connection = connection;
+            this.micros = micros;
+            this.type = type;
+            this.data = data;
+        }
+    }
+}
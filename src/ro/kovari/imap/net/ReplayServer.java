@@ -0,0 +1,557 @@
+/*
+ * Project: imap2local
+ *
+ * Copyright (c) Attila Kovari
+ * All rights reserved.
+ *
+ * MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+
+package ro.kovari.imap.net;
+
+import ro.kovari.imap.exception.ImapException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+
+/**
+ * A local IMAP server serving a {@link ProtocolTrace} back, so that the download can be measured
+ * offline, against the responses, the latencies and the quirks of a real server.<br>
+ * Each command received is answered with the response recorded for the same command, whatever the connection
+ * it was recorded on: the first time with the first one recorded, and so on; a command received more often
+ * than recorded gets the last response again. The response is sent with the latencies recorded, from the command
+ * to each part of the response, scaled by a factor: 1 for the original latencies, 0 for none. Its tagged line
+ * gets the tag of the command received.<br>
+ * The trace being recorded without compression, COMPRESS=DEFLATE is not advertised.
+ */
+public class ReplayServer {
+
+    /** The literal ending a line: its size, and '+' if the sender does not wait for a continuation */
+    private static final Pattern LITERAL = Pattern.compile("\\{(\\d+)(\\+?)}$");
+
+    /** The responses advertising the capabilities of the server, which are edited */
+    private static final Pattern CAPABILITY_COMMAND = Pattern.compile("(CAPABILITY|LOGIN|AUTHENTICATE)\\b.*");
+
+    private final List<Exchange> greetings = new ArrayList<>();
+    private final Map<String, List<Exchange>> exchanges = new HashMap<>();
+    private final Map<String, Integer> served = new HashMap<>();
+    private final Set<String> missing = ConcurrentHashMap.newKeySet();
+    private final double latencyScale;
+    private int greetingsServed = 0;
+
+
+
+    /**
+     * Create a new {@link ReplayServer}
+     * @param traceFile the trace file
+     * @param latencyScale the factor the recorded latencies are scaled by
+     * @throws ImapException if the trace could not be read
+     */
+    public ReplayServer(File traceFile, double latencyScale) {
+        this.latencyScale = latencyScale;
+
+        // the exchanges of each connection, in the order they were recorded
+        Map<Integer, Recording> recordings = new LinkedHashMap<>();
+        for (ProtocolTrace.Event event : ProtocolTrace.read(traceFile)) {
+            Recording recording = recordings.computeIfAbsent(event.connection, c -> new Recording(event.micros));
+            switch (event.type) {
+                case ProtocolTrace.SERVER:
+                    recording.onServer(event);
+                    break;
+
+                case ProtocolTrace.CLIENT:
+                    recording.onClient(event);
+                    break;
+
+                default:
+                    break;
+            }
+        }
+
+        for (Recording recording : recordings.values()) {
+            recording.finish();
+        }
+        System.out.println(String.format("Loaded %d connection(s) and %d distinct command(s) from: %s",
+                greetings.size(), exchanges.size(), traceFile));
+    }
+
+
+
+    /**
+     * Serve the trace on a local port, until the application is stopped; each connection has a thread of its own
+     * @param port the port
+     * @throws ImapException if the port could not be listened on
+     */
+    public void serve(int port) {
+        if (greetings.isEmpty()) {
+            throw new ImapException("No connection in the protocol trace!");
+        }
+
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try (ServerSocket serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress())) {
+            System.out.println(String.format("Serving on port %d, with the latencies scaled by %s; " +
+                    "use 'localhost:%d' as the IMAP server, without SSL", port, latencyScale, port));
+
+            while (true) {
+                Socket socket = serverSocket.accept();
+                executor.execute(() -> serveConnection(socket));
+            }
+
+        } catch (IOException e) {
+            throw new ImapException("Unable to serve the protocol trace!", e);
+
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+
+
+    /**
+     * Serve a connection: the greeting, then the response of each command, until the client logs out
+     * @param socket the socket of the connection
+     */
+    private void serveConnection(Socket socket) {
+        try (Socket client = socket) {
+            CommandReader in = new CommandReader(new BufferedInputStream(client.getInputStream()));
+            OutputStream out = new BufferedOutputStream(client.getOutputStream());
+            replay(nextGreeting(), null, in, out, System.nanoTime());
+
+            String command;
+            while ((command = in.readCommand()) != null) {
+                long received = System.nanoTime();
+                int space = command.indexOf(' ');
+                String tag = space > 0 ? command.substring(0, space) : command.trim();
+                String key = toKey(command);
+
+                Exchange exchange = nextExchange(key);
+                if (exchange == null) {
+                    if (missing.add(key)) {
+                        System.out.println("Not in the trace: " + key);
+                    }
+                    out.write((tag + " BAD Not in the trace\r\n").getBytes(StandardCharsets.US_ASCII));
+                    out.flush();
+                    continue;
+                }
+
+                replay(exchange, tag, in, out, received);
+                if (key.toUpperCase().startsWith("LOGOUT")) {
+                    break;
+                }
+            }
+
+        } catch (IOException e) {
+            // the client went away; nothing to clean up
+        }
+    }
+
+
+
+    /**
+     * Send the recorded response of an exchange, waiting for the recorded latencies, scaled
+     * @param exchange the {@link Exchange}
+     * @param tag the tag of the command received, or null for the greeting
+     * @param in the {@link CommandReader} of the connection, to read the continuations of the command
+     * @param out the output stream of the connection
+     * @param received the time the command was received, in nanoseconds
+     * @throws IOException if the connection was lost
+     */
+    private void replay(Exchange exchange, String tag, CommandReader in, OutputStream out, long received)
+            throws IOException {
+
+        long base = received;
+        for (Step step : exchange.steps) {
+            if (step.data == null) {
+                out.flush();
+                if (in.readCommand() == null) {
+                    throw new IOException("Connection closed by the client");
+                }
+                base = System.nanoTime();
+                continue;
+            }
+
+            long wait = base + (long) (step.delayMicros * latencyScale * 1000) - System.nanoTime();
+            if (wait > 0) {
+                out.flush();
+                sleep(wait);
+            }
+            if (step.tagged && tag != null) {
+                out.write(tag.getBytes(StandardCharsets.US_ASCII));
+                out.write(step.data, exchange.tag.length(), step.data.length - exchange.tag.length());
+            } else {
+                out.write(step.data);
+            }
+        }
+        out.flush();
+    }
+
+
+
+    /**
+     * Get the greeting of the next connection
+     * @return the {@link Exchange} of the greeting
+     */
+    private synchronized Exchange nextGreeting() {
+        return greetings.get(Math.min(greetingsServed++, greetings.size() - 1));
+    }
+
+
+
+    /**
+     * Get the next recorded exchange of a command
+     * @param key the key of the command
+     * @return the {@link Exchange}, or null if the command was not recorded
+     */
+    private synchronized Exchange nextExchange(String key) {
+        List<Exchange> recorded = exchanges.get(key);
+        if (recorded == null) {
+            return null;
+        }
+        int count = served.merge(key, 1, Integer::sum);
+        return recorded.get(Math.min(count - 1, recorded.size() - 1));
+    }
+
+
+
+    /**
+     * Get the key a command is matched by: its first line, without its tag, nor its credentials
+     * @param command the command
+     * @return the key of the command
+     */
+    private static String toKey(String command) {
+        int end = command.indexOf("\r\n");
+        String line = end < 0 ? command : command.substring(0, end);
+        String redacted = ProtocolTrace.redact(line);
+        if (redacted != null) {
+            line = redacted;
+        }
+        int space = line.indexOf(' ');
+        return space < 0 ? "" : line.substring(space + 1);
+    }
+
+
+
+    /**
+     * Sleep for the specified time
+     * @param nanos the time, in nanoseconds
+     * @throws IOException if the thread was interrupted
+     */
+    private static void sleep(long nanos) throws IOException {
+        try {
+            TimeUnit.NANOSECONDS.sleep(nanos);
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted", e);
+        }
+    }
+
+
+
+    /**
+     * Find the tagged line of a response, skipping the literals
+     * @param data the response
+     * @param tag the tag of the command
+     * @return the offset of the tagged line, or -1 if the response is not complete yet
+     */
+    private static int findTaggedLine(byte[] data, String tag) {
+        byte[] prefix = (tag + " ").getBytes(StandardCharsets.US_ASCII);
+        int position = 0;
+        boolean lineStart = true;
+
+        while (position < data.length) {
+            if (lineStart && startsWith(data, position, prefix)) {
+                return position;
+            }
+
+            int end = indexOf(data, position, (byte) '\n');
+            if (end < 0) {
+                return -1;
+            }
+            String line = new String(data, position, end - position, StandardCharsets.ISO_8859_1).trim();
+            Matcher literal = LITERAL.matcher(line);
+            if (literal.find()) {
+                // the literal and the rest of the response follow; its line is not a new one
+                position = end + 1 + Integer.parseInt(literal.group(1));
+                lineStart = false;
+            } else {
+                position = end + 1;
+                lineStart = true;
+            }
+        }
+        return -1;
+    }
+
+
+
+    private static boolean startsWith(byte[] data, int offset, byte[] prefix) {
+        if (offset + prefix.length > data.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (data[offset + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+
+    private static int indexOf(byte[] data, int offset, byte b) {
+        for (int i = offset; i < data.length; i++) {
+            if (data[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+
+
+    /** Builds the exchanges of a recorded connection, as its events are read */
+    private class Recording {
+
+        private Exchange exchange;
+        private String key = null;
+        private final ByteArrayOutputStream response = new ByteArrayOutputStream();
+        private final List<long[]> marks = new ArrayList<>();
+        private long lastInput;
+
+
+
+        /**
+         * Create a new {@link Recording}, starting with the greeting
+         * @param opened the time the connection was opened, in microseconds
+         */
+        Recording(long opened) {
+            this.exchange = new Exchange(null);
+            this.lastInput = opened;
+        }
+
+
+
+        /**
+         * Add the data received from the server to the current exchange
+         * @param event the event
+         */
+        void onServer(ProtocolTrace.Event event) {
+            marks.add(new long[]{response.size(), event.micros - lastInput});
+            response.write(event.data, 0, event.data.length);
+        }
+
+
+
+        /**
+         * Start a new exchange, unless the client sends the continuation of its command
+         * @param event the event
+         */
+        void onClient(ProtocolTrace.Event event) {
+            lastInput = event.micros;
+            if (exchange.tag != null && findTaggedLine(response.toByteArray(), exchange.tag) < 0) {
+                // a continuation: the replay reads it before going on
+                marks.add(new long[]{response.size(), -1});
+                return;
+            }
+
+            finish();
+            String command = new String(event.data, StandardCharsets.ISO_8859_1);
+            int space = command.indexOf(' ');
+            exchange = new Exchange(space > 0 ? command.substring(0, space) : command.trim());
+            key = toKey(command);
+        }
+
+
+
+        /** Cut the response of the current exchange into its steps, and add the exchange */
+        void finish() {
+            byte[] data = response.toByteArray();
+            int tagged = exchange.tag == null ? -1 : findTaggedLine(data, exchange.tag);
+
+            for (int i = 0; i < marks.size(); i++) {
+                int start = (int) marks.get(i)[0];
+                long delay = marks.get(i)[1];
+                int end = i + 1 < marks.size() ? (int) marks.get(i + 1)[0] : data.length;
+                if (delay < 0) {
+                    exchange.steps.add(new Step(0, null, false));
+                } else if (tagged > start && tagged < end) {
+                    exchange.steps.add(new Step(delay, Arrays.copyOfRange(data, start, tagged), false));
+                    exchange.steps.add(new Step(delay, Arrays.copyOfRange(data, tagged, end), true));
+                } else if (end > start) {
+                    exchange.steps.add(new Step(delay, Arrays.copyOfRange(data, start, end), tagged == start));
+                }
+            }
+
+            if (exchange.tag == null || CAPABILITY_COMMAND.matcher(key).matches()) {
+                for (Step step : exchange.steps) {
+                    step.withoutCompression();
+                }
+            }
+
+            if (exchange.tag == null) {
+                greetings.add(exchange);
+            } else {
+                exchanges.computeIfAbsent(key, k -> new ArrayList<>()).add(exchange);
+            }
+            response.reset();
+            marks.clear();
+        }
+    }
+
+
+
+    /** A command and its response, or the greeting of a connection */
+    private static class Exchange {
+
+        private final String tag;
+        private final List<Step> steps = new ArrayList<>();
+
+
+
+        Exchange(String tag) {
+            this.tag = tag;
+        }
+    }
+
+
+
+    /** A part of a response, sent after a delay, or a continuation to be read from the client */
+    private static class Step {
+
+        private final long delayMicros;
+        private final boolean tagged;
+        private byte[] data;
+
+
+
+        /**
+         * Create a new {@link Step}
+         * @param delayMicros the delay from the command, or from its last continuation, in microseconds
+         * @param data the part of the response, or null to read a continuation
+         * @param tagged whether the part starts with the tagged line
+         */
+        Step(long delayMicros, byte[] data, boolean tagged) {
+            this.delayMicros = delayMicros;
+            this.data = data;
+            this.tagged = tagged;
+        }
+
+
+
+        /** Stop advertising COMPRESS=DEFLATE in this part of the response */
+        void withoutCompression() {
+            if (data != null) {
+                data = new String(data, StandardCharsets.ISO_8859_1).replace(" COMPRESS=DEFLATE", "")
+                        .getBytes(StandardCharsets.ISO_8859_1);
+            }
+        }
+    }
+
+
+
+    /** Reads the commands of a client, and their continuations, with their literals */
+    private static class CommandReader {
+
+        private final InputStream in;
+        private int pendingLiteral = 0;
+
+
+
+        CommandReader(InputStream in) {
+            this.in = in;
+        }
+
+
+
+        /**
+         * Read a command, or a continuation: up to a line end which is not followed by a literal sent at once;
+         * a literal waiting for a continuation is read with the next call
+         * @return the command, or null if the client closed the connection
+         * @throws IOException if the command could not be read
+         */
+        String readCommand() throws IOException {
+            ByteArrayOutputStream command = new ByteArrayOutputStream();
+            while (true) {
+                for (; pendingLiteral > 0; pendingLiteral--) {
+                    int b = in.read();
+                    if (b == -1) {
+                        return null;
+                    }
+                    command.write(b);
+                }
+
+                String line = readLine();
+                if (line == null) {
+                    return null;
+                }
+                command.write(line.getBytes(StandardCharsets.ISO_8859_1));
+
+                Matcher literal = LITERAL.matcher(line.trim());
+                if (!literal.find()) {
+                    return command.toString("ISO-8859-1");
+                }
+                pendingLiteral = Integer.parseInt(literal.group(1));
+                if (literal.group(2).isEmpty()) {
+                    return command.toString("ISO-8859-1");
+                }
+            }
+        }
+
+
+
+        private String readLine() throws IOException {
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            int b;
+            while ((b = in.read()) != -1) {
+                line.write(b);
+                if (b == '\n') {
+                    return line.toString("ISO-8859-1");
+                }
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Project: imap2local
+ *
+ * Copyright (c) Attila Kovari
+ * All rights reserved.
+ *
+ * MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+
+package ro.kovari.imap.net;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+
+/** An {@link InputStream} whose bandwidth is limited by a {@link TokenBucket} */
+public class ThrottledInputStream extends FilterInputStream {
+
+    private final TokenBucket tokenBucket;
+
+
+
+    /**
+     * Create a new {@link ThrottledInputStream}
+     * @param in the underlying {@link InputStream}
+     * @param tokenBucket the {@link TokenBucket} limiting the bandwidth
+     */
+    public ThrottledInputStream(InputStream in, TokenBucket tokenBucket) {
+        super(in);
+        this.tokenBucket = tokenBucket;
+    }
+
+
+
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+        if (b != -1) {
+            throttle(1);
+        }
+        return b;
+    }
+
+
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int count = super.read(b, off, len);
+        if (count > 0) {
+            throttle(count);
+        }
+        return count;
+    }
+
+
+
+    /**
+     * Pay for the bytes already read
+     * @param bytes the number of bytes read
+     * @throws InterruptedIOException if interrupted while waiting
+     */
+    private void throttle(long bytes) throws InterruptedIOException {
+        try {
+            tokenBucket.consume(bytes);
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while throttled");
+        }
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * Project: imap2local
+ *
+ * Copyright (c) Attila Kovari
+ * All rights reserved.
+ *
+ * MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+
+package ro.kovari.imap.net;
+
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * An {@link SSLSocketFactory} layering TLS over metered sockets, so that the encrypted traffic is counted,
+ * and limited, by a {@link MeteredSocketFactory} like the plain one.<br>
+ * All the sockets share the same {@link SSLContext}, and so its client session cache: the connections opened
+ * after the first one resume its TLS session with an abbreviated handshake, instead of a full one.
+ * The protocol may be recorded above TLS into a {@link ProtocolTrace}.
+ * Note: JavaMail connects the plain socket itself and passes it to {@link #createSocket(Socket, String, int, boolean)}
+ */
+public class TlsSocketFactory extends SSLSocketFactory {
+
+    private final SSLContext context;
+    private final SSLSocketFactory factory;
+    private final MeteredSocketFactory socketFactory;
+    private final AtomicLong handshakes;
+    private final AtomicLong resumedHandshakes;
+    private final ProtocolTrace trace;
+
+
+
+    /**
+     * Create a new {@link TlsSocketFactory}
+     * @param context the {@link SSLContext} shared by all the sockets
+     * @param socketFactory the {@link MeteredSocketFactory} counting the bytes going over the wire
+     */
+    public TlsSocketFactory(SSLContext context, MeteredSocketFactory socketFactory) {
+        this(context, socketFactory, new AtomicLong(), new AtomicLong(), null);
+    }
+
+
+
+    private TlsSocketFactory(SSLContext context, MeteredSocketFactory socketFactory,
+                             AtomicLong handshakes, AtomicLong resumedHandshakes, ProtocolTrace trace) {
+        this.context = context;
+        this.factory = context.getSocketFactory();
+        this.socketFactory = socketFactory;
+        this.handshakes = handshakes;
+        this.resumedHandshakes = resumedHandshakes;
+        this.trace = trace;
+    }
+
+
+
+    /**
+     * Get a {@link TlsSocketFactory} sharing the {@link SSLContext} and the handshake counters of this one,
+     * but counting the bytes going over the wire with another {@link MeteredSocketFactory}
+     * @param other the other {@link MeteredSocketFactory}
+     * @return the new {@link TlsSocketFactory}
+     */
+    public TlsSocketFactory withSocketFactory(MeteredSocketFactory other) {
+        return new TlsSocketFactory(context, other, handshakes, resumedHandshakes, trace);
+    }
+
+
+
+    /**
+     * Get a {@link TlsSocketFactory} sharing the {@link SSLContext} and the handshake counters of this one,
+     * recording the protocol going over its sockets, above TLS
+     * @param other the {@link ProtocolTrace}
+     * @return the new {@link TlsSocketFactory}
+     */
+    public TlsSocketFactory withTrace(ProtocolTrace other) {
+        return new TlsSocketFactory(context, socketFactory, handshakes, resumedHandshakes, other);
+    }
+
+
+
+    /**
+     * Get the {@link SSLContext} shared by all the sockets
+     * @return the {@link SSLContext}
+     */
+    public SSLContext getContext() {
+        return context;
+    }
+
+
+
+    /**
+     * Get the number of TLS handshakes completed so far
+     * @return the number of handshakes
+     */
+    public long getHandshakes() {
+        return handshakes.get();
+    }
+
+
+
+    /**
+     * Get the number of TLS handshakes completed so far which resumed an earlier session
+     * @return the number of abbreviated handshakes
+     */
+    public long getResumedHandshakes() {
+        return resumedHandshakes.get();
+    }
+
+
+
+    @Override
+    public Socket createSocket(Socket socket, String host, int port, boolean autoClose) throws IOException {
+        // a session created before the socket was resumed; a new one is created during the handshake
+        long created = System.currentTimeMillis();
+        SSLSocket sslSocket = (SSLSocket) factory.createSocket(socketFactory.wrap(socket), host, port, autoClose);
+        sslSocket.addHandshakeCompletedListener(event -> onHandshakeCompleted(event, created));
+
+        // JavaMail then sees a plain socket; the handshake is made as the greeting is read
+        return trace != null ? trace.wrap(sslSocket) : sslSocket;
+    }
+
+
+
+    @Override
+    public Socket createSocket(String host, int port) throws IOException {
+        return createSocket(socketFactory.createSocket(host, port), host, port, true);
+    }
+
+
+
+    @Override
+    public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+        return createSocket(socketFactory.createSocket(host, port, localHost, localPort), host, port, true);
+    }
+
+
+
+    @Override
+    public Socket createSocket(InetAddress host, int port) throws IOException {
+        return createSocket(socketFactory.createSocket(host, port), host.getHostName(), port, true);
+    }
+
+
+
+    @Override
+    public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort)
+            throws IOException {
+
+        return createSocket(socketFactory.createSocket(address, port, localAddress, localPort),
+                address.getHostName(), port, true);
+    }
+
+
+
+    @Override
+    public String[] getDefaultCipherSuites() {
+        return factory.getDefaultCipherSuites();
+    }
+
+
+
+    @Override
+    public String[] getSupportedCipherSuites() {
+        return factory.getSupportedCipherSuites();
+    }
+
+
+
+    /**
+     * Count a completed handshake
+     * @param event the {@link HandshakeCompletedEvent}
+     * @param created the time the socket was created, in milliseconds since the epoch
+     */
+    private void onHandshakeCompleted(HandshakeCompletedEvent event, long created) {
+        handshakes.incrementAndGet();
+        if (event.getSession().getCreationTime() < created) {
+            resumedHandshakes.incrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,317 @@
+/*
+ * Project: imap2local
+ *
+ * Copyright (c) Attila Kovari
+ * All rights reserved.
+ *
+ * MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+
+package ro.kovari.imap.net;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+
+/**
+ * A {@link Socket} forwarding to another socket and recording the protocol going over it
+ * into a {@link ProtocolTrace}.<br>
+ * Once the client sends credentials, whatever it sends is redacted until the server answers the command.
+ * Unless the messages are recorded, the literals of the FETCH responses and of the APPEND commands are masked.
+ */
+class TracingSocket extends ForwardingSocket {
+
+    /** The number of characters of a server line kept to recognize the end of a redacted command */
+    private static final int MAX_TAG_LINE = 64;
+
+    /** The responses whose literals are messages */
+    private static final Pattern FETCH_RESPONSE = Pattern.compile("\\* \\d+ FETCH\\b", Pattern.CASE_INSENSITIVE);
+
+    /** The commands whose literals are messages */
+    private static final Pattern APPEND_COMMAND = Pattern.compile("\\S+ APPEND\\b", Pattern.CASE_INSENSITIVE);
+
+    private final ProtocolTrace trace;
+    private final int connection;
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private volatile String redactedTag = null;
+    private final LiteralMask serverMask;
+    private final LiteralMask clientMask;
+    private InputStream inputStream = null;
+    private OutputStream outputStream = null;
+
+
+
+    /**
+     * Create a new {@link TracingSocket}
+     * @param socket the socket, connected or not
+     * @param trace the {@link ProtocolTrace} recording the protocol
+     * @param messages true to record the messages as they are, false to mask them
+     */
+    TracingSocket(Socket socket, ProtocolTrace trace, boolean messages) {
+        super(socket);
+        this.trace = trace;
+        this.connection = trace.open();
+        this.serverMask = messages ? null : new LiteralMask(FETCH_RESPONSE);
+        this.clientMask = messages ? null : new LiteralMask(APPEND_COMMAND);
+    }
+
+
+
+    @Override
+    public synchronized InputStream getInputStream() throws IOException {
+        if (inputStream == null) {
+            inputStream = new TracingInputStream(socket.getInputStream());
+        }
+        return inputStream;
+    }
+
+
+
+    @Override
+    public synchronized OutputStream getOutputStream() throws IOException {
+        if (outputStream == null) {
+            outputStream = new TracingOutputStream(socket.getOutputStream());
+        }
+        return outputStream;
+    }
+
+
+
+    @Override
+    public void close() throws IOException {
+        if (closed.compareAndSet(false, true)) {
+            trace.record(connection, ProtocolTrace.CLOSED, new byte[0], 0, 0);
+        }
+        socket.close();
+    }
+
+
+
+    /** Records the data received from the server, as it is read */
+    private class TracingInputStream extends FilterInputStream {
+
+        private final StringBuilder line = new StringBuilder();
+
+
+
+        TracingInputStream(InputStream in) {
+            super(in);
+        }
+
+
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int count = super.read(b, off, len);
+            if (count > 0) {
+                byte[] masked = serverMask != null ? serverMask.apply(b, off, count) : null;
+                if (masked != null) {
+                    trace.record(connection, ProtocolTrace.SERVER, masked, 0, count);
+                } else {
+                    trace.record(connection, ProtocolTrace.SERVER, b, off, count);
+                }
+                if (redactedTag != null) {
+                    endRedaction(b, off, count);
+                }
+            }
+            return count;
+        }
+
+
+
+        /**
+         * Stop redacting once the server has answered the command sending the credentials
+         * @param b the buffer holding the data read
+         * @param off the offset of the data in the buffer
+         * @param count the number of bytes read
+         */
+        private void endRedaction(byte[] b, int off, int count) {
+            for (int i = off; i < off + count; i++) {
+                if (b[i] != '\n') {
+                    if (line.length() < MAX_TAG_LINE) {
+                        line.append((char) (b[i] & 0xff));
+                    }
+                    continue;
+                }
+
+                String tag = redactedTag;
+                if (tag != null && line.toString().startsWith(tag + " ")) {
+                    redactedTag = null;
+                }
+                line.setLength(0);
+            }
+        }
+    }
+
+
+
+    /** Records the data sent by the client, each time it is flushed, redacting the credentials */
+    private class TracingOutputStream extends FilterOutputStream {
+
+        private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+
+
+
+        TracingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            pending.write(b);
+        }
+
+
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            pending.write(b, off, len);
+        }
+
+
+
+        @Override
+        public void flush() throws IOException {
+            if (pending.size() > 0) {
+                byte[] data = pending.toByteArray();
+                byte[] masked = clientMask != null ? clientMask.apply(data, 0, data.length) : null;
+                data = redact(masked != null ? masked : data);
+                trace.record(connection, ProtocolTrace.CLIENT, data, 0, data.length);
+                pending.reset();
+            }
+            out.flush();
+        }
+
+
+
+        /**
+         * Redact the data sent by the client, if it sends credentials
+         * @param data the data sent
+         * @return the data to be recorded
+         */
+        private byte[] redact(byte[] data) {
+            if (redactedTag != null) {
+                return (ProtocolTrace.REDACTED + "\r\n").getBytes(StandardCharsets.US_ASCII);
+            }
+
+            String text = new String(data, StandardCharsets.ISO_8859_1);
+            int end = text.indexOf("\r\n");
+            String command = ProtocolTrace.redact(end < 0 ? text : text.substring(0, end));
+            if (command == null) {
+                return data;
+            }
+            redactedTag = command.substring(0, command.indexOf(' '));
+            return (command + "\r\n").getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+
+
+    /**
+     * Masks the literals of the responses, or of the commands, whose first line starts with a pattern,
+     * as the data goes by: every byte but the line ends is replaced by {@link ProtocolTrace#FILLER}
+     */
+    private static class LiteralMask {
+
+        /** The literal ending a line: its size, and '+' if the sender does not wait for a continuation */
+        private static final Pattern LITERAL = Pattern.compile("\\{(\\d+)\\+?}\\r?$");
+
+        private final Pattern masked;
+        private final StringBuilder line = new StringBuilder();
+        private long literal = 0;
+        private boolean continued = false;
+        private boolean masking = false;
+
+
+
+        LiteralMask(Pattern masked) {
+            this.masked = masked;
+        }
+
+
+
+        /**
+         * Mask the data going by
+         * @param b the buffer holding the data
+         * @param off the offset of the data in the buffer
+         * @param len the length of the data
+         * @return a masked copy of the data, or null if nothing was masked
+         */
+        byte[] apply(byte[] b, int off, int len) {
+            byte[] copy = null;
+            int i = off;
+            while (i < off + len) {
+                if (literal > 0) {
+                    int end = (int) Math.min(off + len, i + literal);
+                    literal -= end - i;
+                    for (; masking && i < end; i++) {
+                        if (b[i] != '\r' && b[i] != '\n') {
+                            copy = copy != null ? copy : Arrays.copyOfRange(b, off, off + len);
+                            copy[i - off] = ProtocolTrace.FILLER;
+                        }
+                    }
+                    i = end;
+                    continue;
+                }
+
+                if (b[i] != '\n') {
+                    line.append((char) (b[i++] & 0xff));
+                    continue;
+                }
+                i++;
+
+                // the lines following a literal belong to the same response, or command
+                if (!continued) {
+                    masking = masked.matcher(line).lookingAt();
+                }
+                Matcher matcher = LITERAL.matcher(line);
+                continued = matcher.find();
+                literal = continued ? Long.parseLong(matcher.group(1)) : 0;
+                line.setLength(0);
+            }
+            return copy;
+        }
+    }
+}
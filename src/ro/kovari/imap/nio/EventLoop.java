@@ -0,0 +1,144 @@
+/*
+ * Project: imap2local
+ *
+ * Copyright (c) Attila Kovari
+ * All rights reserved.
+ *
+ * MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+
+package ro.kovari.imap.nio;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+
+
+/**
+ * A selector thread, running the I/O of many {@link NioImapSession}s.<br>
+ * Everything a session does happens on the thread of its loop: the tasks submitted by other threads
+ * are queued and run between two selections, so the sessions need no locking.
+ */
+class EventLoop implements Runnable, Executor {
+
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final Thread thread;
+    private volatile boolean running = true;
+
+
+
+    /**
+     * Create and start a new {@link EventLoop}
+     * @param name the name of its thread
+     * @throws IOException if the selector can't be opened
+     */
+    EventLoop(String name) throws IOException {
+        selector = Selector.open();
+        thread = new Thread(this, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+
+
+    Selector getSelector() {
+        return selector;
+    }
+
+
+
+    /**
+     * Run a task on the thread of the loop, after the current selection
+     * @param task the task
+     */
+    @Override
+    public void execute(Runnable task) {
+        tasks.add(task);
+        if (Thread.currentThread() != thread) {
+            selector.wakeup();
+        }
+    }
+
+
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                selector.select();
+                for (SelectionKey key : selector.selectedKeys()) {
+                    ((NioImapSession) key.attachment()).handle(key);
+                }
+                selector.selectedKeys().clear();
+
+            } catch (IOException e) {
+                // the selector itself failed; nothing can be done for its sessions
+                e.printStackTrace();
+                running = false;
+            }
+
+            // including the tasks queued by the tasks themselves
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        for (SelectionKey key : selector.keys()) {
+            ((NioImapSession) key.attachment()).closed(new IOException("Engine closed"));
+        }
+        try {
+            selector.close();
+
+        } catch (IOException e) {
+            // closing anyway
+        }
+    }
+
+
+
+    /** Stop the loop, closing its remaining sessions */
+    void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+
+
+    /**
+     * Wait for the thread of the loop to end
+     * @throws InterruptedException if interrupted
+     */
+    void join() throws InterruptedException {
+        thread.join();
+    }
+}
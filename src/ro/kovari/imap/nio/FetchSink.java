@@ -0,0 +1,70 @@
+/*
+ * Project: imap2local
+ *
+ * Copyright (c) Attila Kovari
+ * All rights reserved.
+ *
+ * MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+
+package ro.kovari.imap.nio;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Date;
+
+
+/**
+ * The receiver of the messages downloaded by a UID FETCH of a {@link NioImapSession}.<br>
+ * The body of a message is streamed into the {@link OutputStream} as it arrives from the network;
+ * the messages of a session arrive one after the other, and all the calls are made on its selector thread.
+ */
+public interface FetchSink {
+
+    /**
+     * Open the stream a message is written to, as its body starts arriving
+     * @param uid the UID of the message, or 0 if the server sends it after the body
+     * @param internalDate the internal date of the message, or null if the server sends it after the body
+     * @return the {@link OutputStream}
+     * @throws IOException in case of error; the message is then skipped
+     */
+    OutputStream open(long uid, Date internalDate) throws IOException;
+
+
+
+    /**
+     * Complete the message written to the last opened stream
+     * @param uid the UID of the message
+     * @throws IOException in case of error
+     */
+    void completed(long uid) throws IOException;
+
+
+
+    /**
+     * Discard the message written to the last opened stream, if any
+     * @param uid the UID of the message, or 0 if unknown
+     * @param e the cause of the failure
+     */
+    void failed(long uid, Exception e);
+}
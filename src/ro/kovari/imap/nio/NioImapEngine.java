@@ -0,0 +1,132 @@
+/*
+ * Project: imap2local
+ *
+ * Copyright (c) Attila Kovari
+ * All rights reserved.
+ *
+ * MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+
+package ro.kovari.imap.nio;
+
+import ro.kovari.imap.exception.ImapException;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * An event-driven IMAP client engine: a fixed number of selector threads, each running the
+ * non-blocking I/O of any number of {@link NioImapSession}s.<br>
+ * A session costs its buffers, a few tens of KB, and no thread of its own, so a single engine can run
+ * thousands of sessions, whether to one account or to many. The callbacks of the futures returned by
+ * the sessions run on the selector threads and must not block.
+ */
+public class NioImapEngine implements AutoCloseable {
+
+    private final EventLoop[] loops;
+    private final AtomicInteger next = new AtomicInteger();
+    private final AtomicLong bytesReceived = new AtomicLong();
+
+
+
+    /**
+     * Create a new {@link NioImapEngine}
+     * @param threads the number of selector threads
+     */
+    public NioImapEngine(int threads) {
+        loops = new EventLoop[threads];
+        try {
+            for (int i = 0; i < threads; i++) {
+                loops[i] = new EventLoop("imap-nio-" + i);
+            }
+
+        } catch (IOException e) {
+            close();
+            throw new ImapException("Unable to open a selector!", e);
+        }
+    }
+
+
+
+    /**
+     * Connect a new session to an IMAP server; the sessions are spread over the selector threads in turn
+     * @param host the IMAP server
+     * @param port the port of the IMAP server
+     * @param sslContext the {@link SSLContext} of the implicit TLS of IMAPS, or null for plain IMAP
+     * @return the future {@link NioImapSession}, completed once the greeting of the server is received
+     */
+    public CompletableFuture<NioImapSession> connect(String host, int port, SSLContext sslContext) {
+        // resolved here, as name resolution blocks
+        InetSocketAddress address = new InetSocketAddress(host, port);
+        SSLEngine sslEngine = null;
+        if (sslContext != null) {
+            sslEngine = sslContext.createSSLEngine(host, port);
+            sslEngine.setUseClientMode(true);
+        }
+
+        EventLoop loop = loops[Math.floorMod(next.getAndIncrement(), loops.length)];
+        NioImapSession session = new NioImapSession(loop, host, sslEngine, bytesReceived);
+        loop.execute(() -> session.connect(address));
+        return session.getGreeting();
+    }
+
+
+
+    /**
+     * Get the number of bytes received over the wire by all the sessions so far
+     * @return the number of bytes received
+     */
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+
+
+    /** Stop the selector threads, closing the sessions still open */
+    @Override
+    public void close() {
+        for (EventLoop loop : loops) {
+            if (loop != null) {
+                loop.shutdown();
+            }
+        }
+
+        for (EventLoop loop : loops) {
+            try {
+                if (loop != null) {
+                    loop.join();
+                }
+
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,1034 @@
+/*
+ * Project: imap2local
+ *
+ * Copyright (c) Attila Kovari
+ * All rights reserved.
+ *
+ * MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+
+package ro.kovari.imap.nio;
+
+import com.sun.mail.imap.protocol.BASE64MailboxDecoder;
+import com.sun.mail.imap.protocol.BASE64MailboxEncoder;
+import ro.kovari.imap.exception.ImapException;
+import ro.kovari.imap.jfr.FolderOpenEvent;
+import ro.kovari.imap.jfr.MessageFetchEvent;
+import ro.kovari.imap.store.FolderStatus;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+
+/**
+ * A non-blocking IMAP session, run by an {@link EventLoop} of a {@link NioImapEngine}.<br>
+ * The session implements the commands needed by a download: LOGIN, CAPABILITY, LIST, STATUS,
+ * SELECT/EXAMINE, UID FETCH and LOGOUT. The commands may be issued from any thread; they are sent one
+ * at a time, in order, and their futures are completed on the selector thread. The message bodies of
+ * a UID FETCH are streamed to a {@link FetchSink} as they are received, whatever their size.
+ * With IMAPS, the session encrypts and decrypts through an {@link SSLEngine}.
+ */
+public class NioImapSession {
+
+    /** The size of the receive buffer of a plain IMAP session */
+    private static final int BUFFER_SIZE = 32 << 10;
+
+    private static final Pattern CAPABILITY = Pattern.compile("\\[CAPABILITY ([^\\]]*)\\]|^\\* CAPABILITY (.*)$",
+            Pattern.CASE_INSENSITIVE);
+    private static final Pattern LIST = Pattern.compile("^\\* LIST \\(([^)]*)\\) (NIL|\"(?:\\\\.|[^\"\\\\])*\") (.+)$",
+            Pattern.CASE_INSENSITIVE);
+    private static final Pattern STATUS = Pattern.compile("^\\* STATUS .*\\(([^()]*)\\)$", Pattern.CASE_INSENSITIVE);
+    private static final Pattern EXISTS = Pattern.compile("^\\* (\\d+) EXISTS$", Pattern.CASE_INSENSITIVE);
+    private static final Pattern RESPONSE_CODE = Pattern.compile("^\\* OK \\[(UIDVALIDITY|UIDNEXT|HIGHESTMODSEQ) (\\d+)\\]",
+            Pattern.CASE_INSENSITIVE);
+    private static final Pattern FETCH = Pattern.compile("^\\* \\d+ FETCH \\(", Pattern.CASE_INSENSITIVE);
+    private static final Pattern FETCH_BODY = Pattern.compile("^\\* \\d+ FETCH \\(.*BODY\\[\\] ?$", Pattern.CASE_INSENSITIVE);
+    private static final Pattern UID = Pattern.compile("[( ]UID (\\d+)", Pattern.CASE_INSENSITIVE);
+    private static final Pattern INTERNALDATE = Pattern.compile("[( ]INTERNALDATE \"([^\"]*)\"",
+            Pattern.CASE_INSENSITIVE);
+
+    /** The format of the INTERNALDATE, e.g. ' 1-Jan-2024 10:00:00 +0000', once trimmed */
+    private static final DateTimeFormatter DATE_TIME = DateTimeFormatter.ofPattern("d-MMM-yyyy HH:mm:ss Z", Locale.US);
+
+    private final EventLoop loop;
+    private final String host;
+    private final SSLEngine ssl;
+    private final AtomicLong bytesReceived;
+    private final AtomicInteger tags = new AtomicInteger();
+    private final CompletableFuture<NioImapSession> greeting = new CompletableFuture<>();
+    private final ResponseParser parser = new ResponseParser(new Responses());
+    private final Deque<Command<?>> commands = new ArrayDeque<>();
+    private volatile Set<String> capabilities = null;
+    private volatile String separator = null;
+    private volatile boolean closed = false;
+    private Command<?> current = null;
+    private boolean loggingOut = false;
+    private String selected = null;
+
+    private SocketChannel channel = null;
+    private SelectionKey key = null;
+    private ByteBuffer netIn;
+    private ByteBuffer netOut;
+    private ByteBuffer appIn;
+    private ByteBuffer appOut = ByteBuffer.allocate(1024);
+
+    // the message being fetched
+    private boolean fetching = false;
+    private FetchSink fetchSink = null;
+    private OutputStream fetchOut = null;
+    private Exception fetchError = null;
+    private long fetchUid = 0;
+    private long fetchBytes = 0;
+    private MessageFetchEvent fetchEvent = null;
+
+
+
+    /**
+     * Create a new {@link NioImapSession}
+     * @param loop the {@link EventLoop} running the session
+     * @param host the IMAP server
+     * @param ssl the {@link SSLEngine} in client mode, or null for plain IMAP
+     * @param bytesReceived the counter of bytes received over the wire, shared by the sessions of the engine
+     */
+    NioImapSession(EventLoop loop, String host, SSLEngine ssl, AtomicLong bytesReceived) {
+        this.loop = loop;
+        this.host = host;
+        this.ssl = ssl;
+        this.bytesReceived = bytesReceived;
+
+        if (ssl == null) {
+            appIn = ByteBuffer.allocate(BUFFER_SIZE);
+        } else {
+            netIn = ByteBuffer.allocate(ssl.getSession().getPacketBufferSize());
+            netOut = ByteBuffer.allocate(ssl.getSession().getPacketBufferSize());
+            appIn = ByteBuffer.allocate(ssl.getSession().getApplicationBufferSize());
+        }
+    }
+
+
+
+    public String getHost() {
+        return host;
+    }
+
+
+
+    /**
+     * Get the hierarchy separator of the folders, as returned by the last LIST
+     * @return the separator, or null before the first LIST
+     */
+    public String getSeparator() {
+        return separator;
+    }
+
+
+
+    /**
+     * Check whether the session is still connected
+     * @return true if the session is connected
+     */
+    public boolean isOpen() {
+        return !closed;
+    }
+
+
+
+    /**
+     * Check whether the capabilities of the server are known, from the greeting, the login or a CAPABILITY command
+     * @return true if the capabilities are known
+     */
+    public boolean hasCapabilities() {
+        return capabilities != null;
+    }
+
+
+
+    /**
+     * Check whether the server has a capability
+     * @param capability the capability, e.g. 'CONDSTORE'
+     * @return true if the server announced the capability
+     */
+    public boolean hasCapability(String capability) {
+        Set<String> known = capabilities;
+        return known != null && known.contains(capability.toUpperCase(Locale.ROOT));
+    }
+
+
+
+    CompletableFuture<NioImapSession> getGreeting() {
+        return greeting;
+    }
+
+
+
+    /**
+     * Log in
+     * @param user the user name
+     * @param password the password
+     * @return the future completed once logged in
+     */
+    public CompletableFuture<Void> login(String user, String password) {
+        return command(newCommandLine("LOGIN").string(user).string(password), "LOGIN", null, () -> null, null);
+    }
+
+
+
+    /**
+     * Ask for the capabilities of the server
+     * @return the future capabilities
+     */
+    public CompletableFuture<Set<String>> capability() {
+        return command(newCommandLine("CAPABILITY"), "CAPABILITY", null, () -> capabilities, null);
+    }
+
+
+
+    /**
+     * List the folders able to hold messages; the hierarchy separator is available afterwards
+     * @return the future full names of the folders
+     */
+    public CompletableFuture<List<String>> list() {
+        List<String> folders = new ArrayList<>();
+        return command(newCommandLine("LIST").string("").string("*"), "LIST", response -> {
+            Matcher matcher = LIST.matcher(response);
+            if (!matcher.matches()) {
+                return;
+            }
+
+            String delimiter = matcher.group(2);
+            if (separator == null && !delimiter.equalsIgnoreCase("NIL")) {
+                separator = ResponseParser.unquote(delimiter);
+            }
+            String flags = matcher.group(1).toLowerCase(Locale.ROOT);
+            if (!flags.contains("\\noselect") && !flags.contains("\\nonexistent")) {
+                folders.add(BASE64MailboxDecoder.decode(ResponseParser.unquote(matcher.group(3))));
+            }
+        }, () -> folders, null);
+    }
+
+
+
+    /**
+     * Get the STATUS of a folder, without selecting it
+     * @param folder the full name of the folder
+     * @return the future {@link FolderStatus}; with CONDSTORE, including the highest mod-sequence
+     */
+    public CompletableFuture<FolderStatus> status(String folder) {
+        boolean condstore = hasCapability("CONDSTORE");
+        Map<String, Long> items = new HashMap<>();
+        CommandLine line = newCommandLine("STATUS").string(BASE64MailboxEncoder.encode(folder))
+                .atom(condstore ? " (MESSAGES UIDNEXT UIDVALIDITY HIGHESTMODSEQ)" : " (MESSAGES UIDNEXT UIDVALIDITY)");
+
+        return command(line, "STATUS " + folder, response -> {
+            Matcher matcher = STATUS.matcher(response);
+            if (matcher.matches()) {
+                String[] tokens = matcher.group(1).trim().split("\\s+");
+                for (int i = 0; i + 1 < tokens.length; i += 2) {
+                    items.put(tokens[i].toUpperCase(Locale.ROOT), Long.parseLong(tokens[i + 1]));
+                }
+            }
+        }, () -> new FolderStatus(items.getOrDefault("MESSAGES", 0L).intValue(),
+                items.getOrDefault("UIDNEXT", 0L), items.getOrDefault("UIDVALIDITY", 0L),
+                items.getOrDefault("HIGHESTMODSEQ", FolderStatus.NO_MODSEQ)), null);
+    }
+
+
+
+    /**
+     * Open a folder in read-only mode, by EXAMINE
+     * @param folder the full name of the folder
+     * @return the future {@link FolderStatus} of the folder, as of its opening
+     */
+    public CompletableFuture<FolderStatus> examine(String folder) {
+        return open(folder, "EXAMINE");
+    }
+
+
+
+    /**
+     * Open a folder in read-write mode, by SELECT
+     * @param folder the full name of the folder
+     * @return the future {@link FolderStatus} of the folder, as of its opening
+     */
+    public CompletableFuture<FolderStatus> select(String folder) {
+        return open(folder, "SELECT");
+    }
+
+
+
+    /**
+     * Open a folder
+     * @param folder the full name of the folder
+     * @param command SELECT or EXAMINE
+     * @return the future {@link FolderStatus} of the folder, as of its opening
+     */
+    private CompletableFuture<FolderStatus> open(String folder, String command) {
+        long[] values = {0, 0, 0, FolderStatus.NO_MODSEQ};
+        FolderOpenEvent event = new FolderOpenEvent();
+        event.begin();
+
+        CompletableFuture<FolderStatus> future = command(
+                newCommandLine(command).string(BASE64MailboxEncoder.encode(folder)), command + " " + folder, response -> {
+                    Matcher matcher = EXISTS.matcher(response);
+                    if (matcher.matches()) {
+                        values[0] = Long.parseLong(matcher.group(1));
+                        return;
+                    }
+
+                    matcher = RESPONSE_CODE.matcher(response);
+                    if (matcher.find()) {
+                        String code = matcher.group(1).toUpperCase(Locale.ROOT);
+                        values[code.equals("UIDNEXT") ? 1 : code.equals("UIDVALIDITY") ? 2 : 3] =
+                                Long.parseLong(matcher.group(2));
+                    }
+                }, () -> {
+                    selected = folder;
+                    return new FolderStatus((int) values[0], values[1], values[2], values[3]);
+                }, null);
+
+        return future.whenComplete((status, e) -> {
+            event.end();
+            if (status != null && event.shouldCommit()) {
+                event.folder = folder;
+                event.messages = status.getMessages();
+                event.commit();
+            }
+        });
+    }
+
+
+
+    /**
+     * Download the messages of the open folder by UID, with their internal date, streaming their bodies
+     * to a {@link FetchSink}
+     * @param uids the UID set, e.g. '1:*' or '100:200'
+     * @param sink the {@link FetchSink} receiving the messages
+     * @return the future completed once all the messages were received
+     */
+    public CompletableFuture<Void> uidFetch(String uids, FetchSink sink) {
+        return command(newCommandLine("UID FETCH ").atom(uids).atom(" (UID INTERNALDATE BODY.PEEK[])"), "UID FETCH " + uids,
+                null, () -> null, sink);
+    }
+
+
+
+    /**
+     * Log out and close the connection
+     * @return the future completed once the connection is closed
+     */
+    public CompletableFuture<Void> logout() {
+        loop.execute(() -> loggingOut = true);
+        CompletableFuture<Void> future = command(newCommandLine("LOGOUT"), "LOGOUT", null, () -> null, null);
+        return future.whenComplete((v, e) -> loop.execute(() -> closed(null)));
+    }
+
+
+
+    /**
+     * Start a new command line, with a new tag
+     * @param command the command
+     * @return the {@link CommandLine}
+     */
+    private CommandLine newCommandLine(String command) {
+        return new CommandLine().atom("N" + tags.incrementAndGet() + " " + command);
+    }
+
+
+
+    /**
+     * Queue a command, sent as soon as the previous commands are completed
+     * @param line the {@link CommandLine}
+     * @param description the description of the command in the error messages, without its arguments
+     *                    when they are secret
+     * @param untagged the handler of the untagged responses received while the command runs, or null
+     * @param result the supplier of the result, called once the command is completed
+     * @param sink the {@link FetchSink} of a UID FETCH, or null
+     * @param <T> the type of the result
+     * @return the future result of the command
+     */
+    private <T> CompletableFuture<T> command(CommandLine line, String description, Consumer<String> untagged,
+                                             Supplier<T> result, FetchSink sink) {
+
+        Command<T> command = new Command<>(line.toParts(), description, untagged, result, sink);
+        loop.execute(() -> {
+            if (closed) {
+                command.future.completeExceptionally(new ImapException("Connection to " + host + " closed!"));
+                return;
+            }
+            commands.add(command);
+            sendNext();
+        });
+        return command.future;
+    }
+
+
+
+    /** Send the next command, unless a command is still running */
+    private void sendNext() {
+        if (current != null || commands.isEmpty() || closed) {
+            return;
+        }
+        current = commands.poll();
+        sendPart();
+    }
+
+
+
+    /** Send the next part of the current command, up to its next literal, if any */
+    private void sendPart() {
+        byte[] part = current.parts.get(current.sent++);
+        if (appOut.remaining() < part.length) {
+            appOut = grow(appOut, appOut.position() + part.length);
+        }
+        appOut.put(part);
+
+        try {
+            write();
+
+        } catch (IOException | RuntimeException e) {
+            closed(e);
+        }
+    }
+
+
+
+    /**
+     * Start connecting; called on the selector thread
+     * @param address the address of the server
+     */
+    void connect(InetSocketAddress address) {
+        try {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            key = channel.register(loop.getSelector(), 0, this);
+
+            if (channel.connect(address)) {
+                connected();
+            } else {
+                key.interestOps(SelectionKey.OP_CONNECT);
+            }
+
+        } catch (IOException | RuntimeException e) {
+            closed(e);
+        }
+    }
+
+
+
+    /**
+     * Start reading, and the TLS handshake with IMAPS, once connected
+     * @throws IOException in case of error
+     */
+    private void connected() throws IOException {
+        key.interestOps(SelectionKey.OP_READ);
+        if (ssl != null) {
+            ssl.beginHandshake();
+            write();
+        }
+    }
+
+
+
+    /**
+     * Handle the readiness of the channel; called on the selector thread
+     * @param selectionKey the {@link SelectionKey} of the channel
+     */
+    void handle(SelectionKey selectionKey) {
+        try {
+            if (selectionKey.isValid() && selectionKey.isConnectable()) {
+                channel.finishConnect();
+                connected();
+            }
+            if (selectionKey.isValid() && selectionKey.isReadable()) {
+                read();
+            }
+            if (selectionKey.isValid() && selectionKey.isWritable()) {
+                write();
+                if (ssl != null) {
+                    unwrap();
+                }
+            }
+
+        } catch (IOException | RuntimeException e) {
+            closed(e);
+        }
+    }
+
+
+
+    /**
+     * Read from the channel, and parse what was received
+     * @throws IOException in case of error
+     */
+    private void read() throws IOException {
+        int n = channel.read(ssl == null ? appIn : netIn);
+        if (n < 0) {
+            closed(loggingOut ? null : new EOFException("Connection closed by the server"));
+            return;
+        }
+        bytesReceived.addAndGet(n);
+
+        if (ssl == null) {
+            parse();
+        } else {
+            unwrap();
+        }
+    }
+
+
+
+    /**
+     * Parse the decrypted, or plain, bytes received
+     * @throws IOException in case of error
+     */
+    private void parse() throws IOException {
+        // the Buffer methods, as the ByteBuffer overrides do not exist on Java 8
+        ((Buffer) appIn).flip();
+        try {
+            parser.parse(appIn);
+
+        } finally {
+            ((Buffer) appIn).clear();
+        }
+    }
+
+
+
+    /**
+     * Decrypt the bytes received, going on with the TLS handshake if needed
+     * @throws IOException in case of error
+     */
+    private void unwrap() throws IOException {
+        ((Buffer) netIn).flip();
+        try {
+            while (!closed) {
+                SSLEngineResult result = ssl.unwrap(netIn, appIn);
+                switch (result.getStatus()) {
+                    case BUFFER_OVERFLOW:
+                        if (appIn.position() == 0) {
+                            appIn = grow(appIn, ssl.getSession().getApplicationBufferSize());
+                        } else {
+                            parse();
+                        }
+                        continue;
+
+                    case BUFFER_UNDERFLOW:
+                        // the rest of the record has yet to be received
+                        return;
+
+                    case CLOSED:
+                        closed(loggingOut ? null : new EOFException("TLS session closed by the server"));
+                        return;
+
+                    default:
+                        break;
+                }
+
+                if (appIn.position() > 0) {
+                    parse();
+                }
+                HandshakeStatus status = result.getHandshakeStatus();
+                if (status == HandshakeStatus.NEED_TASK) {
+                    runDelegatedTasks();
+                    status = ssl.getHandshakeStatus();
+                }
+                if (status == HandshakeStatus.NEED_WRAP || status == HandshakeStatus.FINISHED) {
+                    write();
+                }
+                if (result.bytesConsumed() == 0 && result.bytesProduced() == 0
+                        && ssl.getHandshakeStatus() != HandshakeStatus.NEED_UNWRAP) {
+                    return;
+                }
+            }
+
+        } finally {
+            netIn.compact();
+            if (!netIn.hasRemaining()) {
+                // a record larger than the buffer
+                netIn = grow(netIn, netIn.capacity() + ssl.getSession().getPacketBufferSize());
+            }
+        }
+    }
+
+
+
+    /**
+     * Write the pending commands to the channel, encrypted with IMAPS along with the handshake messages;
+     * what the channel doesn't take now is written when it becomes writable
+     * @throws IOException in case of error
+     */
+    private void write() throws IOException {
+        if (ssl == null) {
+            ((Buffer) appOut).flip();
+            try {
+                channel.write(appOut);
+
+            } finally {
+                appOut.compact();
+            }
+            setWriteInterest(appOut.position() > 0);
+            return;
+        }
+
+        ((Buffer) appOut).flip();
+        try {
+            while (true) {
+                HandshakeStatus status = ssl.getHandshakeStatus();
+                if (status == HandshakeStatus.NEED_TASK) {
+                    runDelegatedTasks();
+                    continue;
+                }
+
+                // application data is sent only once the handshake is done
+                boolean handshaking = status != HandshakeStatus.NOT_HANDSHAKING && status != HandshakeStatus.FINISHED;
+                if (handshaking ? status != HandshakeStatus.NEED_WRAP : !appOut.hasRemaining()) {
+                    break;
+                }
+
+                SSLEngineResult result = ssl.wrap(appOut, netOut);
+                if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                    if (!flush()) {
+                        break;
+                    }
+
+                } else if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                    throw new EOFException("TLS session closed");
+                }
+            }
+
+        } finally {
+            appOut.compact();
+        }
+        flush();
+    }
+
+
+
+    /**
+     * Write the encrypted bytes to the channel
+     * @return true if all of them were written
+     * @throws IOException in case of error
+     */
+    private boolean flush() throws IOException {
+        ((Buffer) netOut).flip();
+        try {
+            channel.write(netOut);
+
+        } finally {
+            netOut.compact();
+        }
+        boolean empty = netOut.position() == 0;
+        setWriteInterest(!empty);
+        return empty;
+    }
+
+
+
+    /**
+     * Be notified, or no longer, when the channel becomes writable
+     * @param interested true to be notified
+     */
+    private void setWriteInterest(boolean interested) {
+        if (key == null || !key.isValid()) {
+            return;
+        }
+
+        int ops = key.interestOps();
+        int newOps = interested ? ops | SelectionKey.OP_WRITE : ops & ~SelectionKey.OP_WRITE;
+        if (newOps != ops) {
+            key.interestOps(newOps);
+        }
+    }
+
+
+
+    /** Run the lengthy tasks of the TLS handshake, e.g. the validation of the certificate */
+    private void runDelegatedTasks() {
+        Runnable task;
+        while ((task = ssl.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+
+
+
+    /**
+     * Copy a buffer, in write mode, into a larger one
+     * @param buffer the {@link ByteBuffer}
+     * @param capacity the minimum capacity of the new buffer
+     * @return the new {@link ByteBuffer}
+     */
+    private static ByteBuffer grow(ByteBuffer buffer, int capacity) {
+        ByteBuffer larger = ByteBuffer.allocate(Math.max(capacity, buffer.capacity() * 2));
+        ((Buffer) buffer).flip();
+        larger.put(buffer);
+        return larger;
+    }
+
+
+
+    /**
+     * Close the connection, failing the commands not completed yet; called on the selector thread
+     * @param cause the cause, or null if the session was closed normally
+     */
+    void closed(Exception cause) {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        try {
+            if (channel != null) {
+                channel.close();
+            }
+
+        } catch (IOException e) {
+            // closing anyway
+        }
+
+        ImapException error = new ImapException((cause == null ? "Connection to " : "Lost connection to ") + host
+                + (cause == null ? " closed!" : ": " + cause.getMessage()), cause);
+        if (fetching) {
+            endFetch(0, error);
+        }
+        greeting.completeExceptionally(error);
+
+        if (current != null) {
+            if (cause == null && loggingOut) {
+                current.complete();
+            } else {
+                current.future.completeExceptionally(error);
+            }
+            current = null;
+        }
+        for (Command<?> command : commands) {
+            command.future.completeExceptionally(error);
+        }
+        commands.clear();
+    }
+
+
+
+    /**
+     * End the message being fetched: complete it, or discard it on error
+     * @param uid the UID of the message, or 0 if not received
+     * @param error the error, or null
+     */
+    private void endFetch(long uid, Exception error) {
+        fetching = false;
+        if (uid == 0) {
+            uid = fetchUid;
+        }
+
+        if (error == null) {
+            error = fetchError;
+        }
+        if (error == null) {
+            try {
+                fetchSink.completed(uid);
+
+            } catch (IOException | RuntimeException e) {
+                error = e;
+            }
+        }
+        if (error != null) {
+            fetchSink.failed(uid, error);
+        }
+
+        fetchEvent.end();
+        if (fetchEvent.shouldCommit()) {
+            fetchEvent.folder = selected;
+            fetchEvent.uid = uid;
+            fetchEvent.bytes = fetchBytes;
+            fetchEvent.commit();
+        }
+        fetchSink = null;
+        fetchOut = null;
+        fetchEvent = null;
+    }
+
+
+
+    /**
+     * Get the UID of a FETCH response
+     * @param response the response
+     * @return the UID, or 0 if not present
+     */
+    private static long getUid(String response) {
+        Matcher matcher = UID.matcher(response);
+        return matcher.find() ? Long.parseLong(matcher.group(1)) : 0;
+    }
+
+
+
+    /**
+     * Get the internal date of a FETCH response
+     * @param response the response, up to the body of the message
+     * @return the internal date, or null if not present, or not valid
+     */
+    private static Date getInternalDate(String response) {
+        Matcher matcher = INTERNALDATE.matcher(response);
+        try {
+            return matcher.find() ?
+                    Date.from(ZonedDateTime.parse(matcher.group(1).trim(), DATE_TIME).toInstant()) : null;
+
+        } catch (DateTimeParseException e) {
+            return null;
+        }
+    }
+
+
+
+    /** The handler of the responses of the {@link ResponseParser} */
+    private class Responses implements ResponseParser.Handler {
+
+        @Override
+        public boolean literalStarted(String response, long size) {
+            if (current == null || current.sink == null || !FETCH_BODY.matcher(response).matches()) {
+                return false;
+            }
+
+            fetching = true;
+            fetchSink = current.sink;
+            fetchUid = getUid(response);
+            fetchBytes = 0;
+            fetchError = null;
+            fetchEvent = new MessageFetchEvent();
+            fetchEvent.begin();
+
+            try {
+                fetchOut = fetchSink.open(fetchUid, getInternalDate(response));
+
+            } catch (IOException | RuntimeException e) {
+                fetchError = e;
+            }
+            return true;
+        }
+
+
+
+        @Override
+        public void literalData(byte[] b, int off, int len) {
+            fetchBytes += len;
+            if (fetchError != null) {
+                return; // the rest of the message is discarded
+            }
+
+            try {
+                fetchOut.write(b, off, len);
+
+            } catch (IOException | RuntimeException e) {
+                fetchError = e;
+            }
+        }
+
+
+
+        @Override
+        public void literalEnded() {
+            // the message is completed with its FETCH response, once its UID is known
+        }
+
+
+
+        @Override
+        public void response(String response) {
+            Matcher matcher = CAPABILITY.matcher(response);
+            if (matcher.find()) {
+                String list = matcher.group(1) != null ? matcher.group(1) : matcher.group(2);
+                capabilities = Collections.unmodifiableSet(new HashSet<>(
+                        Arrays.asList(list.toUpperCase(Locale.ROOT).trim().split("\\s+"))));
+            }
+
+            if (!greeting.isDone()) {
+                if (response.startsWith("* OK") || response.startsWith("* PREAUTH")) {
+                    greeting.complete(NioImapSession.this);
+                } else {
+                    closed(new IOException("Connection refused by the server: " + response));
+                }
+                return;
+            }
+
+            if (response.startsWith("+")) {
+                // the server is ready for the literal of the current command
+                if (current != null && current.sent < current.parts.size()) {
+                    sendPart();
+                }
+
+            } else if (response.startsWith("* ")) {
+                if (fetching && FETCH.matcher(response).find()) {
+                    endFetch(getUid(response), null);
+                } else if (current != null && current.untagged != null) {
+                    current.untagged.accept(response);
+                }
+
+            } else if (current != null && response.startsWith(current.tag + " ")) {
+                Command<?> command = current;
+                current = null;
+                String result = response.substring(command.tag.length() + 1);
+
+                if (result.regionMatches(true, 0, "OK", 0, 2)) {
+                    command.complete();
+                } else {
+                    command.future.completeExceptionally(
+                            new ImapException(command.description + " failed: " + result));
+                }
+                sendNext();
+            }
+        }
+    }
+
+
+
+    /**
+     * A command line, split at its literals: each part but the first is sent once the server
+     * asked for the literal with a continuation request
+     */
+    private static final class CommandLine {
+
+        private final List<byte[]> parts = new ArrayList<>();
+        private final ByteArrayOutputStream part = new ByteArrayOutputStream();
+
+
+
+        /**
+         * Append text as is
+         * @param text the text
+         * @return this {@link CommandLine}
+         */
+        CommandLine atom(String text) {
+            byte[] bytes = text.getBytes(StandardCharsets.ISO_8859_1);
+            part.write(bytes, 0, bytes.length);
+            return this;
+        }
+
+
+
+        /**
+         * Append a space and a string: quoted if printable ASCII, otherwise as a literal in UTF-8
+         * @param value the string
+         * @return this {@link CommandLine}
+         */
+        CommandLine string(String value) {
+            if (value.chars().allMatch(c -> c >= 0x20 && c < 0x7f)) {
+                return atom(" " + ResponseParser.quote(value));
+            }
+
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            atom(" {" + bytes.length + "}\r\n");
+            parts.add(part.toByteArray());
+            part.reset();
+            part.write(bytes, 0, bytes.length);
+            return this;
+        }
+
+
+
+        /**
+         * Terminate the command line
+         * @return the parts of the command line
+         */
+        List<byte[]> toParts() {
+            atom("\r\n");
+            parts.add(part.toByteArray());
+            return parts;
+        }
+    }
+
+
+
+    /**
+     * A command, with its future result
+     * @param <T> the type of the result
+     */
+    private static final class Command<T> {
+
+        private final String tag;
+        private final List<byte[]> parts;
+        private final String description;
+        private final Consumer<String> untagged;
+        private final Supplier<T> result;
+        private final FetchSink sink;
+        private final CompletableFuture<T> future = new CompletableFuture<>();
+        private int sent = 0;
+
+
+
+        Command(List<byte[]> parts, String description, Consumer<String> untagged, Supplier<T> result, FetchSink sink) {
+            String first = new String(parts.get(0), StandardCharsets.ISO_8859_1);
+            this.tag = first.substring(0, first.indexOf(' '));
+            this.parts = parts;
+            this.description = description;
+            this.untagged = untagged;
+            this.result = result;
+            this.sink = sink;
+        }
+
+
+
+        /** Complete the future with the result of the command */
+        void complete() {
+            try {
+                future.complete(result.get());
+
+            } catch (RuntimeException e) {
+                future.completeExceptionally(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,259 @@
+/*
+ * Project: imap2local
+ *
+ * Copyright (c) Attila Kovari
+ * All rights reserved.
+ *
+ * MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+
+package ro.kovari.imap.nio;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+
+/**
+ * An incremental parser of the responses of an IMAP server, fed with the bytes as they are received.<br>
+ * The lines of a response are gathered into its text. The literals are either streamed to the
+ * {@link Handler} without being buffered, e.g. the message bodies, or kept in memory and inserted
+ * into the text as quoted strings, e.g. the mailbox names; a streamed literal leaves its '{size}'
+ * marker in the text.
+ */
+class ResponseParser {
+
+    /** The literal at the end of a line: '{size}', or '{size+}' as sent by some servers */
+    private static final Pattern LITERAL = Pattern.compile("\\{(\\d+)\\+?\\}$");
+
+    /** The longest line accepted; the large data of a response comes in literals */
+    private static final int MAX_LINE = 1 << 20;
+
+    private final Handler handler;
+    private final StringBuilder response = new StringBuilder();
+    private byte[] line = new byte[256];
+    private int lineLength = 0;
+    private long literalSize = 0;
+    private long literalRemaining = 0;
+    private boolean streaming = false;
+    private ByteArrayOutputStream literal = null;
+
+
+
+    /**
+     * Create a new {@link ResponseParser}
+     * @param handler the {@link Handler} of the responses
+     */
+    ResponseParser(Handler handler) {
+        this.handler = handler;
+    }
+
+
+
+    /**
+     * Parse the received bytes, up to the limit of the buffer; the incomplete lines are kept for the next call
+     * @param in the {@link ByteBuffer}, backed by an array
+     * @throws IOException in case of a protocol error, or of an error of the {@link Handler}
+     */
+    void parse(ByteBuffer in) throws IOException {
+        // the Buffer methods, as the ByteBuffer overrides do not exist on Java 8
+        byte[] array = in.array();
+        int offset = in.arrayOffset();
+
+        while (in.hasRemaining()) {
+            int start = offset + in.position();
+            int end = offset + in.limit();
+
+            if (literalRemaining > 0) {
+                int n = (int) Math.min(literalRemaining, end - start);
+                if (streaming) {
+                    handler.literalData(array, start, n);
+                } else {
+                    literal.write(array, start, n);
+                }
+                ((Buffer) in).position(in.position() + n);
+                literalRemaining -= n;
+                if (literalRemaining == 0) {
+                    endLiteral();
+                }
+                continue;
+            }
+
+            int i = start;
+            while (i < end && array[i] != '\n') {
+                i++;
+            }
+            appendLine(array, start, i - start);
+            ((Buffer) in).position(i - offset + (i < end ? 1 : 0));
+            if (i < end) {
+                endLine();
+            }
+        }
+    }
+
+
+
+    /**
+     * Add bytes to the current line
+     * @param b the bytes
+     * @param off the offset of the first byte
+     * @param len the number of bytes
+     * @throws IOException if the line is too long
+     */
+    private void appendLine(byte[] b, int off, int len) throws IOException {
+        if (lineLength + len > MAX_LINE) {
+            throw new IOException("Response line too long!");
+        }
+        if (lineLength + len > line.length) {
+            line = Arrays.copyOf(line, Math.max(line.length * 2, lineLength + len));
+        }
+        System.arraycopy(b, off, line, lineLength, len);
+        lineLength += len;
+    }
+
+
+
+    /**
+     * Handle a complete line: either the end of a response, or the announcement of a literal
+     * @throws IOException in case of error
+     */
+    private void endLine() throws IOException {
+        int length = lineLength > 0 && line[lineLength - 1] == '\r' ? lineLength - 1 : lineLength;
+        String text = new String(line, 0, length, StandardCharsets.ISO_8859_1);
+        lineLength = 0;
+
+        Matcher matcher = LITERAL.matcher(text);
+        if (!matcher.find()) {
+            response.append(text);
+            String complete = response.toString();
+            response.setLength(0);
+            handler.response(complete);
+            return;
+        }
+
+        response.append(text, 0, matcher.start());
+        literalSize = Long.parseLong(matcher.group(1));
+        literalRemaining = literalSize;
+        streaming = handler.literalStarted(response.toString(), literalSize);
+        literal = streaming ? null : new ByteArrayOutputStream((int) Math.min(literalSize, MAX_LINE));
+        if (literalSize == 0) {
+            endLiteral();
+        }
+    }
+
+
+
+    /**
+     * Handle the end of a literal; the rest of the response follows on the same line
+     * @throws IOException in case of error
+     */
+    private void endLiteral() throws IOException {
+        if (streaming) {
+            response.append('{').append(literalSize).append('}');
+            handler.literalEnded();
+
+        } else {
+            response.append(quote(new String(literal.toByteArray(), StandardCharsets.UTF_8)));
+            literal = null;
+        }
+        streaming = false;
+    }
+
+
+
+    /**
+     * Quote a string as an IMAP quoted string
+     * @param value the string
+     * @return the quoted string
+     */
+    static String quote(String value) {
+        return '"' + value.replace("\\", "\\\\").replace("\"", "\\\"") + '"';
+    }
+
+
+
+    /**
+     * Get the value of an IMAP quoted string or atom
+     * @param value the quoted string, or the atom
+     * @return the value
+     */
+    static String unquote(String value) {
+        if (value.length() < 2 || value.charAt(0) != '"') {
+            return value;
+        }
+
+        StringBuilder result = new StringBuilder(value.length());
+        for (int i = 1; i < value.length() - 1; i++) {
+            char c = value.charAt(i);
+            if (c == '\\' && i < value.length() - 2) {
+                c = value.charAt(++i);
+            }
+            result.append(c);
+        }
+        return result.toString();
+    }
+
+
+
+    /** Receiver of the parsed responses */
+    interface Handler {
+
+        /**
+         * Called when a literal starts
+         * @param response the text of the response so far
+         * @param size the size of the literal
+         * @return true to stream the literal to {@link #literalData}, false to insert it into the response text
+         * @throws IOException in case of error
+         */
+        boolean literalStarted(String response, long size) throws IOException;
+
+
+
+        /**
+         * Called with the bytes of a streamed literal, as they are received
+         * @param b the bytes
+         * @param off the offset of the first byte
+         * @param len the number of bytes
+         */
+        void literalData(byte[] b, int off, int len);
+
+
+
+        /** Called at the end of a streamed literal */
+        void literalEnded();
+
+
+
+        /**
+         * Called with each complete response
+         * @param response the text of the response, without the final CRLF
+         * @throws IOException in case of error
+         */
+        void response(String response) throws IOException;
+    }
+}
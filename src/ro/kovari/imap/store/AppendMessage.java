@@ -0,0 +1,74 @@
+/*
+ * Project: imap2local
+ *
+ * Copyright (c) Attila Kovari
+ * All rights reserved.
+ *
+ * MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+
+package ro.kovari.imap.store;
+
+import javax.mail.Flags;
+import java.util.Date;
+
+
+/** A message to be appended to an IMAP folder, with its flags and internal date */
+public class AppendMessage {
+
+    private final byte[] content;
+    private final Flags flags;
+    private final Date internalDate;
+
+
+
+    /**
+     * Create a new {@link AppendMessage}
+     * @param content the RFC 822 message, with CRLF line endings
+     * @param flags the flags of the message
+     * @param internalDate the internal date of the message, or null to let the server set it
+     */
+    public AppendMessage(byte[] content, Flags flags, Date internalDate) {
+        this.content = content;
+        this.flags = flags;
+        this.internalDate = internalDate;
+    }
+
+
+
+    public byte[] getContent() {
+        return content;
+    }
+
+
+
+    public Flags getFlags() {
+        return flags;
+    }
+
+
+
+    public Date getInternalDate() {
+        return internalDate;
+    }
+}
@@ -0,0 +1,355 @@
+/*
+ * Project: imap2local
+ *
+ * Copyright (c) Attila Kovari
+ * All rights reserved.
+ *
+ * MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+
+package ro.kovari.imap.store;
+
+import ro.kovari.imap.exception.MaildirException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.SequenceInputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+
+/**
+ * A content-addressed store of MIME part bodies, kept next to a {@link MaildirLocalStore}.<br>
+ * Each body is stored once, in a file named after the SHA-256 hash of its content; the message
+ * files refer to the bodies in a trailer, after the closing MIME boundary, which MIME readers ignore.
+ * The files with a trailer are tagged by {@link #SPLIT_TAG} in their name, which the sender of a message
+ * has no control over; the other files are read as they are, whatever they end with.
+ * A message file is reassembled into the original message, byte for byte, by {@link #open(File)}.
+ */
+public class BlobStore {
+
+    /** The name of the store, next to the Maildir */
+    static final String BLOB_DIRECTORY = "imap2local-blobs";
+
+    private static final String TMP_FOLDER = "tmp";
+
+    /** The tag of the name of the message files ending with a trailer, after the size tag, e.g. '...,S=1234,B=1' */
+    static final String SPLIT_TAG = ",B=1";
+
+    static final String REFERENCE_HEADER = "X-Imap2local-Blob: ";
+    static final String TRAILER_HEADER = "X-Imap2local-Blobs: ";
+
+    /** The last line of the trailer has a fixed length: header, count, trailer length and CRLF */
+    static final int TRAILER_LINE_LENGTH = TRAILER_HEADER.length() + 10 + 1 + 10 + 2;
+
+    private static final Pattern TRAILER_LINE = Pattern.compile("X-Imap2local-Blobs: (\\d{10}) (\\d{10})\r\n");
+    private static final Pattern REFERENCE_LINE = Pattern.compile("X-Imap2local-Blob: (\\d+) ([0-9a-f]{64}) (\\d+)");
+
+    private final File location;
+    private final int threshold;
+
+
+
+    /**
+     * Create a new {@link BlobStore}
+     * @param location the location of the store
+     * @param threshold the minimum size of the MIME part bodies kept in the store
+     */
+    BlobStore(File location, int threshold) {
+        this.location = location;
+        this.threshold = threshold;
+    }
+
+
+
+    /**
+     * Get the minimum size of the MIME part bodies kept in the store
+     * @return the minimum size of the MIME part bodies kept in the store
+     */
+    public int getThreshold() {
+        return threshold;
+    }
+
+
+
+    /**
+     * Get an output stream writing a message into the given stream, with its large
+     * MIME part bodies moved to this store
+     * @param out the stream the message file is written to
+     * @return the new stream, to be finished before the message file is closed
+     */
+    MimeSplittingOutputStream split(OutputStream out) {
+        return new MimeSplittingOutputStream(out, this);
+    }
+
+
+
+    /**
+     * Create a temporary file receiving a body, to be moved into the store by {@link #add(File, String)}
+     * @return the temporary file
+     */
+    File createTempFile() {
+        File tmpFolder = new File(location, TMP_FOLDER);
+        if (!tmpFolder.isDirectory() && !tmpFolder.mkdirs() && !tmpFolder.isDirectory()) {
+            throw new MaildirException("Unable to create the blob store!");
+        }
+        return new File(tmpFolder, UUID.randomUUID().toString());
+    }
+
+
+
+    /**
+     * Move a body into the store; identical bodies are stored only once
+     * @param tmpFile the temporary file holding the body
+     * @param hash the SHA-256 hash of the body, in hex
+     * @throws IOException in case of error
+     */
+    void add(File tmpFile, String hash) throws IOException {
+        File file = getBlobFile(hash);
+        if (file.exists()) {
+            Files.delete(tmpFile.toPath());
+            return;
+        }
+
+        File folder = file.getParentFile();
+        if (!folder.isDirectory() && !folder.mkdirs() && !folder.isDirectory()) {
+            throw new IOException("Unable to create " + folder);
+        }
+        // another thread storing the same body at once moves the same content
+        Files.move(tmpFile.toPath(), file.toPath(),
+                StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+
+
+    /**
+     * Get the file of a body; bodies are spread over subfolders named after the first bytes of their hash
+     * @param hash the SHA-256 hash of the body, in hex
+     * @return the file of the body
+     */
+    private File getBlobFile(String hash) {
+        return new File(new File(new File(location, hash.substring(0, 2)), hash.substring(2, 4)), hash);
+    }
+
+
+
+    /**
+     * Open a message file of the Maildir, reassembling the original message from the message
+     * file and the bodies it refers to. Message files not tagged as split are read as they are.
+     * @param messageFile the message file
+     * @return the stream of the original message
+     * @throws IOException in case of error
+     */
+    public InputStream open(File messageFile) throws IOException {
+        if (!isSplit(messageFile)) {
+            return new FileInputStream(messageFile);
+        }
+
+        List<InputStream> segments = new ArrayList<>();
+        try (RandomAccessFile file = new RandomAccessFile(messageFile, "r")) {
+            long length = file.length();
+            if (length < TRAILER_LINE_LENGTH) {
+                throw new IOException("Missing blob trailer in " + messageFile);
+            }
+
+            byte[] line = new byte[TRAILER_LINE_LENGTH];
+            file.seek(length - TRAILER_LINE_LENGTH);
+            file.readFully(line);
+
+            Matcher matcher = TRAILER_LINE.matcher(new String(line, StandardCharsets.US_ASCII));
+            if (!matcher.matches()) {
+                throw new IOException("Missing blob trailer in " + messageFile);
+            }
+
+            long trailerLength = Long.parseLong(matcher.group(2));
+            long contentLength = length - trailerLength;
+            if (trailerLength < TRAILER_LINE_LENGTH || contentLength < 0) {
+                throw new IOException("Invalid blob trailer in " + messageFile);
+            }
+
+            byte[] trailer = new byte[(int) (trailerLength - TRAILER_LINE_LENGTH)];
+            file.seek(contentLength);
+            file.readFully(trailer);
+
+            long offset = 0;
+            for (String reference : new String(trailer, StandardCharsets.US_ASCII).split("\r\n")) {
+                if (reference.isEmpty()) {
+                    continue;
+                }
+
+                Matcher referenceMatcher = REFERENCE_LINE.matcher(reference);
+                if (!referenceMatcher.matches()) {
+                    throw new IOException("Invalid blob reference in " + messageFile);
+                }
+
+                long position = Long.parseLong(referenceMatcher.group(1));
+                segments.add(new RangeInputStream(messageFile, offset, position - offset));
+                segments.add(openBlob(referenceMatcher.group(2), Long.parseLong(referenceMatcher.group(3))));
+                offset = position;
+            }
+            segments.add(new RangeInputStream(messageFile, offset, contentLength - offset));
+
+        } catch (IOException | RuntimeException e) {
+            for (InputStream segment : segments) {
+                segment.close();
+            }
+            throw e;
+        }
+        return new SequenceInputStream(Collections.enumeration(segments));
+    }
+
+
+
+    /**
+     * Check whether a message file ends with a trailer referring to bodies of a store, from the tag of its name
+     * @param messageFile the message file
+     * @return true if the message file was split
+     */
+    static boolean isSplit(File messageFile) {
+        return MaildirFolder.getUniqueName(messageFile).contains(SPLIT_TAG);
+    }
+
+
+
+    /**
+     * Read a message file of the Maildir, reassembling the original message
+     * @param messageFile the message file
+     * @return the original message
+     * @throws IOException in case of error
+     */
+    public byte[] read(File messageFile) throws IOException {
+        try (InputStream in = open(messageFile)) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            for (int n; (n = in.read(buffer)) != -1; ) {
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        }
+    }
+
+
+
+    /**
+     * Open a body of the store
+     * @param hash the SHA-256 hash of the body, in hex
+     * @param length the expected length of the body
+     * @return the stream of the body
+     * @throws IOException if the body is missing or has been altered
+     */
+    private InputStream openBlob(String hash, long length) throws IOException {
+        File file = getBlobFile(hash);
+        if (file.length() != length) {
+            throw new FileNotFoundException("Missing blob " + hash);
+        }
+        return new RangeInputStream(file, 0, length);
+    }
+
+
+
+    /** A stream reading a range of a file, opened lazily so that a message keeps few files open */
+    private static class RangeInputStream extends InputStream {
+
+        private final File file;
+        private final long offset;
+        private long remaining;
+        private InputStream in;
+
+
+
+        RangeInputStream(File file, long offset, long length) {
+            this.file = file;
+            this.offset = offset;
+            this.remaining = length;
+        }
+
+
+
+        private boolean ensureOpen() throws IOException {
+            if (in == null && remaining > 0) {
+                FileInputStream stream = new FileInputStream(file);
+                stream.getChannel().position(offset);
+                in = stream;
+            }
+            return in != null;
+        }
+
+
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0 || !ensureOpen()) {
+                return -1;
+            }
+            int b = in.read();
+            if (b != -1) {
+                remaining--;
+            }
+            return b;
+        }
+
+
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0 || !ensureOpen()) {
+                return -1;
+            }
+            int n = in.read(b, off, (int) Math.min(len, remaining));
+            if (n > 0) {
+                remaining -= n;
+            }
+            return n;
+        }
+
+
+
+        @Override
+        public int available() throws IOException {
+            return in == null ? 0 : (int) Math.min(in.available(), remaining);
+        }
+
+
+
+        @Override
+        public void close() throws IOException {
+            remaining = 0;
+            if (in != null) {
+                in.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Project: imap2local
+ *
+ * Copyright (c) Attila Kovari
+ * All rights reserved.
+ *
+ * MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+
+package ro.kovari.imap.store;
+
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Date;
+
+
+/**
+ * The layout of a large Maildir folder partitioned by the INTERNALDATE of its messages into sub-Maildirs,
+ * the Maildir++ subfolders of the folder named after the year, e.g. '.Archive.#2020', or the month,
+ * e.g. '.Archive.#2020-03'.<br>
+ * The dates are taken in UTC, so that a message lands in the same partition whatever the time zone of the run.
+ */
+public enum DatePartition {
+    NONE(null), YEAR("yyyy"), MONTH("yyyy-MM");
+
+    private final DateTimeFormatter formatter;
+
+
+
+    DatePartition(String pattern) {
+        formatter = pattern == null ? null : DateTimeFormatter.ofPattern(pattern).withZone(ZoneOffset.UTC);
+    }
+
+
+
+    /**
+     * Get the name of the partition of a date
+     * @param date the date
+     * @return the name of the partition
+     */
+    String getName(Date date) {
+        return formatter.format(date.toInstant());
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Project: imap2local
+ *
+ * Copyright (c) Attila Kovari
+ * All rights reserved.
+ *
+ * MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+
+package ro.kovari.imap.store;
+
+import java.util.Properties;
+
+
+/** The STATUS of an IMAP folder, as reported by the server or recorded by the previous run */
+public class FolderStatus {
+
+    /** Value of the highest mod-sequence when the server doesn't support CONDSTORE */
+    public static final long NO_MODSEQ = -1;
+
+    private final int messages;
+    private final long uidNext;
+    private final long uidValidity;
+    private final long highestModSeq;
+
+
+
+    /**
+     * Create a new {@link FolderStatus}
+     * @param messages the number of messages
+     * @param uidNext the next UID to be assigned
+     * @param uidValidity the UID validity
+     * @param highestModSeq the highest mod-sequence, or {@link #NO_MODSEQ}
+     */
+    public FolderStatus(int messages, long uidNext, long uidValidity, long highestModSeq) {
+        this.messages = messages;
+        this.uidNext = uidNext;
+        this.uidValidity = uidValidity;
+        this.highestModSeq = highestModSeq;
+    }
+
+
+
+    public int getMessages() {
+        return messages;
+    }
+
+
+
+    public long getUidNext() {
+        return uidNext;
+    }
+
+
+
+    public long getUidValidity() {
+        return uidValidity;
+    }
+
+
+
+    public long getHighestModSeq() {
+        return highestModSeq;
+    }
+
+
+
+    /**
+     * Check whether the folder is unchanged since a previous status was taken
+     * @param previous the previous {@link FolderStatus}, or null if unknown
+     * @return true if nothing was added, removed or modified in the meantime
+     */
+    public boolean isUnchanged(FolderStatus previous) {
+        return previous != null
+                && messages == previous.messages
+                && uidNext == previous.uidNext
+                && uidValidity == previous.uidValidity
+                && highestModSeq == previous.highestModSeq;
+    }
+
+
+
+    /**
+     * Convert this {@link FolderStatus} to {@link Properties}
+     * @return the {@link Properties}
+     */
+    Properties toProperties() {
+        Properties properties = new Properties();
+        properties.setProperty("messages", String.valueOf(messages));
+        properties.setProperty("uidNext", String.valueOf(uidNext));
+        properties.setProperty("uidValidity", String.valueOf(uidValidity));
+        properties.setProperty("highestModSeq", String.valueOf(highestModSeq));
+        return properties;
+    }
+
+
+
+    /**
+     * Create a {@link FolderStatus} from {@link Properties}
+     * @param properties the {@link Properties}
+     * @return the {@link FolderStatus}
+     * @throws NumberFormatException if the properties are not valid
+     */
+    static FolderStatus fromProperties(Properties properties) {
+        return new FolderStatus(Integer.parseInt(properties.getProperty("messages")),
+                Long.parseLong(properties.getProperty("uidNext")),
+                Long.parseLong(properties.getProperty("uidValidity")),
+                Long.parseLong(properties.getProperty("highestModSeq", String.valueOf(NO_MODSEQ))));
+    }
+}
@@ -29,23 +29,113 @@
 
 package ro.kovari.imap.store;
 
+import com.sun.mail.iap.Argument;
+import com.sun.mail.iap.LiteralException;
+import com.sun.mail.iap.ProtocolException;
+import com.sun.mail.iap.Response;
 import com.sun.mail.imap.IMAPFolder;
 import com.sun.mail.imap.IMAPStore;
 import com.sun.mail.imap.SortTerm;
+import com.sun.mail.imap.protocol.BASE64MailboxEncoder;
+import com.sun.mail.imap.protocol.IMAPProtocol;
+import com.sun.mail.imap.protocol.IMAPResponse;
+import com.sun.mail.imap.protocol.Status;
 import ro.kovari.imap.auth.ImapAuthenticator;
 import ro.kovari.imap.config.Configuration;
 import ro.kovari.imap.exception.ImapException;
+import ro.kovari.imap.jfr.ConnectEvent;
+import ro.kovari.imap.jfr.FolderOpenEvent;
+import ro.kovari.imap.jfr.ReconnectEvent;
+import ro.kovari.imap.net.MeteredSocketFactory;
+import ro.kovari.imap.net.ProtocolTrace;
+import ro.kovari.imap.net.TlsSocketFactory;
+import ro.kovari.imap.net.TokenBucket;
+import ro.kovari.imap.net.TracingSocketFactory;
+import ro.kovari.imap.nio.NioImapEngine;
+import ro.kovari.imap.nio.NioImapSession;
+import ro.kovari.imap.utils.CountingOutputStream;
+import ro.kovari.imap.utils.StreamUtils;
 
 import javax.mail.*;
+import javax.mail.event.StoreEvent;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.cert.X509Certificate;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 
 /** Class representing a remote IMAP store */
 public class ImapStore {
 
+    /** The APPENDUID response code of an APPEND: the UIDVALIDITY and the UIDs of the messages */
+    private static final Pattern APPENDUID = Pattern.compile("\\[APPENDUID \\d+ ([0-9:,]+)\\]");
+
+    /** Number of NOOPs sent to measure the round trip time */
+    private static final int ROUND_TRIP_SAMPLES = 3;
+
+    /** Number of disjoint slices of the newest messages downloaded to compare the transports, half of them each */
+    private static final int COMPRESSION_SAMPLE_SLICES = 4;
+
+    /** The default ports of IMAP and IMAPS */
+    private static final int IMAP_PORT = 143;
+    private static final int IMAPS_PORT = 993;
+
+    /** A server on another port than the default one, e.g. 'localhost:1143' */
+    private static final Pattern HOST_PORT = Pattern.compile("([^:]+):(\\d{1,5})");
+
+    /** Trust manager of the hosts listed in 'sslTrustedHosts', whatever their certificate */
+    private static final TrustManager TRUST_ALL = new X509TrustManager() {
+        @Override
+        public void checkClientTrusted(X509Certificate[] chain, String authType) {
+        }
+
+        @Override
+        public void checkServerTrusted(X509Certificate[] chain, String authType) {
+        }
+
+        @Override
+        public X509Certificate[] getAcceptedIssuers() {
+            return new X509Certificate[0];
+        }
+    };
+
     private final Properties sessionProperties = new Properties();
+    private final MeteredSocketFactory socketFactory;
+    private final TlsSocketFactory tlsSocketFactory;
+    private final ProtocolTrace trace;
+    private final int port;
+    private final String sslTrustedHosts;
+    private final AtomicLong connectTime;
+    private final AtomicLong connectCount;
+    private final Queue<CompletableFuture<ImapStore>> warmConnections = new ConcurrentLinkedQueue<>();
+    private final String propertyPrefix;
+    private final CompressionMode compressionMode;
+    private final int compressionSampleSize;
+    private final ImapAuthenticator authenticator = new ImapAuthenticator();
+    private PasswordAuthentication auth = null;
+    private Runnable throttlingListener = null;
     private Store store = null;
     private String folderSeparator = null;
     private String accountName = null;
@@ -53,43 +143,624 @@ public class ImapStore {
 
 
     /**
-     * Create a new {@link ImapStore}
-     * @param host the IMAP server
+     * Create a new {@link ImapStore}<br>
+     * With a 'traceFile' configured, the protocol of all the connections is recorded into a {@link ProtocolTrace},
+     * without compression, so that it can be served back offline.
+     * @param host the IMAP server, optionally followed by ':' and a port, e.g. 'localhost:1143'
      * @param protocol the IMAP {@link Protocol} to use: either IMAP or IMAPS
      * @param additionalConfig additional IMAP configuration properties
      */
     public ImapStore(String host, Protocol protocol, Configuration additionalConfig) {
         String protocolName = protocol.name().toLowerCase();
+        Matcher hostPort = HOST_PORT.matcher(host);
+        if (hostPort.matches()) {
+            host = hostPort.group(1);
+            port = Integer.parseInt(hostPort.group(2));
+            sessionProperties.put("mail." + protocolName + ".port", port);
+        } else {
+            port = protocol == Protocol.IMAPS ? IMAPS_PORT : IMAP_PORT;
+        }
+
+        propertyPrefix = "mail." + protocolName;
+        sslTrustedHosts = additionalConfig.getSslTrustedHosts();
+        socketFactory = new MeteredSocketFactory(additionalConfig.getMaxBandwidth() > 0 ?
+                new TokenBucket(additionalConfig.getMaxBandwidth()) : null);
+        connectTime = new AtomicLong();
+        connectCount = new AtomicLong();
+        trace = additionalConfig.getTraceFile() != null ?
+                ProtocolTrace.forFile(additionalConfig.getTraceFile(), additionalConfig.isTraceMessages()) : null;
 
         sessionProperties.put("mail.store.protocol", protocolName);
         sessionProperties.put("mail." + protocolName + ".user", "");
         sessionProperties.put("mail." + protocolName + ".host", host);
         sessionProperties.put("mail." + protocolName + ".partialfetch", additionalConfig.isPartialFetchEnabled());
         sessionProperties.put("mail." + protocolName + ".fetchsize", additionalConfig.getFetchSize());
-        sessionProperties.computeIfAbsent("mail." + protocolName + ".ssl.trust",
-                val -> additionalConfig.getSslTrustedHosts());
+
+        if (protocol == Protocol.IMAPS) {
+            // one SSL context for all the connections, so that they resume the TLS session of the first one;
+            // the trusted hosts are handled by the context, as JavaMail would create a new one for each connection
+            TlsSocketFactory factory = new TlsSocketFactory(createSslContext(), socketFactory);
+            tlsSocketFactory = trace != null ? factory.withTrace(trace) : factory;
+        } else {
+            tlsSocketFactory = null;
+            if (sslTrustedHosts != null) {
+                sessionProperties.put("mail." + protocolName + ".ssl.trust", sslTrustedHosts);
+            }
+        }
+
+        // count the bytes going over the wire; SSL, if any, is layered on top of these sockets
+        putSocketFactory(sessionProperties, socketFactory);
+
+        // in AUTO mode start uncompressed; compression is enabled later if it proves to be faster;
+        // a trace is recorded uncompressed, as the compression is layered on top of the recording sockets
+        compressionMode = trace != null ? CompressionMode.OFF : additionalConfig.getCompressionMode();
+        sessionProperties.put("mail." + protocolName + ".compress.enable", compressionMode == CompressionMode.ON);
+        sessionProperties.put("mail." + protocolName + ".compress.level", additionalConfig.getCompressionLevel());
+
+        // deliver the untagged OK/NO/BAD/BYE responses to the store listeners, see setThrottlingListener
+        sessionProperties.put("mail." + protocolName + ".enableresponseevents", true);
+
+        compressionSampleSize = additionalConfig.getCompressionSampleSize();
+    }
+
+
+
+    /**
+     * Create a new {@link ImapStore} connected to the same server, with the same credentials
+     * and transport settings as the specified, already connected, {@link ImapStore}
+     * @param other the connected {@link ImapStore}
+     */
+    private ImapStore(ImapStore other) {
+        sessionProperties.putAll(other.sessionProperties);
+        socketFactory = other.socketFactory;
+        tlsSocketFactory = other.tlsSocketFactory;
+        trace = other.trace;
+        port = other.port;
+        sslTrustedHosts = other.sslTrustedHosts;
+        connectTime = other.connectTime;
+        connectCount = other.connectCount;
+        propertyPrefix = other.propertyPrefix;
+        compressionMode = other.compressionMode;
+        compressionSampleSize = other.compressionSampleSize;
+
+        auth = other.auth;
+        throttlingListener = other.throttlingListener;
+        store = openStore(sessionProperties);
+        folderSeparator = other.folderSeparator;
+        accountName = other.accountName;
+    }
+
+
+
+    /**
+     * Open an additional connection to the remote IMAP server, or take one opened by {@link #warmUp(int)}.<br>
+     * The credentials are not asked for again and the bytes received are counted together
+     * with the ones of this {@link ImapStore}.
+     * @return a new, connected {@link ImapStore}
+     */
+    public ImapStore newConnection() {
+        if (!hasValidState()) {
+            throw new ImapException("Invalid IMAP store state!");
+        }
+
+        CompletableFuture<ImapStore> warmConnection;
+        while ((warmConnection = warmConnections.poll()) != null) {
+            try {
+                ImapStore connection = warmConnection.join();
+                if (connection.hasValidState()) {
+                    // the listener may have been set after the connection was opened
+                    connection.throttlingListener = throttlingListener;
+                    return connection;
+                }
+
+            } catch (CompletionException e) {
+                // the connection failed to open; it is opened again below, failing where it belongs
+            }
+        }
+        return new ImapStore(this);
+    }
+
+
+
+    /**
+     * Start opening additional connections to the remote IMAP server in the background, all at once,
+     * e.g. while the folders are fetched; they are handed out by {@link #newConnection()}.<br>
+     * With IMAPS, the TLS session of this {@link ImapStore} is resumed by each of them.
+     * The connections which are not handed out are closed along with this {@link ImapStore}.
+     * @param count the number of connections
+     */
+    public void warmUp(int count) {
+        if (!hasValidState()) {
+            throw new ImapException("Invalid IMAP store state!");
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, count));
+        for (int i = 0; i < count; i++) {
+            warmConnections.add(CompletableFuture.supplyAsync(() -> new ImapStore(this), executor));
+        }
+        executor.shutdown();
+    }
+
+
+
+    /** Close the connection to the remote IMAP server, along with all open folders */
+    public void close() {
+        closeWarmConnections();
+        if (store == null) {
+            return;
+        }
+
+        try {
+            store.close();
+
+        } catch (MessagingException e) {
+            throw new ImapException("Exception closing IMAP store!", e);
+        }
     }
 
 
 
     /** Connect to the remote IMAP server */
     public void connect() {
-        ImapAuthenticator authenticator = new ImapAuthenticator();
-        Session session = Session.getInstance(sessionProperties, authenticator);
+        // ask for the credentials only once; they are reused for every further connection,
+        // and when connecting again once closed
+        if (auth == null) {
+            auth = authenticator.getPasswordAuthentication();
+        }
+        store = openStore(sessionProperties);
 
         try {
-            store = session.getStore();
-            PasswordAuthentication auth = authenticator.getPasswordAuthentication();
-
-            if (!store.isConnected()) {
-                store.connect(auth.getUserName(), auth.getPassword());
-            }
             folderSeparator = String.valueOf(store.getDefaultFolder().getSeparator());
             accountName = auth.getUserName();
 
+        } catch (MessagingException e) {
+            throw new ImapException("Exception getting IMAP store!", e);
+        }
+    }
+
+
+
+    /**
+     * Close the connections opened by {@link #warmUp(int)} which were not handed out
+     * @return the number of connections closed
+     */
+    private int closeWarmConnections() {
+        int count = 0;
+        CompletableFuture<ImapStore> warmConnection;
+        while ((warmConnection = warmConnections.poll()) != null) {
+            try {
+                warmConnection.join().close();
+                count++;
+
+            } catch (CompletionException | ImapException e) {
+                // nothing left to do with a connection which was not used
+            }
+        }
+        return count;
+    }
+
+
+
+    /**
+     * Open a new connection to the remote IMAP server, using the already known credentials
+     * @param properties the session properties of the new connection
+     * @return the connected {@link Store}
+     */
+    private Store openStore(Properties properties) {
+        Session session = Session.getInstance(properties, authenticator);
+        ConnectEvent event = new ConnectEvent();
+        event.begin();
+        long start = System.nanoTime();
+
+        try {
+            Store newStore = session.getStore();
+            newStore.addStoreListener(this::handleStoreEvent);
+            newStore.connect(auth.getUserName(), auth.getPassword());
+            connectTime.addAndGet(System.nanoTime() - start);
+            connectCount.incrementAndGet();
+            return newStore;
+
         } catch (MessagingException e) {
             // not much to do if connection or authentication fails
             throw new ImapException("Exception getting IMAP store!", e);
+
+        } finally {
+            event.end();
+            if (event.shouldCommit()) {
+                event.host = getHost();
+                event.protocol = properties.getProperty("mail.store.protocol");
+                event.compressed = Boolean.TRUE.equals(properties.get(propertyPrefix + ".compress.enable"));
+                event.commit();
+            }
+        }
+    }
+
+
+
+    /**
+     * Open a session to the remote IMAP server on a {@link NioImapEngine}, logged in with the credentials
+     * of this store; the credentials are asked for if this store is not connected yet.<br>
+     * The session uses the same host, protocol and trusted hosts as this store.
+     * @param engine the {@link NioImapEngine}
+     * @return the future {@link NioImapSession}, logged in, with the capabilities of the server known
+     */
+    public CompletableFuture<NioImapSession> openSession(NioImapEngine engine) {
+        synchronized (this) {
+            if (auth == null) {
+                auth = authenticator.getPasswordAuthentication();
+                accountName = auth.getUserName();
+            }
+        }
+        PasswordAuthentication credentials = auth;
+        String protocol = sessionProperties.getProperty("mail.store.protocol");
+        boolean secure = protocol.equals(Protocol.IMAPS.name().toLowerCase());
+
+        ConnectEvent event = new ConnectEvent();
+        event.begin();
+        long start = System.nanoTime();
+        return engine.connect(getHost(), port,
+                        secure ? tlsSocketFactory.getContext() : null)
+                .thenCompose(session -> session.login(credentials.getUserName(), credentials.getPassword())
+                        .thenCompose(v -> session.hasCapabilities() ?
+                                CompletableFuture.completedFuture(null) : session.capability())
+                        .thenApply(v -> session))
+                .whenComplete((session, e) -> {
+                    event.end();
+                    if (session != null) {
+                        connectTime.addAndGet(System.nanoTime() - start);
+                        connectCount.incrementAndGet();
+                    }
+                    if (session != null && event.shouldCommit()) {
+                        event.host = getHost();
+                        event.protocol = protocol;
+                        event.commit();
+                    }
+                });
+    }
+
+
+
+    /**
+     * Create the {@link SSLContext} shared by the IMAPS connections, trusting the certificate
+     * of the server if it is listed in the trusted hosts, like JavaMail does
+     * @return the {@link SSLContext}
+     */
+    private SSLContext createSslContext() {
+        String trusted = sslTrustedHosts;
+        try {
+            if (trusted != null && (trusted.equals("*")
+                    || Arrays.asList(trusted.trim().split("\\s+")).contains(getHost()))) {
+                SSLContext context = SSLContext.getInstance("TLS");
+                context.init(null, new TrustManager[]{TRUST_ALL}, null);
+                return context;
+            }
+            return SSLContext.getDefault();
+
+        } catch (GeneralSecurityException e) {
+            throw new ImapException("Unable to initialize SSL!", e);
+        }
+    }
+
+
+
+    /**
+     * Get the host name of the remote IMAP server
+     * @return the host name of the remote IMAP server
+     */
+    public String getHost() {
+        return String.valueOf(sessionProperties.get(propertyPrefix + ".host"));
+    }
+
+
+
+    /**
+     * Set the listener to be notified when the server asks the client to slow down by a
+     * [THROTTLED] response code, without failing the command.<br>
+     * Connections dropped by the server (BYE) surface as exceptions instead, see {@link #isThrottled(Throwable)}.
+     * The listener is shared with the connections opened later by {@link #newConnection()}.
+     * @param listener the listener
+     */
+    public void setThrottlingListener(Runnable listener) {
+        throttlingListener = listener;
+    }
+
+
+
+    /**
+     * Check whether an exception was caused by the server throttling the client or dropping the connection
+     * @param e the exception
+     * @return true if the server throttled the client or dropped the connection
+     */
+    public static boolean isThrottled(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof StoreClosedException
+                    || cause instanceof FolderClosedException
+                    || cause instanceof com.sun.mail.util.FolderClosedIOException
+                    || cause instanceof com.sun.mail.iap.ConnectionException
+                    || (cause.getMessage() != null && cause.getMessage().contains("[THROTTLED]"))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+
+    /**
+     * Handle the responses delivered to the store listeners
+     * @param event the {@link StoreEvent}
+     */
+    private void handleStoreEvent(StoreEvent event) {
+        String response = event.getMessage();
+        // a BYE is not taken into account here, as it is also the regular answer to LOGOUT
+        if (throttlingListener != null && response != null && response.contains("[THROTTLED]")) {
+            throttlingListener.run();
+        }
+    }
+
+
+
+    /**
+     * Get the UID of a message
+     * @param folder the IMAP folder of the message
+     * @param message the message
+     * @return the UID of the message
+     */
+    public long getUid(Folder folder, Message message) {
+        try {
+            return ((UIDFolder) folder).getUID(message);
+
+        } catch (MessagingException e) {
+            throw new ImapException("Exception getting message UID!", e);
+        }
+    }
+
+
+
+    /**
+     * Put the socket factories of the connections into their session properties: the plain sockets
+     * are metered by the specified {@link MeteredSocketFactory}, and, with IMAPS, TLS is layered on top of them
+     * by a {@link TlsSocketFactory} sharing the {@link SSLContext} of this store
+     * @param properties the session properties
+     * @param factory the {@link MeteredSocketFactory}
+     */
+    private void putSocketFactory(Properties properties, MeteredSocketFactory factory) {
+        // with IMAPS, the protocol is recorded above TLS, by the TLS socket factory
+        properties.put(propertyPrefix + ".socketFactory", trace != null && tlsSocketFactory == null ?
+                new TracingSocketFactory(factory, trace) : factory);
+        if (tlsSocketFactory != null) {
+            properties.put(propertyPrefix + ".ssl.socketFactory", factory == socketFactory ?
+                    tlsSocketFactory : tlsSocketFactory.withSocketFactory(factory));
+        }
+    }
+
+
+
+    /**
+     * Get a summary of the connections opened so far: their number, the average time taken to
+     * connect and log in, and, with IMAPS, how many of them resumed a TLS session
+     * @return the summary of the connections
+     */
+    public String getConnectionStatistics() {
+        long count = connectCount.get();
+        String statistics = String.format("Opened %d connection(s), in %.0f ms on average to connect and log in",
+                count, count > 0 ? connectTime.get() / 1e6 / count : 0.0);
+
+        if (tlsSocketFactory != null && tlsSocketFactory.getHandshakes() > 0) {
+            statistics += String.format(" (%d of %d TLS handshakes resumed a session)",
+                    tlsSocketFactory.getResumedHandshakes(), tlsSocketFactory.getHandshakes());
+        }
+        return statistics;
+    }
+
+
+
+    /**
+     * Get the number of bytes received over the wire so far
+     * @return the number of bytes received over the wire
+     */
+    public long getBytesReceived() {
+        return socketFactory.getBytesRead();
+    }
+
+
+
+    /**
+     * Select the faster transport when the compression mode is {@link CompressionMode#AUTO}.<br>
+     * The newest messages of the specified folder are downloaded in disjoint slices, each over a dedicated
+     * connection, without COMPRESS=DEFLATE, with it, with it again and without it again, so that neither
+     * transport gains from messages cached by the server after the first download, nor from the network
+     * getting faster or slower meanwhile; the transport with the higher throughput is kept for the rest
+     * of the session.
+     * @param folder the folder to take the sample from
+     * @return true if the store was reconnected, in which case the folders have to be fetched again
+     */
+    public boolean selectCompression(Folder folder) {
+        if (!hasValidState()) {
+            throw new ImapException("Invalid IMAP store state!");
+        }
+
+        if (compressionMode != CompressionMode.AUTO) {
+            return false;
+        }
+
+        try {
+            if (!((IMAPStore) store).hasCapability("COMPRESS=DEFLATE")) {
+                System.out.println("Compression not supported by the server. Moving on!");
+                return false;
+            }
+
+        } catch (MessagingException e) {
+            throw new ImapException("Exception getting the server capabilities!", e);
+        }
+
+        int messageCount;
+        try {
+            messageCount = Math.min(2 * compressionSampleSize, folder.getMessageCount());
+
+        } catch (MessagingException e) {
+            throw new ImapException("Exception getting the message count!", e);
+        }
+        // a folder too small to be sliced is downloaded whole each time; the order still evens out the caching
+        int sliceSize = Math.max(1, messageCount / COMPRESSION_SAMPLE_SLICES);
+        int sliceStep = messageCount >= COMPRESSION_SAMPLE_SLICES ? sliceSize : 0;
+
+        TransferSample plain = null;
+        TransferSample compressed = null;
+        for (int slice = 0; slice < COMPRESSION_SAMPLE_SLICES; slice++) {
+            // the slices go plain, compressed, compressed, plain
+            boolean compress = (slice + 1) / 2 % 2 == 1;
+            TransferSample sample = sampleTransfer(folder.getFullName(), compress, slice * sliceStep,
+                    sliceStep > 0 ? sliceSize : messageCount);
+            if (compress) {
+                compressed = compressed == null ? sample : compressed.plus(sample);
+            } else {
+                plain = plain == null ? sample : plain.plus(sample);
+            }
+        }
+
+        System.out.println(String.format("Uncompressed: %.1f KB/s, compressed: %.1f KB/s, compression ratio: %.2f",
+                plain.getThroughput() / 1024, compressed.getThroughput() / 1024, compressed.getRatio()));
+
+        if (compressed.getThroughput() <= plain.getThroughput()) {
+            System.out.println("Compression disabled.");
+            return false;
+        }
+
+        System.out.println("Compression enabled.");
+        sessionProperties.put(propertyPrefix + ".compress.enable", true);
+        ReconnectEvent event = new ReconnectEvent();
+        event.begin();
+        // the connections warmed up so far are uncompressed
+        int warmConnectionCount = closeWarmConnections();
+        try {
+            store.close();
+
+        } catch (MessagingException e) {
+            // the old connection is dropped anyway
+        }
+        store = openStore(sessionProperties);
+        if (warmConnectionCount > 0) {
+            warmUp(warmConnectionCount);
+        }
+
+        event.end();
+        if (event.shouldCommit()) {
+            event.host = getHost();
+            event.reason = "compression enabled";
+            event.commit();
+        }
+        return true;
+    }
+
+
+
+    /**
+     * Download the newest messages of a folder over a dedicated connection, using the current
+     * transport settings, and measure the throughput
+     * @param folder the folder to take the sample from
+     * @return the {@link TransferSample}
+     */
+    public TransferSample sampleTransfer(Folder folder) {
+        if (!hasValidState()) {
+            throw new ImapException("Invalid IMAP store state!");
+        }
+        return sampleTransfer(folder.getFullName(),
+                Boolean.TRUE.equals(sessionProperties.get(propertyPrefix + ".compress.enable")), 0,
+                compressionSampleSize);
+    }
+
+
+
+    /**
+     * Get the sizes of all messages of an IMAP folder, using a single FETCH, without downloading them
+     * @param folder the IMAP folder
+     * @return the sizes of the messages, in bytes
+     */
+    public long[] getMessageSizes(Folder folder) {
+        if (!hasValidState()) {
+            throw new ImapException("Invalid IMAP store state!");
+        }
+
+        try {
+            openReadOnly(folder);
+
+            // a single 'FETCH 1:* (RFC822.SIZE)' for the whole folder
+            Message[] messages = folder.getMessages();
+            FetchProfile fetchProfile = new FetchProfile();
+            fetchProfile.add(FetchProfile.Item.SIZE);
+            folder.fetch(messages, fetchProfile);
+
+            long[] sizes = new long[messages.length];
+            for (int i = 0; i < messages.length; i++) {
+                sizes[i] = messages[i].getSize();
+            }
+            return sizes;
+
+        } catch (MessagingException e) {
+            throw new ImapException("Exception getting message sizes!", e);
+        }
+    }
+
+
+
+    /**
+     * Download some of the newest messages of a folder over a dedicated connection and measure the throughput
+     * @param folderName the full name of the folder
+     * @param compress whether to enable COMPRESS=DEFLATE on the connection
+     * @param skip the number of newest messages skipped
+     * @param count the number of messages downloaded, older than the ones skipped
+     * @return the {@link TransferSample}
+     */
+    private TransferSample sampleTransfer(String folderName, boolean compress, int skip, int count) {
+        MeteredSocketFactory sampleSocketFactory = new MeteredSocketFactory(socketFactory.getTokenBucket());
+
+        Properties properties = new Properties();
+        properties.putAll(sessionProperties);
+        putSocketFactory(properties, sampleSocketFactory);
+        properties.put(propertyPrefix + ".compress.enable", compress);
+
+        Store sampleStore = openStore(properties);
+        try {
+            Folder sampleFolder = sampleStore.getFolder(folderName);
+            sampleFolder.open(Folder.READ_ONLY);
+
+            // the lowest of a few NOOPs approximates the round trip time
+            long roundTrip = Long.MAX_VALUE;
+            for (int i = 0; i < ROUND_TRIP_SAMPLES; i++) {
+                long start = System.nanoTime();
+                ((IMAPFolder) sampleFolder).doCommand(protocol -> {
+                    protocol.noop();
+                    return null;
+                });
+                roundTrip = Math.min(roundTrip, System.nanoTime() - start);
+            }
+
+            AtomicLong messageBytes = new AtomicLong();
+            long wireBytes = sampleSocketFactory.getBytesRead();
+            long start = System.nanoTime();
+
+            int last = sampleFolder.getMessageCount() - skip;
+            int first = Math.max(1, last - count + 1);
+            if (last >= first) {
+                for (Message message : sampleFolder.getMessages(first, last)) {
+                    message.writeTo(new CountingOutputStream(StreamUtils.nullOutputStream(), messageBytes));
+                }
+            }
+
+            return new TransferSample(Math.max(0, last - first + 1), messageBytes.get(),
+                    sampleSocketFactory.getBytesRead() - wireBytes, System.nanoTime() - start, roundTrip);
+
+        } catch (MessagingException | IOException e) {
+            throw new ImapException("Exception sampling the transfer rate!", e);
+
+        } finally {
+            try {
+                sampleStore.close();
+
+            } catch (MessagingException e) {
+                // nothing left to do with the sample connection
+            }
         }
     }
 
@@ -124,7 +795,7 @@ public class ImapStore {
     /**
      * Get the messages from an IMAP folder.<br>
      * If the server supports the SORT extension the messages will be returned sorted
-     * based on the arrival date and time.
+     * based on the arrival date and time. Their UIDs are fetched along with them.
      * @param folder the IMAP folder
      * @return an array of {@link Message} objects, representing the messages from this folder
      */
@@ -150,16 +821,18 @@ public class ImapStore {
         */
 
         try {
-            folder.open(Folder.READ_ONLY);
+            openReadOnly(folder);
             // if the server supports it, get the messages sorted
             // based on the arrival date and time
-            if (((IMAPStore) store).hasCapability("SORT")) {
-                return ((IMAPFolder) folder).getSortedMessages(
-                        new SortTerm[] { SortTerm.ARRIVAL }
-                );
-            }
+            Message[] messages = ((IMAPStore) store).hasCapability("SORT") ?
+                    ((IMAPFolder) folder).getSortedMessages(new SortTerm[] { SortTerm.ARRIVAL }) :
+                    folder.getMessages();
 
-            return folder.getMessages();
+            // the UIDs name the message files; a single FETCH spares a round trip per message
+            FetchProfile fetchProfile = new FetchProfile();
+            fetchProfile.add(UIDFolder.FetchProfileItem.UID);
+            folder.fetch(messages, fetchProfile);
+            return messages;
 
         } catch (MessagingException e) {
             throw new ImapException("Exception getting messages!", e);
@@ -168,6 +841,554 @@ public class ImapStore {
 
 
 
+    /**
+     * Get the messages with the UIDs from the specified {@link UidRange} of an IMAP folder
+     * @param folder the IMAP folder
+     * @param range the {@link UidRange}
+     * @return an array of {@link Message} objects, in ascending UID order
+     */
+    public Message[] getMessages(Folder folder, UidRange range) {
+        if (!hasValidState()) {
+            throw new ImapException("Invalid IMAP store state!");
+        }
+
+        try {
+            openReadOnly(folder);
+            return ((UIDFolder) folder).getMessagesByUID(range.getFirstUid(), range.getLastUid());
+
+        } catch (MessagingException e) {
+            throw new ImapException("Exception getting messages!", e);
+        }
+    }
+
+
+
+    /**
+     * Fetch the flags, the internal date, the size and the UID of messages, using a single FETCH,
+     * so that copying the messages to another server needs no further round trip per message but the body
+     * @param folder the IMAP folder of the messages
+     * @param messages the messages
+     */
+    public void fetchAttributes(Folder folder, Message[] messages) {
+        if (!hasValidState()) {
+            throw new ImapException("Invalid IMAP store state!");
+        }
+
+        try {
+            openReadOnly(folder);
+            FetchProfile fetchProfile = new FetchProfile();
+            fetchProfile.add(FetchProfile.Item.FLAGS);
+            fetchProfile.add(FetchProfile.Item.SIZE);
+            fetchProfile.add(UIDFolder.FetchProfileItem.UID);
+            fetchProfile.add(IMAPFolder.FetchProfileItem.INTERNALDATE);
+            folder.fetch(messages, fetchProfile);
+
+        } catch (MessagingException e) {
+            throw new ImapException("Exception fetching message attributes!", e);
+        }
+    }
+
+
+
+    /**
+     * Fetch the internal date of messages, using a single FETCH, so that no round trip per message
+     * is needed to get it while saving the messages
+     * @param folder the IMAP folder of the messages
+     * @param messages the messages
+     */
+    public void fetchInternalDates(Folder folder, Message[] messages) {
+        if (!hasValidState()) {
+            throw new ImapException("Invalid IMAP store state!");
+        }
+
+        try {
+            openReadOnly(folder);
+            FetchProfile fetchProfile = new FetchProfile();
+            fetchProfile.add(IMAPFolder.FetchProfileItem.INTERNALDATE);
+            folder.fetch(messages, fetchProfile);
+
+        } catch (MessagingException e) {
+            throw new ImapException("Exception fetching internal dates!", e);
+        }
+    }
+
+
+
+    /**
+     * Get the UID validity of an IMAP folder
+     * @param folder the IMAP folder
+     * @return the UID validity
+     */
+    public long getUidValidity(Folder folder) {
+        if (!hasValidState()) {
+            throw new ImapException("Invalid IMAP store state!");
+        }
+
+        try {
+            openReadOnly(folder);
+            return ((UIDFolder) folder).getUIDValidity();
+
+        } catch (MessagingException e) {
+            throw new ImapException("Exception getting UID validity!", e);
+        }
+    }
+
+
+
+    /**
+     * Split an IMAP folder into disjoint UID ranges, each holding roughly the same number of messages
+     * @param folder the IMAP folder
+     * @param count the number of ranges
+     * @return the {@link UidRange}s, in ascending UID order
+     */
+    public List<UidRange> getUidRanges(Folder folder, int count) {
+        return getUidRanges(folder, count, new UidRange(1, UIDFolder.MAXUID, 0));
+    }
+
+
+
+    /**
+     * Split the messages of an IMAP folder within a UID range into disjoint UID ranges,
+     * each holding roughly the same number of messages
+     * @param folder the IMAP folder
+     * @param count the number of ranges
+     * @param within the UID range to split
+     * @return the {@link UidRange}s, in ascending UID order
+     */
+    public List<UidRange> getUidRanges(Folder folder, int count, UidRange within) {
+        if (!hasValidState()) {
+            throw new ImapException("Invalid IMAP store state!");
+        }
+
+        try {
+            openReadOnly(folder);
+
+            // a single 'UID FETCH first:last (UID)' for the whole range
+            Message[] messages = ((UIDFolder) folder).getMessagesByUID(within.getFirstUid(), within.getLastUid());
+
+            long[] uids = new long[messages.length];
+            for (int i = 0; i < messages.length; i++) {
+                uids[i] = ((UIDFolder) folder).getUID(messages[i]);
+            }
+            Arrays.sort(uids);
+
+            List<UidRange> ranges = new ArrayList<>();
+            int rangeCount = Math.min(count, uids.length);
+            for (int i = 0; i < rangeCount; i++) {
+                int first = (int) ((long) i * uids.length / rangeCount);
+                int last = (int) ((long) (i + 1) * uids.length / rangeCount) - 1;
+                ranges.add(new UidRange(uids[first], uids[last], last - first + 1));
+            }
+            return ranges;
+
+        } catch (MessagingException e) {
+            throw new ImapException("Exception getting message UIDs!", e);
+        }
+    }
+
+
+
+    /**
+     * Get the UIDs of all the messages of an IMAP folder, using a single 'UID SEARCH ALL'
+     * @param folder the IMAP folder
+     * @return the UIDs of the messages
+     */
+    public Set<Long> getUids(Folder folder) {
+        if (!hasValidState()) {
+            throw new ImapException("Invalid IMAP store state!");
+        }
+
+        try {
+            openReadOnly(folder);
+            Set<Long> uids = new HashSet<>();
+            ((IMAPFolder) folder).doCommand(protocol -> {
+                Response[] responses = protocol.command("UID SEARCH ALL", null);
+                for (Response response : responses) {
+                    if (((IMAPResponse) response).keyEquals("SEARCH")) {
+                        long uid;
+                        while ((uid = response.readLong()) != -1) {
+                            uids.add(uid);
+                        }
+                    }
+                }
+                protocol.notifyResponseHandlers(responses);
+                protocol.handleResult(responses[responses.length - 1]);
+                return null;
+            });
+            return uids;
+
+        } catch (MessagingException e) {
+            throw new ImapException("Exception getting message UIDs!", e);
+        }
+    }
+
+
+
+    /**
+     * Get the number of messages in an IMAP folder, without opening it if closed
+     * @param folder the IMAP folder
+     * @return the number of messages
+     */
+    public int getMessageCount(Folder folder) {
+        if (!hasValidState()) {
+            throw new ImapException("Invalid IMAP store state!");
+        }
+
+        try {
+            return folder.getMessageCount();
+
+        } catch (MessagingException e) {
+            throw new ImapException("Exception getting message count!", e);
+        }
+    }
+
+
+
+    /**
+     * Get the STATUS of IMAP folders, without selecting them.<br>
+     * If the server supports LIST-STATUS (RFC 5819) a single command is sent for all folders,
+     * otherwise one STATUS command per folder.
+     * @param folders the IMAP folders
+     * @return the {@link FolderStatus} of each folder, by full name
+     */
+    public Map<String, FolderStatus> getFolderStatuses(List<Folder> folders) {
+        if (!hasValidState()) {
+            throw new ImapException("Invalid IMAP store state!");
+        }
+
+        try {
+            IMAPStore imapStore = (IMAPStore) store;
+            String items = imapStore.hasCapability("CONDSTORE") ?
+                    "MESSAGES UIDNEXT UIDVALIDITY HIGHESTMODSEQ" : "MESSAGES UIDNEXT UIDVALIDITY";
+            boolean listStatus = imapStore.hasCapability("LIST-STATUS");
+
+            // commands on a closed folder go over the store connection
+            IMAPFolder defaultFolder = (IMAPFolder) store.getDefaultFolder();
+            Map<String, FolderStatus> statuses = new HashMap<>();
+
+            defaultFolder.doCommand(protocol -> {
+                if (listStatus) {
+                    Response[] responses = protocol.command(
+                            "LIST \"\" \"*\" RETURN (STATUS (" + items + "))", null);
+                    for (Response response : responses) {
+                        if (((IMAPResponse) response).keyEquals("STATUS")) {
+                            Status status = new Status(response);
+                            statuses.put(status.mbox, toFolderStatus(status));
+                        }
+                    }
+                    protocol.notifyResponseHandlers(responses);
+                    protocol.handleResult(responses[responses.length - 1]);
+                }
+
+                // folders missing from the LIST-STATUS answer, if any, are asked for one by one
+                for (Folder folder : folders) {
+                    if (!statuses.containsKey(folder.getFullName())) {
+                        statuses.put(folder.getFullName(),
+                                toFolderStatus(protocol.status(folder.getFullName(), items.split(" "))));
+                    }
+                }
+                return null;
+            });
+            return statuses;
+
+        } catch (MessagingException e) {
+            throw new ImapException("Exception getting folder status!", e);
+        }
+    }
+
+
+
+    /**
+     * Convert a JavaMail {@link Status} to a {@link FolderStatus}
+     * @param status the {@link Status}
+     * @return the {@link FolderStatus}
+     */
+    private static FolderStatus toFolderStatus(Status status) {
+        return new FolderStatus(status.total, status.uidnext, status.uidvalidity,
+                status.highestmodseq > 0 ? status.highestmodseq : FolderStatus.NO_MODSEQ);
+    }
+
+
+
+    /**
+     * Create an IMAP folder, unless it exists
+     * @param fullName the full name of the folder
+     */
+    public void createFolder(String fullName) {
+        if (!hasValidState()) {
+            throw new ImapException("Invalid IMAP store state!");
+        }
+
+        try {
+            Folder folder = store.getFolder(fullName);
+            if (!folder.exists() && !folder.create(Folder.HOLDS_MESSAGES | Folder.HOLDS_FOLDERS)
+                    && !folder.create(Folder.HOLDS_MESSAGES)) {
+                throw new ImapException("Unable to create IMAP folder " + fullName + "!");
+            }
+
+        } catch (MessagingException e) {
+            throw new ImapException("Exception creating IMAP folder", e);
+        }
+    }
+
+
+
+    /**
+     * Append messages to an IMAP folder, with their flags and internal dates.<br>
+     * If the server supports MULTIAPPEND (RFC 3502) all messages are sent in a single APPEND command,
+     * which appends them all or none; if it appends none, the messages are appended again one per APPEND,
+     * so that only those refused on their own are not appended. Without MULTIAPPEND, or when appending again,
+     * if the server supports LITERAL+ (RFC 7888) the APPEND commands are pipelined, without waiting for
+     * the server between messages; otherwise the messages are appended one at a time.
+     * @param folderName the full name of the folder
+     * @param messages the messages
+     * @return for each message, its UID in the folder if the server supports UIDPLUS, 0 if it was
+     * appended with an unknown UID, or -1 if it was not appended
+     */
+    public long[] appendMessages(String folderName, List<AppendMessage> messages) {
+        if (!hasValidState()) {
+            throw new ImapException("Invalid IMAP store state!");
+        }
+
+        long[] uids = new long[messages.size()];
+        try {
+            IMAPStore imapStore = (IMAPStore) store;
+            boolean multiAppend = imapStore.hasCapability("MULTIAPPEND");
+            boolean pipelined = imapStore.hasCapability("LITERAL+");
+            SimpleDateFormat dateFormat = new SimpleDateFormat("dd-MMM-yyyy HH:mm:ss Z", Locale.US);
+            String mailbox = BASE64MailboxEncoder.encode(folderName);
+
+            // commands on a closed folder go over the store connection
+            IMAPFolder defaultFolder = (IMAPFolder) store.getDefaultFolder();
+            defaultFolder.doCommand(protocol -> {
+                try {
+                    if (multiAppend) {
+                        Argument args = new Argument().writeString(mailbox);
+                        for (AppendMessage message : messages) {
+                            writeAppendArguments(args, message, dateFormat);
+                        }
+                        Response response = writeAppend(protocol, args);
+                        System.arraycopy(getAppendedUids(response, messages.size()), 0, uids, 0, uids.length);
+                        if (response.isOK() || messages.size() == 1) {
+                            return null;
+                        }
+                        // a single message refused fails the whole MULTIAPPEND: the messages are appended
+                        // again one at a time, so that only those refused on their own are not appended
+                    }
+
+                    if (pipelined) {
+                        List<String> tags = new ArrayList<>();
+                        for (AppendMessage message : messages) {
+                            Argument args = new Argument().writeString(mailbox);
+                            tags.add(protocol.writeCommand("APPEND", writeAppendArguments(args, message, dateFormat)));
+                        }
+                        Response[] responses = readTaggedResponses(protocol, tags);
+                        for (int i = 0; i < responses.length; i++) {
+                            uids[i] = getAppendedUids(responses[i], 1)[0];
+                        }
+
+                    } else {
+                        for (int i = 0; i < messages.size(); i++) {
+                            Argument args = new Argument().writeString(mailbox);
+                            uids[i] = getAppendedUids(writeAppend(protocol,
+                                    writeAppendArguments(args, messages.get(i), dateFormat)), 1)[0];
+                        }
+                    }
+                    return null;
+
+                } catch (IOException e) {
+                    throw new ProtocolException("Exception appending messages", e);
+                }
+            });
+            return uids;
+
+        } catch (MessagingException e) {
+            throw new ImapException("Exception appending messages!", e);
+        }
+    }
+
+
+
+    /**
+     * Send an APPEND command and wait for its completion
+     * @param protocol the protocol to send the command over
+     * @param args the arguments of the APPEND command
+     * @return the tagged response of the APPEND
+     * @throws IOException in case of error
+     * @throws ProtocolException if the connection was closed by the server
+     */
+    private static Response writeAppend(IMAPProtocol protocol, Argument args) throws IOException, ProtocolException {
+        try {
+            String tag = protocol.writeCommand("APPEND", args);
+            return readTaggedResponses(protocol, Collections.singletonList(tag))[0];
+
+        } catch (LiteralException e) {
+            // the server refused the message instead of asking for its content
+            return e.getResponse();
+        }
+    }
+
+
+
+    /**
+     * Get the UIDs of appended messages from the APPENDUID response code (RFC 4315) of an APPEND
+     * @param response the tagged response of the APPEND
+     * @param count the number of messages appended by the command
+     * @return the UIDs of the messages, 0 if unknown, or -1 if the command failed
+     */
+    private static long[] getAppendedUids(Response response, int count) {
+        long[] uids = new long[count];
+        if (!response.isOK()) {
+            Arrays.fill(uids, -1);
+            return uids;
+        }
+
+        Matcher matcher = APPENDUID.matcher(response.getRest());
+        if (matcher.find()) {
+            int i = 0;
+            for (String range : matcher.group(1).split(",")) {
+                String[] bounds = range.split(":");
+                long first = Long.parseLong(bounds[0]);
+                long last = Long.parseLong(bounds[bounds.length - 1]);
+                for (long uid = Math.min(first, last); uid <= Math.max(first, last) && i < count; uid++) {
+                    uids[i++] = uid;
+                }
+            }
+        }
+        return uids;
+    }
+
+
+
+    /**
+     * Write the flags, the internal date and the content of a message to APPEND
+     * @param args the arguments of the APPEND command
+     * @param message the message
+     * @param dateFormat the format of the internal date
+     * @return the arguments
+     */
+    private static Argument writeAppendArguments(Argument args, AppendMessage message, SimpleDateFormat dateFormat) {
+        StringBuilder flags = new StringBuilder("(");
+        for (Flags.Flag flag : message.getFlags().getSystemFlags()) {
+            String name = flag == Flags.Flag.ANSWERED ? "\\Answered"
+                    : flag == Flags.Flag.DELETED ? "\\Deleted"
+                    : flag == Flags.Flag.DRAFT ? "\\Draft"
+                    : flag == Flags.Flag.FLAGGED ? "\\Flagged"
+                    : flag == Flags.Flag.SEEN ? "\\Seen" : null;
+            if (name != null) {
+                flags.append(flags.length() > 1 ? " " : "").append(name);
+            }
+        }
+        for (String flag : message.getFlags().getUserFlags()) {
+            flags.append(flags.length() > 1 ? " " : "").append(flag);
+        }
+        args.writeAtom(flags.append(")").toString());
+
+        if (message.getInternalDate() != null) {
+            args.writeString(dateFormat.format(message.getInternalDate()));
+        }
+        return args.writeBytes(message.getContent());
+    }
+
+
+
+    /**
+     * Read the responses to pipelined commands until each has completed
+     * @param protocol the protocol the commands were sent over
+     * @param tags the tags of the commands
+     * @return for each command, its tagged response
+     * @throws IOException in case of error
+     * @throws ProtocolException if the connection was closed by the server
+     */
+    private static Response[] readTaggedResponses(IMAPProtocol protocol, List<String> tags)
+            throws IOException, ProtocolException {
+
+        Response[] results = new Response[tags.size()];
+        Map<String, Integer> pending = new HashMap<>();
+        for (int i = 0; i < tags.size(); i++) {
+            pending.put(tags.get(i), i);
+        }
+
+        while (!pending.isEmpty()) {
+            Response response = protocol.readResponse();
+            Integer index = response.isTagged() ? pending.remove(response.getTag()) : null;
+            if (index != null) {
+                results[index] = response;
+                if (!response.isOK()) {
+                    System.out.println("APPEND failed: " + response.getRest());
+                }
+
+            } else {
+                protocol.notifyResponseHandlers(new Response[]{response});
+                if (response.isBYE()) {
+                    protocol.handleResult(response);
+                }
+            }
+        }
+        return results;
+    }
+
+
+
+    /**
+     * Get an IMAP folder by its full name
+     * @param fullName the full name of the folder
+     * @return the {@link Folder}
+     */
+    public Folder getFolder(String fullName) {
+        if (!hasValidState()) {
+            throw new ImapException("Invalid IMAP store state!");
+        }
+
+        try {
+            return store.getFolder(fullName);
+
+        } catch (MessagingException e) {
+            throw new ImapException("Exception getting IMAP folder", e);
+        }
+    }
+
+
+
+    /**
+     * Close an IMAP folder, if open
+     * @param folder the IMAP folder
+     */
+    public void closeFolder(Folder folder) {
+        try {
+            if (folder.isOpen()) {
+                folder.close(false);
+            }
+
+        } catch (MessagingException e) {
+            throw new ImapException("Exception closing IMAP folder", e);
+        }
+    }
+
+
+
+    /**
+     * Open an IMAP folder in read-only mode, unless already open
+     * @param folder the IMAP folder
+     * @throws MessagingException in case of error
+     */
+    private void openReadOnly(Folder folder) throws MessagingException {
+        if (!folder.isOpen()) {
+            FolderOpenEvent event = new FolderOpenEvent();
+            event.begin();
+            folder.open(Folder.READ_ONLY);
+
+            event.end();
+            if (event.shouldCommit()) {
+                event.folder = folder.getFullName();
+                event.messages = folder.getMessageCount();
+                event.commit();
+            }
+        }
+    }
+
+
+
     /**
      * Get all folders from the root folder of the default namespace
      * @return all folders from the root folder of the default namespace
@@ -0,0 +1,391 @@
+/*
+ * Project: imap2local
+ *
+ * Copyright (c) Attila Kovari
+ * All rights reserved.
+ *
+ * MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+
+package ro.kovari.imap.store;
+
+import ro.kovari.imap.exception.MaildirException;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+
+/**
+ * A tar archive (POSIX ustar) of the messages of a {@link MaildirLocalStore}, written sequentially
+ * to a stream, e.g. the standard output or a named pipe, instead of a Maildir tree on disk.<br>
+ * The entries are named after the paths the messages would have in the Maildir, e.g.
+ * 'Maildir/.Sent/new/1700000000.123.host,S=1234'. Each message is added as a whole entry once it
+ * has been written completely, so the messages downloaded in parallel are interleaved in order of
+ * completion, the writers waiting for each other. The names too long for the ustar header are
+ * recorded in a pax extended header. Once the stream fails, e.g. when the reader of the pipe is
+ * gone, every further entry fails too.
+ */
+public class MaildirArchive implements Closeable {
+
+    /** The size of the tar blocks; every header and every padded entry is a multiple of it */
+    private static final int BLOCK_SIZE = 512;
+
+    /** The archive is padded to a whole record, of 20 blocks, as written by tar */
+    private static final int RECORD_SIZE = 20 * BLOCK_SIZE;
+
+    /** The limits of the name and of the prefix fields of the ustar header */
+    private static final int NAME_LENGTH = 100;
+    private static final int PREFIX_LENGTH = 155;
+
+    /** The type flags of the entries */
+    private static final byte FILE = '0';
+    private static final byte DIRECTORY = '5';
+    private static final byte PAX_HEADER = 'x';
+
+    /** The size of the buffers the entries are copied and written through */
+    private static final int COPY_SIZE = 64 << 10;
+
+    /** The permissions of the entries; mail is private */
+    private static final int FILE_MODE = 0600;
+    private static final int DIRECTORY_MODE = 0700;
+
+    private final File root;
+    private final OutputStream out;
+    private final byte[] header = new byte[BLOCK_SIZE];
+    private final byte[] buffer = new byte[COPY_SIZE];
+    private long position = 0;
+    private long entries = 0;
+    private IOException failure = null;
+
+
+
+    /**
+     * Create a new {@link MaildirArchive}
+     * @param root the directory the names of the entries are relative to
+     * @param out the stream the archive is written to; closed with the archive
+     */
+    public MaildirArchive(File root, OutputStream out) {
+        this.root = root.getAbsoluteFile();
+        this.out = new BufferedOutputStream(out, COPY_SIZE);
+    }
+
+
+
+    /**
+     * Get the number of entries added so far
+     * @return the number of entries
+     */
+    public synchronized long getEntryCount() {
+        return entries;
+    }
+
+
+
+    /**
+     * Get the number of bytes of the archive written so far
+     * @return the number of bytes
+     */
+    public synchronized long getSize() {
+        return position;
+    }
+
+
+
+    /**
+     * Add a directory of the Maildir
+     * @param directory the directory
+     * @throws MaildirException if the archive could not be written
+     */
+    public synchronized void addDirectory(File directory) {
+        try {
+            checkFailure();
+            writeHeader(getEntryName(directory) + "/", DIRECTORY, DIRECTORY_MODE, 0,
+                    directory.lastModified() / 1000);
+
+        } catch (IOException e) {
+            throw fail(e);
+        }
+    }
+
+
+
+    /**
+     * Add a file of the Maildir, as a whole entry
+     * @param file the path of the file in the Maildir
+     * @param size the number of bytes of the content
+     * @param content the content of the file
+     * @throws MaildirException if the content could not be read, or the archive could not be written
+     */
+    public synchronized void addFile(File file, long size, InputStream content) {
+        try {
+            checkFailure();
+            writeHeader(getEntryName(file), FILE, FILE_MODE, size, System.currentTimeMillis() / 1000);
+
+            long copied = 0;
+            for (int n; copied < size
+                    && (n = content.read(buffer, 0, (int) Math.min(buffer.length, size - copied))) != -1; ) {
+                write(buffer, 0, n);
+                copied += n;
+            }
+            if (copied != size) {
+                // the header is already written; the archive can't be continued
+                throw new IOException("Only " + copied + " of " + size + " bytes read for " + file);
+            }
+            pad();
+            entries++;
+
+        } catch (IOException e) {
+            throw fail(e);
+        }
+    }
+
+
+
+    /**
+     * Write the buffered entries to the stream
+     * @throws MaildirException if the archive could not be written
+     */
+    public synchronized void flush() {
+        try {
+            checkFailure();
+            out.flush();
+
+        } catch (IOException e) {
+            throw fail(e);
+        }
+    }
+
+
+
+    /**
+     * End the archive, with its two zero blocks padded to a whole record, and close the stream
+     * @throws IOException in case of error
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            if (failure == null) {
+                Arrays.fill(header, (byte) 0);
+                write(header, 0, BLOCK_SIZE);
+                write(header, 0, BLOCK_SIZE);
+                while (position % RECORD_SIZE != 0) {
+                    write(header, 0, BLOCK_SIZE);
+                }
+                out.flush();
+            }
+
+        } finally {
+            out.close();
+        }
+    }
+
+
+
+    /**
+     * Get the name of the entry of a path of the Maildir, relative to the root, with '/' separators
+     * @param file the path
+     * @return the name of the entry
+     */
+    private String getEntryName(File file) {
+        String name = root.toPath().relativize(file.getAbsoluteFile().toPath()).toString();
+        return File.separatorChar == '/' ? name : name.replace(File.separatorChar, '/');
+    }
+
+
+
+    /**
+     * Write the header of an entry, preceded by a pax extended header if its name does not fit the ustar header
+     * @param name the name of the entry
+     * @param type the type flag of the entry
+     * @param mode the permissions of the entry
+     * @param size the size of the entry
+     * @param time the modification time of the entry, in seconds since the epoch
+     * @throws IOException in case of error
+     */
+    private void writeHeader(String name, byte type, int mode, long size, long time) throws IOException {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        int split = split(bytes);
+
+        if (split < 0) {
+            byte[] record = paxRecord("path", name);
+            writeHeader(Arrays.copyOf(bytes, NAME_LENGTH), 0, NAME_LENGTH, PAX_HEADER, FILE_MODE, record.length, time);
+            write(record, 0, record.length);
+            pad();
+            // the name of the ustar header, kept for the readers ignoring pax headers
+            bytes = Arrays.copyOfRange(bytes, Math.max(0, bytes.length - NAME_LENGTH), bytes.length);
+            split = 0;
+        }
+        writeHeader(bytes, split, bytes.length, type, mode, size, time);
+    }
+
+
+
+    /**
+     * Write a ustar header
+     * @param name the bytes of the name of the entry
+     * @param split the length of the prefix, before the '/' which separates it from the name, or 0
+     * @param length the length of the name, including the prefix
+     * @param type the type flag of the entry
+     * @param mode the permissions of the entry
+     * @param size the size of the entry
+     * @param time the modification time of the entry, in seconds since the epoch
+     * @throws IOException in case of error
+     */
+    private void writeHeader(byte[] name, int split, int length, byte type, int mode, long size, long time)
+            throws IOException {
+
+        Arrays.fill(header, (byte) 0);
+        if (split > 0) {
+            System.arraycopy(name, split + 1, header, 0, length - split - 1);
+            System.arraycopy(name, 0, header, 345, split);
+        } else {
+            System.arraycopy(name, 0, header, 0, length);
+        }
+        octal(mode, 100, 8);
+        octal(0, 108, 8);
+        octal(0, 116, 8);
+        octal(size, 124, 12);
+        octal(time, 136, 12);
+        header[156] = type;
+        System.arraycopy("ustar\u000000".getBytes(StandardCharsets.US_ASCII), 0, header, 257, 8);
+
+        // the checksum is computed with its own field filled with spaces
+        Arrays.fill(header, 148, 156, (byte) ' ');
+        long checksum = 0;
+        for (byte b : header) {
+            checksum += b & 0xff;
+        }
+        octal(checksum, 148, 7);
+        write(header, 0, BLOCK_SIZE);
+    }
+
+
+
+    /**
+     * Find where to split a name too long for the name field into the prefix and the name fields
+     * @param name the bytes of the name
+     * @return 0 if the name fits the name field, the position of the '/' separating the prefix
+     * from the name, or -1 if the name fits neither
+     */
+    private static int split(byte[] name) {
+        if (name.length <= NAME_LENGTH) {
+            return 0;
+        }
+        for (int i = Math.max(1, name.length - NAME_LENGTH - 1); i <= PREFIX_LENGTH && i < name.length - 1; i++) {
+            if (name[i] == '/') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+
+
+    /**
+     * Get a pax extended header record, '<length> <key>=<value>\n', its length counting its own digits
+     * @param key the key
+     * @param value the value
+     * @return the record
+     */
+    private static byte[] paxRecord(String key, String value) {
+        int length = key.length() + value.getBytes(StandardCharsets.UTF_8).length + 3;
+        int total = length + String.valueOf(length).length();
+        if (String.valueOf(total).length() > String.valueOf(length).length()) {
+            total++;
+        }
+        return (total + " " + key + "=" + value + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+
+
+    /**
+     * Write a number into a field of the header, in octal digits padded with zeroes and ended by a NUL
+     * @param value the number
+     * @param offset the offset of the field
+     * @param length the length of the field
+     */
+    private void octal(long value, int offset, int length) {
+        String digits = Long.toOctalString(value);
+        if (digits.length() > length - 1) {
+            throw new IllegalArgumentException("Value too large for the tar header: " + value);
+        }
+        for (int i = 0; i < length - 1; i++) {
+            int digit = i - (length - 1 - digits.length());
+            header[offset + i] = digit < 0 ? (byte) '0' : (byte) digits.charAt(digit);
+        }
+        header[offset + length - 1] = 0;
+    }
+
+
+
+    /**
+     * Pad the last entry to a whole block
+     * @throws IOException in case of error
+     */
+    private void pad() throws IOException {
+        int padding = (int) ((BLOCK_SIZE - position % BLOCK_SIZE) % BLOCK_SIZE);
+        if (padding > 0) {
+            Arrays.fill(header, (byte) 0);
+            write(header, 0, padding);
+        }
+    }
+
+
+
+    private void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        position += len;
+    }
+
+
+
+    /**
+     * Fail if an earlier entry failed, as the archive can't be continued
+     * @throws IOException if an earlier entry failed
+     */
+    private void checkFailure() throws IOException {
+        if (failure != null) {
+            throw new IOException("The archive was interrupted: " + failure.getMessage(), failure);
+        }
+    }
+
+
+
+    /**
+     * Record the failure of the archive
+     * @param e the failure
+     * @return the {@link MaildirException} to be thrown
+     */
+    private MaildirException fail(IOException e) {
+        if (failure == null) {
+            failure = e;
+        }
+        return new MaildirException("Unable to write the archive!", e);
+    }
+}
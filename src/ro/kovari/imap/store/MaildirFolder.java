@@ -30,20 +30,72 @@
 package ro.kovari.imap.store;
 
 import ro.kovari.imap.exception.MaildirException;
+import ro.kovari.imap.index.SearchIndex;
+import ro.kovari.imap.jfr.FileEvent;
 
+import javax.mail.Flags;
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
-import java.io.OutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 
 /** Class representing a Maildir folder */
 public class MaildirFolder {
 
+    /** The file, ignored by Maildir readers, keeping the IMAP folder status of the last run */
+    private static final String STATUS_FILE = "imap2local.status";
+
+    /** The key of the status recording the UID ranges left to download by a run stopped at its deadline */
+    private static final String PENDING_KEY = "pending";
+
+    /**
+     * Starts the last name component of the Maildir++ folders holding the date partitions of a folder, e.g.
+     * '.Archive.#2020'; it is doubled in the flattened IMAP folder names, so that no folder collides with a partition
+     */
+    static final String PARTITION_PREFIX = "#";
+
+    /** The period part of the name of a date partition, e.g. '2020' or '2020-03' */
+    private static final Pattern PARTITION_PERIOD = Pattern.compile("\\d[\\d-]*");
+
+    /** Separates the unique name of a message file from its info part, e.g. the flags */
+    private static final String INFO_SEPARATOR = ":";
+
+    /** The UID tag of a message file name, e.g. ',U=42' */
+    private static final Pattern UID_TAG = Pattern.compile(",U=(\\d+)");
+
+    /** The name of the local host, part of the unique name of every message file */
+    private static volatile String hostname = null;
+
     private final File maildirFolder;
+    private final BlobStore blobStore;
+    private final SearchIndex searchIndex;
+    private final MaildirSize maildirSize;
+    private final MessageCodec codec;
+    private final int compressionLevel;
+    private final MaildirArchive archive;
+    private volatile Function<Date, MaildirFolder> partitioner = null;
 
 
 
@@ -52,7 +104,56 @@ public class MaildirFolder {
      * @param file the {@link File}
      */
     public MaildirFolder(File file) {
+        this(file, null, null);
+    }
+
+
+
+    /**
+     * Create a new {@link MaildirFolder} from the given {@link File}, moving the large
+     * MIME part bodies of its messages to a {@link BlobStore} and indexing its new messages
+     * @param file the {@link File}
+     * @param blobStore the {@link BlobStore}, or null to keep the messages whole
+     * @param searchIndex the {@link SearchIndex}, or null to leave the messages out of the index
+     */
+    public MaildirFolder(File file, BlobStore blobStore, SearchIndex searchIndex) {
+        this(file, blobStore, searchIndex, null, MessageCodec.NONE, 0, null);
+    }
+
+
+
+    /**
+     * Create a new {@link MaildirFolder} from the given {@link File}, compressing its new messages
+     * @param file the {@link File}
+     * @param codec the {@link MessageCodec} of the new message files
+     * @param compressionLevel the compression level, from 1 (fastest) to 9 (best)
+     */
+    public MaildirFolder(File file, MessageCodec codec, int compressionLevel) {
+        this(file, null, null, null, codec, compressionLevel, null);
+    }
+
+
+
+    /**
+     * Create a new {@link MaildirFolder} from the given {@link File}, recording its deliveries
+     * in the Maildir++ 'maildirsize' file of the store
+     * @param file the {@link File}
+     * @param blobStore the {@link BlobStore}, or null to keep the messages whole
+     * @param searchIndex the {@link SearchIndex}, or null to leave the messages out of the index
+     * @param maildirSize the {@link MaildirSize} of the store, or null
+     * @param codec the {@link MessageCodec} of the new message files
+     * @param compressionLevel the compression level, from 1 (fastest) to 9 (best)
+     * @param archive the {@link MaildirArchive} the new messages are delivered to, or null to deliver them here
+     */
+    MaildirFolder(File file, BlobStore blobStore, SearchIndex searchIndex, MaildirSize maildirSize,
+                  MessageCodec codec, int compressionLevel, MaildirArchive archive) {
         maildirFolder = file;
+        this.blobStore = blobStore;
+        this.searchIndex = searchIndex;
+        this.maildirSize = maildirSize;
+        this.codec = codec;
+        this.compressionLevel = compressionLevel;
+        this.archive = archive;
     }
 
 
@@ -77,6 +178,27 @@ public class MaildirFolder {
 
 
 
+    /**
+     * Check whether the new messages of this {@link MaildirFolder} are delivered to its date partitions
+     * @return true if the folder is partitioned by date
+     * @see MaildirLocalStore#partition(MaildirFolder, long)
+     */
+    public boolean isPartitioned() {
+        return partitioner != null;
+    }
+
+
+
+    /**
+     * Deliver the new messages of this {@link MaildirFolder} to its date partitions
+     * @param partitioner the function getting the partition of an internal date, created if needed
+     */
+    void setPartitioner(Function<Date, MaildirFolder> partitioner) {
+        this.partitioner = partitioner;
+    }
+
+
+
     /**
      * Get the 'cur' subfolder of this {@link MaildirFolder}
      * @return the 'cur' subfolder of this {@link MaildirFolder}
@@ -117,44 +239,452 @@ public class MaildirFolder {
 
 
 
+    /**
+     * Get the existing date partitions of this {@link MaildirFolder}: the Maildir++ folders next to it,
+     * named after it followed by the period, e.g. '.Archive.#2020' for '.Archive' or '.#2020' for the INBOX
+     * @return the date partitions, sorted by name
+     */
+    File[] getPartitionFolders() {
+        String prefix = getPartitionPrefix();
+        File[] partitions = getPartitionParent().listFiles(file -> file.isDirectory()
+                && file.getName().startsWith(prefix)
+                && PARTITION_PERIOD.matcher(file.getName().substring(prefix.length())).matches());
+        if (partitions == null) {
+            return new File[0];
+        }
+        Arrays.sort(partitions);
+        return partitions;
+    }
+
+
+
+    /**
+     * Get the date partition of this {@link MaildirFolder} for a period, created or not
+     * @param period the period, e.g. '2020' or '2020-03'
+     * @return the Maildir++ folder of the partition
+     */
+    File getPartitionFolder(String period) {
+        return new File(getPartitionParent(), getPartitionPrefix() + period);
+    }
+
+
+
+    /**
+     * Check whether a Maildir++ folder is the date partition of another folder rather than a folder of its own
+     * @param folder the Maildir++ folder
+     * @return true if the folder is a date partition
+     */
+    static boolean isPartition(File folder) {
+        String name = folder.getName();
+        int index = name.lastIndexOf("." + PARTITION_PREFIX);
+        return index >= 0 && PARTITION_PERIOD.matcher(name.substring(index + 1 + PARTITION_PREFIX.length())).matches();
+    }
+
+
+
+    private boolean isSubfolder() {
+        return maildirFolder.getName().startsWith(".");
+    }
+
+
+
+    private File getPartitionParent() {
+        return isSubfolder() ? maildirFolder.getAbsoluteFile().getParentFile() : maildirFolder;
+    }
+
+
+
+    private String getPartitionPrefix() {
+        return (isSubfolder() ? maildirFolder.getName() : "") + "." + PARTITION_PREFIX;
+    }
+
+
+
+    /**
+     * Get the message files of this {@link MaildirFolder}, from its 'cur' and 'new' subfolders
+     * and from those of its date partitions, if any
+     * @return the message files
+     */
+    public List<File> getMessageFiles() {
+        List<File> messageFiles = new ArrayList<>();
+        List<File> subFolders = new ArrayList<>(Arrays.asList(getCurFolder(), getNewFolder()));
+        for (File partition : getPartitionFolders()) {
+            subFolders.add(new File(partition, SubFolder.CUR.name));
+            subFolders.add(new File(partition, SubFolder.NEW.name));
+        }
+
+        for (File subFolder : subFolders) {
+            File[] files = subFolder.listFiles(File::isFile);
+            if (files != null) {
+                messageFiles.addAll(Arrays.asList(files));
+            }
+        }
+        return messageFiles;
+    }
+
+
+
+    /**
+     * Get the unique name of a message file, without the info part which changes with its flags
+     * @param messageFile the message file
+     * @return the unique name of the message file
+     */
+    public static String getUniqueName(File messageFile) {
+        String name = messageFile.getName();
+        int info = name.indexOf(INFO_SEPARATOR);
+        return info < 0 ? name : name.substring(0, info);
+    }
+
+
+
+    /**
+     * Get the UID of a message from the ',U=' tag of its file name
+     * @param messageFile the message file
+     * @return the UID of the message, or 0 if the name has no UID tag
+     */
+    public static long getUid(File messageFile) {
+        Matcher matcher = UID_TAG.matcher(getUniqueName(messageFile));
+        return matcher.find() ? Long.parseLong(matcher.group(1)) : 0;
+    }
+
+
+
+    /**
+     * Get the UIDs of the messages of this {@link MaildirFolder}, and of its date partitions,
+     * whose file names record them
+     * @return the UIDs
+     */
+    public Set<Long> getUids() {
+        Set<Long> uids = new HashSet<>();
+        for (File file : getMessageFiles()) {
+            long uid = getUid(file);
+            if (uid > 0) {
+                uids.add(uid);
+            }
+        }
+        return uids;
+    }
+
+
+
+    /**
+     * Delete the message files of the messages expunged from the IMAP folder since they were downloaded.<br>
+     * Only the files named after their UID are checked; the ones downloaded without it are kept.
+     * @param uids the UIDs of the messages of the IMAP folder
+     * @return the number of message files deleted
+     * @throws MaildirException if a message file could not be deleted
+     */
+    public int deleteExpunged(Set<Long> uids) {
+        int deleted = 0;
+        for (File file : getMessageFiles()) {
+            long uid = getUid(file);
+            if (uid == 0 || uids.contains(uid)) {
+                continue;
+            }
+
+            if (!file.delete()) {
+                throw new MaildirException("Unable to delete the message file " + file + "!");
+            }
+            if (maildirSize != null) {
+                maildirSize.remove(MaildirSize.getSize(file));
+            }
+            deleted++;
+        }
+        return deleted;
+    }
+
+
+
+    /**
+     * Get the IMAP flags of a message from the info part of its file name, e.g. ':2,RS'.
+     * The 'P' (passed) flag has no IMAP equivalent and is ignored.
+     * @param messageFile the message file
+     * @return the flags of the message
+     */
+    public static Flags getFlags(File messageFile) {
+        Flags flags = new Flags();
+        String name = messageFile.getName();
+        int info = name.indexOf(INFO_SEPARATOR + "2,");
+        if (info < 0) {
+            return flags;
+        }
+
+        for (char c : name.substring(info + 3).toCharArray()) {
+            switch (c) {
+                case 'D':
+                    flags.add(Flags.Flag.DRAFT);
+                    break;
+                case 'F':
+                    flags.add(Flags.Flag.FLAGGED);
+                    break;
+                case 'R':
+                    flags.add(Flags.Flag.ANSWERED);
+                    break;
+                case 'S':
+                    flags.add(Flags.Flag.SEEN);
+                    break;
+                case 'T':
+                    flags.add(Flags.Flag.DELETED);
+                    break;
+                default:
+                    break;
+            }
+        }
+        return flags;
+    }
+
+
+
+    /**
+     * Get the {@link FolderStatus} recorded by the last run which downloaded this folder
+     * @return the recorded {@link FolderStatus}, or null if none was recorded
+     */
+    public FolderStatus readStatus() {
+        Properties properties = loadStatus();
+        try {
+            return properties == null ? null : FolderStatus.fromProperties(properties);
+
+        } catch (NumberFormatException e) {
+            // start over, as if the folder had never been downloaded
+            return null;
+        }
+    }
+
+
+
+    /**
+     * Get the UID ranges the last run which downloaded this folder left to download, as it was stopped
+     * at its deadline; the messages above these ranges, up to the recorded UIDNEXT, were all downloaded
+     * @return the UID ranges left to download, in descending UID order, or an empty list
+     */
+    public List<UidRange> readPendingRanges() {
+        Properties properties = loadStatus();
+        String pending = properties == null ? null : properties.getProperty(PENDING_KEY);
+        List<UidRange> ranges = new ArrayList<>();
+        if (pending == null || pending.isEmpty()) {
+            return ranges;
+        }
+
+        try {
+            for (String range : pending.split(",")) {
+                String[] bounds = range.split(":");
+                ranges.add(new UidRange(Long.parseLong(bounds[0]), Long.parseLong(bounds[1]),
+                        Integer.parseInt(bounds[2])));
+            }
+            return ranges;
+
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            // start over with the messages of the recorded status, as if none had been downloaded
+            FolderStatus status = readStatus();
+            return status == null ? Collections.emptyList() :
+                    Collections.singletonList(new UidRange(1, status.getUidNext() - 1, status.getMessages()));
+        }
+    }
+
+
+
+    /**
+     * Load the status file of the last run which downloaded this folder
+     * @return the content of the status file, or null if there is none, or it could not be read
+     */
+    private Properties loadStatus() {
+        File statusFile = new File(maildirFolder, STATUS_FILE);
+        if (!statusFile.exists()) {
+            return null;
+        }
+
+        Properties properties = new Properties();
+        try (Reader reader = new FileReader(statusFile)) {
+            properties.load(reader);
+            return properties;
+
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+
+
+    /**
+     * Record the {@link FolderStatus} of the downloaded folder, for the next run
+     * @param status the {@link FolderStatus}
+     */
+    public void writeStatus(FolderStatus status) {
+        writeStatus(status, Collections.emptyList());
+    }
+
+
+
+    /**
+     * Record the {@link FolderStatus} of a folder partially downloaded by a run stopped at its deadline,
+     * along with the UID ranges left to download, for the next run
+     * @param status the {@link FolderStatus}
+     * @param pending the UID ranges left to download, in descending UID order; empty if the folder was downloaded
+     */
+    public void writeStatus(FolderStatus status, List<UidRange> pending) {
+        File statusFile = new File(maildirFolder, STATUS_FILE);
+        File tmpFile = new File(getTmpFolder(), STATUS_FILE);
+
+        Properties properties = status.toProperties();
+        if (!pending.isEmpty()) {
+            // adjacent ranges, e.g. left by parallel connections, are recorded as one
+            List<UidRange> merged = new ArrayList<>();
+            for (UidRange range : pending) {
+                UidRange previous = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+                if (previous != null && previous.getFirstUid() == range.getLastUid() + 1) {
+                    merged.set(merged.size() - 1, new UidRange(range.getFirstUid(), previous.getLastUid(),
+                            previous.getMessageCount() + range.getMessageCount()));
+                } else {
+                    merged.add(range);
+                }
+            }
+
+            StringBuilder ranges = new StringBuilder();
+            for (UidRange range : merged) {
+                ranges.append(ranges.length() > 0 ? "," : "").append(range.getFirstUid()).append(':')
+                        .append(range.getLastUid()).append(':').append(range.getMessageCount());
+            }
+            properties.setProperty(PENDING_KEY, ranges.toString());
+        }
+
+        // the messages delivered are on the disk before the status recording them, and so is the status
+        syncDirectory(getNewFolder());
+        for (File partition : getPartitionFolders()) {
+            syncDirectory(new File(partition, SubFolder.NEW.name));
+        }
+        try (FileOutputStream out = new FileOutputStream(tmpFile); Writer writer = new OutputStreamWriter(out)) {
+            properties.store(writer, "Status of the IMAP folder when last downloaded");
+            out.getFD().sync();
+
+        } catch (IOException e) {
+            throw new MaildirException("Unable to write folder status!", e);
+        }
+
+        try {
+            Files.move(tmpFile.toPath(), statusFile.toPath(),
+                    StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            syncDirectory(maildirFolder);
+
+        } catch (IOException e) {
+            throw new MaildirException("Unable to write folder status!", e);
+        }
+    }
+
+
+
+    /**
+     * Flush the entries of a directory to the disk, so that the files moved into it survive a crash
+     * @param directory the directory
+     */
+    private static void syncDirectory(File directory) {
+        try (FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+
+        } catch (IOException e) {
+            // not every platform can open a directory, e.g. Windows, where the entries are written through
+        }
+    }
+
+
+
     /**
      * Generate a file name
      * @return the generated file name
      */
     private String generateUniqueFileName() {
-        String hostname = "localhost"; // default hostname, just in case
         long currentTime = Instant.now().getEpochSecond();
+        return currentTime + "."
+                + MaildirLocalStore.getNextMessageId() + "." + getHostname();
+    }
+
 
-        try {
-            hostname = InetAddress.getLocalHost().getHostName();
 
-        } catch (UnknownHostException e) {
-            e.printStackTrace();
+    /**
+     * Get the name of the local host, looked up once rather than for every message
+     * @return the name of the local host
+     */
+    private static String getHostname() {
+        if (hostname == null) {
+            try {
+                hostname = InetAddress.getLocalHost().getHostName();
+
+            } catch (UnknownHostException e) {
+                e.printStackTrace();
+                hostname = "localhost"; // default hostname, just in case
+            }
         }
-        return currentTime + "."
-                + MaildirLocalStore.getNextMessageId() + "." + hostname;
+        return hostname;
     }
 
 
 
     /**
-     * Get an output stream for writing a new message to the specified {@link MaildirFolder.SubFolder}
-     * @return the new {@link OutputStream}
+     * Get an output stream for writing a new message to the specified {@link MaildirFolder.SubFolder}.<br>
+     * The message is written into the 'tmp' subfolder first and delivered when the stream is closed.
+     * @return the new {@link MaildirOutputStream}
      */
-    public OutputStream getOutputStream(SubFolder subFolder) {
+    public MaildirOutputStream getOutputStream(SubFolder subFolder) {
+        return getOutputStream(subFolder, getMaildirFolderName(), 0);
+    }
+
+
+
+    /**
+     * Get an output stream for writing a new message to the specified {@link MaildirFolder.SubFolder}.<br>
+     * The message is written into the 'tmp' subfolder first and delivered when the stream is closed,
+     * to the subfolder or, when the store is archived, to its {@link MaildirArchive}.
+     * @param subFolder the subfolder the message is delivered to
+     * @param imapFolder the full name of the IMAP folder of the message, recorded with the file events
+     * @param uid the UID of the message, recorded in the name of the file and with the file events, or 0 if unknown
+     * @return the new {@link MaildirOutputStream}
+     */
+    public MaildirOutputStream getOutputStream(SubFolder subFolder, String imapFolder, long uid) {
         // side note: when the subfolder is CUR, maybe we could automatically append the
         // maildir info to each message file name, indicating that the message was seen (<msg-file-name>:2,S)
-        File file = new File(getSubFolder(subFolder), generateUniqueFileName());
-        try {
-            return new FileOutputStream(file);
+        String fileName = generateUniqueFileName();
+        File file = new File(getSubFolder(subFolder), fileName);
+        File tmpFile = new File(getTmpFolder(), fileName);
+        FileEvent event = new FileEvent();
+        event.begin();
 
-        } catch (FileNotFoundException e) {
-            throw new MaildirException("File not found!", e);
+        try {
+            return new MaildirOutputStream(tmpFile, file, blobStore, searchIndex, maildirSize,
+                    codec, compressionLevel, archive, imapFolder, uid);
+
+        } catch (IOException e) {
+            throw new MaildirException("Unable to create the message file!", e);
+
+        } finally {
+            event.end();
+            if (event.shouldCommit()) {
+                event.folder = imapFolder;
+                event.uid = uid;
+                event.operation = FileEvent.CREATE;
+                event.path = tmpFile.getPath();
+                event.commit();
+            }
         }
     }
 
 
 
+    /**
+     * Get an output stream for writing a new message to the specified {@link MaildirFolder.SubFolder}
+     * of the date partition of the message, if this {@link MaildirFolder} is partitioned, or else of this one
+     * @param subFolder the subfolder the message is delivered to
+     * @param imapFolder the full name of the IMAP folder of the message, recorded with the file events
+     * @param uid the UID of the message, recorded in the name of the file and with the file events, or 0 if unknown
+     * @param internalDate the internal date of the message, or null if unknown
+     * @return the new {@link MaildirOutputStream}
+     */
+    public MaildirOutputStream getOutputStream(SubFolder subFolder, String imapFolder, long uid, Date internalDate) {
+        Function<Date, MaildirFolder> partitioner = this.partitioner;
+        MaildirFolder folder = partitioner == null || internalDate == null ? this : partitioner.apply(internalDate);
+        return folder.getOutputStream(subFolder, imapFolder, uid);
+    }
+
+
+
     /** Enum representing the subfolders of a {@link MaildirFolder} */
     public enum SubFolder {
         CUR("cur"), NEW("new"), TMP("tmp");
@@ -166,5 +696,15 @@ public class MaildirFolder {
         SubFolder(String subFolderName) {
             name = subFolderName;
         }
+
+
+
+        /**
+         * Get the name of the subfolder on disk
+         * @return the name of the subfolder
+         */
+        String getName() {
+            return name;
+        }
     }
 }
@@ -29,11 +29,26 @@
 
 package ro.kovari.imap.store;
 
+import ro.kovari.imap.config.Configuration;
+import ro.kovari.imap.exception.IndexException;
 import ro.kovari.imap.exception.MaildirException;
+import ro.kovari.imap.index.SearchIndex;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 /**
@@ -48,21 +63,33 @@ public class MaildirLocalStore {
 
     private static final String DEFAULT_MAILBOX = "INBOX";
 
+    /** The file, ignored by Maildir readers, recording the {@link DatePartition} of a partitioned folder */
+    private static final String PARTITION_FILE = "imap2local.partition";
+
     private final File maildirStoreLocation;
+    private final BlobStore blobStore;
+    private final MaildirSize maildirSize;
+    private final MessageCodec codec;
+    private final int compressionLevel;
+    private final MaildirArchive archive;
+    private final DatePartition datePartition;
+    private final int datePartitionThreshold;
+    private final Map<String, MaildirFolder> partitions = new ConcurrentHashMap<>();
+    private SearchIndex searchIndex;
 
 
     /**
      * Generate a random long to be used as the starting point for the message ids,
      * regardless of the maildir folder. On every new message written to the store,
-     * the counter is increased by one.
+     * the counter is increased by one. Messages may be written by several threads at once.
      */
-    private static long nextMessageId;
+    private static final AtomicLong nextMessageId;
 
     static {
         int pwr = 17;
-        nextMessageId = ThreadLocalRandom.current().nextLong(
+        nextMessageId = new AtomicLong(ThreadLocalRandom.current().nextLong(
                 (long) Math.pow(10, pwr), (long) Math.pow(10, pwr + 1)
-        );
+        ));
     }
 
 
@@ -71,7 +98,7 @@ public class MaildirLocalStore {
      * @return the ID to be used for the next message
      */
     public static long getNextMessageId() {
-        return nextMessageId++;
+        return nextMessageId.getAndIncrement();
     }
 
 
@@ -86,6 +113,75 @@ public class MaildirLocalStore {
 
         maildirStoreLocation = location.isEmpty() ?
                 new File(MAILDIR_FOLDER) : new File(location, MAILDIR_FOLDER);
+        blobStore = null;
+        maildirSize = null;
+        codec = MessageCodec.NONE;
+        compressionLevel = 0;
+        archive = null;
+        datePartition = DatePartition.NONE;
+        datePartitionThreshold = Integer.MAX_VALUE;
+    }
+
+
+
+    /**
+     * Create a new {@link MaildirLocalStore}, moving the large MIME part bodies of the messages
+     * to a {@link BlobStore}, indexing the new messages in a {@link SearchIndex} and keeping
+     * the Maildir++ 'maildirsize' file up to date, as configured
+     * @param location the location of the new {@link MaildirLocalStore}
+     * @param config the {@link Configuration}
+     */
+    public MaildirLocalStore(String location, Configuration config) {
+        this(location, config, null);
+    }
+
+
+
+    /**
+     * Create a new {@link MaildirLocalStore} whose new messages are delivered as entries of a tar
+     * {@link MaildirArchive} written to a stream, rather than to the Maildir on disk.<br>
+     * The Maildir on disk keeps the folders and their status only, for the next run to archive
+     * the new messages only; messages too large to be kept in memory until delivered are written
+     * to its 'tmp' subfolders. The messages archived are neither split into the {@link BlobStore},
+     * nor indexed, nor recorded in the 'maildirsize' file.
+     * @param location the location of the new {@link MaildirLocalStore}
+     * @param config the {@link Configuration}
+     * @param archiveStream the stream the archive is written to, or null to write the Maildir on disk;
+     *                      closed with the store
+     */
+    public MaildirLocalStore(String location, Configuration config, OutputStream archiveStream) {
+        if (location == null)
+            throw new IllegalArgumentException("Invalid Maildir store location!");
+
+        maildirStoreLocation = location.isEmpty() ?
+                new File(MAILDIR_FOLDER) : new File(location, MAILDIR_FOLDER);
+        codec = config.getStoreCompression();
+        compressionLevel = config.getStoreCompressionLevel();
+        datePartition = config.getDatePartition();
+        datePartitionThreshold = config.getDatePartitionThreshold();
+
+        if (archiveStream != null) {
+            archive = new MaildirArchive(maildirStoreLocation.getAbsoluteFile().getParentFile(), archiveStream);
+            blobStore = null;
+            maildirSize = null;
+            return;
+        }
+
+        archive = null;
+        blobStore = config.getBlobThreshold() > 0 ?
+                new BlobStore(getSiblingLocation(BlobStore.BLOB_DIRECTORY), config.getBlobThreshold()) : null;
+        maildirSize = config.getMaildirQuota().isEmpty() ?
+                null : new MaildirSize(maildirStoreLocation, config.getMaildirQuota());
+
+        if (config.isSearchIndex()) {
+            try {
+                openSearchIndex();
+
+            } catch (IndexException e) {
+                // e.g. another worker updates the index; the index can be rebuilt afterwards
+                System.out.println(e.getMessage() + " The new messages are not indexed.");
+            }
+        }
     }
 
 
@@ -100,6 +196,123 @@ public class MaildirLocalStore {
 
 
 
+    /**
+     * Get the {@link BlobStore} receiving the large MIME part bodies of the messages
+     * @return the {@link BlobStore}, or null if the messages are kept whole
+     */
+    public BlobStore getBlobStore() {
+        return blobStore;
+    }
+
+
+
+    /**
+     * Open a message file of the store, decompressing it if it was compressed, or reassembling
+     * the original message if its large MIME part bodies were moved to the {@link BlobStore}
+     * @param file the message file
+     * @return the stream of the original message
+     * @throws IOException in case of error
+     */
+    public InputStream openMessage(File file) throws IOException {
+        MessageCodec fileCodec = MessageCodec.of(file);
+        if (fileCodec != MessageCodec.NONE) {
+            return fileCodec.open(file);
+        }
+
+        // the messages may have been split by an earlier run, with another configuration
+        BlobStore store = blobStore != null ?
+                blobStore : new BlobStore(getSiblingLocation(BlobStore.BLOB_DIRECTORY), 0);
+        return store.open(file);
+    }
+
+
+
+    /**
+     * Check that a message file of the store can be read back whole: its compressed data and
+     * checksum, if compressed, its blobs, if split, and its size, if recorded in its name
+     * @param file the message file
+     * @return the size of the message
+     * @throws IOException if the message is damaged
+     */
+    public long verifyMessage(File file) throws IOException {
+        long size = 0;
+        try (InputStream in = openMessage(file)) {
+            byte[] buffer = new byte[8192];
+            for (int n; (n = in.read(buffer)) != -1; ) {
+                size += n;
+            }
+        }
+
+        long expected = MaildirSize.getSize(file);
+        if (expected >= 0 && expected != size) {
+            throw new IOException("Size " + size + " instead of " + expected);
+        }
+        return size;
+    }
+
+
+
+    /**
+     * Get the {@link SearchIndex} of the messages, opening it if not opened yet
+     * @return the {@link SearchIndex}
+     */
+    public synchronized SearchIndex openSearchIndex() {
+        if (searchIndex == null) {
+            searchIndex = new SearchIndex(getSiblingLocation(SearchIndex.INDEX_DIRECTORY));
+        }
+        return searchIndex;
+    }
+
+
+
+    /** Write the pending updates of the {@link SearchIndex}, if any, and the buffered entries of the archive */
+    public synchronized void flush() {
+        if (searchIndex != null) {
+            searchIndex.flush();
+        }
+        if (archive != null) {
+            archive.flush();
+        }
+    }
+
+
+
+    /**
+     * Release the {@link SearchIndex}, if any, writing its pending updates, and the 'maildirsize' file;
+     * end the archive, if any
+     */
+    public synchronized void close() {
+        if (searchIndex != null) {
+            searchIndex.close();
+            searchIndex = null;
+        }
+        if (maildirSize != null) {
+            maildirSize.close();
+        }
+        if (archive != null) {
+            try {
+                archive.close();
+
+            } catch (IOException e) {
+                throw new MaildirException("Unable to end the archive!", e);
+            }
+        }
+    }
+
+
+
+    /**
+     * Get a location next to this {@link MaildirLocalStore}, for data kept along with the store
+     * which must not be mistaken by Maildir readers for a folder
+     * @param name the name of the location
+     * @return the location
+     */
+    public File getSiblingLocation(String name) {
+        return new File(maildirStoreLocation.getAbsoluteFile().getParentFile(), name);
+    }
+
+
+
     /**
      * Create a new local {@link MaildirFolder} from the specified IMAP folder full name.<br>
      * Note: see Maildir++ for more details
@@ -114,13 +327,110 @@ public class MaildirLocalStore {
             sb.append(MAILDIR_FOLDER_SEPARATOR)
                     .append(imapFolderName.replace(imapFolderSeparator, MAILDIR_FOLDER_SEPARATOR));
         }
-        return new MaildirFolder(new File(maildirStoreLocation, sb.toString()));
+        // the names of the date partitions are reserved: a component of the IMAP folder name
+        // starting with the partition prefix gets it doubled
+        String name = sb.toString().replace(MAILDIR_FOLDER_SEPARATOR + MaildirFolder.PARTITION_PREFIX,
+                MAILDIR_FOLDER_SEPARATOR + MaildirFolder.PARTITION_PREFIX + MaildirFolder.PARTITION_PREFIX);
+        return new MaildirFolder(new File(maildirStoreLocation, name), blobStore, searchIndex, maildirSize,
+                codec, compressionLevel, archive);
+    }
+
+
+
+    /**
+     * Partition a large {@link MaildirFolder} into sub-Maildirs by the internal date of its new messages,
+     * per year or per month as configured, so that no directory grows without bounds.<br>
+     * A folder is partitioned once it holds at least the configured number of messages; the layout is
+     * recorded in the folder, which stays partitioned with the same layout in the next runs, whatever
+     * the configuration. The partitions are Maildir++ folders next to the folder, e.g. '.Archive.#2020'
+     * or '.#2020' for the INBOX, created on their first message, so that mail clients see them as its subfolders;
+     * they are not folders of their own for this application, their messages are listed with those of the folder.
+     * @param folder the {@link MaildirFolder}, created already
+     * @param messageCount the number of messages of the IMAP folder
+     * @return true if the folder is partitioned
+     */
+    public boolean partition(MaildirFolder folder, long messageCount) {
+        File partitionFile = new File(folder.getMaildirFolder(), PARTITION_FILE);
+        DatePartition layout;
+        try {
+            if (partitionFile.exists()) {
+                layout = DatePartition.valueOf(new String(Files.readAllBytes(partitionFile.toPath()),
+                        StandardCharsets.US_ASCII).trim());
+
+            } else if (datePartition != DatePartition.NONE && messageCount >= datePartitionThreshold) {
+                layout = datePartition;
+                Files.write(partitionFile.toPath(), layout.name().getBytes(StandardCharsets.US_ASCII));
+
+            } else {
+                return false;
+            }
+
+        } catch (IOException | IllegalArgumentException e) {
+            throw new MaildirException("Unable to read or write the date partition of the folder!", e);
+        }
+
+        folder.setPartitioner(date -> partitions.computeIfAbsent(
+                folder.getPartitionFolder(layout.getName(date)).getPath(), path -> {
+                    MaildirFolder partition = new MaildirFolder(new File(path),
+                            blobStore, searchIndex, maildirSize, codec, compressionLevel, archive);
+                    createMaildirFolder(partition);
+                    return partition;
+                }));
+        return true;
     }
 
 
 
     /**
-     * Create the actual {@link MaildirFolder} along with its subfolders<br>
+     * Get the existing {@link MaildirFolder}s of this store: the Maildir itself (the INBOX)
+     * and its Maildir++ subfolders; the date partitions of a folder are part of it, not folders of their own
+     * @return the {@link MaildirFolder}s, sorted by name, so that parents come before their children
+     */
+    public List<MaildirFolder> getMaildirFolders() {
+        List<MaildirFolder> folders = new ArrayList<>();
+        if (!maildirStoreLocation.isDirectory()) {
+            return folders;
+        }
+        folders.add(new MaildirFolder(maildirStoreLocation, blobStore, searchIndex, maildirSize,
+                codec, compressionLevel, archive));
+
+        File[] subFolders = maildirStoreLocation.listFiles(file ->
+                file.isDirectory() && file.getName().startsWith(MAILDIR_FOLDER_SEPARATOR)
+                        && !MaildirFolder.isPartition(file) && new MaildirFolder(file).getCurFolder().isDirectory());
+        if (subFolders != null) {
+            Arrays.sort(subFolders, Comparator.comparing(File::getName));
+            for (File subFolder : subFolders) {
+                folders.add(new MaildirFolder(subFolder, blobStore, searchIndex, maildirSize,
+                        codec, compressionLevel, archive));
+            }
+        }
+        return folders;
+    }
+
+
+
+    /**
+     * Get the full name of the IMAP folder of a {@link MaildirFolder}; the reverse of
+     * {@link #flatten(String, String)}
+     * @param folder the {@link MaildirFolder}
+     * @param imapFolderSeparator the IMAP folder separator
+     * @return the IMAP folder full name
+     */
+    public String unflatten(MaildirFolder folder, String imapFolderSeparator) {
+        String name = folder.getMaildirFolderName();
+        if (!name.startsWith(MAILDIR_FOLDER_SEPARATOR)) {
+            return DEFAULT_MAILBOX;
+        }
+        return name.replace(MAILDIR_FOLDER_SEPARATOR + MaildirFolder.PARTITION_PREFIX + MaildirFolder.PARTITION_PREFIX,
+                        MAILDIR_FOLDER_SEPARATOR + MaildirFolder.PARTITION_PREFIX)
+                .substring(MAILDIR_FOLDER_SEPARATOR.length())
+                .replace(MAILDIR_FOLDER_SEPARATOR, imapFolderSeparator);
+    }
+
+
+
+    /**
+     * Create the actual {@link MaildirFolder} along with its subfolders, adding them to the archive, if any<br>
      * Note: this will also create the {@link MaildirLocalStore}
      * @param folder the {@link MaildirFolder}
      */
@@ -150,5 +460,13 @@ public class MaildirLocalStore {
         if (!folder.getTmpFolder().exists() && !folder.getTmpFolder().mkdir()) {
             throw new MaildirException("Unable to create 'tmp' sub-folder!");
         }
+
+        if (archive != null) {
+            archive.addDirectory(maildirFolder);
+            archive.addFile(maildirFolderMarker, 0, new ByteArrayInputStream(new byte[0]));
+            archive.addDirectory(folder.getCurFolder());
+            archive.addDirectory(folder.getNewFolder());
+            archive.addDirectory(folder.getTmpFolder());
+        }
     }
 }
@@ -0,0 +1,502 @@
+/*
+ * Project: imap2local
+ *
+ * Copyright (c) Attila Kovari
+ * All rights reserved.
+ *
+ * MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+
+package ro.kovari.imap.store;
+
+import ro.kovari.imap.index.SearchIndex;
+import ro.kovari.imap.jfr.FileEvent;
+import ro.kovari.imap.utils.BufferPool;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+
+/**
+ * An {@link java.io.OutputStream} delivering a message into a {@link MaildirFolder}.<br>
+ * The message is written into the 'tmp' subfolder and moved into its final subfolder when
+ * the stream is closed, so readers of the Maildir never see partially written messages.
+ * The delivered file is named after its size, as in Maildir++, and after the UID of the message, when known,
+ * e.g. '1700000000.123.host,U=42,S=1234', so that the messages expunged from the server can be found.
+ * The bytes are gathered in a direct buffer from the {@link BufferPool} of the writing thread and
+ * written to the {@link FileChannel} of the file whenever the buffer is full, so that no intermediate
+ * array is allocated per message or per chunk.
+ * With a {@link BlobStore}, the large MIME part bodies of the message are moved to the store, and the file
+ * is tagged as split, if any was;
+ * with a {@link MessageCodec}, the message is compressed on its way to the file, which is tagged with the codec;
+ * with a {@link SearchIndex}, the delivered message is added to the index.
+ * With a {@link MaildirArchive}, the message is delivered as an entry of the archive instead: it is
+ * gathered in memory, or in the 'tmp' subfolder once larger than {@link #SPOOL_LIMIT}, as the size of an
+ * entry is written before its content.
+ */
+public class MaildirOutputStream extends OutputStream {
+
+    /** The Maildir++ size tag appended to the name of the delivered file */
+    private static final String SIZE_TAG = ",S=";
+
+    /** The UID tag appended to the name of the delivered file, before the size tag */
+    private static final String UID_TAG = ",U=";
+
+    /** The largest message kept in memory until delivered to a {@link MaildirArchive} */
+    static final int SPOOL_LIMIT = 1 << 20;
+
+    private final File tmpFile;
+    private File file;
+    private final BlobStore blobStore;
+    private final SearchIndex searchIndex;
+    private final MaildirSize maildirSize;
+    private final MimeSplittingOutputStream splitter;
+    private final MessageCodec codec;
+    private MessageCompressor compressor;
+    private final MessageCompressor.Output fileOutput = this::store;
+    private byte[] single = null;
+    private final MaildirArchive archive;
+    private final List<byte[]> spool;
+    private final String imapFolder;
+    private long uid;
+    private FileChannel channel;
+    private ByteBuffer buffer;
+    private long written = 0;
+    private long stored = 0;
+    private boolean completed = false;
+    private boolean done = false;
+
+
+
+    /**
+     * Create a new {@link MaildirOutputStream}
+     * @param tmpFile the file in the 'tmp' subfolder the message is written to
+     * @param file the file the message is delivered to on close, before its size is appended to its name
+     * @param blobStore the {@link BlobStore} receiving the large MIME part bodies, or null
+     * @param searchIndex the {@link SearchIndex} the message is added to, or null
+     * @param maildirSize the {@link MaildirSize} the delivery is recorded in, or null
+     * @param codec the {@link MessageCodec} the file is compressed with
+     * @param compressionLevel the compression level, from 1 (fastest) to 9 (best)
+     * @param archive the {@link MaildirArchive} the message is delivered to instead of the file, or null
+     * @param imapFolder the full name of the IMAP folder of the message, recorded with the file events
+     * @param uid the UID of the message, recorded in the name of the delivered file and with the file events,
+     * or 0 if unknown
+     * @throws IOException if the file can't be created
+     */
+    MaildirOutputStream(File tmpFile, File file, BlobStore blobStore, SearchIndex searchIndex,
+                        MaildirSize maildirSize, MessageCodec codec, int compressionLevel,
+                        MaildirArchive archive, String imapFolder, long uid) throws IOException {
+
+        this.tmpFile = tmpFile;
+        this.file = file;
+        this.blobStore = blobStore;
+        this.searchIndex = searchIndex;
+        this.maildirSize = maildirSize;
+        this.codec = codec;
+        this.archive = archive;
+        this.spool = archive == null ? null : new ArrayList<>();
+        this.imapFolder = imapFolder;
+        this.uid = uid;
+        this.channel = archive == null ? openFile() : null;
+        this.buffer = BufferPool.acquire();
+        this.compressor = codec == MessageCodec.NONE ? null : MessageCompressor.acquire(codec, compressionLevel);
+        this.splitter = blobStore == null ? null : blobStore.split(new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                put(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                put(b, off, len);
+            }
+        });
+    }
+
+
+
+    @Override
+    public void write(int b) throws IOException {
+        if (splitter != null) {
+            splitter.write(b);
+        } else {
+            put(b);
+        }
+        written++;
+    }
+
+
+
+    @Override
+    public void write(byte[] b) throws IOException {
+        write(b, 0, b.length);
+    }
+
+
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (splitter != null) {
+            splitter.write(b, off, len);
+        } else {
+            put(b, off, len);
+        }
+        written += len;
+    }
+
+
+
+    /**
+     * Set the UID of the message, when it is only known once the message was written
+     * @param uid the UID of the message
+     */
+    public void setUid(long uid) {
+        this.uid = uid;
+    }
+
+
+
+    /**
+     * Get the number of bytes of the message written so far
+     * @return the number of bytes written, including the ones moved to the {@link BlobStore}, if any
+     */
+    public long getBytesWritten() {
+        return written;
+    }
+
+
+
+    /**
+     * Add a byte of the file content, compressing it if needed
+     * @param b the byte
+     * @throws IOException in case of error
+     */
+    private void put(int b) throws IOException {
+        if (compressor == null) {
+            if (!buffer.hasRemaining()) {
+                flushBuffer();
+            }
+            buffer.put((byte) b);
+            return;
+        }
+
+        if (single == null) {
+            single = new byte[1];
+        }
+        single[0] = (byte) b;
+        compressor.write(single, 0, 1, fileOutput);
+    }
+
+
+
+    /**
+     * Add bytes of the file content, compressing them if needed
+     * @param b the bytes
+     * @param off the offset of the first byte
+     * @param len the number of bytes
+     * @throws IOException in case of error
+     */
+    private void put(byte[] b, int off, int len) throws IOException {
+        if (compressor != null) {
+            compressor.write(b, off, len, fileOutput);
+        } else {
+            store(b, off, len);
+        }
+    }
+
+
+
+    /**
+     * Add bytes to the buffer, writing the buffer to the file whenever full
+     * @param b the bytes
+     * @param off the offset of the first byte
+     * @param len the number of bytes
+     * @throws IOException in case of error
+     */
+    private void store(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (!buffer.hasRemaining()) {
+                flushBuffer();
+            }
+            int n = Math.min(len, buffer.remaining());
+            buffer.put(b, off, n);
+            off += n;
+            len -= n;
+        }
+    }
+
+
+
+    /**
+     * Open the file in the 'tmp' subfolder
+     * @return the {@link FileChannel} of the file
+     * @throws IOException if the file can't be created
+     */
+    private FileChannel openFile() throws IOException {
+        return FileChannel.open(tmpFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+
+
+    /**
+     * Write the content of the buffer to the file and clear it; for a {@link MaildirArchive}, keep it
+     * in memory instead, until the message gets larger than {@link #SPOOL_LIMIT}
+     * @throws IOException in case of error
+     */
+    private void flushBuffer() throws IOException {
+        // the Buffer methods, as the ByteBuffer overrides do not exist on Java 8
+        ((Buffer) buffer).flip();
+        long bytes = buffer.remaining();
+        stored += bytes;
+
+        if (channel == null && stored <= SPOOL_LIMIT) {
+            byte[] chunk = new byte[(int) bytes];
+            buffer.get(chunk);
+            spool.add(chunk);
+            ((Buffer) buffer).clear();
+            return;
+        }
+
+        FileEvent event = new FileEvent();
+        event.begin();
+        if (channel == null) {
+            channel = openFile();
+            for (byte[] chunk : spool) {
+                ByteBuffer wrapped = ByteBuffer.wrap(chunk);
+                while (wrapped.hasRemaining()) {
+                    channel.write(wrapped);
+                }
+            }
+            spool.clear();
+        }
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        ((Buffer) buffer).clear();
+        commit(event, FileEvent.WRITE, tmpFile, bytes);
+    }
+
+
+
+    /**
+     * Write the end of the message into the 'tmp' subfolder and return the buffers to the pools of the
+     * current thread, without delivering the message yet; no more bytes may be written.<br>
+     * A pipeline writing the messages on one thread and delivering them on another calls it on the first one.
+     * @throws IOException in case of error
+     */
+    public void complete() throws IOException {
+        if (completed) {
+            return;
+        }
+        completed = true;
+
+        FileEvent event = new FileEvent();
+        event.begin();
+        try {
+            if (splitter != null) {
+                splitter.finish();
+            }
+            if (compressor != null) {
+                compressor.finish(fileOutput);
+            }
+            flushBuffer();
+            if (channel != null && archive == null) {
+                // the message is on the disk before it is delivered, as Maildir requires
+                channel.force(false);
+            }
+
+        } finally {
+            if (channel != null) {
+                channel.close();
+            }
+            releaseBuffer();
+        }
+        commit(event, FileEvent.CLOSE, tmpFile, written);
+    }
+
+
+
+    /**
+     * Close the stream and deliver the message
+     * @throws IOException in case of error
+     */
+    @Override
+    public void close() throws IOException {
+        if (done) {
+            return;
+        }
+        try {
+            complete();
+
+        } catch (IOException | RuntimeException e) {
+            // nothing was delivered; the partially written message is discarded
+            abort();
+            throw e;
+        }
+        done = true;
+
+        // Maildir++: the size in the name spares readers a stat of every file; with a BlobStore,
+        // it is the size of the original message, not of the file; the same goes for a compressed file
+        file = new File(file.getParentFile(), file.getName() + (uid > 0 ? UID_TAG + uid : "")
+                + SIZE_TAG + written + (splitter != null && splitter.isSplit() ? BlobStore.SPLIT_TAG : "")
+                + codec.getTag());
+        if (archive != null) {
+            archive();
+            return;
+        }
+
+        FileEvent event = new FileEvent();
+        event.begin();
+        try {
+            Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+
+        } catch (IOException e) {
+            tmpFile.delete();
+            throw e;
+        }
+        commit(event, FileEvent.RENAME, file, written);
+
+        if (maildirSize != null) {
+            maildirSize.add(written);
+        }
+
+        if (searchIndex != null) {
+            index();
+        }
+    }
+
+
+
+    /**
+     * Deliver the message to the {@link MaildirArchive}, from memory or from the file in the 'tmp' subfolder
+     * @throws IOException if the file could not be read
+     */
+    private void archive() throws IOException {
+        if (channel == null) {
+            List<InputStream> chunks = new ArrayList<>(spool.size());
+            for (byte[] chunk : spool) {
+                chunks.add(new ByteArrayInputStream(chunk));
+            }
+            spool.clear();
+            archive.addFile(file, stored, new SequenceInputStream(Collections.enumeration(chunks)));
+            return;
+        }
+
+        try (InputStream in = new FileInputStream(tmpFile)) {
+            archive.addFile(file, stored, in);
+
+        } finally {
+            tmpFile.delete();
+        }
+    }
+
+
+
+    /** Return the buffer, and the compressor, to their pools, once */
+    private void releaseBuffer() {
+        if (buffer != null) {
+            BufferPool.release(buffer);
+            buffer = null;
+        }
+        if (compressor != null) {
+            compressor.release();
+            compressor = null;
+        }
+    }
+
+
+
+    /**
+     * Record a file operation with the message it belongs to, if it took long enough to be recorded
+     * @param event the {@link FileEvent}, begun before the operation
+     * @param operation the operation
+     * @param path the file operated on
+     * @param bytes the number of bytes written
+     */
+    private void commit(FileEvent event, String operation, File path, long bytes) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.folder = imapFolder;
+            event.uid = uid;
+            event.operation = operation;
+            event.path = path.getPath();
+            event.bytes = bytes;
+            event.commit();
+        }
+    }
+
+
+
+    /** Add the delivered message to the {@link SearchIndex}; the message is delivered anyway */
+    private void index() {
+        try (InputStream in = blobStore != null ? blobStore.open(file) : codec.open(file)) {
+            searchIndex.add(file, new BufferedInputStream(in));
+
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+
+
+    /** Close the stream and discard the partially written message */
+    public void abort() {
+        if (done) {
+            return;
+        }
+        done = true;
+        if (splitter != null) {
+            splitter.abort();
+        }
+
+        try {
+            if (channel != null) {
+                channel.close();
+            }
+
+        } catch (IOException e) {
+            // the file is deleted anyway
+        }
+        releaseBuffer();
+        if (spool != null) {
+            spool.clear();
+        }
+        tmpFile.delete();
+    }
+}
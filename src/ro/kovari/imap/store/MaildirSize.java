@@ -0,0 +1,234 @@
+/*
+ * Project: imap2local
+ *
+ * Copyright (c) Attila Kovari
+ * All rights reserved.
+ *
+ * MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+
+package ro.kovari.imap.store;
+
+import ro.kovari.imap.exception.MaildirException;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+
+/**
+ * The Maildir++ 'maildirsize' file of a Maildir, keeping the total size and number of its messages.<br>
+ * The first line holds the quota definition; every delivery appends a line with its size and count,
+ * every removal a line with both negated, and the file is rewritten into a single line once it grows
+ * past {@link #MAX_SIZE} bytes, so that readers never have to scan the Maildir themselves. The file is locked while written, as several
+ * processes may deliver into the same Maildir.
+ */
+class MaildirSize {
+
+    static final String MAILDIRSIZE_FILE = "maildirsize";
+
+    /** The size past which Maildir++ readers recalculate the file; it is compacted before */
+    private static final int MAX_SIZE = 5120;
+
+    /** The size tag of a Maildir++ file name, e.g. ',S=1234' */
+    private static final Pattern SIZE_TAG = Pattern.compile(",S=(\\d+)");
+
+    private final File file;
+    private final File maildir;
+    private final String quota;
+    private FileChannel channel = null;
+
+
+
+    /**
+     * Create a new {@link MaildirSize}; the file is created with the first delivery
+     * @param maildir the root folder of the Maildir
+     * @param quota the Maildir++ quota definition, e.g. '0S,0C'
+     */
+    MaildirSize(File maildir, String quota) {
+        this.maildir = maildir;
+        this.file = new File(maildir, MAILDIRSIZE_FILE);
+        this.quota = quota;
+    }
+
+
+
+    /**
+     * Get the size of a message from the ',S=' tag of its file name
+     * @param messageFile the message file
+     * @return the size of the message, or -1 if the name has no size tag
+     */
+    static long getSize(File messageFile) {
+        Matcher matcher = SIZE_TAG.matcher(MaildirFolder.getUniqueName(messageFile));
+        return matcher.find() ? Long.parseLong(matcher.group(1)) : -1;
+    }
+
+
+
+    /**
+     * Record the delivery of a message, once moved into the Maildir
+     * @param size the size of the message
+     */
+    void add(long size) {
+        update(size, 1);
+    }
+
+
+
+    /**
+     * Record the removal of a message, once deleted from the Maildir
+     * @param size the size of the message, or -1 if unknown
+     */
+    void remove(long size) {
+        update(-Math.max(0, size), -1);
+    }
+
+
+
+    /**
+     * Append the change of the totals made by a delivery or a removal
+     * @param size the change of the total size
+     * @param count the change of the number of messages
+     */
+    private synchronized void update(long size, int count) {
+        try {
+            if (channel == null) {
+                channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            }
+
+            FileLock lock = channel.lock();
+            try {
+                if (channel.size() == 0) {
+                    // the store may hold messages of earlier runs, or of other tools,
+                    // besides the message just delivered or removed
+                    long[] totals = scan();
+                    write(quota + "\n" + totals[0] + " " + totals[1] + "\n");
+                } else {
+                    write(size + " " + count + "\n");
+                }
+
+                if (channel.size() > MAX_SIZE) {
+                    compact();
+                }
+
+            } finally {
+                lock.release();
+            }
+
+        } catch (IOException e) {
+            throw new MaildirException("Unable to update the maildirsize file!", e);
+        }
+    }
+
+
+
+    /** Close the file */
+    synchronized void close() {
+        try {
+            if (channel != null) {
+                channel.close();
+                channel = null;
+            }
+
+        } catch (IOException e) {
+            throw new MaildirException("Unable to close the maildirsize file!", e);
+        }
+    }
+
+
+
+    /**
+     * Rewrite the file into its quota definition and a single line with the totals, in place,
+     * so that the lock held by other processes stays on the same file
+     * @throws IOException in case of error
+     */
+    private void compact() throws IOException {
+        long bytes = 0;
+        long count = 0;
+        String[] lines = new String(Files.readAllBytes(file.toPath()), StandardCharsets.US_ASCII).split("\n");
+        for (int i = 1; i < lines.length; i++) {
+            String[] values = lines[i].trim().split("\\s+");
+            if (values.length == 2) {
+                bytes += Long.parseLong(values[0]);
+                count += Long.parseLong(values[1]);
+            }
+        }
+
+        channel.truncate(0);
+        write(quota + "\n" + bytes + " " + count + "\n");
+    }
+
+
+
+    /**
+     * Get the total size and number of the messages of the Maildir and its Maildir++ subfolders
+     * @return the total size and the number of messages
+     */
+    private long[] scan() {
+        long[] totals = new long[2];
+        File[] folders = maildir.listFiles(folder -> folder.isDirectory() && folder.getName().startsWith(".")
+                && !MaildirFolder.isPartition(folder));
+        scan(new MaildirFolder(maildir), totals);
+        for (File folder : folders == null ? new File[0] : folders) {
+            scan(new MaildirFolder(folder), totals);
+        }
+        return totals;
+    }
+
+
+
+    /**
+     * Add the size and number of the messages of a {@link MaildirFolder} to the totals
+     * @param folder the {@link MaildirFolder}
+     * @param totals the total size and number of messages
+     */
+    private static void scan(MaildirFolder folder, long[] totals) {
+        for (File messageFile : folder.getMessageFiles()) {
+            long size = getSize(messageFile);
+            totals[0] += size >= 0 ? size : messageFile.length();
+            totals[1]++;
+        }
+    }
+
+
+
+    /**
+     * Append a text to the file
+     * @param text the text
+     * @throws IOException in case of error
+     */
+    private void write(String text) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(text.getBytes(StandardCharsets.US_ASCII));
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
@@ -0,0 +1,312 @@
+/*
+ * Project: imap2local
+ *
+ * Copyright (c) Attila Kovari
+ * All rights reserved.
+ *
+ * MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+
+package ro.kovari.imap.store;
+
+import ro.kovari.imap.exception.MaildirException;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+
+/**
+ * Dated point-in-time copies of a local store, each a complete store of its own.<br>
+ * A new snapshot starts as a copy of the latest one in which every message file, blob and index
+ * segment is a hard link to the file of the previous snapshot, as with 'rsync --link-dest': these
+ * files are never modified once written, so only the new messages take space. The few files
+ * modified in place, e.g. 'maildirsize', are copied. A snapshot is built under a temporary name
+ * and renamed once complete, so an interrupted run never leaves a partial snapshot behind.
+ */
+public class MaildirSnapshots {
+
+    /** The folder of the snapshots, in the local folder */
+    public static final String SNAPSHOT_DIRECTORY = "snapshots";
+
+    /** The suffix of a snapshot being built */
+    private static final String PARTIAL_SUFFIX = ".partial";
+
+    /** The name of a snapshot: the time it was taken at, sortable and valid on every file system */
+    private static final String NAME_FORMAT = "yyyy-MM-dd_HHmmss";
+
+    private final File location;
+
+
+
+    /**
+     * Create a new {@link MaildirSnapshots}
+     * @param location the local folder, holding the snapshots folder
+     */
+    public MaildirSnapshots(String location) {
+        this.location = new File(location, SNAPSHOT_DIRECTORY);
+    }
+
+
+
+    /**
+     * Get the names of the complete snapshots
+     * @return the names of the snapshots, oldest first
+     */
+    public List<String> list() {
+        List<String> names = new ArrayList<>();
+        File[] snapshots = location.listFiles(file ->
+                file.isDirectory() && !file.getName().endsWith(PARTIAL_SUFFIX));
+        for (File snapshot : snapshots == null ? new File[0] : snapshots) {
+            names.add(snapshot.getName());
+        }
+        Collections.sort(names);
+        return names;
+    }
+
+
+
+    /**
+     * Get the local folder of a snapshot, to open a {@link MaildirLocalStore} on
+     * @param name the name of the snapshot
+     * @return the folder of the snapshot
+     */
+    public File getSnapshot(String name) {
+        return new File(location, name);
+    }
+
+
+
+    /**
+     * Start a new snapshot from the latest one, if any, hard-linking its immutable files
+     * @return the folder of the new snapshot, to be passed to {@link #commit(File)} once complete
+     */
+    public File begin() {
+        // left over by an interrupted run
+        File[] partials = location.listFiles(file -> file.getName().endsWith(PARTIAL_SUFFIX));
+        for (File partial : partials == null ? new File[0] : partials) {
+            delete(partial);
+        }
+
+        String name = new SimpleDateFormat(NAME_FORMAT).format(new Date());
+        File snapshot = new File(location, name + PARTIAL_SUFFIX);
+        if (!snapshot.mkdirs()) {
+            throw new MaildirException("Unable to create the snapshot " + snapshot + "!");
+        }
+
+        List<String> names = list();
+        if (!names.isEmpty()) {
+            File previous = getSnapshot(names.get(names.size() - 1));
+            System.out.println("Linking the unchanged files of snapshot " + previous.getName());
+            try {
+                link(previous.toPath(), snapshot.toPath());
+
+            } catch (IOException e) {
+                throw new MaildirException("Unable to link the previous snapshot!", e);
+            }
+        }
+        return snapshot;
+    }
+
+
+
+    /**
+     * Complete a snapshot started by {@link #begin()}
+     * @param snapshot the folder of the snapshot
+     * @return the name of the snapshot
+     */
+    public String commit(File snapshot) {
+        String name = snapshot.getName().substring(0, snapshot.getName().length() - PARTIAL_SUFFIX.length());
+        try {
+            Files.move(snapshot.toPath(), getSnapshot(name).toPath(), StandardCopyOption.ATOMIC_MOVE);
+            return name;
+
+        } catch (IOException e) {
+            throw new MaildirException("Unable to complete the snapshot!", e);
+        }
+    }
+
+
+
+    /**
+     * Delete the oldest snapshots; the messages still linked from the newer ones are kept
+     * @param keep the number of snapshots to keep
+     * @return the names of the deleted snapshots
+     */
+    public List<String> prune(int keep) {
+        List<String> names = list();
+        List<String> pruned = new ArrayList<>(names.subList(0, Math.max(0, names.size() - keep)));
+        for (String name : pruned) {
+            delete(getSnapshot(name));
+        }
+        return pruned;
+    }
+
+
+
+    /**
+     * Compare the messages of two snapshots, by the unique names of their files, without reading them
+     * @param from the name of the older snapshot
+     * @param to the name of the newer snapshot
+     * @return the messages added and removed, by folder: '+' or '-', then the folder, a '/' and the file name
+     */
+    public List<String> diff(String from, String to) {
+        Map<String, Set<String>> fromMessages = getMessages(from);
+        Map<String, Set<String>> toMessages = getMessages(to);
+        Set<String> folders = new HashSet<>(fromMessages.keySet());
+        folders.addAll(toMessages.keySet());
+        List<String> sortedFolders = new ArrayList<>(folders);
+        Collections.sort(sortedFolders);
+
+        List<String> changes = new ArrayList<>();
+        for (String folder : sortedFolders) {
+            Set<String> before = fromMessages.getOrDefault(folder, Collections.emptySet());
+            Set<String> after = toMessages.getOrDefault(folder, Collections.emptySet());
+            for (String message : after) {
+                if (!before.contains(message)) {
+                    changes.add("+ " + folder + "/" + message);
+                }
+            }
+            for (String message : before) {
+                if (!after.contains(message)) {
+                    changes.add("- " + folder + "/" + message);
+                }
+            }
+        }
+        return changes;
+    }
+
+
+
+    /**
+     * Get the unique names of the messages of a snapshot
+     * @param name the name of the snapshot
+     * @return the unique names of the message files, by folder
+     */
+    private Map<String, Set<String>> getMessages(String name) {
+        File snapshot = getSnapshot(name);
+        if (!snapshot.isDirectory()) {
+            throw new MaildirException("No snapshot " + name + "!");
+        }
+
+        Map<String, Set<String>> messages = new HashMap<>();
+        for (MaildirFolder folder : new MaildirLocalStore(snapshot.getPath()).getMaildirFolders()) {
+            Set<String> names = new HashSet<>();
+            for (File file : folder.getMessageFiles()) {
+                names.add(MaildirFolder.getUniqueName(file));
+            }
+            messages.put(folder.getMaildirFolderName(), names);
+        }
+        return messages;
+    }
+
+
+
+    /**
+     * Recreate the tree of a snapshot, hard-linking the files never modified once written and copying the others
+     * @param source the previous snapshot
+     * @param target the new snapshot
+     * @throws IOException in case of error
+     */
+    private static void link(Path source, Path target) throws IOException {
+        Files.walkFileTree(source, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                Files.createDirectories(target.resolve(source.relativize(dir)));
+
+                // files being written when the previous snapshot was taken are not part of it
+                return dir.getFileName().toString().equals(MaildirFolder.SubFolder.TMP.getName()) ?
+                        FileVisitResult.SKIP_SUBTREE : FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Path copy = target.resolve(source.relativize(file));
+                if (isImmutable(source.relativize(file))) {
+                    Files.createLink(copy, file);
+                } else {
+                    Files.copy(file, copy, StandardCopyOption.COPY_ATTRIBUTES);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+
+
+    /**
+     * Check whether a file of a store is never modified once written, and may be shared by snapshots
+     * @param path the path of the file, relative to the snapshot
+     * @return true for the message files, the blobs and the index segments
+     */
+    private static boolean isImmutable(Path path) {
+        Path parent = path.getParent();
+        String folder = parent == null ? "" : parent.getFileName().toString();
+        return folder.equals(MaildirFolder.SubFolder.CUR.getName())
+                || folder.equals(MaildirFolder.SubFolder.NEW.getName())
+                || path.getName(0).toString().equals(BlobStore.BLOB_DIRECTORY)
+                || path.getFileName().toString().endsWith(".seg");
+    }
+
+
+
+    /**
+     * Delete a folder and its content
+     * @param folder the folder
+     */
+    private static void delete(File folder) {
+        try {
+            Files.walkFileTree(folder.toPath(), new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    Files.delete(file);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+                    Files.delete(dir);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+
+        } catch (IOException e) {
+            throw new MaildirException("Unable to delete " + folder + "!", e);
+        }
+    }
+}
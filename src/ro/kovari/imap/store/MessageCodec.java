@@ -0,0 +1,121 @@
+/*
+ * Project: imap2local
+ *
+ * Copyright (c) Attila Kovari
+ * All rights reserved.
+ *
+ * MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+
+package ro.kovari.imap.store;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+
+/**
+ * Compression of the message files at rest, marked by a ',Z=' tag in their unique name, e.g. '...,S=1234,Z=gz'<br>
+ * GZIP files can be read by zcat, and by mail servers reading compressed Maildirs, e.g. Dovecot with its
+ * zlib plugin; ZLIB has a lighter header and checksum. Both checksums are verified when a message is read.
+ */
+public enum MessageCodec {
+    NONE(null), GZIP("gz"), ZLIB("zz");
+
+    /** The codec tag of a file name */
+    private static final String CODEC_TAG = ",Z=";
+
+    /** The size of the buffer of the decompressing streams */
+    private static final int BUFFER_SIZE = 8192;
+
+    private final String tagValue;
+
+
+
+    MessageCodec(String tagValue) {
+        this.tagValue = tagValue;
+    }
+
+
+
+    /**
+     * Get the tag appended to the name of the files compressed with this codec
+     * @return the tag, e.g. ',Z=gz', or an empty string for {@link #NONE}
+     */
+    String getTag() {
+        return tagValue == null ? "" : CODEC_TAG + tagValue;
+    }
+
+
+
+    /**
+     * Get the codec a message file was compressed with, from its name
+     * @param messageFile the message file
+     * @return the {@link MessageCodec}; {@link #NONE} if the file is not compressed
+     */
+    public static MessageCodec of(File messageFile) {
+        String uniqueName = MaildirFolder.getUniqueName(messageFile);
+        int tag = uniqueName.lastIndexOf(CODEC_TAG);
+        if (tag < 0) {
+            return NONE;
+        }
+
+        int end = uniqueName.indexOf(',', tag + CODEC_TAG.length());
+        String value = uniqueName.substring(tag + CODEC_TAG.length(), end < 0 ? uniqueName.length() : end);
+        for (MessageCodec codec : values()) {
+            if (value.equals(codec.tagValue)) {
+                return codec;
+            }
+        }
+        return NONE;
+    }
+
+
+
+    /**
+     * Open a message file compressed with this codec
+     * @param messageFile the message file
+     * @return the stream of the original message
+     * @throws IOException in case of error, e.g. an invalid header
+     */
+    public InputStream open(File messageFile) throws IOException {
+        InputStream in = new FileInputStream(messageFile);
+        try {
+            switch (this) {
+                case GZIP:
+                    return new GZIPInputStream(in, BUFFER_SIZE);
+                case ZLIB:
+                    return new InflaterInputStream(in);
+                default:
+                    return in;
+            }
+
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Project: imap2local
+ *
+ * Copyright (c) Attila Kovari
+ * All rights reserved.
+ *
+ * MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+
+package ro.kovari.imap.store;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+
+/**
+ * Compresses a message as it is written, in the format of a {@link MessageCodec}.<br>
+ * The compressors, with their native {@link Deflater} and their output buffer, are pooled per thread, like
+ * the buffers of the {@link ro.kovari.imap.utils.BufferPool}; a thread may compress several messages at once,
+ * e.g. a selector thread of the NIO transport.
+ */
+class MessageCompressor {
+
+    /** The size of the output buffer */
+    private static final int BUFFER_SIZE = 16 << 10;
+
+    /** Number of idle compressors kept per thread and codec */
+    private static final int MAX_IDLE = 4;
+
+    /** The GZIP header, as written by java.util.zip.GZIPOutputStream: no name, no time, unknown OS */
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0};
+
+    private static final ThreadLocal<Deque<MessageCompressor>> GZIP_POOL = ThreadLocal.withInitial(ArrayDeque::new);
+    private static final ThreadLocal<Deque<MessageCompressor>> ZLIB_POOL = ThreadLocal.withInitial(ArrayDeque::new);
+
+    private final MessageCodec codec;
+    private final Deflater deflater;
+    private final CRC32 crc = new CRC32();
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private boolean started = false;
+
+
+
+    /**
+     * Create a new {@link MessageCompressor}
+     * @param codec the {@link MessageCodec}, GZIP or ZLIB
+     */
+    private MessageCompressor(MessageCodec codec) {
+        this.codec = codec;
+        // GZIP has a header and a trailer of its own around the raw deflate data
+        this.deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, codec == MessageCodec.GZIP);
+    }
+
+
+
+    /**
+     * Take a compressor from the pool of the current thread, or create a new one if the pool is empty
+     * @param codec the {@link MessageCodec}, GZIP or ZLIB
+     * @param level the compression level, from 1 (fastest) to 9 (best)
+     * @return the {@link MessageCompressor}
+     */
+    static MessageCompressor acquire(MessageCodec codec, int level) {
+        MessageCompressor compressor = getPool(codec).poll();
+        if (compressor == null) {
+            compressor = new MessageCompressor(codec);
+        }
+        compressor.deflater.setLevel(level);
+        return compressor;
+    }
+
+
+
+    /** Return the compressor to the pool of the current thread; it must no longer be used by the caller */
+    void release() {
+        deflater.reset();
+        crc.reset();
+        started = false;
+
+        Deque<MessageCompressor> pool = getPool(codec);
+        if (pool.size() < MAX_IDLE) {
+            pool.push(this);
+        } else {
+            deflater.end();
+        }
+    }
+
+
+
+    /**
+     * Get the pool of the current thread
+     * @param codec the {@link MessageCodec}
+     * @return the pool
+     */
+    private static Deque<MessageCompressor> getPool(MessageCodec codec) {
+        return (codec == MessageCodec.GZIP ? GZIP_POOL : ZLIB_POOL).get();
+    }
+
+
+
+    /**
+     * Compress bytes of the message
+     * @param b the bytes
+     * @param off the offset of the first byte
+     * @param len the number of bytes
+     * @param out the {@link Output} receiving the compressed bytes
+     * @throws IOException in case of error
+     */
+    void write(byte[] b, int off, int len, Output out) throws IOException {
+        start(out);
+        if (codec == MessageCodec.GZIP) {
+            crc.update(b, off, len);
+        }
+
+        deflater.setInput(b, off, len);
+        while (!deflater.needsInput()) {
+            deflate(out);
+        }
+    }
+
+
+
+    /**
+     * Compress the rest of the message and write the trailer of the format
+     * @param out the {@link Output} receiving the compressed bytes
+     * @throws IOException in case of error
+     */
+    void finish(Output out) throws IOException {
+        start(out);
+        deflater.finish();
+        while (!deflater.finished()) {
+            deflate(out);
+        }
+
+        if (codec == MessageCodec.GZIP) {
+            // the CRC-32 and the size modulo 2^32, little-endian
+            long crcValue = crc.getValue();
+            long size = deflater.getBytesRead();
+            for (int i = 0; i < 4; i++) {
+                buffer[i] = (byte) (crcValue >>> (8 * i));
+                buffer[4 + i] = (byte) (size >>> (8 * i));
+            }
+            out.write(buffer, 0, 8);
+        }
+    }
+
+
+
+    /**
+     * Write the header of the format, once
+     * @param out the {@link Output}
+     * @throws IOException in case of error
+     */
+    private void start(Output out) throws IOException {
+        if (!started) {
+            started = true;
+            if (codec == MessageCodec.GZIP) {
+                out.write(GZIP_HEADER, 0, GZIP_HEADER.length);
+            }
+        }
+    }
+
+
+
+    /**
+     * Write what the {@link Deflater} has produced
+     * @param out the {@link Output}
+     * @throws IOException in case of error
+     */
+    private void deflate(Output out) throws IOException {
+        int n = deflater.deflate(buffer, 0, buffer.length, Deflater.NO_FLUSH);
+        if (n > 0) {
+            out.write(buffer, 0, n);
+        }
+    }
+
+
+
+    /** The receiver of the compressed bytes */
+    interface Output {
+        void write(byte[] b, int off, int len) throws IOException;
+    }
+}
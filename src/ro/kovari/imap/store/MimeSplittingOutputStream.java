@@ -0,0 +1,429 @@
+/*
+ * Project: imap2local
+ *
+ * Copyright (c) Attila Kovari
+ * All rights reserved.
+ *
+ * MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+
+package ro.kovari.imap.store;
+
+import javax.mail.internet.ContentType;
+import javax.mail.internet.ParseException;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+
+
+/**
+ * An {@link OutputStream} writing a message file with the large bodies of its MIME parts
+ * moved to a {@link BlobStore}.<br>
+ * The message is parsed on the fly, line by line, tracking the nested multipart boundaries;
+ * the bodies are kept raw, still transfer-encoded, so that the original message can be
+ * reassembled byte for byte. The references to the bodies are written in a trailer by {@link #finish()},
+ * if any body was moved; the message file is then tagged as split, see {@link BlobStore#SPLIT_TAG}.
+ */
+class MimeSplittingOutputStream extends OutputStream {
+
+    /** Longer lines can't be boundaries, nor headers of interest */
+    private static final int MAX_LINE_LENGTH = 8192;
+    private static final int MAX_HEADER_LENGTH = 65536;
+
+    private final OutputStream out;
+    private final BlobStore blobStore;
+
+    private final byte[] line = new byte[MAX_LINE_LENGTH];
+    private int lineLength = 0;
+    /** True if the buffered line is the rest of a longer line */
+    private boolean continued = false;
+
+    /** The boundaries of the enclosing multiparts, the innermost first */
+    private final Deque<String> boundaries = new ArrayDeque<>();
+    private final StringBuilder header = new StringBuilder();
+    private boolean inHeader = true;
+    private boolean inLeafBody = false;
+
+    private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+    private BlobWriter blobWriter;
+
+    private long written = 0;
+    private final List<String> references = new ArrayList<>();
+    private boolean finished = false;
+
+
+
+    /**
+     * Create a new {@link MimeSplittingOutputStream}
+     * @param out the stream the message file is written to
+     * @param blobStore the {@link BlobStore} receiving the large bodies
+     */
+    MimeSplittingOutputStream(OutputStream out, BlobStore blobStore) {
+        this.out = out;
+        this.blobStore = blobStore;
+    }
+
+
+
+    @Override
+    public void write(int b) throws IOException {
+        line[lineLength++] = (byte) b;
+        if (b == '\n') {
+            processLine(true);
+        } else if (lineLength == line.length) {
+            processLine(false);
+        }
+    }
+
+
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        int end = off + len;
+        while (off < end) {
+            int n = Math.min(end - off, line.length - lineLength);
+            int i = 0;
+            while (i < n && b[off + i] != '\n') {
+                i++;
+            }
+
+            boolean complete = i < n;
+            int count = complete ? i + 1 : n;
+            System.arraycopy(b, off, line, lineLength, count);
+            lineLength += count;
+            off += count;
+
+            if (complete) {
+                processLine(true);
+            } else if (lineLength == line.length) {
+                processLine(false);
+            }
+        }
+    }
+
+
+
+    /**
+     * Process the buffered line
+     * @param complete true if the line ends with LF, false if it is the beginning of a longer line
+     * @throws IOException in case of error
+     */
+    private void processLine(boolean complete) throws IOException {
+        if (inHeader) {
+            writeOut(line, lineLength);
+            if (complete && isBlankLine()) {
+                endHeader();
+            } else if (header.length() < MAX_HEADER_LENGTH) {
+                header.append(new String(line, 0, lineLength, StandardCharsets.ISO_8859_1));
+            }
+
+        } else if (complete && !continued && !boundaries.isEmpty()
+                && lineLength > 2 && line[0] == '-' && line[1] == '-') {
+            processDelimiter();
+
+        } else if (inLeafBody) {
+            writeBody(line, lineLength);
+
+        } else {
+            writeOut(line, lineLength);
+        }
+        lineLength = 0;
+        continued = !complete;
+    }
+
+
+
+    /**
+     * Process a line which may be a boundary delimiter of one of the enclosing multiparts
+     * @throws IOException in case of error
+     */
+    private void processDelimiter() throws IOException {
+        int end = lineLength;
+        while (end > 2 && (line[end - 1] == '\n' || line[end - 1] == '\r'
+                || line[end - 1] == ' ' || line[end - 1] == '\t')) {
+            end--;
+        }
+        String delimiter = new String(line, 2, end - 2, StandardCharsets.ISO_8859_1);
+
+        int depth = 0;
+        for (Iterator<String> it = boundaries.iterator(); it.hasNext(); depth++) {
+            String boundary = it.next();
+            boolean close = delimiter.equals(boundary + "--");
+            if (!close && !delimiter.equals(boundary)) {
+                continue;
+            }
+
+            // the body of the current part ends with the delimiter
+            endBody();
+            writeOut(line, lineLength);
+            for (int i = 0; i < depth; i++) {
+                boundaries.pop();
+            }
+
+            if (close) {
+                // the epilogue of the multipart is kept in the message file
+                boundaries.pop();
+            } else {
+                inHeader = true;
+                header.setLength(0);
+            }
+            return;
+        }
+
+        if (inLeafBody) {
+            writeBody(line, lineLength);
+        } else {
+            writeOut(line, lineLength);
+        }
+    }
+
+
+
+    /** Start the body of the current entity, depending on its content type */
+    private void endHeader() {
+        inHeader = false;
+        String boundary = getBoundary(header.toString());
+        header.setLength(0);
+
+        if (boundary != null) {
+            // the preamble of the multipart is kept in the message file
+            boundaries.push(boundary);
+            inLeafBody = false;
+        } else {
+            // only the parts of a multipart are moved; a single part message is kept whole
+            inLeafBody = !boundaries.isEmpty();
+        }
+    }
+
+
+
+    /**
+     * Get the boundary of a multipart entity
+     * @param header the header of the entity
+     * @return the boundary, or null if the entity is not a multipart
+     */
+    private static String getBoundary(String header) {
+        String contentType = null;
+        for (String field : header.split("\r?\n(?![ \t])")) {
+            if (field.regionMatches(true, 0, "Content-Type:", 0, 13)) {
+                contentType = field.substring(13).replaceAll("\r?\n", "").trim();
+            }
+        }
+        if (contentType == null) {
+            return null;
+        }
+
+        try {
+            ContentType type = new ContentType(contentType);
+            return type.getPrimaryType().equalsIgnoreCase("multipart") ? type.getParameter("boundary") : null;
+
+        } catch (ParseException e) {
+            return null;
+        }
+    }
+
+
+
+    private boolean isBlankLine() {
+        return !continued && (lineLength == 1 || (lineLength == 2 && line[0] == '\r'));
+    }
+
+
+
+    /**
+     * Write a part of the message to the message file
+     * @param b the bytes
+     * @param len the number of bytes
+     * @throws IOException in case of error
+     */
+    private void writeOut(byte[] b, int len) throws IOException {
+        out.write(b, 0, len);
+        written += len;
+    }
+
+
+
+    /**
+     * Write a part of a body, which is buffered until known to be moved to the {@link BlobStore} or not
+     * @param b the bytes
+     * @param len the number of bytes
+     * @throws IOException in case of error
+     */
+    private void writeBody(byte[] b, int len) throws IOException {
+        if (blobWriter != null) {
+            blobWriter.write(b, len);
+            return;
+        }
+
+        body.write(b, 0, len);
+        if (body.size() >= blobStore.getThreshold()) {
+            blobWriter = new BlobWriter(blobStore.createTempFile());
+            blobWriter.write(body.toByteArray(), body.size());
+            body.reset();
+        }
+    }
+
+
+
+    /**
+     * End the body of the current part, moving it to the {@link BlobStore} if large enough
+     * @throws IOException in case of error
+     */
+    private void endBody() throws IOException {
+        if (blobWriter != null) {
+            BlobWriter writer = blobWriter;
+            blobWriter = null;
+            String hash = writer.finish();
+            blobStore.add(writer.file, hash);
+            references.add(BlobStore.REFERENCE_HEADER + written + " " + hash + " " + writer.length + "\r\n");
+
+        } else if (body.size() > 0) {
+            body.writeTo(out);
+            written += body.size();
+            body.reset();
+        }
+        inLeafBody = false;
+    }
+
+
+
+    /**
+     * Check whether bodies of the message were moved to the {@link BlobStore}, so that its file ends with a trailer
+     * @return true if the message was split
+     */
+    boolean isSplit() {
+        return !references.isEmpty();
+    }
+
+
+
+    /**
+     * Write the rest of the message and the trailer referring to the moved bodies, if any.
+     * The stream the message file is written to is left open.
+     * @throws IOException in case of error
+     */
+    void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        finished = true;
+
+        if (lineLength > 0) {
+            if (inLeafBody) {
+                writeBody(line, lineLength);
+            } else {
+                writeOut(line, lineLength);
+            }
+            lineLength = 0;
+        }
+        endBody();
+        if (references.isEmpty()) {
+            return;
+        }
+
+        StringBuilder trailer = new StringBuilder();
+        for (String reference : references) {
+            trailer.append(reference);
+        }
+        int trailerLength = trailer.length() + BlobStore.TRAILER_LINE_LENGTH;
+        trailer.append(String.format("%s%010d %010d\r\n", BlobStore.TRAILER_HEADER, references.size(), trailerLength));
+        out.write(trailer.toString().getBytes(StandardCharsets.US_ASCII));
+    }
+
+
+
+    /** Discard the body being moved to the {@link BlobStore}, if any */
+    void abort() {
+        finished = true;
+        if (blobWriter != null) {
+            blobWriter.abort();
+            blobWriter = null;
+        }
+    }
+
+
+
+    /** Writer of a body into a temporary file of the {@link BlobStore}, computing its hash */
+    private static class BlobWriter {
+
+        private final File file;
+        private final FileOutputStream out;
+        private final MessageDigest digest;
+        private long length = 0;
+
+
+
+        BlobWriter(File file) throws IOException {
+            this.file = file;
+            try {
+                digest = MessageDigest.getInstance("SHA-256");
+
+            } catch (NoSuchAlgorithmException e) {
+                throw new IOException("SHA-256 not available!", e);
+            }
+            out = new FileOutputStream(file);
+        }
+
+
+
+        void write(byte[] b, int len) throws IOException {
+            out.write(b, 0, len);
+            digest.update(b, 0, len);
+            length += len;
+        }
+
+
+
+        String finish() throws IOException {
+            out.close();
+
+            StringBuilder hash = new StringBuilder();
+            for (byte b : digest.digest()) {
+                hash.append(String.format("%02x", b));
+            }
+            return hash.toString();
+        }
+
+
+
+        void abort() {
+            try {
+                out.close();
+
+            } catch (IOException e) {
+                // the file is deleted anyway
+            }
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Project: imap2local
+ *
+ * Copyright (c) Attila Kovari
+ * All rights reserved.
+ *
+ * MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+
+package ro.kovari.imap.store;
+
+import java.util.concurrent.TimeUnit;
+
+
+/** The result of a timed download of sample messages */
+public class TransferSample {
+
+    private final int messageCount;
+    private final long messageBytes;
+    private final long wireBytes;
+    private final long elapsedNanos;
+    private final long roundTripNanos;
+
+
+
+    /**
+     * Create a new {@link TransferSample}
+     * @param messageCount the number of messages downloaded
+     * @param messageBytes the size of the messages downloaded
+     * @param wireBytes the number of bytes received over the wire
+     * @param elapsedNanos the duration of the download
+     * @param roundTripNanos the round trip time to the server
+     */
+    TransferSample(int messageCount, long messageBytes, long wireBytes, long elapsedNanos, long roundTripNanos) {
+        this.messageCount = messageCount;
+        this.messageBytes = messageBytes;
+        this.wireBytes = wireBytes;
+        this.elapsedNanos = elapsedNanos;
+        this.roundTripNanos = roundTripNanos;
+    }
+
+
+
+    public int getMessageCount() {
+        return messageCount;
+    }
+
+
+
+    public long getMessageBytes() {
+        return messageBytes;
+    }
+
+
+
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+
+
+    public long getRoundTripNanos() {
+        return roundTripNanos;
+    }
+
+
+
+    /**
+     * Get the throughput
+     * @return the throughput, in message bytes per second
+     */
+    public double getThroughput() {
+        return elapsedNanos == 0 ? 0 : messageBytes * (double) TimeUnit.SECONDS.toNanos(1) / elapsedNanos;
+    }
+
+
+
+    /**
+     * Get the bandwidth, that is the throughput without the round trip time spent on each message
+     * @return the bandwidth, in message bytes per second
+     */
+    public double getBandwidth() {
+        // at least a tenth of the time goes to the actual transfer, should the round trips dominate
+        long transferNanos = Math.max(elapsedNanos / 10, elapsedNanos - messageCount * roundTripNanos);
+        return transferNanos == 0 ? 0 : messageBytes * (double) TimeUnit.SECONDS.toNanos(1) / transferNanos;
+    }
+
+
+
+    /**
+     * Get the compression ratio
+     * @return the ratio between the message bytes and the bytes on the wire
+     */
+    public double getRatio() {
+        return wireBytes == 0 ? 0 : (double) messageBytes / wireBytes;
+    }
+
+
+
+    /**
+     * Combine this {@link TransferSample} with another one taken over the same transport, on other messages
+     * @param other the other {@link TransferSample}
+     * @return the combined {@link TransferSample}
+     */
+    TransferSample plus(TransferSample other) {
+        return new TransferSample(messageCount + other.messageCount, messageBytes + other.messageBytes,
+                wireBytes + other.wireBytes, elapsedNanos + other.elapsedNanos,
+                Math.min(roundTripNanos, other.roundTripNanos));
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Project: imap2local
+ *
+ * Copyright (c) Attila Kovari
+ * All rights reserved.
+ *
+ * MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+
+package ro.kovari.imap.store;
+
+
+/** An inclusive range of message UIDs within an IMAP folder */
+public class UidRange {
+
+    private final long firstUid;
+    private final long lastUid;
+    private final int messageCount;
+
+
+
+    /**
+     * Create a new {@link UidRange}
+     * @param firstUid the first UID of the range
+     * @param lastUid the last UID of the range
+     * @param messageCount the number of messages within the range
+     */
+    public UidRange(long firstUid, long lastUid, int messageCount) {
+        this.firstUid = firstUid;
+        this.lastUid = lastUid;
+        this.messageCount = messageCount;
+    }
+
+
+
+    public long getFirstUid() {
+        return firstUid;
+    }
+
+
+
+    public long getLastUid() {
+        return lastUid;
+    }
+
+
+
+    public int getMessageCount() {
+        return messageCount;
+    }
+
+
+
+    @Override
+    public String toString() {
+        return firstUid + ":" + lastUid;
+    }
+}
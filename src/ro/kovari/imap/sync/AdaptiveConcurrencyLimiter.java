@@ -0,0 +1,158 @@
+/*
+ * Project: imap2local
+ *
+ * Copyright (c) Attila Kovari
+ * All rights reserved.
+ *
+ * MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+
+package ro.kovari.imap.sync;
+
+
+/**
+ * Limits the number of concurrent requests to a server using AIMD
+ * (additive increase, multiplicative decrease).<br>
+ * The limit grows by one after a window of successful requests, one request for each permit,
+ * and is halved when the server throttles, drops a connection, a request fails or the
+ * observed latency rises well above the baseline latency: the lowest latency seen, drifting slowly
+ * towards the latency seen lately, so that a server which got slower for good, or a first sample taken
+ * while the server was idle, does not keep the limit down for the rest of the run. After a decrease,
+ * the limit is not decreased again until a full window of requests completed.
+ */
+public class AdaptiveConcurrencyLimiter {
+
+    /** The smoothed latency may grow up to this many times the baseline latency */
+    private static final double LATENCY_TOLERANCE = 2.0;
+
+    /** Weight of a new sample in the smoothed latency */
+    private static final double SMOOTHING = 0.2;
+
+    /** Weight of a new sample above the baseline latency in the baseline, much lower than in the smoothed latency */
+    private static final double BASELINE_DRIFT = 0.01;
+
+    private final int maxLimit;
+    private int limit;
+    private int inFlight = 0;
+    private int window = 0;
+    private boolean recovering = false;
+    private double baselineLatency = Double.MAX_VALUE;
+    private double smoothedLatency = 0;
+
+
+
+    /**
+     * Create a new {@link AdaptiveConcurrencyLimiter}, starting at half of the maximum limit
+     * @param maxLimit the maximum number of concurrent requests
+     */
+    public AdaptiveConcurrencyLimiter(int maxLimit) {
+        if (maxLimit <= 0)
+            throw new IllegalArgumentException("Invalid concurrency limit!");
+
+        this.maxLimit = maxLimit;
+        this.limit = Math.max(1, maxLimit / 2);
+    }
+
+
+
+    /**
+     * Get the current concurrency limit
+     * @return the current concurrency limit
+     */
+    public synchronized int getLimit() {
+        return limit;
+    }
+
+
+
+    /**
+     * Wait for a permit to send a request
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public synchronized void acquire() throws InterruptedException {
+        while (inFlight >= limit) {
+            wait();
+        }
+        inFlight++;
+    }
+
+
+
+    /**
+     * Return the permit of a successful request
+     * @param latencyNanos the observed latency of the request, in nanoseconds
+     */
+    public synchronized void release(long latencyNanos) {
+        inFlight--;
+
+        baselineLatency = latencyNanos < baselineLatency ?
+                latencyNanos : BASELINE_DRIFT * latencyNanos + (1 - BASELINE_DRIFT) * baselineLatency;
+        smoothedLatency = smoothedLatency == 0 ?
+                latencyNanos : SMOOTHING * latencyNanos + (1 - SMOOTHING) * smoothedLatency;
+
+        if (++window >= limit) {
+            // a full window completed since the last change
+            recovering = false;
+
+            if (smoothedLatency > LATENCY_TOLERANCE * baselineLatency) {
+                decrease();
+
+            } else {
+                window = 0;
+                limit = Math.min(maxLimit, limit + 1);
+            }
+        }
+        notifyAll();
+    }
+
+
+
+    /** Return the permit of a failed request */
+    public synchronized void releaseFailed() {
+        inFlight--;
+        decrease();
+        notifyAll();
+    }
+
+
+
+    /** Signal that the server asked to slow down, e.g. by a [THROTTLED] response or a BYE */
+    public synchronized void onCongestion() {
+        decrease();
+    }
+
+
+
+    /** Halve the limit, unless already done during the current window */
+    private void decrease() {
+        if (recovering) {
+            return;
+        }
+
+        limit = Math.max(1, limit / 2);
+        window = 0;
+        recovering = true;
+        // start over from the current latency; the baseline itself is kept
+        smoothedLatency = 0;
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Project: imap2local
+ *
+ * Copyright (c) Attila Kovari
+ * All rights reserved.
+ *
+ * MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+
+package ro.kovari.imap.sync;
+
+import ro.kovari.imap.exception.ConfigurationException;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+
+/**
+ * The time by which a run has to be over, e.g. the end of a nightly backup window.<br>
+ * No new work is to be taken once the deadline is near, that is within a margin left to finish the work
+ * in flight and to record what is left for the next run. Once near, the deadline stays so, so that all
+ * the workers of a run stop taking work together, even if the clock is set back.
+ */
+public class Deadline {
+
+    /** A time budget: hours, minutes and seconds, each optional, e.g. '2h', '90m' or '1h30m' */
+    private static final Pattern DURATION = Pattern.compile("(?:(\\d+)h)?(?:(\\d+)m)?(?:(\\d+)s)?");
+
+    /** No deadline: the run goes on until done */
+    public static final Deadline NONE = new Deadline(Long.MAX_VALUE, 0);
+
+    private final long time;
+    private final long margin;
+    private volatile boolean near = false;
+
+
+
+    /**
+     * Create a new {@link Deadline}
+     * @param time the deadline, in milliseconds since the epoch
+     * @param margin the margin before the deadline when no new work is taken, in milliseconds
+     */
+    public Deadline(long time, long margin) {
+        this.time = time;
+        this.margin = margin;
+    }
+
+
+
+    /**
+     * Parse a deadline, without a margin: either a time budget from now, e.g. '2h', '90m', '1h30m' or '45s',
+     * or the next time of day it is, e.g. '06:30', in the local time zone
+     * @param value the deadline
+     * @return the {@link Deadline}
+     * @throws ConfigurationException if the deadline is not valid
+     */
+    public static Deadline parse(String value) {
+        long now = System.currentTimeMillis();
+        String text = value.trim().toLowerCase(Locale.ROOT);
+
+        Matcher matcher = DURATION.matcher(text);
+        if (!text.isEmpty() && matcher.matches()) {
+            long seconds = TimeUnit.HOURS.toSeconds(parseLong(matcher.group(1)))
+                    + TimeUnit.MINUTES.toSeconds(parseLong(matcher.group(2)))
+                    + parseLong(matcher.group(3));
+            return new Deadline(now + TimeUnit.SECONDS.toMillis(seconds), 0);
+        }
+
+        try {
+            LocalDateTime current = LocalDateTime.now();
+            LocalDateTime today = LocalDateTime.of(current.toLocalDate(), LocalTime.parse(text));
+            LocalDateTime next = today.isAfter(current) ? today : today.plusDays(1);
+            return new Deadline(next.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli(), 0);
+
+        } catch (DateTimeParseException e) {
+            throw new ConfigurationException("Invalid deadline: " + value, e);
+        }
+    }
+
+
+
+    /**
+     * Get the same deadline with another margin
+     * @param seconds the margin before the deadline when no new work is taken, in seconds
+     * @return the {@link Deadline}
+     */
+    public Deadline withMargin(int seconds) {
+        return isSet() ? new Deadline(time, TimeUnit.SECONDS.toMillis(seconds)) : this;
+    }
+
+
+
+    /**
+     * Check whether there is a deadline at all
+     * @return true unless this is {@link #NONE}
+     */
+    public boolean isSet() {
+        return time != Long.MAX_VALUE;
+    }
+
+
+
+    /**
+     * Check whether the deadline is near, so that no new work is to be taken
+     * @return true if the deadline is within the margin, or past
+     */
+    public boolean isNear() {
+        if (!near && System.currentTimeMillis() >= time - margin) {
+            near = true;
+        }
+        return near;
+    }
+
+
+
+    /**
+     * Get the time left until no new work is to be taken
+     * @return the time left, or zero if the deadline is near
+     */
+    public Duration getTimeLeft() {
+        return isNear() ? Duration.ZERO : Duration.ofMillis(time - margin - System.currentTimeMillis());
+    }
+
+
+
+    @Override
+    public String toString() {
+        return isSet() ? Instant.ofEpochMilli(time).atZone(ZoneId.systemDefault()).toLocalDateTime().toString()
+                : "none";
+    }
+
+
+
+    private static long parseLong(String digits) {
+        return digits == null ? 0 : Long.parseLong(digits);
+    }
+}
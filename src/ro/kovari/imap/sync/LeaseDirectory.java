@@ -0,0 +1,344 @@
+/*
+ * Project: imap2local
+ *
+ * Copyright (c) Attila Kovari
+ * All rights reserved.
+ *
+ * MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+
+package ro.kovari.imap.sync;
+
+import ro.kovari.imap.exception.MaildirException;
+import ro.kovari.imap.store.FolderStatus;
+import ro.kovari.imap.store.UidRange;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.UUID;
+
+
+/**
+ * A directory of {@link WorkUnit}s shared by several processes, possibly on several hosts.<br>
+ * For every unit the directory holds:
+ * <ul>
+ *     <li>'&lt;id&gt;.unit' - the description of the unit, written by the coordinator</li>
+ *     <li>'&lt;id&gt;.lease' - created atomically by the worker claiming the unit and renewed
+ *     while it works, recording the last UID saved</li>
+ *     <li>'&lt;id&gt;.done' - created by the worker once the unit is completed</li>
+ * </ul>
+ * A lease not renewed within the lease timeout is considered stale; the unit is then claimed
+ * by another worker, which resumes after the last UID recorded in the stale lease.<br>
+ * The id of a unit is derived from its folder, the UIDVALIDITY and UIDNEXT of the folder when it was
+ * published, and its range, so that the messages received since are published as new units.
+ */
+public class LeaseDirectory {
+
+    private static final String UNIT_SUFFIX = ".unit";
+    private static final String LEASE_SUFFIX = ".lease";
+    private static final String DONE_SUFFIX = ".done";
+
+    private final File directory;
+    private final String workerId;
+    private final long leaseTimeoutMillis;
+
+
+
+    /**
+     * Create a new {@link LeaseDirectory}
+     * @param directory the shared directory
+     * @param workerId the id of this worker, unique across all hosts
+     * @param leaseTimeoutMillis the time after which a lease not renewed is considered stale
+     */
+    public LeaseDirectory(File directory, String workerId, long leaseTimeoutMillis) {
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new MaildirException("Unable to create lease directory!");
+        }
+
+        this.directory = directory;
+        this.workerId = workerId;
+        this.leaseTimeoutMillis = leaseTimeoutMillis;
+    }
+
+
+
+    /**
+     * Publish a unit of work, unless already published
+     * @param folderName the full name of the IMAP folder
+     * @param status the {@link FolderStatus} of the IMAP folder
+     * @param range the UID range
+     * @return true if the unit was published, false if it already existed
+     */
+    public boolean publish(String folderName, FolderStatus status, UidRange range) {
+        String id = UUID.nameUUIDFromBytes((folderName + "/" + status.getUidValidity() + "/" + status.getUidNext()
+                + "/" + range).getBytes(StandardCharsets.UTF_8)).toString();
+
+        Properties unit = new Properties();
+        unit.setProperty("folder", folderName);
+        unit.setProperty("uidValidity", String.valueOf(status.getUidValidity()));
+        unit.setProperty("firstUid", String.valueOf(range.getFirstUid()));
+        unit.setProperty("lastUid", String.valueOf(range.getLastUid()));
+        unit.setProperty("messageCount", String.valueOf(range.getMessageCount()));
+
+        File unitFile = new File(directory, id + UNIT_SUFFIX);
+        if (unitFile.exists()) {
+            return false;
+        }
+
+        // write under a temporary name first, so workers never read a partial unit
+        File tmpFile = new File(directory, id + UNIT_SUFFIX + "." + workerId);
+        write(tmpFile, unit);
+        try {
+            Files.move(tmpFile.toPath(), unitFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+
+        } catch (IOException e) {
+            throw new MaildirException("Unable to publish work unit!", e);
+        }
+        return true;
+    }
+
+
+
+    /**
+     * Get the highest UID covered by the units published for a folder
+     * @param folderName the full name of the IMAP folder
+     * @param uidValidity the current UID validity of the IMAP folder
+     * @return the highest UID, or 0 if no unit was published for the folder with this UID validity
+     */
+    public long getLastPublishedUid(String folderName, long uidValidity) {
+        String[] unitFiles = directory.list((dir, name) -> name.endsWith(UNIT_SUFFIX));
+        if (unitFiles == null) {
+            throw new MaildirException("Unable to list lease directory!");
+        }
+
+        long lastUid = 0;
+        for (String unitFile : unitFiles) {
+            Properties unit = read(new File(directory, unitFile));
+            if (folderName.equals(unit.getProperty("folder"))
+                    && String.valueOf(uidValidity).equals(unit.getProperty("uidValidity"))) {
+                lastUid = Math.max(lastUid, Long.parseLong(unit.getProperty("lastUid")));
+            }
+        }
+        return lastUid;
+    }
+
+
+
+    /**
+     * Claim the next unit which is neither done nor leased by a live worker
+     * @return the claimed {@link WorkUnit}, or null if there is no work left to claim
+     */
+    public WorkUnit claim() {
+        String[] unitFiles = directory.list((dir, name) -> name.endsWith(UNIT_SUFFIX));
+        if (unitFiles == null) {
+            throw new MaildirException("Unable to list lease directory!");
+        }
+        Arrays.sort(unitFiles);
+
+        for (String unitFile : unitFiles) {
+            String id = unitFile.substring(0, unitFile.length() - UNIT_SUFFIX.length());
+            if (new File(directory, id + DONE_SUFFIX).exists()) {
+                continue;
+            }
+
+            long resumeUid = 0;
+            File leaseFile = new File(directory, id + LEASE_SUFFIX);
+
+            if (leaseFile.exists()) {
+                Long staleUid = takeOverStaleLease(leaseFile);
+                if (staleUid == null) {
+                    continue; // leased by a live worker
+                }
+                resumeUid = staleUid;
+            }
+
+            if (createLease(leaseFile, resumeUid)) {
+                Properties unit = read(new File(directory, unitFile));
+                UidRange range = new UidRange(Long.parseLong(unit.getProperty("firstUid")),
+                        Long.parseLong(unit.getProperty("lastUid")),
+                        Integer.parseInt(unit.getProperty("messageCount")));
+
+                return new WorkUnit(id, unit.getProperty("folder"),
+                        Long.parseLong(unit.getProperty("uidValidity", "0")), range, resumeUid);
+            }
+        }
+        return null;
+    }
+
+
+
+    /**
+     * Renew the lease of a unit, recording the progress made
+     * @param unit the {@link WorkUnit}
+     * @param lastUid the last UID saved
+     */
+    public void renew(WorkUnit unit, long lastUid) {
+        File leaseFile = new File(directory, unit.getId() + LEASE_SUFFIX);
+        if (!workerId.equals(read(leaseFile).getProperty("owner"))) {
+            throw new MaildirException("Lease of work unit " + unit.getId() + " lost!");
+        }
+
+        Properties lease = new Properties();
+        lease.setProperty("owner", workerId);
+        lease.setProperty("lastUid", String.valueOf(lastUid));
+        write(leaseFile, lease);
+    }
+
+
+
+    /**
+     * Mark a unit as done and drop its lease
+     * @param unit the {@link WorkUnit}
+     */
+    public void complete(WorkUnit unit) {
+        try {
+            Files.createFile(new File(directory, unit.getId() + DONE_SUFFIX).toPath());
+
+        } catch (FileAlreadyExistsException e) {
+            // completed by a worker which took over a lease considered stale
+        } catch (IOException e) {
+            throw new MaildirException("Unable to complete work unit!", e);
+        }
+        new File(directory, unit.getId() + LEASE_SUFFIX).delete();
+    }
+
+
+
+    /**
+     * Get the number of units published and the number of units done
+     * @return the number of units published and the number of units done
+     */
+    public int[] getProgress() {
+        String[] units = directory.list((dir, name) -> name.endsWith(UNIT_SUFFIX));
+        String[] done = directory.list((dir, name) -> name.endsWith(DONE_SUFFIX));
+        return new int[] { units == null ? 0 : units.length, done == null ? 0 : done.length };
+    }
+
+
+
+    /**
+     * Atomically create the lease file of a unit
+     * @param leaseFile the lease file
+     * @param lastUid the last UID already saved
+     * @return true if the lease was created, false if another worker was faster
+     */
+    private boolean createLease(File leaseFile, long lastUid) {
+        try {
+            Files.createFile(leaseFile.toPath());
+
+        } catch (FileAlreadyExistsException e) {
+            return false;
+
+        } catch (IOException e) {
+            throw new MaildirException("Unable to create lease!", e);
+        }
+
+        Properties lease = new Properties();
+        lease.setProperty("owner", workerId);
+        lease.setProperty("lastUid", String.valueOf(lastUid));
+        write(leaseFile, lease);
+        return true;
+    }
+
+
+
+    /**
+     * Remove a lease if it is stale.<br>
+     * The lease is first renamed to a name unique to this worker, so that only one
+     * of the workers finding the same stale lease takes it over.
+     * @param leaseFile the lease file
+     * @return the last UID recorded by the stale lease, or null if the lease is live
+     */
+    private Long takeOverStaleLease(File leaseFile) {
+        if (System.currentTimeMillis() - leaseFile.lastModified() < leaseTimeoutMillis) {
+            return null;
+        }
+
+        File staleFile = new File(directory, leaseFile.getName() + "." + workerId);
+        try {
+            Files.move(leaseFile.toPath(), staleFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+
+        } catch (NoSuchFileException e) {
+            return null; // taken over by another worker
+
+        } catch (IOException e) {
+            throw new MaildirException("Unable to take over stale lease!", e);
+        }
+
+        Properties lease = read(staleFile);
+        if (System.currentTimeMillis() - staleFile.lastModified() < leaseTimeoutMillis) {
+            // renewed just before being moved; give it back to its owner
+            staleFile.renameTo(leaseFile);
+            return null;
+        }
+        staleFile.delete();
+
+        System.out.println("Taking over stale lease of " + lease.getProperty("owner"));
+        return Long.parseLong(lease.getProperty("lastUid", "0"));
+    }
+
+
+
+    /**
+     * Read a properties file
+     * @param file the file
+     * @return the {@link Properties}
+     */
+    private static Properties read(File file) {
+        Properties properties = new Properties();
+        try (Reader reader = new FileReader(file)) {
+            properties.load(reader);
+
+        } catch (IOException e) {
+            throw new MaildirException("Unable to read " + file.getName(), e);
+        }
+        return properties;
+    }
+
+
+
+    /**
+     * Write a properties file
+     * @param file the file
+     * @param properties the {@link Properties}
+     */
+    private static void write(File file, Properties properties) {
+        try (Writer writer = new FileWriter(file)) {
+            properties.store(writer, null);
+
+        } catch (IOException e) {
+            throw new MaildirException("Unable to write " + file.getName(), e);
+        }
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Project: imap2local
+ *
+ * Copyright (c) Attila Kovari
+ * All rights reserved.
+ *
+ * MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+
+package ro.kovari.imap.sync;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.function.Consumer;
+
+
+/**
+ * A stage of a pipeline: a thread processing the items put into its bounded queue, one after the other.<br>
+ * A full queue blocks the previous stage, so that a slow stage slows the whole pipeline down instead of
+ * letting the items pile up in memory. The share of the time the thread spends processing items, rather
+ * than waiting for them, is the utilization of the stage: the busiest stage is the bottleneck.
+ * The processor is expected to handle the failures of the items itself; should it throw anyway,
+ * the remaining items are skipped, so that the previous stages are not blocked, and the exception
+ * is thrown by {@link #finish()}; the skipped items are handed to the discarder, which frees what they hold.
+ * @param <T> the type of the items
+ */
+public class PipelineStage<T> {
+
+    /** The item ending the queue */
+    private static final Object END = new Object();
+
+    private final String name;
+    private final BlockingQueue<Object> queue;
+    private final Consumer<T> processor;
+    private final Consumer<T> discarder;
+    private final Thread thread;
+    private final long start = System.nanoTime();
+    private volatile long end = 0;
+    private volatile long busy = 0;
+    private volatile RuntimeException failure = null;
+
+
+
+    /**
+     * Create a new {@link PipelineStage} and start its thread
+     * @param name the name of the stage, and of its thread
+     * @param depth the number of items the queue holds before the previous stage is blocked
+     * @param processor the processor of the items
+     * @param discarder the discarder of the items skipped once the processor failed
+     */
+    public PipelineStage(String name, int depth, Consumer<T> processor, Consumer<T> discarder) {
+        if (depth <= 0)
+            throw new IllegalArgumentException("Invalid pipeline depth!");
+
+        this.name = name;
+        this.queue = new ArrayBlockingQueue<>(depth);
+        this.processor = processor;
+        this.discarder = discarder;
+        this.thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+
+
+    /**
+     * Get the name of the stage
+     * @return the name of the stage
+     */
+    public String getName() {
+        return name;
+    }
+
+
+
+    /**
+     * Get the thread of the stage
+     * @return the identifier of the thread
+     */
+    public long getThreadId() {
+        return thread.getId();
+    }
+
+
+
+    /**
+     * Queue an item, waiting while the queue is full
+     * @param item the item
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void put(T item) throws InterruptedException {
+        queue.put(item);
+    }
+
+
+
+    /**
+     * Process the items queued so far, then stop the thread
+     * @throws InterruptedException if interrupted while waiting
+     * @throws RuntimeException if the processor failed
+     */
+    public void finish() throws InterruptedException {
+        queue.put(END);
+        thread.join();
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+
+
+    /**
+     * Get the share of the time spent processing items, since the stage was started, until it was finished
+     * @return the utilization, from 0 to 1
+     */
+    public double getUtilization() {
+        long elapsed = (end != 0 ? end : System.nanoTime()) - start;
+        return elapsed > 0 ? Math.min(1.0, (double) busy / elapsed) : 0;
+    }
+
+
+
+    /**
+     * Discard a skipped item
+     * @param item the item
+     */
+    private void discard(T item) {
+        try {
+            discarder.accept(item);
+
+        } catch (RuntimeException e) {
+            // the stage failed already; the item is dropped anyway
+        }
+    }
+
+
+
+    /** Process the queued items until the end of the queue */
+    @SuppressWarnings("unchecked")
+    private void run() {
+        try {
+            Object item;
+            while ((item = queue.take()) != END) {
+                if (failure != null) {
+                    discard((T) item);
+                    continue;
+                }
+
+                long started = System.nanoTime();
+                try {
+                    processor.accept((T) item);
+
+                } catch (RuntimeException e) {
+                    failure = e;
+                }
+                busy += System.nanoTime() - started;
+            }
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+
+        } finally {
+            end = System.nanoTime();
+        }
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Project: imap2local
+ *
+ * Copyright (c) Attila Kovari
+ * All rights reserved.
+ *
+ * MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+
+package ro.kovari.imap.sync;
+
+import ro.kovari.imap.store.UidRange;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+
+
+/**
+ * Hands out {@link UidRange}s to a fixed number of workers.<br>
+ * Each worker starts with its own contiguous share of the ranges and takes them in ascending order,
+ * or, when the newest messages come first, with every n-th range, so that the workers go through the ranges
+ * from the newest to the oldest together. A worker running out of ranges steals the last range of the worker
+ * with the most messages left.
+ */
+public class UidRangeScheduler {
+
+    private final List<Deque<UidRange>> queues = new ArrayList<>();
+
+
+
+    /**
+     * Create a new {@link UidRangeScheduler}
+     * @param ranges the ranges to hand out, in ascending UID order
+     * @param workers the number of workers
+     */
+    public UidRangeScheduler(List<UidRange> ranges, int workers) {
+        if (workers <= 0)
+            throw new IllegalArgumentException("Invalid number of workers!");
+
+        for (int worker = 0; worker < workers; worker++) {
+            int first = (int) ((long) worker * ranges.size() / workers);
+            int last = (int) ((long) (worker + 1) * ranges.size() / workers);
+            queues.add(new ArrayDeque<>(ranges.subList(first, last)));
+        }
+    }
+
+
+
+    /**
+     * Create a new {@link UidRangeScheduler} handing out the newest ranges first
+     * @param ranges the ranges to hand out, in ascending UID order
+     * @param workers the number of workers
+     * @return the {@link UidRangeScheduler}
+     */
+    public static UidRangeScheduler newestFirst(List<UidRange> ranges, int workers) {
+        UidRangeScheduler scheduler = new UidRangeScheduler(Collections.emptyList(), workers);
+        for (int i = 0; i < ranges.size(); i++) {
+            scheduler.queues.get(i % workers).add(ranges.get(ranges.size() - 1 - i));
+        }
+        return scheduler;
+    }
+
+
+
+    /**
+     * Get the next range for a worker
+     * @param worker the index of the worker
+     * @return the next {@link UidRange}, or null if there is no work left
+     */
+    public UidRange next(int worker) {
+        Deque<UidRange> own = queues.get(worker);
+        synchronized (own) {
+            UidRange range = own.pollFirst();
+            if (range != null) {
+                return range;
+            }
+        }
+        return steal(worker);
+    }
+
+
+
+    /**
+     * Give back a range the worker failed to download, to be retried first
+     * @param worker the index of the worker
+     * @param range the {@link UidRange} to retry
+     */
+    public void retry(int worker, UidRange range) {
+        Deque<UidRange> own = queues.get(worker);
+        synchronized (own) {
+            own.offerFirst(range);
+        }
+    }
+
+
+
+    /**
+     * Take all the ranges not handed out yet, e.g. to record them for later
+     * @return the ranges left, in descending UID order
+     */
+    public List<UidRange> drain() {
+        List<UidRange> left = new ArrayList<>();
+        for (Deque<UidRange> queue : queues) {
+            synchronized (queue) {
+                left.addAll(queue);
+                queue.clear();
+            }
+        }
+        left.sort(Comparator.comparingLong(UidRange::getFirstUid).reversed());
+        return left;
+    }
+
+
+
+    /**
+     * Steal a range from the worker with the most messages left
+     * @param thief the index of the worker without work
+     * @return the stolen {@link UidRange}, or null if there is no work left
+     */
+    private UidRange steal(int thief) {
+        while (true) {
+            Deque<UidRange> victim = null;
+            long mostMessages = 0;
+
+            for (int worker = 0; worker < queues.size(); worker++) {
+                if (worker == thief) {
+                    continue;
+                }
+
+                Deque<UidRange> queue = queues.get(worker);
+                long messages = 0;
+                synchronized (queue) {
+                    for (UidRange range : queue) {
+                        messages += range.getMessageCount();
+                    }
+                }
+
+                if (messages > mostMessages) {
+                    mostMessages = messages;
+                    victim = queue;
+                }
+            }
+
+            if (victim == null) {
+                return null;
+            }
+
+            synchronized (victim) {
+                // take from the tail, away from the range the victim works on next
+                UidRange range = victim.pollLast();
+                if (range != null) {
+                    return range;
+                }
+            }
+            // the victim drained its queue in the meantime; look again
+        }
+    }
+}
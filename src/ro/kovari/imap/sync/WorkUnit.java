@@ -0,0 +1,105 @@
+/*
+ * Project: imap2local
+ *
+ * Copyright (c) Attila Kovari
+ * All rights reserved.
+ *
+ * MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+
+package ro.kovari.imap.sync;
+
+import ro.kovari.imap.store.UidRange;
+
+
+/** A part of the work of an account: a UID range of a single IMAP folder */
+public class WorkUnit {
+
+    private final String id;
+    private final String folderName;
+    private final long uidValidity;
+    private final UidRange range;
+    private final long resumeUid;
+
+
+
+    /**
+     * Create a new {@link WorkUnit}
+     * @param id the unique id of the unit
+     * @param folderName the full name of the IMAP folder
+     * @param uidValidity the UID validity of the IMAP folder when the unit was published, or 0 if unknown
+     * @param range the UID range
+     * @param resumeUid the last UID saved by a previous owner of the unit, or 0 if none
+     */
+    public WorkUnit(String id, String folderName, long uidValidity, UidRange range, long resumeUid) {
+        this.id = id;
+        this.folderName = folderName;
+        this.uidValidity = uidValidity;
+        this.range = range;
+        this.resumeUid = resumeUid;
+    }
+
+
+
+    public String getId() {
+        return id;
+    }
+
+
+
+    public String getFolderName() {
+        return folderName;
+    }
+
+
+
+    public long getUidValidity() {
+        return uidValidity;
+    }
+
+
+
+    public UidRange getRange() {
+        return range;
+    }
+
+
+
+    public long getResumeUid() {
+        return resumeUid;
+    }
+
+
+
+    /**
+     * Get the part of the range still to be downloaded
+     * @return the {@link UidRange} following the last UID saved by a previous owner
+     */
+    public UidRange getRemainingRange() {
+        if (resumeUid < range.getFirstUid()) {
+            return range;
+        }
+        // the message count is unknown once resumed; it is only used for balancing
+        return new UidRange(resumeUid + 1, range.getLastUid(), 0);
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Project: imap2local
+ *
+ * Copyright (c) Attila Kovari
+ * All rights reserved.
+ *
+ * MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+
+package ro.kovari.imap.utils;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+
+/**
+ * A per-thread pool of reusable direct {@link ByteBuffer}s.<br>
+ * Direct buffers are written to a {@link java.nio.channels.FileChannel} without being copied again
+ * by the JDK, and reusing them keeps the garbage produced per message close to nothing.
+ * A buffer released on another thread than it was acquired on joins the pool of that thread.<br>
+ * The heap chunks handing messages over from a thread to another are pooled apart, in a pool shared
+ * by all threads, as they are acquired on one thread and released on another.
+ */
+public class BufferPool {
+
+    /** The capacity of the buffers */
+    public static final int BUFFER_SIZE = 64 << 10;
+
+    /** Number of idle buffers kept per thread */
+    private static final int MAX_IDLE = 4;
+
+    /** The capacity of the chunks */
+    public static final int CHUNK_SIZE = 16 << 10;
+
+    /** Number of idle chunks kept, for all threads */
+    private static final int MAX_IDLE_CHUNKS = 256;
+
+    private static final ThreadLocal<Deque<ByteBuffer>> POOL = ThreadLocal.withInitial(ArrayDeque::new);
+
+    /** An array based queue, so that pooling a chunk allocates nothing */
+    private static final BlockingQueue<byte[]> CHUNKS = new ArrayBlockingQueue<>(MAX_IDLE_CHUNKS);
+
+
+
+    /**
+     * Take a cleared buffer from the pool of the current thread, or allocate a new one if the pool is empty
+     * @return the {@link ByteBuffer}
+     */
+    public static ByteBuffer acquire() {
+        ByteBuffer buffer = POOL.get().poll();
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+
+        // Buffer.clear(), as ByteBuffer.clear() does not exist on Java 8
+        ((Buffer) buffer).clear();
+        return buffer;
+    }
+
+
+
+    /**
+     * Return a buffer to the pool of the current thread; the buffer must no longer be used by the caller
+     * @param buffer the {@link ByteBuffer}
+     */
+    public static void release(ByteBuffer buffer) {
+        Deque<ByteBuffer> pool = POOL.get();
+        if (pool.size() < MAX_IDLE) {
+            pool.push(buffer);
+        }
+    }
+
+
+
+    /**
+     * Take a chunk from the shared pool, or allocate a new one if the pool is empty
+     * @return the chunk, of {@link #CHUNK_SIZE} bytes, holding the data of its previous use
+     */
+    public static byte[] acquireChunk() {
+        byte[] chunk = CHUNKS.poll();
+        return chunk == null ? new byte[CHUNK_SIZE] : chunk;
+    }
+
+
+
+    /**
+     * Return a chunk to the shared pool, from any thread; the chunk must no longer be used by the caller
+     * @param chunk the chunk
+     */
+    public static void releaseChunk(byte[] chunk) {
+        CHUNKS.offer(chunk);
+    }
+}
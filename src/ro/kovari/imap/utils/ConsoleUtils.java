@@ -0,0 +1,90 @@
+/*
+ * Project: imap2local
+ *
+ * Copyright (c) Attila Kovari
+ * All rights reserved.
+ *
+ * MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+
+package ro.kovari.imap.utils;
+
+import java.io.BufferedReader;
+import java.io.Console;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+
+
+/**
+ * Reads the answers of the user from the console, or, when there is none, e.g. when the standard
+ * output is piped into another program, from the standard input, the prompts going to the standard error.<br>
+ * Without a console, the password is echoed if the standard input is a terminal.
+ */
+public class ConsoleUtils {
+
+    private static BufferedReader reader = null;
+
+
+
+    /**
+     * Read a line of text
+     * @param prompt the prompt
+     * @return the line read, without its line terminator, or null at the end of the input
+     */
+    public static synchronized String readLine(String prompt) {
+        Console console = System.console();
+        if (console != null) {
+            return console.readLine(prompt);
+        }
+
+        System.err.print(prompt);
+        System.err.flush();
+        try {
+            if (reader == null) {
+                reader = new BufferedReader(new InputStreamReader(System.in));
+            }
+            return reader.readLine();
+
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+
+
+    /**
+     * Read a password, without echoing it when read from the console
+     * @param prompt the prompt
+     * @return the password read, or null at the end of the input
+     */
+    public static synchronized char[] readPassword(String prompt) {
+        Console console = System.console();
+        if (console != null) {
+            return console.readPassword(prompt);
+        }
+
+        String password = readLine(prompt);
+        return password == null ? null : password.toCharArray();
+    }
+}
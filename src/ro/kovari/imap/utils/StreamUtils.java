@@ -31,6 +31,7 @@ package ro.kovari.imap.utils;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -52,4 +53,26 @@ public class StreamUtils {
             logger.log(Level.WARNING, "Exception while closing stream.", e);
         }
     }
+
+
+
+    /**
+     * Get an {@link OutputStream} discarding all bytes written to it
+     * @return the new {@link OutputStream}
+     */
+    public static OutputStream nullOutputStream() {
+        return new OutputStream() {
+            @Override
+            public void write(int b) {
+                // discard
+            }
+
+
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                // discard
+            }
+        };
+    }
 }